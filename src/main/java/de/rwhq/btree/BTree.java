@@ -11,23 +11,38 @@
 package de.rwhq.btree;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Function;
 import com.google.common.base.Objects;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import de.rwhq.btree.AdjustmentAction.ACTION;
+import de.rwhq.comparator.LexicographicComparator;
+import de.rwhq.comparator.RawComparator;
 import de.rwhq.io.MustInitializeOrLoad;
+import de.rwhq.io.rm.AsyncResourceManager;
+import de.rwhq.io.rm.CachedResourceManager;
 import de.rwhq.io.rm.DataPageManager;
+import de.rwhq.io.rm.Durability;
 import de.rwhq.io.rm.FileResourceManager;
+import de.rwhq.io.rm.PageRing;
 import de.rwhq.io.rm.RawPage;
 import de.rwhq.io.rm.ResourceManager;
+import de.rwhq.io.rm.WriteAheadLog;
 import de.rwhq.serializer.FixLengthSerializer;
+import de.rwhq.serializer.OrderPreservingSerializer;
 import de.rwhq.serializer.PagePointSerializer;
+import de.rwhq.serializer.Serializer;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.w3c.dom.ranges.RangeException;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -36,7 +51,15 @@ import static com.google.common.base.Preconditions.*;
  * The Btree page, all leafs and innernodes have to be stored in the same RawPageManager. We used to have it differently
  * but it is simpler this way. Now The BTree can make sure that all use the same serializers and comparators.
  * <p/>
- * Header: NUM_OF_ENTRIES ROOT_ID (here comes serializers etc)
+ * Header: VERSION ROOT_ID NUM_OF_ENTRIES(long) FLAGS LARGE_VALUE_THRESHOLD (here comes serializers etc). FLAGS and
+ * LARGE_VALUE_THRESHOLD hold the settings that the layout of the nodes depends on.
+ * <p/>
+ * Headers written before version 2 have the layout NUM_OF_ENTRIES(int) ROOT_ID and are converted when loaded.
+ * <p/>
+ * If a {@link WriteAheadLog} is set, every add and remove is logged and committed before the method returns. The pages
+ * are only written at checkpoints between two operations, so an interrupted split never reaches the disk. Most
+ * checkpoints run in the background while the tree is modified, see {@link Checkpointer}. {@link #load()} redoes the
+ * operations logged after the last checkpoint.
  *
  * @param <K>
  * @param <V>
@@ -50,6 +73,10 @@ public class BTree<K, V> implements MultiMap<K, V>, MustInitializeOrLoad {
 	 * This is the probably least verbose method for creating BTrees. It accepts a file versus the FileResourceManager of
 	 * the constructor. In addition, one does not have to repeat the generic on the right hand side of the creation
 	 * assignment.
+	 * <p/>
+	 * If the key or the value serializer is not a {@link FixLengthSerializer}, the nodes store their entries in a slot
+	 * directory with a heap, see {@link SlottedPage}. Each entry must then fill at most half of a leaf, and each key
+	 * at most a third of an inner node.
 	 *
 	 * @param rm
 	 * 		resourceManager
@@ -62,8 +89,8 @@ public class BTree<K, V> implements MultiMap<K, V>, MustInitializeOrLoad {
 	 *
 	 * @throws IOException
 	 */
-	public static <K, V> BTree<K, V> create(final ResourceManager rm, final FixLengthSerializer<K, byte[]> keySerializer,
-	                                        final FixLengthSerializer<V, byte[]> valueSerializer,
+	public static <K, V> BTree<K, V> create(final ResourceManager rm, final Serializer<K, byte[]> keySerializer,
+	                                        final Serializer<V, byte[]> valueSerializer,
 	                                        final Comparator<K> comparator) throws IOException {
 
 		checkNotNull(rm);
@@ -86,15 +113,31 @@ public class BTree<K, V> implements MultiMap<K, V>, MustInitializeOrLoad {
 	private Node<K, V> root;
 
 	private boolean valid           = false;
-	private int     numberOfEntries = 0;
-	private FixLengthSerializer<K, byte[]> keySerializer;
-	private FixLengthSerializer<V, byte[]> valueSerializer;
+	private long    numberOfEntries = 0;
+	private boolean prefixCompression = false;
+	private boolean suffixTruncation  = false;
+	private boolean postingLists      = false;
+	/** values with more bytes are stored out of line, 0 if all values are stored in the leaves */
+	private int     largeValueThreshold = 0;
+	private Serializer<K, byte[]> keySerializer;
+	private Serializer<V, byte[]> valueSerializer;
+	/** true, if the keys or values have a variable length and the nodes are slotted */
+	private final boolean variableLength;
+
+	/** null if the operations are not logged */
+	private WriteAheadLog log;
+	private Checkpointer  checkpointer;
+
+	/** reads the pages for the asynchronous lookups */
+	private AsyncResourceManager asyncRm;
+	/** null if rm is not a CachedResourceManager */
+	private LeafReadAhead        readAhead;
 
 	/* (non-Javadoc)
 		  * @see MultiMap#size()
 		  */
 	@Override
-	public int getNumberOfEntries() {
+	public long getNumberOfEntries() {
 		ensureValid();
 		return numberOfEntries;
 	}
@@ -119,6 +162,213 @@ public class BTree<K, V> implements MultiMap<K, V>, MustInitializeOrLoad {
 		return root.get(key);
 	}
 
+	/**
+	 * Like {@link #get(Object)}, but nodes that are not in memory are read through an {@link AsyncResourceManager}, and
+	 * the lookup continues when the read has completed. No thread waits while the pages are read, the nodes are only
+	 * examined while holding the monitor of the tree. Asynchronous lookups can run concurrently with each other, but
+	 * like get, not with modifications of the tree.
+	 *
+	 * @param key
+	 * @return future of the values for the given key
+	 * @see #setIoExecutor(ExecutorService)
+	 */
+	public ListenableFuture<List<V>> getAsync(final K key) {
+		ensureValid();
+		checkArgument(key != null, "key must not be null");
+
+		return Futures.transform(getLeafAsync(key, root), new Function<LeafNode<K, V>, List<V>>() {
+			@Override
+			public List<V> apply(final LeafNode<K, V> leaf) {
+				synchronized (BTree.this) {
+					return leaf == null ? new ArrayList<V>() : leaf.get(key);
+				}
+			}
+		});
+	}
+
+	/**
+	 * asynchronous {@link #containsKey(Object)}, see {@link #getAsync(Object)}
+	 *
+	 * @param key
+	 * @return future of true, if the tree contains the given key
+	 */
+	public ListenableFuture<Boolean> containsKeyAsync(final K key) {
+		ensureValid();
+		checkArgument(key != null, "key must not be null");
+
+		return Futures.transform(getLeafAsync(key, root), new Function<LeafNode<K, V>, Boolean>() {
+			@Override
+			public Boolean apply(final LeafNode<K, V> leaf) {
+				synchronized (BTree.this) {
+					return leaf != null && leaf.containsKey(key);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Descends as far as the nodes are cached, then chains the read of the next page.
+	 *
+	 * @param key
+	 * @param node
+	 * @return future of the leaf below the given node that would contain the key, null if the tree is empty
+	 */
+	private ListenableFuture<LeafNode<K, V>> getLeafAsync(final K key, final Node<K, V> node) {
+		final int id;
+		synchronized (this) {
+			Node<K, V> current = node;
+			while (true) {
+				if (current instanceof LeafNode)
+					return Futures.immediateFuture((LeafNode<K, V>) current);
+
+				final InnerNode<K, V> innerNode = (InnerNode<K, V>) current;
+				if (innerNode.getNumberOfKeys() == 0)
+					return Futures.<LeafNode<K, V>>immediateFuture(null);
+
+				final int childId = innerNode.getPageIdForKey(key);
+				if (!innerNodeManager.isNodeCached(childId)) {
+					id = childId;
+					break;
+				}
+				current = innerNodeManager.getNode(childId);
+			}
+		}
+
+		return Futures.chain(asyncRm.getPageAsync(id), new Function<RawPage, ListenableFuture<LeafNode<K, V>>>() {
+			@Override
+			public ListenableFuture<LeafNode<K, V>> apply(final RawPage page) {
+				final Node<K, V> child;
+				synchronized (BTree.this) {
+					child = innerNodeManager.getNode(page);
+				}
+				return getLeafAsync(key, child);
+			}
+		});
+	}
+
+	/**
+	 * Reads the pages for {@link #getAsync(Object)} and {@link #containsKeyAsync(Object)} on the given executor. Until
+	 * an executor is set, the pages are read by the calling thread. The executor is not shut down with the tree.
+	 *
+	 * @param executor
+	 */
+	public void setIoExecutor(final ExecutorService executor) {
+		asyncRm = new AsyncResourceManager(rm, executor);
+	}
+
+	/**
+	 * Stores the common prefix of the keys in each node only once, so that more keys fit into a page if they share long
+	 * prefixes, like paths or URLs. Only possible if the serialized keys order like their unsigned bytes, that is if
+	 * the raw comparator of the key serializer is a {@link LexicographicComparator}, see for example {@link
+	 * de.rwhq.serializer.PaddedStringSerializer}.
+	 * <p/>
+	 * Must be set before the tree is initialized. The setting is stored in the header, {@link #load()} uses the setting
+	 * the tree was initialized with.
+	 *
+	 * @param prefixCompression
+	 */
+	public void setPrefixCompression(final boolean prefixCompression) {
+		checkState(!valid, "prefix compression must be set before the tree is initialized");
+		checkArgument(!prefixCompression || rawComparatorFor(keySerializer, comparator) instanceof LexicographicComparator,
+				"prefix compression requires a key serializer whose raw comparator is a LexicographicComparator");
+		checkArgument(!prefixCompression || !variableLength, "prefix compression requires fixed-length keys and values");
+		checkState(!prefixCompression || !postingLists, "prefix compression cannot be combined with posting lists");
+
+		applyPrefixCompression(prefixCompression);
+	}
+
+	public boolean isPrefixCompression() {
+		return prefixCompression;
+	}
+
+	/**
+	 * When a node splits, the shortest separator that still distinguishes the two sides is pushed upwards instead of the
+	 * first key of the new node: the prefix of that key up to the first byte in which it differs from the last key of
+	 * the old node. Inner nodes store their keys only up to the last byte that is not zero, so the shorter separators
+	 * raise their fanout. Requires {@link #setPrefixCompression(boolean)}, whose page format the inner nodes extend.
+	 * <p/>
+	 * Must be set before the tree is initialized. Like prefix compression, the setting is stored in the header.
+	 *
+	 * @param suffixTruncation
+	 */
+	public void setSuffixTruncation(final boolean suffixTruncation) {
+		checkState(!valid, "suffix truncation must be set before the tree is initialized");
+		checkState(!suffixTruncation || prefixCompression, "suffix truncation requires prefix compression");
+
+		applySuffixTruncation(suffixTruncation);
+	}
+
+	public boolean isSuffixTruncation() {
+		return suffixTruncation;
+	}
+
+	/**
+	 * Stores every key only once per leaf, together with the list of all its values, instead of one entry per value. This
+	 * saves the repeated keys if there are many values per key, and {@link #get(Object)} reads the values as one run.
+	 * The leaves get the slotted layout (see {@link #create(ResourceManager, Serializer, Serializer, Comparator)}),
+	 * and lists that would take more than an eighth of a leaf are moved to a chain of overflow pages, see {@link
+	 * PostingList}.
+	 * <p/>
+	 * Must be set before the tree is initialized. Like prefix compression, the setting is stored in the header.
+	 *
+	 * @param postingLists
+	 */
+	public void setPostingLists(final boolean postingLists) {
+		checkState(!valid, "posting lists must be set before the tree is initialized");
+		checkState(!postingLists || !prefixCompression, "posting lists cannot be combined with prefix compression");
+
+		applyPostingLists(postingLists);
+	}
+
+	public boolean isPostingLists() {
+		return postingLists;
+	}
+
+	/**
+	 * Values whose serialized form has more bytes than the threshold are stored in {@link
+	 * de.rwhq.io.rm.DynamicDataPage}s, and the leaves only keep a {@link de.rwhq.io.rm.PagePointer} to them. The leaves
+	 * stay dense, so lookups and scans read fewer leaves, and only the values that are returned are read from their
+	 * DataPages. A value must fit into one DataPage.
+	 * <p/>
+	 * Must be set before the tree is initialized. Like prefix compression, the setting is stored in the header.
+	 *
+	 * @param largeValueThreshold
+	 * 		0 to store all values in the leaves, which is the default
+	 */
+	public void setLargeValueThreshold(final int largeValueThreshold) {
+		checkState(!valid, "the large value threshold must be set before the tree is initialized");
+		checkArgument(largeValueThreshold >= 0, "the large value threshold must not be negative");
+
+		applyLargeValueThreshold(largeValueThreshold);
+	}
+
+	public int getLargeValueThreshold() {
+		return largeValueThreshold;
+	}
+
+	private void applyPrefixCompression(final boolean prefixCompression) {
+		this.prefixCompression = prefixCompression;
+		leafPageManager.setPrefixCompression(prefixCompression);
+		innerNodeManager.setPrefixCompression(prefixCompression);
+	}
+
+	private void applySuffixTruncation(final boolean suffixTruncation) {
+		this.suffixTruncation = suffixTruncation;
+		leafPageManager.setSuffixTruncation(suffixTruncation);
+		innerNodeManager.setSuffixTruncation(suffixTruncation);
+	}
+
+	private void applyPostingLists(final boolean postingLists) {
+		this.postingLists = postingLists;
+		leafPageManager.setPostingLists(postingLists);
+		innerNodeManager.setPostingLists(postingLists);
+	}
+
+	private void applyLargeValueThreshold(final int largeValueThreshold) {
+		this.largeValueThreshold = largeValueThreshold;
+		leafPageManager.setLargeValueThreshold(largeValueThreshold);
+	}
+
 
 	/* (non-Javadoc)
 		  * @see MultiMap#add(java.lang.Object, java.lang.Object)
@@ -127,6 +377,46 @@ public class BTree<K, V> implements MultiMap<K, V>, MustInitializeOrLoad {
 	public void add(final K key, final V value) {
 		ensureValid();
 
+		final byte[] serializedKey = keySerializer.serialize(key);
+		final byte[] serializedValue = valueSerializer.serialize(value);
+		checkEntrySize(serializedKey, serializedValue);
+
+		final long lsn;
+		synchronized (this) {
+			insert(key, value);
+			lsn = log(LogRecord.ADD, serializedKey, serializedValue);
+			checkpointIfNeeded();
+		}
+		commit(lsn);
+	}
+
+	/**
+	 * with variable-length keys or values or with posting lists, every split must find room for the entries in both
+	 * nodes. Large values must fit into a DataPage.
+	 *
+	 * @param serializedKey
+	 * @param serializedValue
+	 */
+	private void checkEntrySize(final byte[] serializedKey, final byte[] serializedValue) {
+		if (largeValueThreshold > 0 && serializedValue.length > largeValueThreshold)
+			checkArgument(serializedValue.length <= OutOfLineValues.getMaxValueLength(rm.getPageSize()),
+					"the value with %s bytes is too large for the data pages", serializedValue.length);
+
+		if (!variableLength && !postingLists)
+			return;
+
+		final int storedLength = largeValueThreshold > 0 ?
+				OutOfLineValues.getMaxStoredLength(serializedValue.length, largeValueThreshold) : serializedValue.length;
+		checkArgument(LeafNode.isSmallEnough(rm.getPageSize(), serializedKey, postingLists ?
+				PostingList.getMaxSingletonSize(storedLength) : storedLength),
+				"the entry with %s key bytes and %s value bytes is too large for the leaves", serializedKey.length,
+				serializedValue.length);
+		checkArgument(keySerializer instanceof FixLengthSerializer ||
+				InnerNode.isSmallEnough(rm.getPageSize(), serializedKey),
+				"the key with %s bytes is too large for the inner nodes", serializedKey.length);
+	}
+
+	private void insert(final K key, final V value) {
 		setNumberOfEntries(getNumberOfEntries() + 1);
 
 		final AdjustmentAction<K, V> result = root.insert(key, value);
@@ -155,7 +445,17 @@ public class BTree<K, V> implements MultiMap<K, V>, MustInitializeOrLoad {
 	public void remove(final K key) {
 		ensureValid();
 
-		numberOfEntries -= root.remove(key);
+		final long lsn;
+		synchronized (this) {
+			removeKey(key);
+			lsn = log(LogRecord.REMOVE_KEY, keySerializer.serialize(key));
+			checkpointIfNeeded();
+		}
+		commit(lsn);
+	}
+
+	private void removeKey(final K key) {
+		setNumberOfEntries(getNumberOfEntries() - root.remove(key));
 	}
 
 	/* (non-Javadoc)
@@ -165,6 +465,20 @@ public class BTree<K, V> implements MultiMap<K, V>, MustInitializeOrLoad {
 	public void remove(final K key, final V value) {
 		ensureValid();
 
+		final long lsn;
+		synchronized (this) {
+			// only with posting lists, all values of a key are guaranteed to be in one leaf
+			if (!postingLists && root instanceof InnerNode)
+				throw new UnsupportedOperationException("removing a single value requires posting lists: " + this);
+
+			removeKeyValue(key, value);
+			lsn = log(LogRecord.REMOVE_KEY_VALUE, keySerializer.serialize(key), valueSerializer.serialize(value));
+			checkpointIfNeeded();
+		}
+		commit(lsn);
+	}
+
+	private void removeKeyValue(final K key, final V value) {
 		setNumberOfEntries(getNumberOfEntries() - root.remove(key, value));
 		rawPage.sync();
 	}
@@ -175,7 +489,10 @@ public class BTree<K, V> implements MultiMap<K, V>, MustInitializeOrLoad {
 	@Override
 	public void clear() throws IOException {
 		ensureValid();
+		if (checkpointer != null)
+			checkpointer.awaitFuzzyCheckpoint();
 		rm.clear();
+		clearNodeCaches();
 		valid = false;
 		initialize();
 		// just set another root, the other pages stay in the file
@@ -202,6 +519,33 @@ public class BTree<K, V> implements MultiMap<K, V>, MustInitializeOrLoad {
 		return result;
 	}
 
+	/**
+	 * Like {@link #getIterator()}, but for scans over large parts of the tree like exports, see {@link
+	 * #getScanIterator(Object, Object)}.
+	 *
+	 * @return iterator over all values
+	 */
+	public Iterator<V> getScanIterator() {
+		return getScanIterator(root.getFirstLeafKey(), root.getLastLeafKey());
+	}
+
+	/**
+	 * Like {@link #getIterator(Object, Object)}, but leaves that are not in the cache are read into a small {@link
+	 * PageRing} private to the iterator instead of taking frames of the CachedResourceManager. This way, a scan does not
+	 * push out the pages that the point lookups need.
+	 *
+	 * @param from
+	 * @param to
+	 * @return iterator over the values between from and to
+	 */
+	public Iterator<V> getScanIterator(final K from, final K to) {
+		ensureValid();
+
+		if (root instanceof InnerNode)
+			return ((InnerNode<K, V>) root).getIterator(from, to, new PageRing());
+		return root.getIterator(from, to);
+	}
+
 	/* (non-Javadoc)
 		  * @see ComplexPage#initialize()
 		  */
@@ -213,6 +557,7 @@ public class BTree<K, V> implements MultiMap<K, V>, MustInitializeOrLoad {
 		setRoot(leafPageManager.createPage());
 		setNumberOfEntries(0);
 		rawPage.sync();
+		checkpointIfLogged();
 	}
 
 	/* (non-Javadoc)
@@ -228,26 +573,41 @@ public class BTree<K, V> implements MultiMap<K, V>, MustInitializeOrLoad {
 		if (!rm.isOpen())
 			rm.open();
 
+		if (log != null) {
+			if (!log.isOpen())
+				log.open();
+
+			final int restored = log.restorePages(rm);
+			if (restored > 0)
+				LOG.info("restored " + restored + " pages of an interrupted checkpoint");
+		}
+
 		if (!rm.hasPage(1)) {
 			throw new IOException("Page 1 could not be found. Ensure that the BTree is initialized");
 		}
 
 
-		rawPage = rm.getPage(1);
-		numberOfEntries = rawPage.bufferForReading(0).getInt();
+		clearNodeCaches();
+		setHeaderPage(rm.getPage(1));
+		loadHeader();
 
 		final int rootId = rawPage.bufferForReading(4).getInt();
-		if (leafPageManager.hasPage(rootId)) {
-			root = leafPageManager.getPage(rootId);
-		} else if (innerNodeManager.hasPage(rootId)) {
-			root = innerNodeManager.getPage(rootId);
-		} else {
+		if (!rm.hasPage(rootId))
+			throw new IllegalStateException("the root page " + rootId + " does not exist");
+
+		try {
+			pinRoot(innerNodeManager.getNode(rootId));
+		} catch (IllegalArgumentException e) {
 			throw new IllegalStateException(
-					"Page 1 does exist, but is neither a leafPage nor a innerNodePage. This could be the result of an unclosed B-Tree.");
+					"Page 1 does exist, but is neither a leafPage nor a innerNodePage. This could be the result of an unclosed B-Tree.",
+					e);
 		}
 
 		valid = true;
 
+		if (log != null)
+			redoLog();
+
 		if (LOG.isDebugEnabled()) {
 			LOG.debug("BTree loaded: ");
 			LOG.debug("Number of Values: " + numberOfEntries);
@@ -272,32 +632,193 @@ public class BTree<K, V> implements MultiMap<K, V>, MustInitializeOrLoad {
 		}
 	}
 
+	/**
+	 * Writes all modified pages of the tree, including the number of entries and the root id in the header, and forces
+	 * them to the disk. Only needed if the ResourceManager holds back writes, see {@link Durability#WRITE_BACK}. With a
+	 * WriteAheadLog, this is a checkpoint.
+	 */
+	public synchronized void sync() {
+		ensureValid();
+		rawPage.sync();
+
+		if (log != null)
+			checkpoint();
+		else
+			rm.sync();
+	}
+
+	/**
+	 * Logs all following operations in the given log. Must be set before the tree is initialized or loaded, and the
+	 * ResourceManager must be a CachedResourceManager with {@link Durability#LOGGED}.
+	 *
+	 * @param log
+	 */
+	public void setWriteAheadLog(final WriteAheadLog log) {
+		checkState(!valid, "the WriteAheadLog must be set before the tree is initialized or loaded");
+		checkArgument(rm instanceof CachedResourceManager &&
+				((CachedResourceManager) rm).getDurability() == Durability.LOGGED,
+				"a WriteAheadLog requires a CachedResourceManager with Durability.LOGGED");
+
+		this.log = log;
+		this.checkpointer = log == null ? null : new Checkpointer((CachedResourceManager) rm, log);
+	}
+
+	public WriteAheadLog getWriteAheadLog() {
+		return log;
+	}
+
 	/**
 	 * sync, close the ResourceManager and set to invalid
 	 *
 	 * @throws IOException
 	 */
 	public void close() throws IOException {
-		rm.close();
-		valid = false;
+		boolean checkpointed = log == null || !valid;
+		try {
+			if (log != null) {
+				try {
+					if (valid)
+						checkpoint();
+					checkpointed = true;
+				} finally {
+					try {
+						checkpointer.shutdown();
+					} finally {
+						log.close();
+					}
+				}
+			}
+		} finally {
+			if (readAhead != null)
+				readAhead.shutdown();
+
+			// after a failed checkpoint, the modified pages are dropped like on a crash, load() redoes them from the log
+			if (checkpointed)
+				rm.close();
+			else
+				((CachedResourceManager) rm).getResourceManager().close();
+			clearNodeCaches();
+			valid = false;
+		}
+	}
+
+	/**
+	 * appends the record of an operation. This happens only after the operation succeeded, but still in the monitor of
+	 * the tree, so that the records keep the order of the operations and a failed one is never redone.
+	 *
+	 * @param type
+	 * @param parts
+	 * 		with variable-length keys or values, each part is logged with its length
+	 * @return lsn of the record, 0 if there is no log
+	 */
+	private long log(final LogRecord type, final byte[]... parts) {
+		if (log == null)
+			return 0;
+
+		if (variableLength) {
+			for (int i = 0; i < parts.length; i++)
+				parts[i] = ByteBuffer.allocate(Integer.SIZE / 8 + parts[i].length).putInt(parts[i].length).put(parts[i])
+						.array();
+		}
+
+		return log.append(type.serialize(), parts);
+	}
+
+	private void commit(final long lsn) {
+		if (log != null)
+			log.commit(lsn);
+	}
+
+	/** checkpoints when the modified pages do not fit into the cache anymore */
+	private void checkpointIfNeeded() {
+		if (checkpointer != null)
+			checkpointer.checkpointIfNeeded();
+	}
+
+	private void checkpointIfLogged() {
+		if (log != null)
+			checkpoint();
+	}
+
+	/**
+	 * logs the images of all modified pages, writes the pages in place and empties the log. Must only be called between
+	 * two operations.
+	 */
+	private void checkpoint() {
+		checkpointer.checkpoint();
+	}
+
+	Checkpointer getCheckpointer() {
+		return checkpointer;
+	}
+
+	LeafReadAhead getReadAhead() {
+		return readAhead;
+	}
+
+	/** redoes the operations logged after the last checkpoint, then checkpoints */
+	private void redoLog() {
+		final int redone = log.replay(new WriteAheadLog.RecordHandler() {
+			@Override
+			public void redo(final byte type, final ByteBuffer payload) {
+				final K key = keySerializer.deserialize(read(payload, keySerializer));
+
+				switch (LogRecord.deserialize(type)) {
+					case ADD:
+						insert(key, valueSerializer.deserialize(read(payload, valueSerializer)));
+						break;
+					case REMOVE_KEY:
+						removeKey(key);
+						break;
+					case REMOVE_KEY_VALUE:
+						removeKeyValue(key, valueSerializer.deserialize(read(payload, valueSerializer)));
+						break;
+				}
+			}
+
+			private byte[] read(final ByteBuffer payload, final Serializer<?, byte[]> serializer) {
+				final byte[] bytes = new byte[variableLength ?
+						payload.getInt() : ((FixLengthSerializer<?, byte[]>) serializer).getSerializedLength()];
+				payload.get(bytes);
+				return bytes;
+			}
+		});
+
+		if (redone > 0)
+			LOG.info("redone " + redone + " logged operations");
+
+		checkpoint();
+	}
+
+	/** the decoded nodes are only valid as long as the pages in the ResourceManager are not cleared or reopened */
+	private void clearNodeCaches() {
+		leafPageManager.clearCache();
+		innerNodeManager.clearCache();
 	}
 
 	public int getMaxInnerKeys() {
+		checkState(!variableLength, "the number of keys depends on their length");
 		final int realSize = rm.getPageSize() - InnerNode.Header.size() - Integer.SIZE / 8;
-		return realSize / (Integer.SIZE / 8 + keySerializer.getSerializedLength());
+		return realSize / (Integer.SIZE / 8 + getKeySerializer().getSerializedLength());
 	}
 
 	public int getMaxLeafKeys() {
+		checkState(!variableLength && !postingLists, "the number of entries depends on their length");
 		final int realSize = rm.getPageSize() - LeafNode.Header.size();
-		return realSize / (keySerializer.getSerializedLength() + valueSerializer.getSerializedLength());
+		final int valueLength = getValueSerializer().getSerializedLength();
+		final int storedValueLength = largeValueThreshold > 0 && valueLength > largeValueThreshold ?
+				PagePointSerializer.INSTANCE.getSerializedLength() : valueLength;
+		return realSize / (getKeySerializer().getSerializedLength() + storedValueLength);
 	}
 
 	public FixLengthSerializer<K, byte[]> getKeySerializer() {
-		return keySerializer;
+		checkState(keySerializer instanceof FixLengthSerializer, "the keys have a variable length");
+		return (FixLengthSerializer<K, byte[]>) keySerializer;
 	}
 
 	public FixLengthSerializer<V, byte[]> getValueSerializer() {
-		return valueSerializer;
+		checkState(valueSerializer instanceof FixLengthSerializer, "the values have a variable length");
+		return (FixLengthSerializer<V, byte[]>) valueSerializer;
 	}
 
 	@VisibleForTesting
@@ -342,6 +863,13 @@ public class BTree<K, V> implements MultiMap<K, V>, MustInitializeOrLoad {
 			checkNotNull(kvs[i], "array given to bulkInitialize must not contain null values");
 		}
 
+		if (toIndex >= fromIndex && (variableLength || postingLists || largeValueThreshold > 0)) {
+			final boolean isSerialized = LeafNode.holdsSerializedValues(kvs, fromIndex);
+			for (int i = fromIndex; i <= toIndex; i++)
+				checkEntrySize(keySerializer.serialize(kvs[i].getKey()),
+						LeafNode.serializeBulkValue(valueSerializer, kvs[i].getValue(), isSerialized));
+		}
+
 		final int count = toIndex - fromIndex + 1;
 		if (count < 0)
 			throw new IllegalArgumentException(
@@ -364,6 +892,7 @@ public class BTree<K, V> implements MultiMap<K, V>, MustInitializeOrLoad {
 
 		if (getNumberOfEntries() == 0) {
 			rawPage.sync();
+			checkpointIfLogged();
 			return;
 		}
 
@@ -377,17 +906,21 @@ public class BTree<K, V> implements MultiMap<K, V>, MustInitializeOrLoad {
 		int inserted = 0;
 		LeafNode<K, V> previousLeaf = null;
 		while (inserted < getNumberOfEntries()) {
-			leafPage = leafPageManager.createPage(false);
+			leafPage = leafPageManager.createPage(false, previousLeaf == null ? 0 : previousLeaf.getId());
 
 			inserted += leafPage.bulkInitialize(kvs, inserted + fromIndex, toIndex);
 
-			pageIdToSmallestKeyMap.put(leafPage.getId(), leafPage.getFirstLeafKeySerialized());
+			// with suffix truncation, the separator is stored instead of the smallest key
+			final byte[] smallestKey = previousLeaf == null || !suffixTruncation ?
+					leafPage.getFirstLeafKeySerialized() :
+					KeyPrefix.separator(previousLeaf.getLastLeafKeySerialized(), leafPage.getFirstLeafKeySerialized());
+			pageIdToSmallestKeyMap.put(leafPage.getId(), smallestKey);
 
 			// set nextLeafId of previous leaf
 			// dont store the first key
 			if (previousLeaf != null) {
 				// next layer doesn't need the first key
-				keysForNextLayer.add(leafPage.getFirstLeafKeySerialized());
+				keysForNextLayer.add(smallestKey);
 				previousLeaf.setNextLeafId(leafPage.getId());
 			}
 
@@ -400,6 +933,7 @@ public class BTree<K, V> implements MultiMap<K, V>, MustInitializeOrLoad {
 		if (pageIds.size() == 1) {
 			setRoot(leafPageManager.getPage(pageIds.get(0)));
 			rawPage.sync();
+			checkpointIfLogged();
 			return;
 		}
 
@@ -449,6 +983,7 @@ public class BTree<K, V> implements MultiMap<K, V>, MustInitializeOrLoad {
 		if (pageIds.size() == 1) {
 			setRoot(innerNodeManager.getPage(pageIds.get(0)));
 			rawPage.sync();
+			checkpointIfLogged();
 			return;
 		}
 	}
@@ -477,13 +1012,25 @@ public class BTree<K, V> implements MultiMap<K, V>, MustInitializeOrLoad {
 		return rm;
 	}
 
+	/** stored negated in the VERSION field, legacy headers have the (non-negative) number of entries there */
+	static final int VERSION = 2;
+
+	/** bits in the FLAGS field of the header */
+	static final int PREFIX_COMPRESSION = 1;
+	static final int SUFFIX_TRUNCATION  = 2;
+	static final int VARIABLE_LENGTH    = 4;
+	static final int POSTING_LISTS      = 8;
+
 	static enum Header {
-		NUM_OF_ENTRIES(0),
-		ROOT_ID(Integer.SIZE / 8);
+		VERSION(0),
+		ROOT_ID(Integer.SIZE / 8),
+		NUM_OF_ENTRIES(2 * Integer.SIZE / 8),
+		FLAGS((2 * Integer.SIZE + Long.SIZE) / 8),
+		LARGE_VALUE_THRESHOLD((3 * Integer.SIZE + Long.SIZE) / 8);
 
 		static int size() {
-			return (2 * Integer.SIZE) / 8;
-		} // 8
+			return (4 * Integer.SIZE + Long.SIZE) / 8;
+		} // 24
 
 		private int offset;
 
@@ -496,6 +1043,29 @@ public class BTree<K, V> implements MultiMap<K, V>, MustInitializeOrLoad {
 		}
 	}
 
+	/** types of the records in the WriteAheadLog */
+	static enum LogRecord {
+		ADD((byte) 0), REMOVE_KEY((byte) 1), REMOVE_KEY_VALUE((byte) 2);
+
+		public static LogRecord deserialize(final byte serialized) {
+			for (final LogRecord lr : values())
+				if (lr.serialized == serialized)
+					return lr;
+
+			throw new IllegalArgumentException("unknown log record type: " + serialized);
+		}
+
+		private final byte serialized;
+
+		public byte serialize() {
+			return serialized;
+		}
+
+		LogRecord(final byte value) {
+			this.serialized = value;
+		}
+	}
+
 	/**
 	 * This enum is used to make it possible for all nodes in the BTree to serialize and deserialize in a unique fashion
 	 *
@@ -579,39 +1149,77 @@ public class BTree<K, V> implements MultiMap<K, V>, MustInitializeOrLoad {
 	 * @param comparator
 	 */
 	private BTree(final ResourceManager rm,
-	              final FixLengthSerializer<K, byte[]> keySerializer, final FixLengthSerializer<V, byte[]> valueSerializer,
+	              final Serializer<K, byte[]> keySerializer, final Serializer<V, byte[]> valueSerializer,
 	              final Comparator<K> comparator) {
 
 		this.rm = rm;
 		this.keySerializer = keySerializer;
 		this.valueSerializer = valueSerializer;
+		this.variableLength =
+				!(keySerializer instanceof FixLengthSerializer) || !(valueSerializer instanceof FixLengthSerializer);
 		this.comparator = comparator;
+		this.asyncRm = new AsyncResourceManager(rm, MoreExecutors.sameThreadExecutor());
 
 		final DataPageManager<K> keyPageManager = new DataPageManager<K>(rm, PagePointSerializer.INSTANCE, keySerializer);
 		final DataPageManager<V> valuePageManager =
 				new DataPageManager<V>(rm, PagePointSerializer.INSTANCE, valueSerializer);
 
-		leafPageManager = new LeafPageManager<K, V>(rm, valueSerializer, keySerializer, comparator);
+		leafPageManager = new LeafPageManager<K, V>(rm, valueSerializer, keySerializer, comparator, valuePageManager);
 		innerNodeManager =
 				new InnerNodeManager(rm, keyPageManager, valuePageManager, leafPageManager, keySerializer, comparator);
 
+		if (rm instanceof CachedResourceManager) {
+			readAhead = new LeafReadAhead((CachedResourceManager) rm);
+			innerNodeManager.setReadAhead(readAhead);
+		}
+
 		if (LOG.isDebugEnabled()) {
 			LOG.debug("BTree created: ");
 			LOG.debug("key serializer: " + keySerializer);
 			LOG.debug("value serializer: " + valueSerializer);
 			LOG.debug("comparator: " + comparator);
+			LOG.debug("raw comparator: " + rawComparatorFor(keySerializer, comparator));
 		}
 	}
 
+	/**
+	 * @param keySerializer
+	 * @param comparator
+	 * @param <K>
+	 * @return the RawComparator nodes can use to compare the keys in place, or null if the serialized form of the keys
+	 *         does not preserve the order of the comparator
+	 */
+	static <K> RawComparator<K> rawComparatorFor(final Serializer<K, byte[]> keySerializer,
+	                                             final Comparator<K> comparator) {
+		if (keySerializer instanceof OrderPreservingSerializer)
+			return ((OrderPreservingSerializer<K>) keySerializer).getRawComparator(comparator);
+
+		return null;
+	}
+
 	private void ensureValid() {
 		checkState(isValid(), "Btree must be initialized or loaded");
 	}
 
 	private void setRoot(final Node<K, V> root) {
-		this.root = root;
+		pinRoot(root);
 		rawPage.bufferForWriting(Header.ROOT_ID.getOffset()).putInt(root.getId());
 	}
 
+	/**
+	 * the root is used by every operation, so it is pinned to keep it in the cache
+	 *
+	 * @param root
+	 */
+	private void pinRoot(final Node<K, V> root) {
+		if (this.root != null && this.root.rawPage() != root.rawPage())
+			this.root.rawPage().unpin();
+		if (this.root == null || this.root.rawPage() != root.rawPage())
+			root.rawPage().pin();
+
+		this.root = root;
+	}
+
 	/**
 	 * Loads a node, either as leaf or as innernode
 	 *
@@ -619,16 +1227,75 @@ public class BTree<K, V> implements MultiMap<K, V>, MustInitializeOrLoad {
 	 * @return
 	 */
 	private Node<K, V> getNode(final int id) {
-		if (leafPageManager.hasPage(id))
-			return leafPageManager.getPage(id);
-		else
-			return innerNodeManager.getPage(id);
+		return innerNodeManager.getNode(id);
+	}
+
+	/**
+	 * the header page is written on every modification, so it is pinned to keep it in the cache
+	 *
+	 * @param page
+	 */
+	private void setHeaderPage(final RawPage page) {
+		if (rawPage == page)
+			return;
+
+		if (rawPage != null)
+			rawPage.unpin();
+		page.pin();
+		rawPage = page;
 	}
 
 	/** @param i */
-	private void setNumberOfEntries(final int i) {
+	private void setNumberOfEntries(final long i) {
 		numberOfEntries = i;
-		rawPage.bufferForWriting(Header.NUM_OF_ENTRIES.getOffset()).putInt(numberOfEntries);
+		rawPage.bufferForWriting(Header.NUM_OF_ENTRIES.getOffset()).putLong(numberOfEntries);
+	}
+
+	/**
+	 * reads the number of entries from the header page, converting legacy headers to the current version
+	 *
+	 * @throws IOException
+	 * 		if the header version is unknown
+	 */
+	private void loadHeader() throws IOException {
+		final int version = rawPage.bufferForReading(Header.VERSION.getOffset()).getInt();
+
+		if (version >= 0) {
+			// legacy header: NUM_OF_ENTRIES(int) ROOT_ID
+			LOG.info("converting BTree header to version " + VERSION);
+			writeVersion();
+			setNumberOfEntries(version);
+			writeFlags();
+			rawPage.sync();
+		} else if (version == -VERSION) {
+			numberOfEntries = rawPage.bufferForReading(Header.NUM_OF_ENTRIES.getOffset()).getLong();
+		} else {
+			throw new IOException("unknown BTree header version: " + -version);
+		}
+
+		final int flags = rawPage.bufferForReading(Header.FLAGS.getOffset()).getInt();
+		if (((flags & VARIABLE_LENGTH) != 0) != variableLength)
+			throw new IOException("the BTree was created with " + (variableLength ? "fixed" : "variable") +
+					"-length serializers, its nodes have a different layout");
+		final boolean compressed = (flags & PREFIX_COMPRESSION) != 0;
+		if (compressed && !(rawComparatorFor(keySerializer, comparator) instanceof LexicographicComparator))
+			throw new IOException("the BTree uses prefix compression, which requires a LexicographicComparator");
+		applyPrefixCompression(compressed);
+		applySuffixTruncation(compressed && (flags & SUFFIX_TRUNCATION) != 0);
+		applyPostingLists((flags & POSTING_LISTS) != 0);
+		applyLargeValueThreshold(rawPage.bufferForReading(Header.LARGE_VALUE_THRESHOLD.getOffset()).getInt());
+	}
+
+	private void writeVersion() {
+		rawPage.bufferForWriting(Header.VERSION.getOffset()).putInt(-VERSION);
+	}
+
+	/** writes the settings that the layout of the nodes depends on */
+	private void writeFlags() {
+		rawPage.bufferForWriting(Header.FLAGS.getOffset())
+				.putInt((prefixCompression ? PREFIX_COMPRESSION : 0) | (suffixTruncation ? SUFFIX_TRUNCATION : 0) |
+						(variableLength ? VARIABLE_LENGTH : 0) | (postingLists ? POSTING_LISTS : 0));
+		rawPage.bufferForWriting(Header.LARGE_VALUE_THRESHOLD.getOffset()).putInt(largeValueThreshold);
 	}
 
 	/**
@@ -640,14 +1307,26 @@ public class BTree<K, V> implements MultiMap<K, V>, MustInitializeOrLoad {
 		if (!rm.isOpen())
 			rm.open();
 
+		// the logged operations belonged to the previous tree
+		if (log != null) {
+			if (!log.isOpen())
+				log.open();
+			log.truncate();
+		}
+
+		clearNodeCaches();
+
 		if (rm.hasPage(1))
-			rawPage = rm.getPage(1);
+			setHeaderPage(rm.getPage(1));
 		else
-			rawPage = rm.createPage();
+			setHeaderPage(rm.createPage());
 
 		if (rawPage.id() != 1)
 			throw new IllegalStateException("rawPage must have id 1");
 
+		writeVersion();
+		writeFlags();
+
 		valid = true;
 	}
 }
@@ -0,0 +1,163 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License:
+ *
+ * http://creativecommons.org/licenses/by-nc/3.0/
+ *
+ * For alternative conditions contact the author.
+ *
+ * Copyright (c) 2011 "Robin Wenglewski <robin@wenglewski.de>"
+ */
+
+package de.rwhq.btree;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import de.rwhq.io.rm.CachedResourceManager;
+import de.rwhq.io.rm.RawPage;
+import de.rwhq.io.rm.WriteAheadLog;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checkpoints of a BTree with a WriteAheadLog. All methods must be called between two operations of the tree, while
+ * holding the monitor of the tree.
+ * <p/>
+ * A fuzzy checkpoint copies the modified pages and remembers the lsn of the log at this point. A background thread
+ * logs the images of the copies, writes them in place and then marks the pages that have not been changed since then
+ * as written. The tree can be modified the whole time.
+ * <p/>
+ * A sharp checkpoint writes all modified pages and truncates the log. It blocks the tree, but since the fuzzy
+ * checkpoints keep the number of modified pages low, it is only needed when the log grows too large, the fuzzy
+ * checkpoints cannot keep up, or the tree is synced or closed.
+ */
+class Checkpointer {
+
+	private static final Log LOG = LogFactory.getLog(Checkpointer.class);
+
+	/** the log is truncated with a sharp checkpoint when it has this many times the size of the cache */
+	private static final int MAX_LOG_SIZE_FACTOR = 4;
+	/** but not before it has this size, so that small caches do not lead to a sharp checkpoint every few operations */
+	private static final long MIN_MAX_LOG_SIZE = 1 << 20;
+
+	private final CachedResourceManager crm;
+	private final WriteAheadLog         log;
+	private final long                  maxLogSize;
+
+	private ExecutorService executor;
+	private Future<?>       fuzzyCheckpoint;
+
+	private long fuzzyCheckpoints = 0;
+	private long sharpCheckpoints = 0;
+
+	Checkpointer(final CachedResourceManager crm, final WriteAheadLog log) {
+		this.crm = crm;
+		this.log = log;
+		this.maxLogSize =
+				Math.max(MIN_MAX_LOG_SIZE, (long) MAX_LOG_SIZE_FACTOR * crm.getCacheSize() * crm.getPageSize());
+	}
+
+	/** checkpoints if too many pages have been modified or the log is too large */
+	void checkpointIfNeeded() {
+		final int dirtyPages = crm.getNumberOfDirtyPages();
+
+		if (log.size() > maxLogSize || dirtyPages > 2 * crm.getCacheSize())
+			checkpoint();
+		else if (dirtyPages > crm.getCacheSize() && !isFuzzyCheckpointRunning())
+			startFuzzyCheckpoint();
+	}
+
+	private boolean isFuzzyCheckpointRunning() {
+		return fuzzyCheckpoint != null && !fuzzyCheckpoint.isDone();
+	}
+
+	@VisibleForTesting
+	void startFuzzyCheckpoint() {
+		final List<RawPage> pages = crm.getDirtyPages();
+		final List<RawPage> copies = new ArrayList<RawPage>(pages.size());
+		final long[] modificationCounts = new long[pages.size()];
+		for (int i = 0; i < pages.size(); i++) {
+			modificationCounts[i] = pages.get(i).getModificationCount();
+			copies.add(pages.get(i).copy());
+		}
+		final long lsn = log.getLsn();
+
+		if (executor == null)
+			executor = Executors.newSingleThreadExecutor(
+					new ThreadFactoryBuilder().setDaemon(true).setNameFormat("checkpointer-%d").build());
+
+		fuzzyCheckpoint = executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				log.logPageImages(copies, lsn);
+				crm.writeCopies(copies);
+
+				for (int i = 0; i < pages.size(); i++)
+					pages.get(i).setWrittenIfUnmodifiedSince(modificationCounts[i]);
+
+				if (LOG.isDebugEnabled())
+					LOG.debug("fuzzy checkpoint wrote " + copies.size() + " pages");
+			}
+		});
+		fuzzyCheckpoints++;
+	}
+
+	/** @param executor runs the fuzzy checkpoints instead of the background thread of this Checkpointer */
+	@VisibleForTesting
+	void setExecutor(final ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/** waits until the running fuzzy checkpoint is done */
+	void awaitFuzzyCheckpoint() {
+		if (fuzzyCheckpoint == null)
+			return;
+
+		try {
+			fuzzyCheckpoint.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("fuzzy checkpoint failed", e.getCause());
+		} finally {
+			fuzzyCheckpoint = null;
+		}
+	}
+
+	/** logs the images of all modified pages, writes the pages in place and empties the log */
+	void checkpoint() {
+		awaitFuzzyCheckpoint();
+
+		log.logPageImages(crm.getDirtyPages());
+		crm.sync();
+		log.truncate();
+		sharpCheckpoints++;
+	}
+
+	/** waits for the running checkpoint and stops the background thread */
+	void shutdown() {
+		try {
+			awaitFuzzyCheckpoint();
+		} finally {
+			if (executor != null) {
+				executor.shutdown();
+				executor = null;
+			}
+		}
+	}
+
+	long getNumberOfFuzzyCheckpoints() {
+		return fuzzyCheckpoints;
+	}
+
+	long getNumberOfSharpCheckpoints() {
+		return sharpCheckpoints;
+	}
+}
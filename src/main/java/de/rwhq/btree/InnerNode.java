@@ -11,8 +11,11 @@ package de.rwhq.btree;
 
 import de.rwhq.btree.AdjustmentAction.ACTION;
 import de.rwhq.btree.BTree.NodeType;
+import de.rwhq.comparator.LexicographicComparator;
+import de.rwhq.comparator.RawComparator;
 import de.rwhq.io.rm.*;
 import de.rwhq.serializer.FixLengthSerializer;
+import de.rwhq.serializer.Serializer;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -26,7 +29,17 @@ import java.util.*;
  * <p/>
  * NODE_TYPE | NUM_OF_KEYS | NODE_ID | KEY_POINTER | NODE_ID | KEY_POINTER | NODE_ID ...
  * <p/>
- * If the search/insert key is equal to the currently checked key, go to the left.
+ * With prefix compression, NUM_OF_KEYS is followed by the length of the common prefix of the keys (short) and the
+ * prefix, and the keys only store the rest of their bytes.
+ * <p/>
+ * With suffix truncation, the length of the prefix is followed by the number of bytes stored per key (short). The keys
+ * are stored up to their last byte that is not zero, the rest of each key is zero.
+ * <p/>
+ * If the key serializer is not a {@link FixLengthSerializer}, NUM_OF_KEYS is followed by the first NODE_ID and a
+ * {@link SlottedPage} with the keys, each key with the NODE_ID on its right side as payload.
+ * <p/>
+ * If the search/insert key is equal to the currently checked key, go to the left. With suffix truncation, the
+ * separators can be shorter than the first key of their right side, so inserts go to the right like searches.
  *
  * @param <K>
  * @param <V>
@@ -36,6 +49,12 @@ class InnerNode<K, V> implements Node<K, V>, ComplexPage {
 	private static final NodeType NODE_TYPE = NodeType.INNER_NODE;
 	private static final Log LOG       = LogFactory.getLog(InnerNode.class);
 
+	/**
+	 * with suffix truncation, splits look for the shortest separator among the positions that are at most
+	 * 1/SPLIT_WINDOW of the keys away from the middle
+	 */
+	static final int SPLIT_WINDOW = 8;
+
 	static enum Header {
 		NODE_TYPE(0) {}, // char
 		NUMBER_OF_KEYS(Character.SIZE / 8); // int
@@ -79,25 +98,26 @@ class InnerNode<K, V> implements Node<K, V>, ComplexPage {
 		}
 
 		private int getOffset() {
-			return Header.size() +
+			return getDataOffset() +
 					((pos + 1) * getSizeOfPageId()) + // one id more that pages, the first id
-					(pos * keySerializer.getSerializedLength());
+					(pos * getStoredKeyLength());
 		}
 
 
 		private byte[] getSerializedKey() {
-			final ByteBuffer buf = rawPage().bufferForReading(getOffset());
-			final byte[] byteBuf = new byte[keySerializer.getSerializedLength()];
-			buf.get(byteBuf);
+			if (slots != null)
+				return slots.getKey(pos);
+
+			final byte[] byteBuf = new byte[keyLength];
+			if (prefixLength > 0)
+				rawPage().bufferForReading(getPrefixOffset()).get(byteBuf, 0, prefixLength);
+			rawPage().bufferForReading(getOffset()).get(byteBuf, prefixLength, getStoredKeyLength());
 
 			return byteBuf;
 		}
 
 		private K getKey() {
-			final ByteBuffer buf = rawPage().bufferForReading(getOffset());
-			final byte[] bytes = new byte[keySerializer.getSerializedLength()];
-			buf.get(bytes);
-			return keySerializer.deserialize(bytes);
+			return keySerializer.deserialize(getSerializedKey());
 		}
 
 		public String toString() {
@@ -123,15 +143,11 @@ class InnerNode<K, V> implements Node<K, V>, ComplexPage {
 		}
 
 		private Node<K, V> getLeftNode() {
-			final int offset = getOffset() - Integer.SIZE / 8;
-			final int pageId = rawPage().bufferForReading(offset).getInt();
-			return pageIdToNode(pageId);
+			return getChild(pos);
 		}
 
 		private Node<K, V> getRightNode() {
-			final int offset = getOffset() + keySerializer.getSerializedLength();
-			final int pageId = rawPage().bufferForReading(offset).getInt();
-			return pageIdToNode(pageId);
+			return getChild(pos + 1);
 		}
 
 
@@ -142,20 +158,66 @@ class InnerNode<K, V> implements Node<K, V>, ComplexPage {
 
 	private final RawPage                        rawPage;
 	private final Comparator<K>                  comparator;
+	/** compares the keys in the page without deserializing them, null if the key serializer does not support it */
+	private final RawComparator<K>               rawComparator;
 	private final PageManager<LeafNode<K, V>>    leafPageManager;
-	private final PageManager<InnerNode<K, V>> innerNodePageManager;
-	private       FixLengthSerializer<K, byte[]> keySerializer;
+	private final InnerNodeManager<K, V>         innerNodePageManager;
+	private       Serializer<K, byte[]>          keySerializer;
 
 	private int numberOfKeys;
 	private boolean valid = false;
 
+	/** if true, the keys are stored without their common prefix */
+	private final boolean prefixCompression;
+	/** length of the common prefix of the keys, always 0 without prefix compression */
+	private       int     prefixLength = 0;
+	/** if true, the separators are truncated on splits and the keys are stored without their trailing zeros */
+	private final boolean suffixTruncation;
+	/** number of bytes stored per key */
+	private       int     keyWidth;
+	/** if true, the leaves have one record per key, so keys equal to a separator are inserted into the right node */
+	private final boolean postingLists;
+
+	/** slot directory and heap of the keys if they have a variable length, otherwise null */
+	private final SlottedPage slots;
+	/** serialized length of the keys, only used if slots is null */
+	private final int         keyLength;
+
+	/**
+	 * deserialized keys for the comparisons if there is no rawComparator. Created on demand, reset whenever the keys in
+	 * the rawPage change.
+	 */
+	private List<K> decodedKeys;
+
+	/**
+	 * swizzled child references, by the number of the page id in the rawPage. Only children whose pages are resident
+	 * (see {@link RawPage#isResident()}) are swizzled, so the references never keep evicted pages in memory. Created on
+	 * demand, reset whenever the page ids in the rawPage move.
+	 */
+	private Node<K, V>[] children;
+
 	protected InnerNode(
 			final RawPage rawPage,
-			final FixLengthSerializer<K, byte[]> keySerializer,
+			final Serializer<K, byte[]> keySerializer,
 			final Comparator<K> comparator,
 			final DataPageManager<K> keyPageManager,
 			final PageManager<LeafNode<K, V>> leafPageManager,
-			final PageManager<InnerNode<K, V>> innerNodePageManager
+			final InnerNodeManager<K, V> innerNodePageManager
+	) {
+		this(rawPage, keySerializer, comparator, keyPageManager, leafPageManager, innerNodePageManager, false, false,
+				false);
+	}
+
+	protected InnerNode(
+			final RawPage rawPage,
+			final Serializer<K, byte[]> keySerializer,
+			final Comparator<K> comparator,
+			final DataPageManager<K> keyPageManager,
+			final PageManager<LeafNode<K, V>> leafPageManager,
+			final InnerNodeManager<K, V> innerNodePageManager,
+			final boolean prefixCompression,
+			final boolean suffixTruncation,
+			final boolean postingLists
 	) {
 
 		if (comparator == null) {
@@ -167,12 +229,39 @@ class InnerNode<K, V> implements Node<K, V>, ComplexPage {
 		this.rawPage = rawPage;
 		this.comparator = comparator;
 		this.keySerializer = keySerializer;
+		this.prefixCompression = prefixCompression;
+		this.suffixTruncation = suffixTruncation;
+		this.postingLists = postingLists;
+
+		if (keySerializer instanceof FixLengthSerializer) {
+			this.slots = null;
+			this.keyLength = ((FixLengthSerializer<K, byte[]>) keySerializer).getSerializedLength();
+		} else {
+			if (prefixCompression)
+				throw new IllegalArgumentException("prefix compression requires fixed-length keys");
+			this.slots = new SlottedPage(rawPage, getSlotsOffset());
+			this.keyLength = 0;
+		}
+		this.keyWidth = keyLength;
+
+		// the keys in a slotted node are not at fixed offsets, they are deserialized for the comparisons
+		this.rawComparator = slots == null ? BTree.rawComparatorFor(keySerializer, comparator) : null;
+
+		if (prefixCompression && !(rawComparator instanceof LexicographicComparator))
+			throw new IllegalArgumentException("prefix compression requires a LexicographicComparator for the keys");
+		if (suffixTruncation && !prefixCompression)
+			throw new IllegalArgumentException("suffix truncation requires prefix compression");
 	}
 
 	public void initRootState(final Integer pageId1, final byte[] serializedKey, final Integer pageId2) {
 		ensureValid();
 		validateLengthOfSerializedKey(serializedKey);
 
+		if (hasVariableCapacity()) {
+			writeEntries(Arrays.asList(serializedKey), Arrays.asList(pageId1, pageId2));
+			rawPage.sync();
+			return;
+		}
 
 		final ByteBuffer buf = rawPage().bufferForWriting(Header.size());
 
@@ -187,18 +276,21 @@ class InnerNode<K, V> implements Node<K, V>, ComplexPage {
 
 	/** @param serializedKey */
 	private void validateLengthOfSerializedKey(final byte[] serializedKey) {
-		if (serializedKey.length != keySerializer.getSerializedLength())
+		if (slots == null && serializedKey.length != keyLength)
 			throw new IllegalArgumentException(
-					"serializedByteKey has " + serializedKey.length + " bytes instead of " + keySerializer.getSerializedLength());
+					"serializedByteKey has " + serializedKey.length + " bytes instead of " + keyLength);
 	}
 
 	public void initRootState(final Integer pageId1, final K key, final Integer pageId2) {
 		initRootState(pageId1, keySerializer.serialize(key), pageId2);
 	}
 
-	private Integer getPageIdForKey(final K key) {
-		final ByteBuffer buf = rawPage.bufferForReading(getOffsetOfPageIdForKey(key));
-		return buf.getInt();
+	/**
+	 * @param key
+	 * @return id of the child node that contains the given key, the node must have at least one key
+	 */
+	Integer getPageIdForKey(final K key) {
+		return getPageId(getIndexOfPageIdForKey(key));
 	}
 
 
@@ -207,7 +299,7 @@ class InnerNode<K, V> implements Node<K, V>, ComplexPage {
 		ensureValid();
 		ensureKeyNotNull(key);
 
-		return getPageForPageId(getPageIdForKey(key)).containsKey(key);
+		return getChild(getIndexOfPageIdForKey(key)).containsKey(key);
 	}
 
 	private void ensureKeyNotNull(final K key) {
@@ -217,16 +309,7 @@ class InnerNode<K, V> implements Node<K, V>, ComplexPage {
 	}
 
 	private Node<K, V> getPageForPageId(final Integer pageId) {
-
-		if (innerNodePageManager.hasPage(pageId)) {
-			return innerNodePageManager.getPage(pageId);
-		}
-
-		if (leafPageManager.hasPage(pageId))
-			return leafPageManager.getPage(pageId);
-
-		throw new IllegalArgumentException(
-				"the requested pageId " + pageId + " is neither in InnerNodePageManager nor in LeafPageManager");
+		return innerNodePageManager.getNode(pageId);
 	}
 
 	/**
@@ -235,6 +318,8 @@ class InnerNode<K, V> implements Node<K, V>, ComplexPage {
 	 */
 	private void setNumberOfKeys(final int numberOfKeys) {
 		this.numberOfKeys = numberOfKeys;
+		decodedKeys = null;
+		children = null;
 		final ByteBuffer buf = rawPage.bufferForWriting(Header.NUMBER_OF_KEYS.getOffset());
 		buf.putInt(numberOfKeys);
 	}
@@ -253,18 +338,18 @@ class InnerNode<K, V> implements Node<K, V>, ComplexPage {
 	}
 
 	private Node<K, V> getNodeForKey(final K key) {
-
-		final KeyStruct ks = getFirstLargerOrEqualKeyStruct(key);
+		final ByteBuffer serializedKey = serializeForComparison(key);
+		final int pos = posOfFirstLargerOrEqualKey(key, serializedKey);
 
 		// largest key
-		if (ks == null)
+		if (pos < 0)
 			return new KeyStruct(getNumberOfKeys() - 1).getRightNode();
-		else {
-			if (comparator.compare(ks.getKey(), key) == 0) {
-				return ks.getRightNode();
-			} else
-				return ks.getLeftNode();
-		}
+
+		final KeyStruct ks = new KeyStruct(pos);
+		if (compareKeyAtPosition(rawPage().bufferForReading(0), pos, key, serializedKey) == 0)
+			return ks.getRightNode();
+		else
+			return ks.getLeftNode();
 	}
 
 	/* (non-Javadoc)
@@ -277,35 +362,350 @@ class InnerNode<K, V> implements Node<K, V>, ComplexPage {
 		if (getNumberOfKeys() == 0)
 			return 0;
 
-		final Integer id = getPageIdForKey(key);
-		final Node<K, V> node = getPageForPageId(id);
-		return node.remove(key);
+		return getChild(getIndexOfPageIdForKey(key)).remove(key);
 	}
 
 	private int getSizeOfPageId() {
 		return Integer.SIZE / 8;
 	}
 
-	private int posOfFirstLargerOrEqualKey(final K key) {
-		final KeyStruct tmpKeyStruct = new KeyStruct();
+	/** @return offset of the slot directory of a slotted node, behind the first page id */
+	private static int getSlotsOffset() {
+		return Header.size() + Integer.SIZE / 8;
+	}
+
+	/**
+	 * @param pageSize
+	 * @param serializedKey
+	 * @return true, if the key is small enough for a slotted inner node: every split must find room for two keys and
+	 *         the key that is pushed upwards
+	 */
+	static boolean isSmallEnough(final int pageSize, final byte[] serializedKey) {
+		return SlottedPage.getEntrySize(serializedKey.length, Integer.SIZE / 8) <=
+				SlottedPage.getSpace(pageSize, getSlotsOffset()) / 3;
+	}
+
+	/** @return true, if the number of keys that fit depends on the keys, and structural changes rewrite the node */
+	private boolean hasVariableCapacity() {
+		return prefixCompression || slots != null;
+	}
+
+	/** @return offset of the first page id */
+	private int getDataOffset() {
+		return getDataOffset(prefixLength);
+	}
+
+	private int getDataOffset(final int prefixLength) {
+		return prefixCompression ? getPrefixOffset() + prefixLength : Header.size();
+	}
+
+	/** @return offset of the common prefix of the keys */
+	private int getPrefixOffset() {
+		return Header.size() + (suffixTruncation ? 2 : 1) * Short.SIZE / 8;
+	}
+
+	/** @return number of bytes of a key that are stored in its slot */
+	private int getStoredKeyLength() {
+		return keyWidth;
+	}
+
+	/**
+	 * @param prefixLength
+	 * @param keyWidth
+	 * @return number of keys that fit into the page if they have a common prefix of the given length and keyWidth bytes
+	 *         are stored per key
+	 */
+	private int getCapacity(final int prefixLength, final int keyWidth) {
+		final int size = rawPage.bufferForReading(0).limit() - getDataOffset(prefixLength) - getSizeOfPageId();
+		return size / (getSizeOfPageId() + keyWidth);
+	}
+
+	/**
+	 * @param keys
+	 * @param from
+	 * @param to
+	 * @param prefixLength
+	 * 		common prefix of the keys
+	 * @return number of bytes that have to be stored per key
+	 */
+	private int getKeyWidth(final List<byte[]> keys, final int from, final int to, final int prefixLength) {
+		if (!suffixTruncation)
+			return keyLength - prefixLength;
+
+		int significantLength = 0;
+		for (int i = from; i < to; i++)
+			significantLength = Math.max(significantLength, KeyPrefix.significantLength(keys.get(i)));
+		return Math.max(significantLength - prefixLength, 0);
+	}
+
+	/**
+	 * @param keys
+	 * @param from
+	 * @param to
+	 * @return true, if the keys fit into one node
+	 */
+	private boolean canHold(final List<byte[]> keys, final int from, final int to) {
+		if (slots != null) {
+			int size = 0;
+			for (int i = from; i < to; i++)
+				size += SlottedPage.getEntrySize(keys.get(i).length, getSizeOfPageId());
+			return size <= SlottedPage.getSpace(rawPage.bufferForReading(0).limit(), getSlotsOffset());
+		}
 
+		final int prefixLength = KeyPrefix.commonLength(keys, from, to);
+		return to - from <= getCapacity(prefixLength, getKeyWidth(keys, from, to, prefixLength));
+	}
+
+	/**
+	 * @param serializedKey
+	 * @return true, if the key can be stored in a slot without rewriting the node, always false for slotted nodes
+	 */
+	private boolean canStoreInPlace(final byte[] serializedKey) {
+		if (slots != null)
+			return false;
+		if (getCommonPrefixLength(serializedKey) < prefixLength)
+			return false;
+
+		return !suffixTruncation || KeyPrefix.significantLength(serializedKey) - prefixLength <= keyWidth;
+	}
+
+	/**
+	 * @param serializedKey
+	 * @return length of the prefix the key has in common with all keys of this node
+	 */
+	private int getCommonPrefixLength(final byte[] serializedKey) {
+		final ByteBuffer buffer = rawPage().bufferForReading(getPrefixOffset());
+		int i = 0;
+		while (i < prefixLength && buffer.get() == serializedKey[i])
+			i++;
+		return i;
+	}
+
+	/**
+	 * @param keys
+	 * 		gets the complete serialized keys
+	 * @param pageIds
+	 * 		gets the page ids
+	 */
+	private void readEntries(final List<byte[]> keys, final List<Integer> pageIds) {
+		pageIds.add(getPageId(0));
 		for (int i = 0; i < getNumberOfKeys(); i++) {
+			keys.add(new KeyStruct(i).getSerializedKey());
+			pageIds.add(getPageId(i + 1));
+		}
+	}
+
+	/**
+	 * replaces all keys and page ids of the node, recomputing the common prefix. Does not sync.
+	 *
+	 * @param keys
+	 * 		sorted, complete serialized keys, at least one
+	 * @param pageIds
+	 * 		one more than keys
+	 */
+	private void writeEntries(final List<byte[]> keys, final List<Integer> pageIds) {
+		if (slots != null) {
+			final List<byte[]> payloads = new ArrayList<byte[]>(keys.size());
+			for (int i = 1; i < pageIds.size(); i++)
+				payloads.add(ByteBuffer.allocate(getSizeOfPageId()).putInt(pageIds.get(i)).array());
+
+			rawPage().bufferForWriting(Header.size()).putInt(pageIds.get(0));
+			slots.write(keys, payloads);
+			setNumberOfKeys(keys.size());
+			return;
+		}
+
+		final int newPrefixLength = KeyPrefix.commonLength(keys, 0, keys.size());
+		final int newKeyWidth = getKeyWidth(keys, 0, keys.size(), newPrefixLength);
+		if (keys.size() > getCapacity(newPrefixLength, newKeyWidth))
+			throw new IllegalStateException(keys.size() + " keys do not fit into the inner node " + getId());
+
+		final ByteBuffer buf = rawPage().bufferForWriting(Header.size());
+		buf.putShort((short) newPrefixLength);
+		if (suffixTruncation)
+			buf.putShort((short) newKeyWidth);
+		buf.put(keys.get(0), 0, newPrefixLength);
+		prefixLength = newPrefixLength;
+		keyWidth = newKeyWidth;
+
+		buf.putInt(pageIds.get(0));
+		for (int i = 0; i < keys.size(); i++) {
+			buf.put(keys.get(i), prefixLength, getStoredKeyLength());
+			buf.putInt(pageIds.get(i + 1));
+		}
+
+		setNumberOfKeys(keys.size());
+	}
+
+	/**
+	 * @param index
+	 * 		of the page id, 0 for the left page id of the first key
+	 * @return the page id
+	 */
+	private int getPageId(final int index) {
+		if (slots != null)
+			return rawPage.bufferForReading(index == 0 ? Header.size() : slots.getPayloadOffset(index - 1)).getInt();
 
-			tmpKeyStruct.setPos(i);
-			final byte[] sKey = tmpKeyStruct.getSerializedKey();
-			if (comparator.compare(keySerializer.deserialize(sKey), key) >= 0) {
-				return i;
+		return rawPage.bufferForReading(getDataOffset() + index * (getSizeOfPageId() + getStoredKeyLength())).getInt();
+	}
+
+	/**
+	 * Resolves the page id with the given index. While this node and the child are resident, the child is swizzled: the
+	 * reference is kept in memory and the next hop does not have to look up the page id. The rawPage itself always keeps
+	 * the page id, so nothing has to be unswizzled for writing.
+	 *
+	 * @param slot
+	 * 		index of the page id, see {@link #getPageId(int)}
+	 * @return the child node
+	 */
+	private Node<K, V> getChild(final int slot) {
+		if (children != null) {
+			final Node<K, V> swizzled = children[slot];
+			// unswizzle children that are not resident anymore
+			if (swizzled != null && swizzled.rawPage().isResident())
+				return swizzled;
+			children[slot] = null;
+		}
+
+		final Node<K, V> child = pageIdToNode(getPageId(slot));
+		if (rawPage.isResident() && child.rawPage().isResident()) {
+			if (children == null)
+				children = newChildren();
+			children[slot] = child;
+		}
+		return child;
+	}
+
+	/** @return an array for the swizzled references of all children */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private Node<K, V>[] newChildren() {
+		return new Node[getNumberOfKeys() + 1];
+	}
+
+	/**
+	 * binary search over the fixed-width key slots
+	 *
+	 * @param key
+	 * @return position of the first key that is larger or equal to the given key, -1 if all keys are smaller
+	 */
+	private int posOfFirstLargerOrEqualKey(final K key) {
+		return posOfFirstLargerOrEqualKey(key, serializeForComparison(key));
+	}
+
+	private int posOfFirstLargerOrEqualKey(final K key, final ByteBuffer serializedKey) {
+		final ByteBuffer buffer = rawPage().bufferForReading(0);
+
+		int low = 0;
+		int high = getNumberOfKeys();
+
+		// the prefix is compared only once, the search only looks at the rest of the keys
+		if (prefixCompression && high > 0) {
+			final int prefixComparison = comparePrefix(serializedKey);
+			if (prefixComparison != 0)
+				return prefixComparison > 0 ? 0 : -1;
+
+			while (low < high) {
+				final int mid = (low + high) >>> 1;
+
+				if (compareStoredKey(buffer, new KeyStruct(mid).getOffset(), serializedKey) < 0)
+					low = mid + 1;
+				else
+					high = mid;
 			}
+
+			return low < getNumberOfKeys() ? low : -1;
+		}
+
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+
+			if (compareKeyAtPosition(buffer, mid, key, serializedKey) < 0)
+				low = mid + 1;
+			else
+				high = mid;
 		}
-		return -1;
+
+		return low < getNumberOfKeys() ? low : -1;
 	}
 
-	private int getOffsetForLeftPageIdOfKey(final int i) {
-		return new KeyStruct(i).getOffset() - Integer.SIZE / 8;
+	/**
+	 * @param key
+	 * @return the serialized key if keys can be compared in place, otherwise null
+	 */
+	private ByteBuffer serializeForComparison(final K key) {
+		return rawComparator == null ? null : ByteBuffer.wrap(keySerializer.serialize(key));
 	}
 
-	private int getOffsetForRightPageIdOfKey(final int i) {
-		return new KeyStruct(i).getOffset() + keySerializer.getSerializedLength();
+	/**
+	 * compares the key stored at the position with the given key
+	 *
+	 * @param buffer
+	 * 		of the rawPage
+	 * @param pos
+	 * 		of the stored key
+	 * @param key
+	 * @param serializedKey
+	 * 		result of {@link #serializeForComparison(Object)} for the key
+	 * @return comparison result of the stored key and key
+	 */
+	private int compareKeyAtPosition(final ByteBuffer buffer, final int pos, final K key,
+	                                 final ByteBuffer serializedKey) {
+		if (prefixCompression) {
+			final int prefixComparison = comparePrefix(serializedKey);
+			if (prefixComparison != 0)
+				return prefixComparison;
+			return compareStoredKey(buffer, new KeyStruct(pos).getOffset(), serializedKey);
+		}
+
+		if (rawComparator != null)
+			return rawComparator.compare(buffer, new KeyStruct(pos).getOffset(), serializedKey, 0);
+
+		return comparator.compare(getDecodedKeys().get(pos), key);
+	}
+
+	/**
+	 * @param serializedKey
+	 * @return comparison result of the common prefix of this node and the prefix of the key
+	 */
+	private int comparePrefix(final ByteBuffer serializedKey) {
+		return KeyPrefix.compare(rawPage().bufferForReading(0), getPrefixOffset(), serializedKey, 0, prefixLength);
+	}
+
+	/**
+	 * compares the key stored at the offset with the given key, both must have the common prefix of this node
+	 *
+	 * @param buffer
+	 * 		of the rawPage
+	 * @param offset
+	 * 		of the stored key
+	 * @param serializedKey
+	 * @return comparison result of the stored and the given key
+	 */
+	private int compareStoredKey(final ByteBuffer buffer, final int offset, final ByteBuffer serializedKey) {
+		final int result = KeyPrefix.compare(buffer, offset, serializedKey, prefixLength, keyWidth);
+		if (result != 0 || !suffixTruncation)
+			return result;
+
+		// the rest of the stored key is zero
+		return KeyPrefix.isZero(serializedKey, prefixLength + keyWidth, keyLength) ? 0 : -1;
+	}
+
+	/** @return all keys of this node, deserialized once until the keys change */
+	private List<K> getDecodedKeys() {
+		if (decodedKeys == null) {
+			final List<K> keys = new ArrayList<K>(getNumberOfKeys());
+
+			for (int i = 0; i < getNumberOfKeys(); i++)
+				keys.add(new KeyStruct(i).getKey());
+
+			decodedKeys = keys;
+		}
+
+		return decodedKeys;
+	}
+
+	private int getOffsetForLeftPageIdOfKey(final int i) {
+		return new KeyStruct(i).getOffset() - Integer.SIZE / 8;
 	}
 
 	/* (non-Javadoc)
@@ -315,7 +715,13 @@ class InnerNode<K, V> implements Node<K, V>, ComplexPage {
 	public int remove(final K key, final V value) {
 		ensureValid();
 
-		throw new UnsupportedOperationException();
+		// only with posting lists, all values of a key are guaranteed to be in one leaf
+		if (!postingLists)
+			throw new UnsupportedOperationException();
+		if (getNumberOfKeys() == 0)
+			return 0;
+
+		return getChild(getIndexOfPageIdForKey(key)).remove(key, value);
 	}
 
 	/* (non-Javadoc)
@@ -341,6 +747,10 @@ class InnerNode<K, V> implements Node<K, V>, ComplexPage {
 
 		buf.position(Header.NUMBER_OF_KEYS.getOffset());
 		numberOfKeys = buf.getInt();
+		prefixLength = prefixCompression ? buf.getShort() : 0;
+		keyWidth = suffixTruncation ? buf.getShort() : keyLength - prefixLength;
+		decodedKeys = null;
+		children = null;
 		valid = true;
 	}
 
@@ -362,7 +772,7 @@ class InnerNode<K, V> implements Node<K, V>, ComplexPage {
 	}
 
 	public int minPageSize() {
-		return Header.size() + 3 * keySerializer.getSerializedLength() + 4 * Integer.SIZE / 8;
+		return Header.size() + 3 * keyLength + 4 * Integer.SIZE / 8;
 	}
 
 	/* (non-Javadoc)
@@ -374,25 +784,47 @@ class InnerNode<K, V> implements Node<K, V>, ComplexPage {
 	}
 
 
-	private int getOffsetOfPageIdForKey(final K key) {
-		final int posOfFirstLargerOrEqualKey = posOfFirstLargerOrEqualKey(key);
+	/**
+	 * like {@link #getNodeForKey(Object)}, keys equal to a separator are in the right node
+	 *
+	 * @param key
+	 * @return index of the page id, see {@link #getPageId(int)}
+	 */
+	private int getIndexOfPageIdForKey(final K key) {
+		final ByteBuffer serializedKey = serializeForComparison(key);
+		final int posOfFirstLargerOrEqualKey = posOfFirstLargerOrEqualKey(key, serializedKey);
 
 		if (posOfFirstLargerOrEqualKey < 0) // if key is largest
-			return getOffsetForRightPageIdOfKey((getNumberOfKeys() - 1));
+			return getNumberOfKeys();
 
+		if (compareKeyAtPosition(rawPage().bufferForReading(0), posOfFirstLargerOrEqualKey, key, serializedKey) == 0)
+			return posOfFirstLargerOrEqualKey + 1;
 
-		return getOffsetForLeftPageIdOfKey(posOfFirstLargerOrEqualKey);
+		return posOfFirstLargerOrEqualKey;
 	}
 
 	/** @param key
 	 * @return KeyStruct or null */
 	private KeyStruct getFirstLargerOrEqualKeyStruct(final K key) {
-		final KeyStruct ks = new KeyStruct(0);
-		while (ks.pos < getNumberOfKeys() && comparator.compare(ks.getKey(), key) < 0) {
-			ks.becomeNext();
-		}
+		final int pos = posOfFirstLargerOrEqualKey(key);
+		return pos < 0 ? null : new KeyStruct(pos);
+	}
 
-		return ks.isValid() ? ks : null;
+	/**
+	 * like {@link #getNodeForKey(Object)}, the left node of the returned KeyStruct is the node the key is searched in
+	 *
+	 * @param key
+	 * @return KeyStruct or null if the key belongs to the last node
+	 */
+	private KeyStruct getFirstLargerKeyStruct(final K key) {
+		final ByteBuffer serializedKey = serializeForComparison(key);
+		int pos = posOfFirstLargerOrEqualKey(key, serializedKey);
+		if (pos < 0)
+			return null;
+
+		if (compareKeyAtPosition(rawPage().bufferForReading(0), pos, key, serializedKey) == 0)
+			pos++;
+		return pos < getNumberOfKeys() ? new KeyStruct(pos) : null;
 	}
 
 	/* (non-Javadoc)
@@ -404,7 +836,8 @@ class InnerNode<K, V> implements Node<K, V>, ComplexPage {
 		ensureRoot();
 
 		final Node<K, V> node;
-		final KeyStruct ks = getFirstLargerOrEqualKeyStruct(key);
+		final KeyStruct ks = suffixTruncation || postingLists ?
+				getFirstLargerKeyStruct(key) : getFirstLargerOrEqualKeyStruct(key);
 
 		if (ks == null) { // if key is largest
 			node = new KeyStruct(getNumberOfKeys() - 1).getRightNode();
@@ -446,6 +879,9 @@ class InnerNode<K, V> implements Node<K, V>, ComplexPage {
 			LOG.debug("handleNewNodeAction()");
 			LOG.debug("adjustmentActionKey: " + keySerializer.deserialize(result.getSerializedKey()));
 		}
+		if (hasVariableCapacity())
+			return handleNewNodeActionWithPrefix(result, ks);
+
 		// a new child node has been created and a key must be inserted, check for available space
 		if (getNumberOfKeys() < getMaxNumberOfKeys()) {
 			// space left, simply insert the key/pointer.
@@ -463,9 +899,32 @@ class InnerNode<K, V> implements Node<K, V>, ComplexPage {
 			return null;
 		}
 
-		// else split is required, allocate new node
-		final InnerNode<K, V> inp = innerNodePageManager.createPage();
+		// else split is required, allocate new node. both nodes are modified in turn, neither may be evicted in between
+		rawPage().pin();
+		try {
+			final InnerNode<K, V> inp = innerNodePageManager.createPage(getId());
+			inp.rawPage().pin();
+			try {
+				return splitAndInsert(inp, result, ks);
+			} finally {
+				inp.rawPage().unpin();
+			}
+		} finally {
+			rawPage().unpin();
+		}
+	}
 
+	/**
+	 * moves the upper half of the keys to the new node and inserts the key of the new child node into one of both
+	 *
+	 * @param inp
+	 * 		the new node
+	 * @param result
+	 * @param ks
+	 * @return adjustment action for the new node
+	 */
+	private AdjustmentAction<K, V> splitAndInsert(final InnerNode<K, V> inp, final AdjustmentAction<K, V> result,
+	                                              final KeyStruct ks) {
 		// move half the keys/pointers to the new node. remember the dropped key.
 		final byte[] keyUpwardsBytes = moveLastToNewPage(inp, getNumberOfKeys() >> 1);
 		rawPage().sync();
@@ -495,6 +954,112 @@ class InnerNode<K, V> implements Node<K, V>, ComplexPage {
 	}
 
 
+	/**
+	 * Like {@link #handleNewNodeAction(AdjustmentAction, KeyStruct)} for a prefix compressed or slotted node. How many
+	 * keys fit depends on their common prefix or their length, so on a split the position closest to the middle is taken
+	 * at which both nodes can hold their keys. With prefix compression, such a position always exists, since a key that
+	 * does not share the prefix of this node is smaller or larger than all of its keys. Slotted nodes only take keys that
+	 * fill at most a third of a node, see {@link #isSmallEnough(int, byte[])}.
+	 *
+	 * @param result
+	 * @param ks
+	 * @return adjustment action or null
+	 */
+	private AdjustmentAction<K, V> handleNewNodeActionWithPrefix(final AdjustmentAction<K, V> result,
+	                                                             final KeyStruct ks) {
+		final int posForInsert = ks == null ? getNumberOfKeys() : ks.pos;
+		final byte[] serializedKey = result.getSerializedKey();
+
+		if (fitsInPlace(serializedKey)) {
+			insertKeyPointerPageIdAtPosition(serializedKey, result.getPageId(), posForInsert);
+			return null;
+		}
+
+		final List<byte[]> keys = new ArrayList<byte[]>();
+		final List<Integer> pageIds = new ArrayList<Integer>();
+		readEntries(keys, pageIds);
+		keys.add(posForInsert, serializedKey);
+		pageIds.add(posForInsert + 1, result.getPageId());
+
+		// the node gets a shorter prefix or wider slots, but no split
+		if (canHold(keys, 0, keys.size())) {
+			writeEntries(keys, pageIds);
+			rawPage.sync();
+			return null;
+		}
+
+		// keys[split] is pushed upwards
+		final int split = getSplitPosition(keys);
+		// both nodes are modified in turn, neither may be evicted in between
+		rawPage.pin();
+		try {
+			final InnerNode<K, V> inp = innerNodePageManager.createPage(getId());
+			inp.rawPage().pin();
+			try {
+				if (!inp.isValid())
+					inp.initialize();
+
+				writeEntries(keys.subList(0, split), pageIds.subList(0, split + 1));
+				inp.writeEntries(keys.subList(split + 1, keys.size()), pageIds.subList(split + 1, pageIds.size()));
+
+				rawPage.sync();
+				inp.rawPage().sync();
+
+				return new AdjustmentAction<K, V>(ACTION.INSERT_NEW_NODE, keys.get(split), inp.getId());
+			} finally {
+				inp.rawPage().unpin();
+			}
+		} finally {
+			rawPage.unpin();
+		}
+	}
+
+	/**
+	 * @param serializedKey
+	 * @return true, if the key can be inserted without splitting the node, with prefix compression also without
+	 *         rewriting it
+	 */
+	private boolean fitsInPlace(final byte[] serializedKey) {
+		if (slots != null)
+			return SlottedPage.getEntrySize(serializedKey.length, getSizeOfPageId()) <=
+					slots.getFreeSpace(getNumberOfKeys());
+
+		return canStoreInPlace(serializedKey) && getNumberOfKeys() < getMaxNumberOfKeys();
+	}
+
+	/**
+	 * With suffix truncation, the key with the fewest significant bytes among the positions near the middle is pushed
+	 * upwards, so that the parent can store shorter keys.
+	 *
+	 * @param keys
+	 * 		of an overflowing node
+	 * @return position of the key to push upwards, both nodes keep at least one key
+	 */
+	private int getSplitPosition(final List<byte[]> keys) {
+		final int middle = keys.size() >> 1;
+		int best = -1;
+		for (int distance = 0; distance < keys.size(); distance++) {
+			for (final int split : new int[]{middle - distance, middle + distance}) {
+				if (split <= 0 || split >= keys.size() - 1 || !canHold(keys, 0, split) ||
+						!canHold(keys, split + 1, keys.size()))
+					continue;
+
+				if (!suffixTruncation)
+					return split;
+				if (best < 0 ||
+						KeyPrefix.significantLength(keys.get(split)) < KeyPrefix.significantLength(keys.get(best)))
+					best = split;
+			}
+
+			if (best >= 0 && distance >= keys.size() / SPLIT_WINDOW)
+				return best;
+		}
+
+		if (best >= 0)
+			return best;
+		throw new IllegalStateException("the keys of inner node " + getId() + " cannot be split");
+	}
+
 	/**
 	 * This method moves a number of keys to the given new page. However, since one key is droped, this node remains with
 	 * allKeys - keysToBeMoved - 1.
@@ -514,11 +1079,10 @@ class InnerNode<K, V> implements Node<K, V>, ComplexPage {
 		if (!newPage.isValid())
 			newPage.initialize();
 
-		final ByteBuffer buf = newPage.rawPage().bufferForWriting(0);
 		final int from = getOffsetForLeftPageIdOfKey(getNumberOfKeys() - numberOfKeys);
 		final int to = Header.size();
 		final int length_to_copy = rawPage().bufferForReading(0).limit() - from;
-		System.arraycopy(rawPage().bufferForWriting(0).array(), from, buf.array(), to, length_to_copy);
+		rawPage().copyTo(from, newPage.rawPage(), to, length_to_copy);
 		newPage.setNumberOfKeys(numberOfKeys);
 
 		// last key is dropped
@@ -559,27 +1123,48 @@ class InnerNode<K, V> implements Node<K, V>, ComplexPage {
 	private void insertKeyPointerPageIdAtPosition(final byte[] serializedKey,
 	                                              final Integer pageId, final int posOfKeyForInsert) {
 
+		if (slots != null && slots.insert(posOfKeyForInsert, getNumberOfKeys(), serializedKey,
+				ByteBuffer.allocate(getSizeOfPageId()).putInt(pageId).array())) {
+			setNumberOfKeys(getNumberOfKeys() + 1);
+			rawPage().sync();
+			return;
+		}
+
+		// the key does not share the prefix, is too long for the slots or only fits into the holes of the heap, the node
+		// is rewritten
+		if (hasVariableCapacity() && !canStoreInPlace(serializedKey)) {
+			final List<byte[]> keys = new ArrayList<byte[]>();
+			final List<Integer> pageIds = new ArrayList<Integer>();
+			readEntries(keys, pageIds);
+			keys.add(posOfKeyForInsert, serializedKey);
+			pageIds.add(posOfKeyForInsert + 1, pageId);
+			writeEntries(keys, pageIds);
+			rawPage().sync();
+			return;
+		}
+
 		final KeyStruct thisKeyStruct = new KeyStruct(posOfKeyForInsert);
 		final ByteBuffer buf = rawPage().bufferForWriting(thisKeyStruct.getOffset());
 
-		final int spaceNeededForInsert = getSizeOfPageId() + keySerializer.getSerializedLength();
-		System.arraycopy(buf.array(), buf.position(), buf.array(), buf.position() + spaceNeededForInsert,
+		final int spaceNeededForInsert = getSizeOfPageId() + getStoredKeyLength();
+		rawPage().move(buf.position(), buf.position() + spaceNeededForInsert,
 				buf.limit() - buf.position() - spaceNeededForInsert);
 
-		buf.put(serializedKey);
+		buf.put(serializedKey, prefixLength, getStoredKeyLength());
 		buf.putInt(pageId);
 
 		setNumberOfKeys(getNumberOfKeys() + 1);
 		rawPage().sync();
 	}
 
+	/**
+	 * @return the maximal number of keys, with prefix compression for the current prefix. Not defined for slotted nodes,
+	 *         their capacity depends on the length of the keys.
+	 */
 	public int getMaxNumberOfKeys() {
-		int size = rawPage.bufferForReading(0).limit() - Header.size();
-
-		// size first page id
-		size -= Integer.SIZE / 8;
-
-		return size / (Integer.SIZE / 8 + keySerializer.getSerializedLength());
+		if (slots != null)
+			throw new IllegalStateException("the capacity of a slotted inner node depends on its keys");
+		return getCapacity(prefixLength, keyWidth);
 	}
 
 	private AdjustmentAction<K, V> handleUpdateKey(final KeyStruct ks, final AdjustmentAction<K, V> result) {
@@ -602,8 +1187,19 @@ class InnerNode<K, V> implements Node<K, V>, ComplexPage {
 	}
 
 	private void setKey(final byte[] serializedKey, final int pos) {
+		if (hasVariableCapacity() && !canStoreInPlace(serializedKey)) {
+			final List<byte[]> keys = new ArrayList<byte[]>();
+			final List<Integer> pageIds = new ArrayList<Integer>();
+			readEntries(keys, pageIds);
+			keys.set(pos, serializedKey);
+			writeEntries(keys, pageIds);
+			rawPage().sync();
+			return;
+		}
+
 		final ByteBuffer buf = rawPage().bufferForWriting(new KeyStruct(pos).getOffset());
-		buf.put(serializedKey);
+		buf.put(serializedKey, prefixLength, getStoredKeyLength());
+		decodedKeys = null;
 		rawPage().sync();
 	}
 
@@ -642,6 +1238,14 @@ class InnerNode<K, V> implements Node<K, V>, ComplexPage {
 
 		final ByteBuffer buf = rawPage().bufferForWriting(Header.NODE_TYPE.getOffset());
 		buf.putChar(NODE_TYPE.serialize());
+		prefixLength = 0;
+		keyWidth = suffixTruncation ? 0 : keyLength;
+		if (slots != null)
+			slots.initialize();
+		if (prefixCompression)
+			rawPage().bufferForWriting(Header.size()).putShort((short) 0);
+		if (suffixTruncation)
+			rawPage().bufferForWriting(Header.size() + Short.SIZE / 8).putShort((short) 0);
 		setNumberOfKeys(0);
 
 		valid = true;
@@ -666,6 +1270,10 @@ class InnerNode<K, V> implements Node<K, V>, ComplexPage {
 		final int fromId2 = fromId;
 
 		initialize();
+
+		if (hasVariableCapacity())
+			return bulkInitializeWithPrefix(rawKeys, pageIds, fromId);
+
 		final ByteBuffer buf = rawPage().bufferForWriting(Header.size());
 		buf.putInt(pageIds.get(fromId2));
 
@@ -694,6 +1302,31 @@ class InnerNode<K, V> implements Node<K, V>, ComplexPage {
 		return entriesToInsert + 1; // page ids
 	}
 
+	/**
+	 * like {@link #bulkInitialize(ArrayList, ArrayList, int)}, takes as many keys as fit with their common prefix or
+	 * their length
+	 */
+	private int bulkInitializeWithPrefix(final ArrayList<byte[]> rawKeys, final ArrayList<Integer> pageIds,
+	                                     final int fromId) {
+		final int totalEntriesToInsert = (pageIds.size() - fromId - 1);
+		int entriesToInsert = 1;
+		while (entriesToInsert < totalEntriesToInsert &&
+				canHold(rawKeys, fromId, fromId + entriesToInsert + 1))
+			entriesToInsert++;
+
+		// make sure that not exactly one pageId remains, see above
+		final int remaining = pageIds.size() - fromId - (entriesToInsert + 1);
+		if (remaining == 1)
+			entriesToInsert--;
+
+		writeEntries(rawKeys.subList(fromId, fromId + entriesToInsert),
+				pageIds.subList(fromId, fromId + entriesToInsert + 1));
+
+		rawPage.sync();
+
+		return entriesToInsert + 1; // page ids
+	}
+
 	/* (non-Javadoc)
 		  * @see Node#getNumberOfKeys()
 		  */
@@ -707,8 +1340,7 @@ class InnerNode<K, V> implements Node<K, V>, ComplexPage {
 		  */
 	@Override
 	public K getFirstLeafKey() {
-		final ByteBuffer buf = rawPage().bufferForReading(getOffsetForLeftPageIdOfKey(0));
-		return getPageForPageId(buf.getInt()).getFirstLeafKey();
+		return getPageForPageId(getPageId(0)).getFirstLeafKey();
 	}
 
 	/* (non-Javadoc)
@@ -728,7 +1360,20 @@ class InnerNode<K, V> implements Node<K, V>, ComplexPage {
 		  */
 	@Override
 	public Iterator<V> getIterator(final K from, final K to) {
-		return new InnerNodeIterator(from, to);
+		return new InnerNodeIterator(from, to, null);
+	}
+
+	/**
+	 * Like {@link #getIterator(Object, Object)}, but the leaves that are not in memory are read into the given ring
+	 * instead of the cache.
+	 *
+	 * @param from
+	 * @param to
+	 * @param ring
+	 * @return iterator over the values between from and to
+	 */
+	public Iterator<V> getIterator(final K from, final K to, final PageRing ring) {
+		return new InnerNodeIterator(from, to, ring);
 	}
 
 	@Override public int getDepth() {
@@ -755,7 +1400,16 @@ class InnerNode<K, V> implements Node<K, V>, ComplexPage {
 
 
 			// compare on byte-level
-			if (!Arrays.equals(ks.getSerializedKey(), ks.getRightNode().getFirstLeafKeySerialized()))
+			if (suffixTruncation) {
+				final ByteBuffer separator = ByteBuffer.wrap(ks.getSerializedKey());
+				final ByteBuffer lhsLast = ByteBuffer.wrap(ks.getLeftNode().getLastLeafKeySerialized());
+				final ByteBuffer rhsFirst = ByteBuffer.wrap(ks.getRightNode().getFirstLeafKeySerialized());
+				if (rawComparator.compare(lhsLast, 0, separator, 0) > 0 ||
+						rawComparator.compare(separator, 0, rhsFirst, 0) > 0)
+					throw new IllegalStateException("key(" + ks.getKey() + ") should be between lhs last leaf key(" +
+							ks.getLeftNode().getLastLeafKey() + ") and rhs first leaf key(" +
+							ks.getRightNode().getFirstLeafKey() + ")");
+			} else if (!Arrays.equals(ks.getSerializedKey(), ks.getRightNode().getFirstLeafKeySerialized()))
 				throw new IllegalStateException("key(" + ks.getKey() +
 						") should equal rhs first leaf key(" + ks.getRightNode().getFirstLeafKey() + ")");
 
@@ -784,8 +1438,7 @@ class InnerNode<K, V> implements Node<K, V>, ComplexPage {
 	}
 
 	private LeafNode<K, V> getLeafNodeForKey(final K key) {
-		final Integer pageId = getPageIdForKey(key);
-		final Node<K, V> node = pageIdToNode(pageId);
+		final Node<K, V> node = getChild(getIndexOfPageIdForKey(key));
 		if (node instanceof LeafNode)
 			return (LeafNode<K, V>) node;
 		return ((InnerNode<K, V>) node).getLeafNodeForKey(key);
@@ -795,6 +1448,7 @@ class InnerNode<K, V> implements Node<K, V>, ComplexPage {
 	/**
 	 * goes down to the LeafNode for the from key and creates an iterator for this leaf.
 	 * When the Iterator does not have any more values within the from-to range, it goes to the next leaf.
+	 * Long scans read the following leaves ahead, see {@link LeafReadAhead}.
 	 * If the next leaf has no values, too, it sets the currentLeaf to null and returns null;
 	 */
 	public class InnerNodeIterator implements Iterator<V> {
@@ -804,9 +1458,16 @@ class InnerNode<K, V> implements Node<K, V>, ComplexPage {
 		private V next    = null;
 		private Iterator<V>    currentIterator;
 		private LeafNode<K, V> currentLeaf;
+		/** null if the leaves go into the cache */
+		private final PageRing           ring;
+		/** null if the leaves are not read ahead */
+		private final LeafReadAhead.Scan scan;
 
 
-		public InnerNodeIterator(K from, K to) {
+		public InnerNodeIterator(K from, K to, final PageRing ring) {
+			this.ring = ring;
+			this.scan = innerNodePageManager.newScan(ring);
+
 			if (from == null)
 				from = getFirstLeafKey();
 
@@ -851,7 +1512,13 @@ class InnerNode<K, V> implements Node<K, V>, ComplexPage {
 			if (!currentLeaf.hasNextLeaf())
 				return null;
 
-			currentLeaf = leafPageManager.getPage(currentLeaf.getNextLeafId());
+			final int previousId = currentLeaf.getId();
+			if (ring == null)
+				currentLeaf = leafPageManager.getPage(currentLeaf.getNextLeafId());
+			else
+				currentLeaf = innerNodePageManager.getLeafForScan(currentLeaf.getNextLeafId(), ring);
+			if (scan != null)
+				scan.hop(previousId, currentLeaf);
 			currentIterator = currentLeaf.getIterator(from, to);
 			result = currentIterator.next();
 
@@ -870,11 +1537,7 @@ class InnerNode<K, V> implements Node<K, V>, ComplexPage {
 
 
 	private Node<K, V> pageIdToNode(final int id) {
-		if (leafPageManager.hasPage(id)) {
-			return leafPageManager.getPage(id);
-		} else {
-			return innerNodePageManager.getPage(id);
-		}
+		return innerNodePageManager.getNode(id);
 	}
 
 }
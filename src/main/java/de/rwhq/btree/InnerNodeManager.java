@@ -9,29 +9,37 @@
  */
 package de.rwhq.btree;
 
+import de.rwhq.btree.BTree.NodeType;
 import de.rwhq.io.rm.AbstractPageManager;
+import de.rwhq.io.rm.CachedResourceManager;
 import de.rwhq.io.rm.DataPageManager;
 import de.rwhq.io.rm.PageManager;
+import de.rwhq.io.rm.PageRing;
 import de.rwhq.io.rm.RawPage;
-import de.rwhq.serializer.FixLengthSerializer;
+import de.rwhq.serializer.Serializer;
 
 import java.util.Comparator;
 
 class InnerNodeManager<K, V> extends AbstractPageManager<InnerNode<K, V>> {
 
-	private final FixLengthSerializer<K, byte[]> keySerializer;
+	private final Serializer<K, byte[]> keySerializer;
 	
 	private final DataPageManager<K> keyPageManager;
 	
 	private final Comparator<K> comparator;
-	private final PageManager<LeafNode<K, V>> leafPageManager;
+	private final LeafPageManager<K, V> leafPageManager;
+	/** null if the leaves are not read ahead */
+	private LeafReadAhead readAhead;
+	private boolean       prefixCompression = false;
+	private boolean       suffixTruncation  = false;
+	private boolean       postingLists      = false;
 	
 	public InnerNodeManager(
 			final PageManager<RawPage> bpm,
 			final DataPageManager<K> keyPageManager,
 			final DataPageManager<V> valuePageManager,
 			final LeafPageManager<K, V> leafPageManager,
-			final FixLengthSerializer<K, byte[]> keySerializer,
+			final Serializer<K, byte[]> keySerializer,
 			final Comparator<K> comparator) {
 		super(bpm);
 		this.keySerializer = keySerializer;
@@ -40,11 +48,105 @@ class InnerNodeManager<K, V> extends AbstractPageManager<InnerNode<K, V>> {
         this.comparator = comparator;
 	}
 
-	/* (non-Javadoc)
-	 * @see AbstractPageManager#createObjectPage()
+	/**
+	 * Inner nodes are touched by every operation, so if the RawPages come from a CachedResourceManager, their pages are
+	 * kept resident as long as its resident quota allows it. Then a lookup only has to read the leaf.
+	 *
+	 * @see CachedResourceManager#makeResident(RawPage)
 	 */
 	@Override
 	protected InnerNode<K, V> createObjectPage(final RawPage page) {
-		return new InnerNode<K, V>(page, keySerializer, comparator, keyPageManager, leafPageManager, this);
+		if (getRawPageManager() instanceof CachedResourceManager)
+			((CachedResourceManager) getRawPageManager()).makeResident(page);
+
+		return new InnerNode<K, V>(page, keySerializer, comparator, keyPageManager, leafPageManager, this,
+				prefixCompression, suffixTruncation, postingLists);
+	}
+
+	/** @see LeafPageManager#setPrefixCompression(boolean) */
+	void setPrefixCompression(final boolean prefixCompression) {
+		this.prefixCompression = prefixCompression;
+		clearCache();
+	}
+
+	/** @see LeafPageManager#setSuffixTruncation(boolean) */
+	void setSuffixTruncation(final boolean suffixTruncation) {
+		this.suffixTruncation = suffixTruncation;
+		clearCache();
+	}
+
+	/** @see LeafPageManager#setPostingLists(boolean) */
+	void setPostingLists(final boolean postingLists) {
+		this.postingLists = postingLists;
+		clearCache();
+	}
+
+	void setReadAhead(final LeafReadAhead readAhead) {
+		this.readAhead = readAhead;
+	}
+
+	/**
+	 * @param ring
+	 * 		if not null, the leaves are read ahead into this ring
+	 * @return read-ahead state for a new range scan, null if the leaves are not read ahead
+	 */
+	LeafReadAhead.Scan newScan(final PageRing ring) {
+		return readAhead == null ? null : readAhead.newScan(ring);
+	}
+
+	/**
+	 * Like {@link LeafPageManager#getPage(int)}, but if the RawPages come from a CachedResourceManager, a leaf that is
+	 * not in memory is read into the given ring instead of a frame of the cache.
+	 *
+	 * @param id
+	 * @param ring
+	 * @return the leaf with the given id
+	 */
+	LeafNode<K, V> getLeafForScan(final int id, final PageRing ring) {
+		if (leafPageManager.isCached(id) || !(getRawPageManager() instanceof CachedResourceManager))
+			return leafPageManager.getPage(id);
+
+		return leafPageManager.getPage(((CachedResourceManager) getRawPageManager()).getPage(id, ring));
+	}
+
+	/**
+	 * Returns the LeafNode or InnerNode with the given id. If the node is not cached, the RawPage is fetched once and the
+	 * node type tag at its beginning decides which PageManager decodes it.
+	 *
+	 * @param id
+	 * @return node with the given id
+	 */
+	public Node<K, V> getNode(final int id) {
+		if (leafPageManager.isCached(id))
+			return leafPageManager.getPage(id);
+		if (isCached(id))
+			return getPage(id);
+
+		return getNode(getRawPageManager().getPage(id));
+	}
+
+	/**
+	 * @param id
+	 * @return true, if the LeafNode or InnerNode with the given id is cached
+	 */
+	public boolean isNodeCached(final int id) {
+		return leafPageManager.isCached(id) || isCached(id);
+	}
+
+	/**
+	 * @param page
+	 * 		RawPage of a LeafNode or InnerNode
+	 * @return the decoded node, or the cached node with the id of the page
+	 */
+	public Node<K, V> getNode(final RawPage page) {
+		final NodeType type = NodeType.deserialize(page.bufferForReading(0).getChar());
+
+		if (type == NodeType.LEAF_NODE)
+			return leafPageManager.getPage(page);
+		if (type == NodeType.INNER_NODE)
+			return getPage(page);
+
+		throw new IllegalArgumentException(
+				"the page with the id " + page.id() + " is neither a LeafNode nor an InnerNode");
 	}
 }
@@ -0,0 +1,118 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License:
+ *
+ * http://creativecommons.org/licenses/by-nc/3.0/
+ *
+ * For alternative conditions contact the author.
+ *
+ * Copyright (c) 2011 "Robin Wenglewski <robin@wenglewski.de>"
+ */
+package de.rwhq.btree;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Byte level helpers for nodes that store the common prefix of their keys only once, see {@link
+ * BTree#setPrefixCompression(boolean)}. The keys must order like their unsigned bytes, see {@link
+ * de.rwhq.comparator.LexicographicComparator}, so the common prefix of the smallest and the largest key of a node is
+ * the common prefix of all its keys.
+ * <p/>
+ * With {@link BTree#setSuffixTruncation(boolean)}, the separators in the inner nodes are cut behind the first byte
+ * that distinguishes the two sides of a split and padded with zeros. Inner nodes then only store the bytes up to the
+ * last byte of their keys that is not zero.
+ */
+final class KeyPrefix {
+
+	private KeyPrefix() {
+	}
+
+	/**
+	 * @param a
+	 * @param b
+	 * @return number of leading bytes a and b have in common
+	 */
+	static int commonLength(final byte[] a, final byte[] b) {
+		final int length = Math.min(a.length, b.length);
+		int i = 0;
+		while (i < length && a[i] == b[i])
+			i++;
+		return i;
+	}
+
+	/**
+	 * @param keys
+	 * 		sorted serialized keys
+	 * @param from
+	 * 		including
+	 * @param to
+	 * 		excluding, must be larger than from
+	 * @return length of the prefix all keys from from to to have in common
+	 */
+	static int commonLength(final List<byte[]> keys, final int from, final int to) {
+		return commonLength(keys.get(from), keys.get(to - 1));
+	}
+
+	/**
+	 * @param key
+	 * @return number of bytes up to and including the last byte that is not zero
+	 */
+	static int significantLength(final byte[] key) {
+		int length = key.length;
+		while (length > 0 && key[length - 1] == 0)
+			length--;
+		return length;
+	}
+
+	/**
+	 * @param buffer
+	 * @param from
+	 * 		including
+	 * @param to
+	 * 		excluding
+	 * @return true, if all bytes from from to to are zero
+	 */
+	static boolean isZero(final ByteBuffer buffer, final int from, final int to) {
+		for (int i = from; i < to; i++) {
+			if (buffer.get(i) != 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the shortest separator for a split between two keys: the prefix of the right key up to the first byte in
+	 * which it differs from the left key, padded with zeros to the length of the keys. The separator is larger than the
+	 * left key and smaller or equal to the right key. If both keys are equal, the right key is returned.
+	 *
+	 * @param left
+	 * 		last key of the left side
+	 * @param right
+	 * 		first key of the right side, equal or larger than left
+	 * @return separator with the length of the keys
+	 */
+	static byte[] separator(final byte[] left, final byte[] right) {
+		final int common = commonLength(left, right);
+		if (common == right.length)
+			return right;
+
+		final byte[] result = new byte[right.length];
+		System.arraycopy(right, 0, result, 0, common + 1);
+		return result;
+	}
+
+	/**
+	 * compares length unsigned bytes, the positions of the buffers are not changed
+	 *
+	 * @return a negative integer, zero, or a positive integer as the bytes in b1 are less than, equal to, or greater
+	 *         than the bytes in b2
+	 */
+	static int compare(final ByteBuffer b1, final int pos1, final ByteBuffer b2, final int pos2, final int length) {
+		for (int i = 0; i < length; i++) {
+			final int diff = (b1.get(pos1 + i) & 0xFF) - (b2.get(pos2 + i) & 0xFF);
+			if (diff != 0)
+				return diff;
+		}
+		return 0;
+	}
+}
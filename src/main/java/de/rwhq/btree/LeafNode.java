@@ -10,8 +10,11 @@
 package de.rwhq.btree;
 
 import de.rwhq.btree.AdjustmentAction.ACTION;
+import de.rwhq.comparator.LexicographicComparator;
+import de.rwhq.comparator.RawComparator;
 import de.rwhq.io.rm.*;
 import de.rwhq.serializer.FixLengthSerializer;
+import de.rwhq.serializer.Serializer;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -23,6 +26,21 @@ import java.util.*;
 
 /**
  * autosaves
+ * <p/>
+ * With prefix compression (see {@link BTree#setPrefixCompression(boolean)}), the header is followed by the length of
+ * the common prefix of all keys in the leaf (short) and the prefix itself, and the entries only store the rest of their
+ * keys. The prefix is recomputed whenever the leaf is rewritten, so the number of entries that fit into the leaf
+ * depends on its keys.
+ * <p/>
+ * If the key or the value serializer is not a {@link FixLengthSerializer}, the header is followed by a {@link
+ * SlottedPage} with the entries, the key as key and the value as payload of a record.
+ * <p/>
+ * With posting lists (see {@link BTree#setPostingLists(boolean)}), the leaf is slotted as well, but every key has only
+ * one record, whose payload is the {@link PostingList} with all values of the key.
+ * <p/>
+ * Values that are larger than the threshold of {@link BTree#setLargeValueThreshold(int)} are stored in DataPages, the
+ * leaf only stores their pointers, see {@link OutOfLineValues}. All serialized values in the leaf are in this stored
+ * form.
  *
  * @param <K>
  * @param <V>
@@ -60,16 +78,33 @@ class LeafNode<K, V> implements Node<K, V>, ComplexPage {
 
 	private static final BTree.NodeType NODE_TYPE = BTree.NodeType.LEAF_NODE;
 
-	private final FixLengthSerializer<V, byte[]> valueSerializer;
+	private final Serializer<V, byte[]> valueSerializer;
 
 	private final Comparator<K> comparator;
+	/** compares the keys in the page without deserializing them, null if the key serializer does not support it */
+	private final RawComparator<K> rawComparator;
 
 	private boolean valid = false;
 
-	// right now, we always store key/value pairs. If the entries are not unique,
-	// it could make sense to store the key once with references to all values
-	//TODO: investigate if we should do this
-	private int maxEntries;
+	/** if true, the keys are stored without their common prefix */
+	private final boolean prefixCompression;
+	/** length of the common prefix of the keys, always 0 without prefix compression */
+	private       int     prefixLength = 0;
+	/** if true, splits promote the shortest separator instead of the first key of the new leaf */
+	private final boolean suffixTruncation;
+
+	/** slot directory and heap of the entries if the keys or values have a variable length, otherwise null */
+	private final SlottedPage slots;
+	/** serialized length of the keys and values, only used if slots is null */
+	private final int         keyLength;
+	private final int         valueLength;
+	/** encodes the values of a key into one record, null if every value has its own record */
+	private final PostingList postings;
+	/** stores the large values out of line, null if all values are stored in the leaf */
+	private final OutOfLineValues<V> largeValues;
+
+	/** posting lists whose records would take more than this part of the leaf are spilled to overflow pages */
+	private static final int POSTING_LIST_FRACTION = 8;
 
 
 	private static final   int     NOT_FOUND    = -1;
@@ -82,29 +117,67 @@ class LeafNode<K, V> implements Node<K, V>, ComplexPage {
 
 	private final PageManager<LeafNode<K, V>> leafPageManager;
 
-	private final FixLengthSerializer<K, byte[]> keySerializer;
+	private final Serializer<K, byte[]> keySerializer;
 
 
 	LeafNode(
 			final RawPage page,
-			final FixLengthSerializer<K, byte[]> keySerializer,
-			final FixLengthSerializer<V, byte[]> valueSerializer,
+			final Serializer<K, byte[]> keySerializer,
+			final Serializer<V, byte[]> valueSerializer,
 			final Comparator<K> comparator,
 			final PageManager<LeafNode<K, V>> leafPageManager,
 			final int minNumberOfValues
+	) {
+		this(page, keySerializer, valueSerializer, comparator, leafPageManager, minNumberOfValues, false, false, null,
+				null);
+	}
+
+	LeafNode(
+			final RawPage page,
+			final Serializer<K, byte[]> keySerializer,
+			final Serializer<V, byte[]> valueSerializer,
+			final Comparator<K> comparator,
+			final PageManager<LeafNode<K, V>> leafPageManager,
+			final int minNumberOfValues,
+			final boolean prefixCompression,
+			final boolean suffixTruncation,
+			final PostingList postings,
+			final OutOfLineValues<V> largeValues
 	) {
 		this.leafPageManager = leafPageManager;
 		this.rawPage = page;
 		this.keySerializer = keySerializer;
 		this.valueSerializer = valueSerializer;
 		this.comparator = comparator;
-		
-		// one pointer to key, one to value
-		maxEntries = (rawPage.bufferForReading(0).limit() - Header.size()) /
-				(valueSerializer.getSerializedLength() + keySerializer.getSerializedLength());
+		this.prefixCompression = prefixCompression;
+		this.suffixTruncation = suffixTruncation;
+		this.postings = postings;
+		this.largeValues = largeValues;
+
+		if (suffixTruncation && !prefixCompression)
+			throw new IllegalArgumentException("suffix truncation requires prefix compression");
+
+		if (postings == null && keySerializer instanceof FixLengthSerializer &&
+				valueSerializer instanceof FixLengthSerializer) {
+			this.slots = null;
+			this.keyLength = ((FixLengthSerializer<K, byte[]>) keySerializer).getSerializedLength();
+			this.valueLength = largeValues == null ?
+					((FixLengthSerializer<V, byte[]>) valueSerializer).getSerializedLength() : largeValues.getStoredLength();
+		} else {
+			if (prefixCompression)
+				throw new IllegalArgumentException(
+						"prefix compression requires fixed-length keys and values without posting lists");
+			this.slots = new SlottedPage(page, Header.size());
+			this.keyLength = 0;
+			this.valueLength = 0;
+		}
+
+		// the keys in a slotted leaf are not at fixed offsets, they are deserialized for the comparisons
+		this.rawComparator = slots == null ? BTree.rawComparatorFor(keySerializer, comparator) : null;
+		if (prefixCompression && !(rawComparator instanceof LexicographicComparator))
+			throw new IllegalArgumentException("prefix compression requires a LexicographicComparator for the keys");
 
-		final int requiredBytes = Header.size() + minNumberOfValues *
-				(keySerializer.getSerializedLength() + valueSerializer.getSerializedLength());
+		final int requiredBytes = Header.size() + minNumberOfValues * (keyLength + valueLength);
 		if (page.bufferForReading(0).limit() - requiredBytes < 0)
 			throw new IllegalArgumentException("The RawPage must have space for at least " +
 					minNumberOfValues + " Entries (" + requiredBytes + " bytes)");
@@ -121,7 +194,260 @@ class LeafNode<K, V> implements Node<K, V>, ComplexPage {
 	}
 
 	public boolean isFull() {
-		return numberOfEntries == maxEntries;
+		return numberOfEntries == getMaximalNumberOfEntries();
+	}
+
+	/**
+	 * @param prefixLength
+	 * @return number of entries that fit into the page if the keys have a common prefix of the given length
+	 */
+	private int getCapacity(final int prefixLength) {
+		final int entrySize = keyLength - prefixLength + valueLength;
+		return (rawPage.bufferForReading(0).limit() - getDataOffset(prefixLength)) / entrySize;
+	}
+
+	/** @return offset of the first entry */
+	private int getDataOffset() {
+		return getDataOffset(prefixLength);
+	}
+
+	private int getDataOffset(final int prefixLength) {
+		return prefixCompression ? Header.size() + Short.SIZE / 8 + prefixLength : Header.size();
+	}
+
+	/** @return number of bytes of a key that are stored in its entry */
+	private int getStoredKeyLength() {
+		return keyLength - prefixLength;
+	}
+
+	private int getEntrySize() {
+		return getStoredKeyLength() + valueLength;
+	}
+
+	/**
+	 * @param pageSize
+	 * @param serializedKey
+	 * @param serializedValue
+	 * @return true, if the entry is small enough for a slotted leaf: every split must find room for both halves
+	 */
+	static boolean isSmallEnough(final int pageSize, final byte[] serializedKey, final byte[] serializedValue) {
+		return isSmallEnough(pageSize, serializedKey, serializedValue.length);
+	}
+
+	/**
+	 * @param pageSize
+	 * @param serializedKey
+	 * @param payloadLength
+	 * @return true, if the record is small enough for a slotted leaf
+	 */
+	static boolean isSmallEnough(final int pageSize, final byte[] serializedKey, final int payloadLength) {
+		return SlottedPage.getEntrySize(serializedKey.length, payloadLength) <=
+				SlottedPage.getSpace(pageSize, Header.size()) / 2;
+	}
+
+	/**
+	 * @param serializedKey
+	 * @return size of the largest payload that a posting list of the key may have without being spilled
+	 */
+	private int getMaxInlinePayloadSize(final byte[] serializedKey) {
+		return SlottedPage.getSpace(rawPage.bufferForReading(0).limit(), Header.size()) / POSTING_LIST_FRACTION -
+				SlottedPage.getEntrySize(serializedKey.length, 0);
+	}
+
+	/**
+	 * @param value
+	 * @return the form in which the value is stored in the leaf
+	 */
+	private byte[] storeValue(final V value) {
+		final byte[] serializedValue = valueSerializer.serialize(value);
+		if (largeValues == null)
+			return serializedValue;
+
+		return largeValues.store(value, serializedValue);
+	}
+
+	/**
+	 * @param serializedValue
+	 * @return the form in which the already serialized value is stored in the leaf
+	 */
+	private byte[] storeSerializedValue(final byte[] serializedValue) {
+		if (largeValues == null)
+			return serializedValue;
+
+		return largeValues.store(valueSerializer.deserialize(serializedValue), serializedValue);
+	}
+
+	/**
+	 * @param value
+	 * 		value of an entry given to {@link #bulkInitialize(SimpleEntry[], int, int)}
+	 * @param isSerialized
+	 * 		see {@link #holdsSerializedValues(SimpleEntry[], int)}
+	 * @return the form in which the value is stored in the leaf
+	 */
+	@SuppressWarnings("unchecked")
+	private byte[] storeBulkValue(final Object value, final boolean isSerialized) {
+		return isSerialized ? storeSerializedValue((byte[]) value) : storeValue((V) value);
+	}
+
+	/**
+	 * The entries given to a bulk initialization hold either values or values that are already serialized. This is
+	 * decided once for all entries by the first one.
+	 *
+	 * @param kvs
+	 * @param from
+	 * 		index of the first entry
+	 * @return true, if the values of the entries are already serialized
+	 */
+	static boolean holdsSerializedValues(final SimpleEntry<?, ?>[] kvs, final int from) {
+		return kvs[from].getValue() instanceof byte[];
+	}
+
+	/**
+	 * @param valueSerializer
+	 * @param value
+	 * 		value of an entry given to a bulk initialization
+	 * @param isSerialized
+	 * 		see {@link #holdsSerializedValues(SimpleEntry[], int)}
+	 * @return the serialized value
+	 */
+	@SuppressWarnings("unchecked")
+	static <V> byte[] serializeBulkValue(final Serializer<V, byte[]> valueSerializer, final Object value,
+	                                     final boolean isSerialized) {
+		return isSerialized ? (byte[]) value : valueSerializer.serialize((V) value);
+	}
+
+	private V loadValue(final byte[] storedValue) {
+		return largeValues == null ? valueSerializer.deserialize(storedValue) : largeValues.load(storedValue);
+	}
+
+	/**
+	 * frees the DataPage space of a value that is removed from the leaf
+	 *
+	 * @param storedValue
+	 */
+	private void freeValue(final byte[] storedValue) {
+		if (largeValues != null)
+			largeValues.free(storedValue);
+	}
+
+	/** @return true, if the number of entries that fit depends on their keys, and structural changes rewrite the leaf */
+	private boolean hasVariableCapacity() {
+		return prefixCompression || slots != null;
+	}
+
+	/**
+	 * @param serializedKey
+	 * @return true, if the key can be added without splitting the leaf
+	 */
+	private boolean fits(final byte[] serializedKey, final byte[] serializedValue) {
+		if (slots != null)
+			return SlottedPage.getEntrySize(serializedKey.length, serializedValue.length) <=
+					slots.getFreeSpace(getNumberOfEntries());
+		if (!prefixCompression)
+			return !isFull();
+		if (getNumberOfEntries() == 0)
+			return true;
+
+		return getNumberOfEntries() < getCapacity(getCommonPrefixLength(serializedKey));
+	}
+
+	/**
+	 * @param serializedKey
+	 * @return length of the prefix the key has in common with all keys of this leaf
+	 */
+	private int getCommonPrefixLength(final byte[] serializedKey) {
+		final ByteBuffer buffer = rawPage().bufferForReading(getDataOffset(0));
+		int i = 0;
+		while (i < prefixLength && buffer.get() == serializedKey[i])
+			i++;
+		return i;
+	}
+
+	/**
+	 * compares the prefix of the given key with the common prefix of this leaf
+	 *
+	 * @param serializedKey
+	 * @return comparison result of the prefix of the leaf and the prefix of the key
+	 */
+	private int comparePrefix(final ByteBuffer serializedKey) {
+		return KeyPrefix.compare(rawPage().bufferForReading(0), getDataOffset(0), serializedKey, 0, prefixLength);
+	}
+
+	/**
+	 * @param from
+	 * 		first position
+	 * @param to
+	 * 		position behind the last entry
+	 * @param keys
+	 * 		gets the complete serialized keys
+	 * @param values
+	 * 		gets the serialized values
+	 */
+	private void readEntries(final int from, final int to, final List<byte[]> keys, final List<byte[]> values) {
+		for (int pos = from; pos < to; pos++) {
+			if (slots != null) {
+				keys.add(slots.getKey(pos));
+				values.add(slots.getPayload(pos));
+				continue;
+			}
+
+			keys.add(getSerializedKeyAtOffset(getOffsetForKeyPos(pos)));
+			final byte[] value = new byte[valueLength];
+			rawPage().bufferForReading(getOffsetForKeyPos(pos) + getStoredKeyLength()).get(value);
+			values.add(value);
+		}
+	}
+
+	/**
+	 * replaces all entries of the leaf, recomputing the common prefix. Does not sync.
+	 *
+	 * @param keys
+	 * 		sorted, complete serialized keys
+	 * @param values
+	 * 		serialized values
+	 */
+	private void writeEntries(final List<byte[]> keys, final List<byte[]> values) {
+		if (slots != null) {
+			slots.write(keys, values);
+			setNumberOfEntries(keys.size());
+			return;
+		}
+
+		final int n = keys.size();
+		final int newPrefixLength = n == 0 ? 0 : KeyPrefix.commonLength(keys, 0, n);
+		if (n > getCapacity(newPrefixLength))
+			throw new IllegalArgumentException(n + " entries do not fit into the leaf " + getId());
+
+		final ByteBuffer buf = rawPage().bufferForWriting(Header.size());
+		buf.putShort((short) newPrefixLength);
+		if (n > 0)
+			buf.put(keys.get(0), 0, newPrefixLength);
+		prefixLength = newPrefixLength;
+
+		for (int i = 0; i < n; i++) {
+			buf.put(keys.get(i), prefixLength, getStoredKeyLength());
+			buf.put(values.get(i));
+		}
+
+		setNumberOfEntries(n);
+	}
+
+	/**
+	 * @param keys
+	 * @param values
+	 * @param from
+	 * @param to
+	 * @return true, if the entries with the given keys and values fit into one leaf
+	 */
+	private boolean canHold(final List<byte[]> keys, final List<byte[]> values, final int from, final int to) {
+		if (slots != null) {
+			int size = 0;
+			for (int i = from; i < to; i++)
+				size += SlottedPage.getEntrySize(keys.get(i).length, values.get(i).length);
+			return size <= SlottedPage.getSpace(rawPage.bufferForReading(0).limit(), Header.size());
+		}
+
+		return to - from <= getCapacity(KeyPrefix.commonLength(keys, from, to));
 	}
 
 
@@ -148,7 +474,7 @@ class LeafNode<K, V> implements Node<K, V>, ComplexPage {
 		if (num > source.getNumberOfEntries())
 			throw new IllegalArgumentException("the source leaf has not enough entries");
 
-		if (getNumberOfEntries() + num > maxEntries)
+		if (!hasVariableCapacity() && getNumberOfEntries() + num > getMaximalNumberOfEntries())
 			throw new IllegalArgumentException(
 					"not enough space in this leaf to prepend " + num + " entries from other leaf");
 
@@ -157,17 +483,31 @@ class LeafNode<K, V> implements Node<K, V>, ComplexPage {
 					"the last key of the provided source leaf is larger than this leafs first key");
 		}
 
+		if (hasVariableCapacity()) {
+			final List<byte[]> keys = new ArrayList<byte[]>();
+			final List<byte[]> values = new ArrayList<byte[]>();
+			source.readEntries(source.getNumberOfEntries() - num, source.getNumberOfEntries(), keys, values);
+			readEntries(0, getNumberOfEntries(), keys, values);
+			if (!canHold(keys, values, 0, keys.size()))
+				throw new IllegalArgumentException(
+						"not enough space in this leaf to prepend " + num + " entries from other leaf");
+
+			// the remaining keys of the source still have its prefix in common, their records stay in the heap
+			source.setNumberOfEntries(source.getNumberOfEntries() - num);
+			writeEntries(keys, values);
+			return;
+		}
+
 		final ByteBuffer buffer = rawPage().bufferForWriting(0);
 
 		// make space in this leaf, move all elements to the right
-		final int totalSize = num * (keySerializer.getSerializedLength() + valueSerializer.getSerializedLength());
-		final int byteToMove = buffer.limit() - Header.size() - totalSize;
-		System.arraycopy(buffer.array(), Header.size(), buffer.array(), Header.size() + totalSize, byteToMove);
+		final int totalSize = num * getEntrySize();
+		final int byteToMove = buffer.limit() - getDataOffset() - totalSize;
+		rawPage().move(getDataOffset(), getDataOffset() + totalSize, byteToMove);
 
 		// copy from other to us
 		final int sourceOffset = source.getOffsetForKeyPos(source.getNumberOfEntries() - num);
-		System.arraycopy(source.rawPage().bufferForWriting(0).array(), sourceOffset, buffer.array(), Header.size(),
-				totalSize);
+		source.rawPage().copyTo(sourceOffset, rawPage(), getDataOffset(), totalSize);
 
 		// update headers, also sets modified
 		source.setNumberOfEntries(source.getNumberOfEntries() - num);
@@ -183,30 +523,60 @@ class LeafNode<K, V> implements Node<K, V>, ComplexPage {
 		if (getNumberOfEntries() == 0)
 			return null;
 
-		int offset = offsetBehindLastEntry();
-		offset -= keySerializer.getSerializedLength() + valueSerializer.getSerializedLength();
-		return getKeyAtOffset(offset);
+		return getKeyAtPosition(getNumberOfEntries() - 1);
 	}
 
 	@Override public byte[] getLastLeafKeySerialized() {
-		final ByteBuffer buffer = rawPage().bufferForReading(getOffsetForKeyPos(getNumberOfEntries() - 1));
-		final byte[] buf = new byte[keySerializer.getSerializedLength()];
-		buffer.get(buf);
-		return buf;
+		return getSerializedKeyAtPosition(getNumberOfEntries() - 1);
 	}
 
 	public K getKeyAtOffset(final int offset) {
-		final byte[] bytes = new byte[keySerializer.getSerializedLength()];
-		rawPage().bufferForReading(offset).get(bytes);
-		return keySerializer.deserialize(bytes);
+		return keySerializer.deserialize(getSerializedKeyAtOffset(offset));
+	}
+
+	/**
+	 * @param offset
+	 * 		of an entry
+	 * @return the complete serialized key of the entry, including the common prefix
+	 */
+	private byte[] getSerializedKeyAtOffset(final int offset) {
+		final byte[] bytes = new byte[keyLength];
+		if (prefixLength > 0)
+			rawPage().bufferForReading(getDataOffset(0)).get(bytes, 0, prefixLength);
+		rawPage().bufferForReading(offset).get(bytes, prefixLength, getStoredKeyLength());
+		return bytes;
+	}
+
+	/**
+	 * @param pos
+	 * 		of an entry
+	 * @return the complete serialized key of the entry
+	 */
+	private byte[] getSerializedKeyAtPosition(final int pos) {
+		if (slots != null) {
+			if (pos < 0 || pos >= getNumberOfEntries())
+				throw new IllegalArgumentException(
+						"invalid pos: " + pos + ". pos must be between 0 and numberOfEntries - 1");
+			return slots.getKey(pos);
+		}
+
+		return getSerializedKeyAtOffset(getOffsetForKeyPos(pos));
+	}
+
+	private byte[] getSerializedValueAtPosition(final int pos) {
+		if (slots != null)
+			return slots.getPayload(pos);
+
+		final byte[] bytes = new byte[valueLength];
+		rawPage().bufferForReading(offsetForValuePos(pos)).get(bytes);
+		return bytes;
 	}
 
 	public K getFirstLeafKey() {
 		if (getNumberOfEntries() == 0)
 			return null;
 
-		final int pos = getOffsetForKeyPos(0);
-		return getKeyAtOffset(pos);
+		return getKeyAtPosition(0);
 	}
 
 
@@ -215,9 +585,26 @@ class LeafNode<K, V> implements Node<K, V>, ComplexPage {
 	 * adds an entry to this LeafNodes rawPage, does not sync!
 	 *
 	 * @param key
-	 * @param value
+	 * @param serializedKey
+	 * @param serializedValue
 	 */
-	private void addEntry(final K key, final V value) {
+	private void addEntry(final K key, final byte[] serializedKey, final byte[] serializedValue) {
+		if (slots != null) {
+			insertRecord(firstPositionEqualOrLargerThan(key), serializedKey, serializedValue);
+			return;
+		}
+
+		// the key does not share the prefix, the leaf gets a shorter one
+		if (prefixCompression && (getNumberOfEntries() == 0 || getCommonPrefixLength(serializedKey) < prefixLength)) {
+			final List<byte[]> keys = new ArrayList<byte[]>();
+			final List<byte[]> values = new ArrayList<byte[]>();
+			readEntries(0, getNumberOfEntries(), keys, values);
+			final int pos = firstPositionEqualOrLargerThan(key);
+			keys.add(pos, serializedKey);
+			values.add(pos, serializedValue);
+			writeEntries(keys, values);
+			return;
+		}
 
 		final ByteBuffer buf = rawPage().bufferForWriting(0);
 		int offset = offsetOfKey(key, true);
@@ -226,18 +613,49 @@ class LeafNode<K, V> implements Node<K, V>, ComplexPage {
 			offset = offsetBehindLastEntry();
 		} else {
 			// move everything including pos backwards
-			System.arraycopy(buf.array(), offset, buf.array(), offset + keySerializer.getSerializedLength()
-					+ valueSerializer.getSerializedLength(),
-					buf.capacity() - (offset + keySerializer.getSerializedLength() + valueSerializer.getSerializedLength()));
+			rawPage().move(offset, offset + getEntrySize(), buf.capacity() - (offset + getEntrySize()));
 		}
 		// insert both
 		buf.position(offset);
-		buf.put(keySerializer.serialize(key));
-		buf.put(valueSerializer.serialize(value));
+		buf.put(serializedKey, prefixLength, getStoredKeyLength());
+		buf.put(serializedValue);
 
 		setNumberOfEntries(getNumberOfEntries() + 1);
 	}
 
+	/**
+	 * adds a record to a slotted leaf that has enough free space, does not sync
+	 *
+	 * @param pos
+	 * 		of the new record
+	 * @param serializedKey
+	 * @param payload
+	 */
+	private void insertRecord(final int pos, final byte[] serializedKey, final byte[] payload) {
+		if (slots.insert(pos, getNumberOfEntries(), serializedKey, payload)) {
+			setNumberOfEntries(getNumberOfEntries() + 1);
+			return;
+		}
+
+		// only the holes in the heap have room, compact the leaf
+		final List<byte[]> keys = new ArrayList<byte[]>();
+		final List<byte[]> values = new ArrayList<byte[]>();
+		readEntries(0, getNumberOfEntries(), keys, values);
+		keys.add(pos, serializedKey);
+		values.add(pos, payload);
+		writeEntries(keys, values);
+	}
+
+	/**
+	 * removes a record from a slotted leaf, does not sync
+	 *
+	 * @param pos
+	 */
+	private void removeRecord(final int pos) {
+		slots.remove(pos, 1, getNumberOfEntries());
+		setNumberOfEntries(getNumberOfEntries() - 1);
+	}
+
 	public int getNumberOfEntries() {
 		return numberOfEntries;
 	}
@@ -247,7 +665,7 @@ class LeafNode<K, V> implements Node<K, V>, ComplexPage {
 		  */
 	@Override
 	public boolean containsKey(final K key) {
-		return offsetOfKey(key) != NOT_FOUND;
+		return positionOfKey(key) != NOT_FOUND;
 	}
 
 	/**
@@ -260,11 +678,11 @@ class LeafNode<K, V> implements Node<K, V>, ComplexPage {
 			throw new IllegalArgumentException(
 					"invalid pos: " + pos + ". pos must be between 0 and numberOfEntries - 1");
 
-		return Header.size() + pos * (valueSerializer.getSerializedLength() + keySerializer.getSerializedLength());
+		return getDataOffset() + pos * getEntrySize();
 	}
 
 	private int offsetForValuePos(final int i) {
-		return getOffsetForKeyPos(i) + valueSerializer.getSerializedLength();
+		return getOffsetForKeyPos(i) + getStoredKeyLength();
 	}
 
 	/**
@@ -273,7 +691,7 @@ class LeafNode<K, V> implements Node<K, V>, ComplexPage {
 	 * @return
 	 */
 	private int offsetBehindLastEntry() {
-		return Header.size() + getNumberOfEntries() * (valueSerializer.getSerializedLength() + keySerializer.getSerializedLength());
+		return getDataOffset() + getNumberOfEntries() * getEntrySize();
 	}
 
 	/* (non-Javadoc)
@@ -283,11 +701,29 @@ class LeafNode<K, V> implements Node<K, V>, ComplexPage {
 	public List<V> get(final K key) {
 		final List<V> result = new ArrayList<V>();
 
+		if (slots != null) {
+			final int pos = positionOfKey(key);
+			if (pos == NOT_FOUND)
+				return result;
+
+			if (postings != null) {
+				for (final byte[] value : postings.decode(slots.getPayload(pos)))
+					result.add(loadValue(value));
+				return result;
+			}
+
+			final byte[] serializedKey = keySerializer.serialize(key);
+			for (int i = pos; i < getNumberOfEntries() && slots.hasKey(i, serializedKey); i++)
+				result.add(loadValue(slots.getPayload(i)));
+			return result;
+		}
 
-		final byte[] keyBuf = keySerializer.serialize(key);
+		// all entries with the key share the prefix of the leaf
+		final byte[] serializedKey = keySerializer.serialize(key);
+		final byte[] keyBuf = Arrays.copyOfRange(serializedKey, prefixLength, serializedKey.length);
 
-		final byte[] tmpKeyBuf = new byte[keySerializer.getSerializedLength()];
-		final byte[] tmpValBuf = new byte[valueSerializer.getSerializedLength()];
+		final byte[] tmpKeyBuf = new byte[getStoredKeyLength()];
+		final byte[] tmpValBuf = new byte[valueLength];
 
 		final int pos = offsetOfKey(key);
 		if (pos == NOT_FOUND)
@@ -297,12 +733,14 @@ class LeafNode<K, V> implements Node<K, V>, ComplexPage {
 		final ByteBuffer buffer = rawPage().bufferForReading(pos);
 
 
+		// entries are sorted, so all values of the key are stored in a row
 		while (buffer.position() < offsetBehindLastEntry()) {
 			buffer.get(tmpKeyBuf);
-			if (Arrays.equals(tmpKeyBuf, keyBuf)) {
-				buffer.get(tmpValBuf);
-				result.add(valueSerializer.deserialize(tmpValBuf));
-			}
+			if (!Arrays.equals(tmpKeyBuf, keyBuf))
+				break;
+
+			buffer.get(tmpValBuf);
+			result.add(loadValue(tmpValBuf));
 		}
 
 		return result;
@@ -315,32 +753,133 @@ class LeafNode<K, V> implements Node<K, V>, ComplexPage {
 	 * @return position to set the buffer to, where the key starts, -1 if key not found
 	 */
 	private int offsetOfKey(final K key, final boolean takeNext) {
+		final int pos = firstPositionEqualOrLargerThan(key);
+		if (pos == getNumberOfEntries())
+			return NOT_FOUND;
 
-		final byte[] pointerBuf = new byte[valueSerializer.getSerializedLength()];
-		final byte[] keyBuf = new byte[keySerializer.getSerializedLength()];
-
-		final ByteBuffer buffer = rawPage().bufferForReading(Header.size());
+		final int offset = getOffsetForKeyPos(pos);
+		if (!takeNext && compareKeyAtOffset(rawPage().bufferForReading(0), offset, key, serializeForComparison(key)) != 0)
+			return NOT_FOUND;
 
-		for (int i = 0; i < getNumberOfEntries(); i++) {
+		return offset;
+	}
 
-			buffer.get(keyBuf);
+	/**
+	 * @param key
+	 * @return position of the first entry with the key, NOT_FOUND if there is none
+	 */
+	private int positionOfKey(final K key) {
+		final int pos = firstPositionEqualOrLargerThan(key);
+		if (pos == getNumberOfEntries() ||
+				compareKeyAtPosition(rawPage().bufferForReading(0), pos, key, serializeForComparison(key)) != 0)
+			return NOT_FOUND;
 
-			final int compResult = comparator.compare(keySerializer.deserialize(keyBuf), key);
+		return pos;
+	}
 
-			if (compResult == 0) {
-				return buffer.position() - keySerializer.getSerializedLength();
-			} else if (compResult > 0) {
-				if (takeNext)
-					return buffer.position() - keySerializer.getSerializedLength();
+	/**
+	 * binary search over the entries. If the key occurs more than once, the position of the first occurrence
+	 * is returned.
+	 *
+	 * @param key
+	 * @return position of the first entry with a key equal or larger than the given key, numberOfEntries if there is
+	 *         none
+	 */
+	private int firstPositionEqualOrLargerThan(final K key) {
+		final int entrySize = getEntrySize();
+		final ByteBuffer serializedKey = serializeForComparison(key);
+		final ByteBuffer buffer = rawPage().bufferForReading(0);
+
+		int low = 0;
+		int high = getNumberOfEntries();
+
+		// the prefix is compared only once, the search only looks at the rest of the keys
+		if (prefixCompression && high > 0) {
+			final int prefixComparison = comparePrefix(serializedKey);
+			if (prefixComparison != 0)
+				return prefixComparison > 0 ? 0 : high;
+
+			while (low < high) {
+				final int mid = (low + high) >>> 1;
+
+				if (KeyPrefix.compare(buffer, getDataOffset() + mid * entrySize, serializedKey, prefixLength,
+						getStoredKeyLength()) < 0)
+					low = mid + 1;
 				else
-					return NOT_FOUND;
+					high = mid;
 			}
 
-			// if compresult < 0:
-			// get the data pointer but do nothing with it
-			buffer.get(pointerBuf);
+			return low;
+		}
+
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+
+			if (compareKeyAtPosition(buffer, mid, key, serializedKey) < 0)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+
+		return low;
+	}
+
+	/**
+	 * @param key
+	 * @return the serialized key if keys can be compared in place, otherwise null
+	 */
+	private ByteBuffer serializeForComparison(final K key) {
+		return rawComparator == null ? null : ByteBuffer.wrap(keySerializer.serialize(key));
+	}
+
+	/**
+	 * compares the key stored at the position with the given key, like {@link #compareKeyAtOffset(ByteBuffer, int,
+	 * Object, ByteBuffer)}
+	 *
+	 * @param buffer
+	 * 		of the rawPage
+	 * @param pos
+	 * 		of the entry
+	 * @param key
+	 * @param serializedKey
+	 * @return comparison result of the stored key and key
+	 */
+	private int compareKeyAtPosition(final ByteBuffer buffer, final int pos, final K key,
+	                                 final ByteBuffer serializedKey) {
+		if (slots != null)
+			return comparator.compare(keySerializer.deserialize(slots.getKey(pos)), key);
+
+		return compareKeyAtOffset(buffer, getDataOffset() + pos * getEntrySize(), key, serializedKey);
+	}
+
+	/**
+	 * compares the key stored at the offset with the given key
+	 *
+	 * @param buffer
+	 * 		of the rawPage
+	 * @param offset
+	 * 		of the stored key
+	 * @param key
+	 * @param serializedKey
+	 * 		result of {@link #serializeForComparison(Object)} for the key
+	 * @return comparison result of the stored key and key
+	 */
+	private int compareKeyAtOffset(final ByteBuffer buffer, final int offset, final K key,
+	                               final ByteBuffer serializedKey) {
+		if (prefixCompression) {
+			final int prefixComparison = comparePrefix(serializedKey);
+			if (prefixComparison != 0)
+				return prefixComparison;
+			return KeyPrefix.compare(buffer, offset, serializedKey, prefixLength, getStoredKeyLength());
 		}
-		return NOT_FOUND;
+
+		if (rawComparator != null)
+			return rawComparator.compare(buffer, offset, serializedKey, 0);
+
+		final byte[] bytes = new byte[keyLength];
+		buffer.position(offset);
+		buffer.get(bytes);
+		return comparator.compare(keySerializer.deserialize(bytes), key);
 	}
 
 	private int offsetOfKey(final K key) {
@@ -353,16 +892,16 @@ class LeafNode<K, V> implements Node<K, V>, ComplexPage {
 	 * @return a valid position to read the next key from, or NOT_FOUND
 	 */
 	private int getPosWhereNextKeyStarts(int currentPos) {
-		if (currentPos < Header.size())
-			currentPos = Header.size();
+		if (currentPos < getDataOffset())
+			currentPos = getDataOffset();
 
-		currentPos -= Header.size();
-		currentPos /= (valueSerializer.getSerializedLength() + keySerializer.getSerializedLength());
+		currentPos -= getDataOffset();
+		currentPos /= getEntrySize();
 		if (currentPos >= getNumberOfEntries())
 			return NOT_FOUND;
 
-		currentPos *= (valueSerializer.getSerializedLength() + keySerializer.getSerializedLength());
-		return currentPos + Header.size();
+		currentPos *= getEntrySize();
+		return currentPos + getDataOffset();
 	}
 
 	/* (non-Javadoc)
@@ -371,20 +910,36 @@ class LeafNode<K, V> implements Node<K, V>, ComplexPage {
 	@Override
 	public int remove(final K key) {
 		
-		final int pos = offsetOfKey(key);
+		final int pos = positionOfKey(key);
 		if (pos == NOT_FOUND)
 			return 0;
 
+		if (postings != null) {
+			final byte[] payload = slots.getPayload(pos);
+			if (largeValues != null)
+				for (final byte[] value : postings.decode(payload))
+					freeValue(value);
+			postings.free(payload);
+			removeRecord(pos);
+			rawPage().sync();
+			return PostingList.size(payload);
+		}
+
 		final int numberOfValues = get(key).size();
-		final int sizeOfValues =
-				numberOfValues * (valueSerializer.getSerializedLength() + keySerializer.getSerializedLength());
+		if (largeValues != null)
+			for (int i = pos; i < pos + numberOfValues; i++)
+				freeValue(getSerializedValueAtPosition(i));
 
-		//TODO: free key and value pages
+		if (slots != null) {
+			slots.remove(pos, numberOfValues, getNumberOfEntries());
+		} else {
+			final int offset = getOffsetForKeyPos(pos);
+			final int sizeOfValues = numberOfValues * getEntrySize();
 
-		// shift the pointers after key
-		final ByteBuffer buffer = rawPage().bufferForWriting(0);
-		System.arraycopy(buffer.array(), pos + sizeOfValues, buffer.array(), pos,
-				buffer.capacity() - pos - sizeOfValues);
+			// shift the pointers after key
+			final ByteBuffer buffer = rawPage().bufferForWriting(0);
+			rawPage().move(offset + sizeOfValues, offset, buffer.capacity() - offset - sizeOfValues);
+		}
 		setNumberOfEntries(getNumberOfEntries() - numberOfValues);
 
 		rawPage().sync();
@@ -397,6 +952,11 @@ class LeafNode<K, V> implements Node<K, V>, ComplexPage {
 		  */
 	@Override
 	public int remove(final K key, final V value) {
+		if (postings != null)
+			return removeFromPostingList(key, value);
+		if (slots != null)
+			return removeFromSlots(key, value);
+
 		final int offset = offsetOfKey(key);
 		if (offset == NOT_FOUND)
 			return 0;
@@ -405,25 +965,24 @@ class LeafNode<K, V> implements Node<K, V>, ComplexPage {
 		final int numberOfValues = get(key).size();
 
 		final ByteBuffer buffer = rawPage().bufferForWriting(offset);
-		final byte[] buf1 = new byte[keySerializer.getSerializedLength()];
-		final byte[] buf2 = new byte[valueSerializer.getSerializedLength()];
+		final byte[] buf1 = new byte[getStoredKeyLength()];
+		final byte[] buf2 = new byte[valueLength];
 		int removed = 0;
 
 		for (int i = 0; i < numberOfValues; i++) {
 			buffer.get(buf1);
 			buffer.get(buf2); // load only the value
-			final V val = valueSerializer.deserialize(buf2);
+			final V val = loadValue(buf2);
 
 			if (val == null)
 				throw new IllegalStateException("value retrieved from a value page should not be null");
 
 			// we cant use a comparator here since we have none for values (its the only case we need it)
 			if (val.equals(value)) {
-				// also free key page
+				freeValue(buf2);
 				// move pointers forward and reset buffer
 				final int startingPos = buffer.position() - buf1.length - buf2.length;
-				System.arraycopy(buffer.array(), buffer.position(), buffer.array(), startingPos,
-						buffer.capacity() - buffer.position());
+				rawPage().move(buffer.position(), startingPos, buffer.capacity() - buffer.position());
 
 				buffer.position(startingPos);
 
@@ -436,14 +995,71 @@ class LeafNode<K, V> implements Node<K, V>, ComplexPage {
 	}
 
 	/**
+	 * like {@link #remove(Object, Object)} for a slotted leaf
+	 *
 	 * @param key
-	 * @return
+	 * @param value
+	 * @return number of removed entries
 	 */
-	private DataPage<V> getValueDataPage(final K key) {
-		// TODO Auto-generated method stub
-		return null;
+	private int removeFromSlots(final K key, final V value) {
+		final int pos = positionOfKey(key);
+		if (pos == NOT_FOUND)
+			return 0;
+
+		final byte[] serializedKey = keySerializer.serialize(key);
+		int removed = 0;
+		int i = pos;
+		while (i < getNumberOfEntries() && slots.hasKey(i, serializedKey)) {
+			if (loadValue(slots.getPayload(i)).equals(value)) {
+				freeValue(slots.getPayload(i));
+				slots.remove(i, 1, getNumberOfEntries());
+				setNumberOfEntries(getNumberOfEntries() - 1);
+				removed++;
+			} else {
+				i++;
+			}
+		}
+
+		return removed;
 	}
 
+	/**
+	 * like {@link #remove(Object, Object)} with posting lists. A spilled list stays spilled, so that the record of the
+	 * key does not grow.
+	 *
+	 * @param key
+	 * @param value
+	 * @return number of removed values
+	 */
+	private int removeFromPostingList(final K key, final V value) {
+		final int pos = positionOfKey(key);
+		if (pos == NOT_FOUND)
+			return 0;
+
+		final byte[] payload = slots.getPayload(pos);
+		final List<byte[]> values = postings.decode(payload);
+		int removed = 0;
+		for (final Iterator<byte[]> it = values.iterator(); it.hasNext(); ) {
+			final byte[] storedValue = it.next();
+			if (loadValue(storedValue).equals(value)) {
+				freeValue(storedValue);
+				it.remove();
+				removed++;
+			}
+		}
+
+		if (removed == 0)
+			return 0;
+
+		final byte[] serializedKey = slots.getKey(pos);
+		postings.free(payload);
+		removeRecord(pos);
+		if (!values.isEmpty())
+			insertRecord(pos, serializedKey,
+					postings.encode(values, getMaxInlinePayloadSize(serializedKey), PostingList.isSpilled(payload)));
+
+		return removed;
+	}
 
 	/**
 	 * @param key
@@ -469,6 +1085,11 @@ class LeafNode<K, V> implements Node<K, V>, ComplexPage {
 	@Override
 	public void initialize() {
 		rawPage.bufferForWriting(Header.NODE_TYPE.getOffset()).putChar(NODE_TYPE.serialize());
+		prefixLength = 0;
+		if (prefixCompression)
+			rawPage.bufferForWriting(Header.size()).putShort((short) 0);
+		if (slots != null)
+			slots.initialize();
 		setNumberOfEntries(0);
 		setNextLeafId(NO_NEXT_LEAF);
 		valid = true;
@@ -503,27 +1124,57 @@ class LeafNode<K, V> implements Node<K, V>, ComplexPage {
 		if (remainingToInsert <= 0)
 			return 0;
 
+		final boolean isSerialized = holdsSerializedValues(kvs, from);
+
+		if (hasVariableCapacity()) {
+			final List<byte[]> keys = new ArrayList<byte[]>();
+			final List<byte[]> values = new ArrayList<byte[]>();
+			int inserted = 0;
+			while (inserted < remainingToInsert) {
+				final byte[] serializedKey = keySerializer.serialize(kvs[from + inserted].getKey());
+
+				// with posting lists, all values of the key go into one record
+				final List<byte[]> group = new ArrayList<byte[]>();
+				int end = inserted;
+				do {
+					group.add(storeBulkValue(kvs[from + end].getValue(), isSerialized));
+					end++;
+				} while (postings != null && end < remainingToInsert &&
+						Arrays.equals(serializedKey, keySerializer.serialize(kvs[from + end].getKey())));
+
+				keys.add(serializedKey);
+				values.add(postings == null ? group.get(0) :
+						postings.encode(group, getMaxInlinePayloadSize(serializedKey), false));
+				if (!canHold(keys, values, 0, keys.size())) {
+					keys.remove(keys.size() - 1);
+					if (postings != null)
+						postings.free(values.get(values.size() - 1));
+					values.remove(values.size() - 1);
+					// the values are stored again in the next leaf
+					for (final byte[] value : group)
+						freeValue(value);
+					break;
+				}
+
+				inserted = end;
+			}
+
+			writeEntries(keys, values);
+			rawPage.sync();
+			return inserted;
+		}
+
 		final ByteBuffer buf = rawPage().bufferForWriting(Header.size());
 
-		final int entrySize = keySerializer.getSerializedLength() + valueSerializer.getSerializedLength();
+		final int entrySize = keyLength + valueLength;
 		final int entriesThatFit = buf.remaining() / entrySize;
 		final int entriesToInsert = entriesThatFit > remainingToInsert ? remainingToInsert : entriesThatFit;
 
-		// determine value type
-		boolean isSerialized = (kvs[from].getValue() instanceof byte[]);
-
 
 
-		if(!isSerialized){
-			for (int i = 0; i < entriesToInsert; i++) {
-				buf.put(keySerializer.serialize(kvs[from + i].getKey()));
-				buf.put(valueSerializer.serialize((V) kvs[from + i].getValue()));
-			}
-		} else {
-			for (int i = 0; i < entriesToInsert; i++) {
-				buf.put(keySerializer.serialize(kvs[from + i].getKey()));
-				buf.put((byte[]) kvs[from + i].getValue());
-			}
+		for (int i = 0; i < entriesToInsert; i++) {
+			buf.put(keySerializer.serialize(kvs[from + i].getKey()));
+			buf.put(storeBulkValue(kvs[from + i].getValue(), isSerialized));
 		}
 
 		setNumberOfEntries(entriesToInsert);
@@ -543,6 +1194,7 @@ class LeafNode<K, V> implements Node<K, V>, ComplexPage {
 			throw new IllegalStateException("The RawPage " + rawPage.id() + " doesnt have the Leaf Node Type");
 
 		numberOfEntries = rawPage().bufferForReading(Header.NUMBER_OF_KEYS.getOffset()).getInt();
+		prefixLength = prefixCompression ? rawPage().bufferForReading(Header.size()).getShort() : 0;
 		valid = true;
 	}
 
@@ -580,30 +1232,67 @@ class LeafNode<K, V> implements Node<K, V>, ComplexPage {
 	public AdjustmentAction<K, V> insert(final K key, final V value) {
 		ensureValid();
 
+		// serialize data
+		final byte[] serializedKey = keySerializer.serialize(key);
+		if (postings != null)
+			return insertIntoPostingList(key, serializedKey, storeValue(value));
+
+		if (hasVariableCapacity()) {
+			final byte[] storedValue = storeValue(value);
+			if (!fits(serializedKey, storedValue))
+				return splitAndInsert(firstPositionEqualOrLargerThan(key), false, serializedKey, storedValue);
+
+			addEntry(key, serializedKey, storedValue);
+			rawPage().sync();
+			return null;
+		}
+
+		// the value is stored only once it is added, since a full leaf inserts it again after moving entries
 		if (!isFull()) {
-			// serialize data
-			addEntry(key, value);
+			addEntry(key, serializedKey, storeValue(value));
 			rawPage().sync();
 			return null;
 		}
 
+		// the leaves of a split are modified in turn, so neither of them may be evicted in between
+		rawPage.pin();
+		try {
+			return moveOrSplitAndInsert(key, value);
+		} finally {
+			rawPage.unpin();
+		}
+	}
+
+	/**
+	 * inserts into a full leaf with the fixed layout, either after moving entries to the next leaf or after a split
+	 *
+	 * @param key
+	 * @param value
+	 * @return adjustment action for the next or the new leaf
+	 */
+	private AdjustmentAction<K, V> moveOrSplitAndInsert(final K key, final V value) {
 		// if leaf does not have enough space but we can move some data to the next leaf
 		if (hasNextLeaf()) {
 			final LeafNode<K, V> nextLeaf = leafPageManager.getPage(this.getNextLeafId());
 
 			if (nextLeaf.getRemainingEntries() >= getMinFreeLeafEntriesToMove()) {
-				nextLeaf.prependEntriesFromOtherPage(this, nextLeaf.getRemainingEntries() >> 1);
-
-				// see on which page we will insert the value
-				if (comparator.compare(key, this.getLastLeafKey()) > 0) {
-					nextLeaf.insert(key, value);
-				} else {
-					this.insert(key, value);
+				nextLeaf.rawPage.pin();
+				try {
+					nextLeaf.prependEntriesFromOtherPage(this, nextLeaf.getRemainingEntries() >> 1);
+
+					// see on which page we will insert the value
+					if (comparator.compare(key, this.getLastLeafKey()) > 0) {
+						nextLeaf.insert(key, value);
+					} else {
+						this.insert(key, value);
+					}
+
+					rawPage.sync();
+					nextLeaf.rawPage.sync();
+				} finally {
+					nextLeaf.rawPage.unpin();
 				}
 
-				rawPage.sync();
-				nextLeaf.rawPage.sync();
-				
 				return new AdjustmentAction<K, V>(ACTION.UPDATE_KEY, nextLeaf.getFirstLeafKeySerialized(), null);
 			}
 
@@ -611,25 +1300,30 @@ class LeafNode<K, V> implements Node<K, V>, ComplexPage {
 		}
 
 		// allocate new leaf
-		final LeafNode<K, V> newLeaf = leafPageManager.createPage();
-		newLeaf.setNextLeafId(getNextLeafId());
-		setNextLeafId(newLeaf.getId());
+		final LeafNode<K, V> newLeaf = leafPageManager.createPage(getId());
+		newLeaf.rawPage.pin();
+		try {
+			newLeaf.setNextLeafId(getNextLeafId());
+			setNextLeafId(newLeaf.getId());
 
-		// newLeaf.setLastKeyContinuesOnNextPage(root.isLastKeyContinuingOnNextPage());
+			// newLeaf.setLastKeyContinuesOnNextPage(root.isLastKeyContinuingOnNextPage());
 
-		// move half of the keys to new page
-		newLeaf.prependEntriesFromOtherPage(this,
-				this.getNumberOfEntries() >> 1);
+			// move half of the keys to new page
+			newLeaf.prependEntriesFromOtherPage(this,
+					this.getNumberOfEntries() >> 1);
 
-		// see on which page we will insert the value
-		if (comparator.compare(key, this.getLastLeafKey()) > 0) {
-			newLeaf.insert(key, value);
-		} else {
-			this.insert(key, value);
-		}
+			// see on which page we will insert the value
+			if (comparator.compare(key, this.getLastLeafKey()) > 0) {
+				newLeaf.insert(key, value);
+			} else {
+				this.insert(key, value);
+			}
 
-		rawPage.sync();
-		newLeaf.rawPage.sync();
+			rawPage.sync();
+			newLeaf.rawPage.sync();
+		} finally {
+			newLeaf.rawPage.unpin();
+		}
 
 		// just to make sure, that the adjustment action is correct:
 		final AdjustmentAction<K, V> action = new AdjustmentAction<K, V>(ACTION.INSERT_NEW_NODE,
@@ -639,6 +1333,156 @@ class LeafNode<K, V> implements Node<K, V>, ComplexPage {
 	}
 
 
+	/**
+	 * adds the value to the posting list of the key, or a record with a new list if the key is not in this leaf yet
+	 *
+	 * @param key
+	 * @param serializedKey
+	 * @param serializedValue
+	 * @return adjustment action if the leaf was split, otherwise null
+	 */
+	private AdjustmentAction<K, V> insertIntoPostingList(final K key, final byte[] serializedKey,
+	                                                     final byte[] serializedValue) {
+		final int pos = firstPositionEqualOrLargerThan(key);
+		if (pos == getNumberOfEntries() || !slots.hasKey(pos, serializedKey))
+			return putRecord(pos, false, serializedKey, postings.encode(Collections.singletonList(serializedValue),
+					getMaxInlinePayloadSize(serializedKey), false));
+
+		final byte[] payload = postings.add(slots.getPayload(pos), serializedValue,
+				getMaxInlinePayloadSize(serializedKey));
+		if (payload.length == slots.getPayloadLength(pos)) {
+			// the payload kept its size, usually because the list is spilled and only its header changed
+			slots.setPayload(pos, payload);
+			rawPage().sync();
+			return null;
+		}
+
+		return putRecord(pos, true, serializedKey, payload);
+	}
+
+	/**
+	 * stores a record in a slotted leaf, splitting the leaf if it has not enough space
+	 *
+	 * @param pos
+	 * 		of the record
+	 * @param replace
+	 * 		whether the record replaces the record at pos
+	 * @param serializedKey
+	 * @param payload
+	 * @return adjustment action if the leaf was split, otherwise null
+	 */
+	private AdjustmentAction<K, V> putRecord(final int pos, final boolean replace, final byte[] serializedKey,
+	                                         final byte[] payload) {
+		final int freed = replace ? SlottedPage.getEntrySize(serializedKey.length, slots.getPayloadLength(pos)) : 0;
+		if (SlottedPage.getEntrySize(serializedKey.length, payload.length) >
+				slots.getFreeSpace(getNumberOfEntries()) + freed)
+			return splitAndInsert(pos, replace, serializedKey, payload);
+
+		if (replace)
+			removeRecord(pos);
+		insertRecord(pos, serializedKey, payload);
+		rawPage().sync();
+		return null;
+	}
+
+	/**
+	 * Splits a prefix compressed or slotted leaf. How many entries fit into a leaf depends on the common prefix or the
+	 * length of their keys and values, so the entries are not simply halved: the split position closest to the middle
+	 * is taken at which both leaves can hold their entries. With prefix compression, such a position always exists,
+	 * since a key that does not share the prefix of this leaf is smaller or larger than all of its keys. Slotted leaves
+	 * only take entries that fill at most half of a leaf, see {@link #isSmallEnough(int, byte[], byte[])}.
+	 *
+	 * @param pos
+	 * 		of the new entry
+	 * @param replace
+	 * 		whether the new entry replaces the entry at pos
+	 * @param serializedKey
+	 * @param serializedValue
+	 * @return adjustment action for the new leaf
+	 */
+	private AdjustmentAction<K, V> splitAndInsert(final int pos, final boolean replace, final byte[] serializedKey,
+	                                              final byte[] serializedValue) {
+		final List<byte[]> keys = new ArrayList<byte[]>();
+		final List<byte[]> values = new ArrayList<byte[]>();
+		readEntries(0, getNumberOfEntries(), keys, values);
+		if (replace) {
+			keys.remove(pos);
+			values.remove(pos);
+		}
+		keys.add(pos, serializedKey);
+		values.add(pos, serializedValue);
+
+		final int split = getSplitPosition(keys, values);
+
+		// the leaves of a split are modified in turn, so neither of them may be evicted in between
+		rawPage.pin();
+		try {
+			final LeafNode<K, V> newLeaf = leafPageManager.createPage(getId());
+			newLeaf.rawPage.pin();
+			try {
+				newLeaf.setNextLeafId(getNextLeafId());
+				setNextLeafId(newLeaf.getId());
+
+				writeEntries(keys.subList(0, split), values.subList(0, split));
+				newLeaf.writeEntries(keys.subList(split, keys.size()), values.subList(split, values.size()));
+
+				rawPage.sync();
+				newLeaf.rawPage.sync();
+
+				final byte[] separator = suffixTruncation ?
+						KeyPrefix.separator(keys.get(split - 1), keys.get(split)) : keys.get(split);
+				return new AdjustmentAction<K, V>(ACTION.INSERT_NEW_NODE, separator, newLeaf.rawPage().id());
+			} finally {
+				newLeaf.rawPage.unpin();
+			}
+		} finally {
+			rawPage.unpin();
+		}
+	}
+
+	/**
+	 * With suffix truncation, the position with the shortest separator among the positions near the middle is taken,
+	 * see {@link InnerNode#SPLIT_WINDOW}.
+	 *
+	 * @param keys
+	 * 		of the entries to split, at least two
+	 * @param values
+	 * 		of the entries to split
+	 * @return number of entries that stay in this leaf
+	 */
+	private int getSplitPosition(final List<byte[]> keys, final List<byte[]> values) {
+		final int middle = keys.size() >> 1;
+		int best = -1;
+		for (int distance = 0; distance < keys.size(); distance++) {
+			for (final int split : new int[]{middle - distance, middle + distance}) {
+				if (split <= 0 || split >= keys.size() || !canHold(keys, values, 0, split) ||
+						!canHold(keys, values, split, keys.size()))
+					continue;
+
+				if (!suffixTruncation)
+					return split;
+				if (best < 0 || getSeparatorLength(keys, split) < getSeparatorLength(keys, best))
+					best = split;
+			}
+
+			if (best >= 0 && distance >= keys.size() / InnerNode.SPLIT_WINDOW)
+				return best;
+		}
+
+		if (best >= 0)
+			return best;
+		throw new IllegalStateException("the entries of leaf " + getId() + " cannot be split");
+	}
+
+	/**
+	 * @param keys
+	 * @param split
+	 * @return number of significant bytes of the separator for a split before the given position
+	 */
+	private static int getSeparatorLength(final List<byte[]> keys, final int split) {
+		return KeyPrefix.significantLength(KeyPrefix.separator(keys.get(split - 1), keys.get(split)));
+	}
+
 	/** @return id of the next leaf or null */
 	public Integer getNextLeafId() {
 		final ByteBuffer buffer = rawPage().bufferForReading(Header.NEXT_LEAF_ID.getOffset());
@@ -681,9 +1525,14 @@ class LeafNode<K, V> implements Node<K, V>, ComplexPage {
 		return getMaximalNumberOfEntries() - getNumberOfEntries();
 	}
 
-	/** @return the maximal number of Entries */
+	/**
+	 * @return the maximal number of Entries, with prefix compression for the current prefix. Not defined for slotted
+	 *         leaves, their capacity depends on the length of the entries.
+	 */
 	public int getMaximalNumberOfEntries() {
-		return maxEntries;
+		if (slots != null)
+			throw new IllegalStateException("the capacity of a slotted leaf depends on its entries");
+		return getCapacity(prefixLength);
 	}
 
 	/* (non-Javadoc)
@@ -700,7 +1549,7 @@ class LeafNode<K, V> implements Node<K, V>, ComplexPage {
 	 * @return
 	 */
 	public K getKeyAtPosition(final int pos) {
-		return getKeyAtOffset(getOffsetForKeyPos(pos));
+		return keySerializer.deserialize(getSerializedKeyAtPosition(pos));
 	}
 
 	public List<K> getKeySet() {
@@ -722,13 +1571,7 @@ class LeafNode<K, V> implements Node<K, V>, ComplexPage {
 		}
 
 		private K getKey() {
-			final byte[] bytes = new byte[keySerializer.getSerializedLength()];
-			rawPage.bufferForReading(getOffset()).get(bytes);
-			return keySerializer.deserialize(bytes);
-		}
-
-		private int getOffset() {
-			return Header.size() + position * (keySerializer.getSerializedLength() + valueSerializer.getSerializedLength());
+			return getKeyAtPosition(position);
 		}
 
 		/** @return true if next Key exists */
@@ -737,14 +1580,8 @@ class LeafNode<K, V> implements Node<K, V>, ComplexPage {
 			return position < getNumberOfEntries();
 		}
 
-		private int getValueOffset() {
-			return getOffset() + keySerializer.getSerializedLength();
-		}
-
 		public V getValue() {
-			final byte[] bytes = new byte[valueSerializer.getSerializedLength()];
-			rawPage().bufferForReading(getValueOffset()).get(bytes);
-			return valueSerializer.deserialize(bytes);
+			return loadValue(getSerializedValueAtPosition(position));
 		}
 	}
 
@@ -753,12 +1590,18 @@ class LeafNode<K, V> implements Node<K, V>, ComplexPage {
 
 		private final K              from;
 		private final K              to;
+		private final ByteBuffer     serializedTo;
+		private final ByteBuffer     buffer;
 		private       V              next;
 		private       KeyStruct      currentKeyStruct;
+		/** remaining values of the posting list of the previous key */
+		private       Iterator<byte[]> postingValues;
 
 		public LeafNodeIterator(final K from, final K to) {
 			this.from = from;
 			this.to = to;
+			this.serializedTo = to == null ? null : serializeForComparison(to);
+			this.buffer = rawPage().bufferForReading(0);
 
 			if(from != null)
 				currentKeyStruct = firstKeyStructEqualOrLargerThan(from);
@@ -793,15 +1636,25 @@ class LeafNode<K, V> implements Node<K, V>, ComplexPage {
 				return result;
 			}
 
+			if (postingValues != null && postingValues.hasNext())
+				return loadValue(postingValues.next());
+
 			// from key was larger than this leaf
 			if(currentKeyStruct == null)
 				return null;
 
 			// if we are at the end of the leaf, or the current key is larger than the to we were looking for
-			if(currentKeyStruct.position >= getNumberOfEntries() || (to != null && comparator.compare(currentKeyStruct.getKey(), to) > 0)){
+			if(currentKeyStruct.position >= getNumberOfEntries() ||
+					(to != null && compareKeyAtPosition(buffer, currentKeyStruct.position, to, serializedTo) > 0)){
 				return null;
 			}
-			
+
+			if (postings != null) {
+				postingValues = postings.decode(getSerializedValueAtPosition(currentKeyStruct.position)).iterator();
+				currentKeyStruct.becomeNext();
+				return loadValue(postingValues.next());
+			}
+
 			final V result = currentKeyStruct.getValue();
 			currentKeyStruct.becomeNext();
 			return result;
@@ -814,14 +1667,8 @@ class LeafNode<K, V> implements Node<K, V>, ComplexPage {
 	}
 
 	private KeyStruct firstKeyStructEqualOrLargerThan(final K from) {
-		final KeyStruct current = new KeyStruct(0);
-		do {
-			if (comparator.compare(current.getKey(), from) >= 0) {
-				return current;
-			}
-		} while (current.becomeNext());
-
-		return null;
+		final int pos = firstPositionEqualOrLargerThan(from);
+		return pos < getNumberOfEntries() ? new KeyStruct(pos) : null;
 	}
 
 
@@ -862,8 +1709,6 @@ class LeafNode<K, V> implements Node<K, V>, ComplexPage {
 		if (getNumberOfEntries() == 0)
 			throw new IllegalStateException("you must have keys to get the first serialized key");
 
-		final byte[] result = new byte[keySerializer.getSerializedLength()];
-		rawPage().bufferForReading(Header.size()).get(result);
-		return result;
+		return getSerializedKeyAtPosition(0);
 	}
 }
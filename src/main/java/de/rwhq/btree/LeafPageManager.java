@@ -11,28 +11,45 @@
 package de.rwhq.btree;
 
 import de.rwhq.io.rm.AbstractPageManager;
+import de.rwhq.io.rm.DataPageManager;
 import de.rwhq.io.rm.PageManager;
 import de.rwhq.io.rm.RawPage;
 import de.rwhq.serializer.FixLengthSerializer;
+import de.rwhq.serializer.Serializer;
 
 import java.util.Comparator;
 
 class LeafPageManager<K,V> extends AbstractPageManager<LeafNode<K,V>> {
 
-	private final FixLengthSerializer<V, byte[]> valueSerializer;
-	private final FixLengthSerializer<K, byte[]> keySerializer;
+	private final Serializer<V, byte[]> valueSerializer;
+	private final Serializer<K, byte[]> keySerializer;
 	
 	private final Comparator<K> comparator;
+	/** stores the values that are too large for the leaves */
+	private final DataPageManager<V> valuePageManager;
+
+	private boolean prefixCompression = false;
+	private boolean suffixTruncation  = false;
+	private boolean postingLists      = false;
+	/** values with more bytes are stored out of line, 0 if all values are stored in the leaves */
+	private int     largeValueThreshold = 0;
+
+	/** stores the values of the keys of new leaves, null if every value has its own entry */
+	private PostingList        postings    = null;
+	/** null if all values are stored in the leaves */
+	private OutOfLineValues<V> largeValues = null;
 	
 	public LeafPageManager(
 			final PageManager<RawPage> bpm,
-			final FixLengthSerializer<V, byte[]> valueSerializer,
-			final FixLengthSerializer<K, byte[]> keySerializer,
-			final Comparator<K> comparator) {
+			final Serializer<V, byte[]> valueSerializer,
+			final Serializer<K, byte[]> keySerializer,
+			final Comparator<K> comparator,
+			final DataPageManager<V> valuePageManager) {
 		super(bpm);
 		this.valueSerializer = valueSerializer;
 		this.keySerializer = keySerializer;
         this.comparator = comparator;
+		this.valuePageManager = valuePageManager;
 	}
 
 	/* (non-Javadoc)
@@ -40,6 +57,73 @@ class LeafPageManager<K,V> extends AbstractPageManager<LeafNode<K,V>> {
 	 */
 	@Override
 	protected LeafNode<K, V> createObjectPage(final RawPage page) {
-		return new LeafNode<K, V>(page, keySerializer, valueSerializer, comparator, this, 1);
+		return new LeafNode<K, V>(page, keySerializer, valueSerializer, comparator, this, 1, prefixCompression,
+				suffixTruncation, postings, largeValues);
+	}
+
+	/**
+	 * @param prefixCompression
+	 * 		whether new leaves store the common prefix of their keys only once
+	 * @see #clearCache()
+	 */
+	void setPrefixCompression(final boolean prefixCompression) {
+		this.prefixCompression = prefixCompression;
+		clearCache();
+	}
+
+	/**
+	 * @param suffixTruncation
+	 * 		whether splits of new leaves promote the shortest separator
+	 * @see #clearCache()
+	 */
+	void setSuffixTruncation(final boolean suffixTruncation) {
+		this.suffixTruncation = suffixTruncation;
+		clearCache();
+	}
+
+	/**
+	 * @param postingLists
+	 * 		whether new leaves store each key once with the list of its values
+	 * @see #clearCache()
+	 */
+	void setPostingLists(final boolean postingLists) {
+		this.postingLists = postingLists;
+		updateValueFormat();
+	}
+
+	/**
+	 * @param largeValueThreshold
+	 * 		values with more bytes are stored out of line in new leaves, 0 if all values are stored in the leaves
+	 * @see #clearCache()
+	 */
+	void setLargeValueThreshold(final int largeValueThreshold) {
+		this.largeValueThreshold = largeValueThreshold;
+		updateValueFormat();
+	}
+
+	/** the posting lists contain the values as they are stored in the leaves */
+	private void updateValueFormat() {
+		largeValues = largeValueThreshold > 0 ?
+				new OutOfLineValues<V>(valuePageManager, valueSerializer, largeValueThreshold) : null;
+
+		int storedLength = valueSerializer instanceof FixLengthSerializer ?
+				((FixLengthSerializer<V, byte[]>) valueSerializer).getSerializedLength() : 0;
+		if (largeValues != null)
+			storedLength = largeValues.getStoredLength();
+		postings = postingLists ? new PostingList(getRawPageManager(), storedLength) : null;
+
+		clearCache();
+	}
+
+	/**
+	 * The cached leaves are created with the settings of this manager, so the setters drop them. This also forgets the
+	 * DataPages of the large values, since the pages may have been cleared or reopened.
+	 */
+	@Override
+	public void clearCache() {
+		super.clearCache();
+		valuePageManager.clearCache();
+		if (largeValues != null)
+			largeValues.reset();
 	}
 }
@@ -0,0 +1,229 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License:
+ *
+ * http://creativecommons.org/licenses/by-nc/3.0/
+ *
+ * For alternative conditions contact the author.
+ *
+ * Copyright (c) 2011 "Robin Wenglewski <robin@wenglewski.de>"
+ */
+
+package de.rwhq.btree;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import de.rwhq.io.rm.CachedResourceManager;
+import de.rwhq.io.rm.PageRing;
+import de.rwhq.io.rm.RawPage;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads the leaves ahead of a range scan into a CachedResourceManager. Once a scan followed the leaf chain for {@link
+ * #TRIGGER_HOPS} leaves, a background thread fetches the next leaves of the chain. If the last hops went to the page
+ * with the next id, the leaves are probably stored one after another, and the whole window is read at once.
+ * <p/>
+ * The window is limited to a fraction of the cache, and the pages read ahead are not marked as referenced, so a scan
+ * cannot push the rest of the cache out. Scans with a {@link PageRing} read ahead into their ring.
+ */
+class LeafReadAhead {
+
+	private static final Log LOG = LogFactory.getLog(LeafReadAhead.class);
+
+	/** number of consecutive hops before a scan reads ahead */
+	static final int TRIGGER_HOPS = 4;
+
+	/** maximum number of leaves read ahead at once */
+	static final int MAX_WINDOW = 32;
+
+	/** at most this part of the cache is used for one window */
+	private static final int CACHE_FRACTION = 8;
+
+	private final CachedResourceManager crm;
+	private final int                   window;
+
+	private ExecutorService executor;
+
+	LeafReadAhead(final CachedResourceManager crm) {
+		this.crm = crm;
+		this.window = Math.min(MAX_WINDOW, crm.getCacheSize() / CACHE_FRACTION);
+	}
+
+	/** @return false, if the cache is too small to read ahead */
+	boolean isEnabled() {
+		return window >= 2;
+	}
+
+	/**
+	 * @param ring
+	 * 		null if the leaves should be read into the cache
+	 * @return a new Scan, null if read-ahead is disabled
+	 */
+	Scan newScan(final PageRing ring) {
+		return isEnabled() ? new Scan(ring) : null;
+	}
+
+	private synchronized Future<Batch> submit(final int firstId, final boolean sequential, final PageRing ring) {
+		if (executor == null)
+			executor = Executors.newSingleThreadExecutor(
+					new ThreadFactoryBuilder().setDaemon(true).setNameFormat("leaf-read-ahead-%d").build());
+
+		return executor.submit(new Callable<Batch>() {
+			@Override
+			public Batch call() {
+				return readAhead(firstId, sequential, ring);
+			}
+		});
+	}
+
+	/**
+	 * follows the leaf chain from the given leaf for at most one window
+	 *
+	 * @param firstId
+	 * @param sequential
+	 * 		if true, the leaves are expected to have consecutive ids
+	 * @param ring
+	 * @return the number of leaves read and where to continue
+	 */
+	private Batch readAhead(final int firstId, final boolean sequential, final PageRing ring) {
+		Integer id = firstId;
+		int pages = 0;
+
+		if (sequential) {
+			// pages that turn out not to belong to the chain are not referenced and evicted soon
+			final List<RawPage> run = crm.prefetch(firstId, window, ring);
+			for (final RawPage page : run) {
+				if (id == null || page.id() != id.intValue() || !isLeaf(page))
+					break;
+
+				id = nextLeafId(page);
+				pages++;
+			}
+		}
+
+		while (id != null && pages < window) {
+			final List<RawPage> run = crm.prefetch(id, 1, ring);
+			if (run.isEmpty() || !isLeaf(run.get(0)))
+				break;
+
+			id = nextLeafId(run.get(0));
+			pages++;
+		}
+
+		if (LOG.isDebugEnabled())
+			LOG.debug("read " + pages + " leaves ahead, starting with " + firstId);
+
+		return new Batch(pages, id);
+	}
+
+	private static boolean isLeaf(final RawPage page) {
+		final ByteBuffer buffer = page.bufferForConcurrentReading();
+		return BTree.NodeType.deserialize(buffer.getChar(LeafNode.Header.NODE_TYPE.getOffset())) ==
+				BTree.NodeType.LEAF_NODE;
+	}
+
+	private static Integer nextLeafId(final RawPage page) {
+		final int id = page.bufferForConcurrentReading().getInt(LeafNode.Header.NEXT_LEAF_ID.getOffset());
+		return id == LeafNode.NO_NEXT_LEAF ? null : id;
+	}
+
+	/** @param executor runs the read-ahead instead of the background thread of this LeafReadAhead */
+	@VisibleForTesting
+	synchronized void setExecutor(final ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/** stops the background thread after the running read-ahead */
+	synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	/** result of one read-ahead */
+	private static class Batch {
+		private final int     pages;
+		/** id of the leaf after the last one read, null if the chain ended */
+		private final Integer nextId;
+
+		private Batch(final int pages, final Integer nextId) {
+			this.pages = pages;
+			this.nextId = nextId;
+		}
+	}
+
+	/** read-ahead state of one scan, positions count the leaves the scan has moved to */
+	class Scan {
+		private int hops           = 0;
+		private int sequentialHops = 0;
+
+		private Future<Batch> pending;
+		/** position of the last leaf that has been read ahead */
+		private int           frontierPosition = 0;
+		/** id of the leaf after frontierPosition, null if the chain ends there */
+		private Integer       frontierId;
+		private boolean       failed = false;
+
+		private final PageRing ring;
+
+		private Scan(final PageRing ring) {
+			this.ring = ring;
+		}
+
+		/**
+		 * called when the scan moved to the next leaf
+		 *
+		 * @param previousId
+		 * 		id of the leaf the scan came from
+		 * @param leaf
+		 * 		the leaf the scan is at now
+		 */
+		void hop(final int previousId, final LeafNode<?, ?> leaf) {
+			hops++;
+			sequentialHops = leaf.getId() == previousId + 1 ? sequentialHops + 1 : 0;
+			if (failed || hops < TRIGGER_HOPS)
+				return;
+
+			if (pending != null) {
+				if (!pending.isDone())
+					return;
+
+				final Batch batch;
+				try {
+					batch = Futures.getUnchecked(pending);
+				} catch (RuntimeException e) {
+					LOG.warn("reading ahead failed, continuing without read-ahead", e);
+					failed = true;
+					return;
+				} finally {
+					pending = null;
+				}
+
+				frontierPosition += batch.pages;
+				frontierId = batch.nextId;
+			}
+
+			// enough leaves ahead
+			if (frontierPosition - hops > window / 2)
+				return;
+
+			// the scan overtook the read-ahead
+			if (frontierPosition <= hops) {
+				frontierPosition = hops;
+				frontierId = leaf.getNextLeafId();
+			}
+
+			if (frontierId != null)
+				pending = submit(frontierId, sequentialHops >= TRIGGER_HOPS, ring);
+		}
+	}
+}
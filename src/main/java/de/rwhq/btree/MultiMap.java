@@ -19,7 +19,7 @@ public interface MultiMap<K, V> {
 	/**
 	 * @return number of values
 	 */
-	public int getNumberOfEntries();
+	public long getNumberOfEntries();
 	
 	/**
 	 * @param key
@@ -10,12 +10,13 @@
 
 package de.rwhq.btree;
 
+import de.rwhq.io.rm.ComplexPage;
 import de.rwhq.io.rm.PagePointer;
 
 import java.util.Iterator;
 import java.util.List;
 
-interface Node<K, V> {
+interface Node<K, V> extends ComplexPage {
 	
 	/**
 	 * inserts the key and value into the node
@@ -0,0 +1,166 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License:
+ *
+ * http://creativecommons.org/licenses/by-nc/3.0/
+ *
+ * For alternative conditions contact the author.
+ *
+ * Copyright (c) 2011 "Robin Wenglewski <robin@wenglewski.de>"
+ */
+package de.rwhq.btree;
+
+import de.rwhq.io.rm.DataPage;
+import de.rwhq.io.rm.DataPageManager;
+import de.rwhq.io.rm.DynamicDataPage;
+import de.rwhq.io.rm.PagePointer;
+import de.rwhq.serializer.FixLengthSerializer;
+import de.rwhq.serializer.PagePointSerializer;
+import de.rwhq.serializer.Serializer;
+
+import java.util.Arrays;
+
+/**
+ * Moves values whose serialized form is larger than a threshold out of the leaves into {@link DynamicDataPage}s, see
+ * {@link BTree#setLargeValueThreshold(int)}. The leaf only stores the {@link PagePointer} of such a value, the id of the
+ * DataPage and the id of the value within it. Values are added to the same DataPage until it is full.
+ * <p/>
+ * If the values have a fixed length, either all or none of them are larger than the threshold, so the leaves store
+ * either only values or only pointers. Otherwise, every stored value starts with a byte that tells which one follows.
+ */
+final class OutOfLineValues<V> {
+
+	private static final byte INLINE      = 0;
+	private static final byte OUT_OF_LINE = 1;
+
+	private static final int POINTER_LENGTH = PagePointSerializer.INSTANCE.getSerializedLength();
+
+	private final DataPageManager<V>    pageManager;
+	private final Serializer<V, byte[]> valueSerializer;
+	/** values with more bytes are stored out of line */
+	private final int                   threshold;
+	/** serialized length of the values, 0 if it varies */
+	private final int                   valueLength;
+
+	/** id of the DataPage new values are added to, null if there is none yet */
+	private Integer currentPageId;
+
+	OutOfLineValues(final DataPageManager<V> pageManager, final Serializer<V, byte[]> valueSerializer,
+	                final int threshold) {
+		this.pageManager = pageManager;
+		this.valueSerializer = valueSerializer;
+		this.threshold = threshold;
+		this.valueLength = valueSerializer instanceof FixLengthSerializer ?
+				((FixLengthSerializer<V, byte[]>) valueSerializer).getSerializedLength() : 0;
+	}
+
+	/**
+	 * @param valueLength
+	 * 		of a serialized value
+	 * @param threshold
+	 * @return upper bound for the number of bytes the value takes in the leaf
+	 */
+	static int getMaxStoredLength(final int valueLength, final int threshold) {
+		return 1 + (valueLength > threshold ? POINTER_LENGTH : valueLength);
+	}
+
+	/**
+	 * @param pageSize
+	 * @return number of bytes of the largest value that can be stored out of line
+	 */
+	static int getMaxValueLength(final int pageSize) {
+		return DynamicDataPage.getMaxEntrySize(pageSize);
+	}
+
+	/** @return number of bytes every stored value takes in the leaf, 0 if it varies */
+	int getStoredLength() {
+		if (valueLength == 0)
+			return 0;
+		return valueLength > threshold ? POINTER_LENGTH : valueLength;
+	}
+
+	/**
+	 * @param value
+	 * @param serializedValue
+	 * @return the bytes to store in the leaf, the value moves to a DataPage if it is larger than the threshold
+	 */
+	byte[] store(final V value, final byte[] serializedValue) {
+		if (serializedValue.length <= threshold)
+			return valueLength > 0 ? serializedValue : mark(INLINE, serializedValue);
+
+		final byte[] pointer = PagePointSerializer.INSTANCE.serialize(add(value));
+		return valueLength > 0 ? pointer : mark(OUT_OF_LINE, pointer);
+	}
+
+	/**
+	 * @param storedValue
+	 * 		result of {@link #store(Object, byte[])}
+	 * @return the value
+	 */
+	V load(final byte[] storedValue) {
+		final PagePointer pointer = getPointer(storedValue);
+		if (pointer != null)
+			return pageManager.getPage(pointer.getId()).get(pointer.getOffset());
+
+		return valueSerializer.deserialize(valueLength > 0 ? storedValue : unmark(storedValue));
+	}
+
+	/**
+	 * removes the value from its DataPage if it is stored out of line, and the DataPage if it becomes empty. With a
+	 * WriteAheadLog, the removed DataPage stays allocated until the next sharp checkpoint, see {@link
+	 * de.rwhq.io.rm.Durability#LOGGED}.
+	 *
+	 * @param storedValue
+	 */
+	void free(final byte[] storedValue) {
+		final PagePointer pointer = getPointer(storedValue);
+		if (pointer == null)
+			return;
+
+		final DataPage<V> page = pageManager.getPage(pointer.getId());
+		page.remove(pointer.getOffset());
+		if (page.numberOfEntries() == 0 && !Integer.valueOf(pointer.getId()).equals(currentPageId)) {
+			pageManager.removePage(pointer.getId());
+		} else {
+			page.rawPage().sync();
+		}
+	}
+
+	/** forgets the DataPage new values are added to, must be called if the pages were cleared or reopened */
+	void reset() {
+		currentPageId = null;
+	}
+
+	/**
+	 * @param storedValue
+	 * @return pointer to the value, null if the value is stored in the leaf
+	 */
+	private PagePointer getPointer(final byte[] storedValue) {
+		if (valueLength > 0)
+			return valueLength > threshold ? PagePointSerializer.INSTANCE.deserialize(storedValue) : null;
+		return storedValue[0] == OUT_OF_LINE ? PagePointSerializer.INSTANCE.deserialize(unmark(storedValue)) : null;
+	}
+
+	private PagePointer add(final V value) {
+		Integer id = currentPageId == null ? null : pageManager.getPage(currentPageId).add(value);
+		if (id == null) {
+			currentPageId = pageManager.createPage().rawPage().id();
+			id = pageManager.getPage(currentPageId).add(value);
+			if (id == null)
+				throw new IllegalArgumentException("the value is too large for a DataPage");
+		}
+
+		pageManager.getPage(currentPageId).rawPage().sync();
+		return new PagePointer(currentPageId, id);
+	}
+
+	private static byte[] mark(final byte marker, final byte[] bytes) {
+		final byte[] result = new byte[bytes.length + 1];
+		result[0] = marker;
+		System.arraycopy(bytes, 0, result, 1, bytes.length);
+		return result;
+	}
+
+	private static byte[] unmark(final byte[] storedValue) {
+		return Arrays.copyOfRange(storedValue, 1, storedValue.length);
+	}
+}
@@ -0,0 +1,266 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License:
+ *
+ * http://creativecommons.org/licenses/by-nc/3.0/
+ *
+ * For alternative conditions contact the author.
+ *
+ * Copyright (c) 2011 "Robin Wenglewski <robin@wenglewski.de>"
+ */
+package de.rwhq.btree;
+
+import de.rwhq.io.rm.PageManager;
+import de.rwhq.io.rm.RawPage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Encodes all values of a key into the payload of one record of a slotted leaf, see {@link
+ * BTree#setPostingLists(boolean)}. An inline payload is
+ * <p/>
+ * COUNT(int) VALUE VALUE ...
+ * <p/>
+ * where the values are stored back to back if they have a fixed length and prefixed with their length (char)
+ * otherwise. If the record of a key would get too large, its values are spilled to a chain of overflow pages and the
+ * payload is -COUNT(int) FIRST_PAGE_ID(int) LAST_PAGE_ID(int). An overflow page is
+ * <p/>
+ * NEXT_PAGE_ID(int) NUMBER_OF_BYTES(int) BYTES
+ * <p/>
+ * and the bytes of all pages of the chain are the values like in an inline payload. Since a spilled payload does not
+ * change its size, values are appended to a spilled list without touching the leaf structure.
+ */
+final class PostingList {
+
+	static final int SPILLED_SIZE = 3 * Integer.SIZE / 8;
+
+	private static final int NO_NEXT_PAGE         = 0;
+	private static final int OVERFLOW_HEADER_SIZE = 2 * Integer.SIZE / 8;
+
+	private final PageManager<RawPage> pageManager;
+	/** serialized length of the values, 0 if it varies */
+	private final int                  valueLength;
+
+	/**
+	 * @param pageManager
+	 * 		for the overflow pages
+	 * @param valueLength
+	 * 		serialized length of the values, 0 if it varies
+	 */
+	PostingList(final PageManager<RawPage> pageManager, final int valueLength) {
+		this.pageManager = pageManager;
+		this.valueLength = valueLength;
+	}
+
+	/**
+	 * @param serializedValue
+	 * @return bytes the value takes in a list
+	 */
+	int getEncodedLength(final byte[] serializedValue) {
+		return valueLength > 0 ? valueLength : Character.SIZE / 8 + serializedValue.length;
+	}
+
+	/**
+	 * @param valueLength
+	 * 		of a value as it is stored in the leaf
+	 * @return upper bound for the size of a payload with only this value
+	 */
+	static int getMaxSingletonSize(final int valueLength) {
+		return Math.max((Integer.SIZE + Character.SIZE) / 8 + valueLength, SPILLED_SIZE);
+	}
+
+	static boolean isSpilled(final byte[] payload) {
+		return ByteBuffer.wrap(payload).getInt() < 0;
+	}
+
+	/**
+	 * @param payload
+	 * @return number of values in the list
+	 */
+	static int size(final byte[] payload) {
+		return Math.abs(ByteBuffer.wrap(payload).getInt());
+	}
+
+	/**
+	 * @param values
+	 * 		serialized values, at least one
+	 * @param maxInlineSize
+	 * 		payloads larger than this are spilled
+	 * @param spill
+	 * 		if true, the values are spilled regardless of their size
+	 * @return the payload with the values
+	 */
+	byte[] encode(final List<byte[]> values, final int maxInlineSize, final boolean spill) {
+		int length = Integer.SIZE / 8;
+		for (final byte[] value : values)
+			length += getEncodedLength(value);
+
+		if (spill || length > maxInlineSize) {
+			final ByteBuffer payload = ByteBuffer.allocate(SPILLED_SIZE);
+			payload.putInt(-values.size());
+			final RawPage first = pageManager.createPage();
+			payload.putInt(first.id());
+			initializeOverflowPage(first);
+			payload.putInt(append(first, values).id());
+			return payload.array();
+		}
+
+		final ByteBuffer payload = ByteBuffer.allocate(length);
+		payload.putInt(values.size());
+		for (final byte[] value : values)
+			putValue(payload, value);
+		return payload.array();
+	}
+
+	/**
+	 * @param payload
+	 * @param serializedValue
+	 * @param maxInlineSize
+	 * 		payloads larger than this are spilled
+	 * @return the payload with the value appended. The payload of a spilled list has the same size as before.
+	 */
+	byte[] add(final byte[] payload, final byte[] serializedValue, final int maxInlineSize) {
+		if (isSpilled(payload)) {
+			final ByteBuffer buffer = ByteBuffer.wrap(payload);
+			final int count = -buffer.getInt();
+			final int first = buffer.getInt();
+			final RawPage last =
+					append(pageManager.getPage(buffer.getInt()), Collections.singletonList(serializedValue));
+			buffer.clear();
+			buffer.putInt(-(count + 1)).putInt(first).putInt(last.id());
+			return payload;
+		}
+
+		if (payload.length + getEncodedLength(serializedValue) > maxInlineSize) {
+			final List<byte[]> values = decode(payload);
+			values.add(serializedValue);
+			return encode(values, maxInlineSize, true);
+		}
+
+		final ByteBuffer buffer = ByteBuffer.allocate(payload.length + getEncodedLength(serializedValue));
+		buffer.putInt(size(payload) + 1);
+		buffer.put(payload, Integer.SIZE / 8, payload.length - Integer.SIZE / 8);
+		putValue(buffer, serializedValue);
+		return buffer.array();
+	}
+
+	/**
+	 * reads the values of an inline list, or of all overflow pages of a spilled list into one buffer
+	 *
+	 * @param payload
+	 * @return the serialized values
+	 */
+	List<byte[]> decode(final byte[] payload) {
+		final ByteBuffer buffer = ByteBuffer.wrap(payload);
+		final int count = buffer.getInt();
+		if (count > 0)
+			return readValues(buffer, count);
+
+		final int firstPageId = buffer.getInt();
+		final ByteBuffer bytes = ByteBuffer.allocate(getChainLength(firstPageId));
+		for (int id = firstPageId; id != NO_NEXT_PAGE; ) {
+			final ByteBuffer page = pageManager.getPage(id).bufferForReading(0);
+			id = page.getInt();
+			final int used = page.getInt();
+			page.limit(page.position() + used);
+			bytes.put(page);
+		}
+
+		bytes.flip();
+		return readValues(bytes, -count);
+	}
+
+	/**
+	 * removes the overflow pages of a spilled list
+	 *
+	 * @param payload
+	 */
+	void free(final byte[] payload) {
+		if (!isSpilled(payload))
+			return;
+
+		int id = ByteBuffer.wrap(payload).getInt(Integer.SIZE / 8);
+		while (id != NO_NEXT_PAGE) {
+			final int next = pageManager.getPage(id).bufferForReading(0).getInt();
+			pageManager.removePage(id);
+			id = next;
+		}
+	}
+
+	/**
+	 * @param firstPageId
+	 * @return number of bytes in the chain of overflow pages
+	 */
+	private int getChainLength(final int firstPageId) {
+		int length = 0;
+		for (int id = firstPageId; id != NO_NEXT_PAGE; ) {
+			final ByteBuffer page = pageManager.getPage(id).bufferForReading(0);
+			id = page.getInt();
+			length += page.getInt();
+		}
+		return length;
+	}
+
+	/**
+	 * appends the values to the chain, allocating new pages as necessary
+	 *
+	 * @param last
+	 * 		page of the chain
+	 * @param values
+	 * @return the last page of the chain afterwards
+	 */
+	private RawPage append(RawPage last, final List<byte[]> values) {
+		int length = 0;
+		for (final byte[] value : values)
+			length += getEncodedLength(value);
+		final ByteBuffer bytes = ByteBuffer.allocate(length);
+		for (final byte[] value : values)
+			putValue(bytes, value);
+		bytes.flip();
+
+		// values may continue on the next page
+		while (true) {
+			final int used = last.bufferForReading(Integer.SIZE / 8).getInt();
+			final ByteBuffer buffer = last.bufferForWriting(OVERFLOW_HEADER_SIZE + used);
+			final int chunk = Math.min(buffer.remaining(), bytes.remaining());
+			final ByteBuffer slice = bytes.slice();
+			slice.limit(chunk);
+			buffer.put(slice);
+			bytes.position(bytes.position() + chunk);
+			last.bufferForWriting(Integer.SIZE / 8).putInt(used + chunk);
+
+			if (!bytes.hasRemaining()) {
+				last.sync();
+				return last;
+			}
+
+			final RawPage next = pageManager.createPage(last.id());
+			initializeOverflowPage(next);
+			last.bufferForWriting(0).putInt(next.id());
+			last.sync();
+			last = next;
+		}
+	}
+
+	private static void initializeOverflowPage(final RawPage page) {
+		page.bufferForWriting(0).putInt(NO_NEXT_PAGE).putInt(0);
+	}
+
+	private void putValue(final ByteBuffer buffer, final byte[] value) {
+		if (valueLength == 0)
+			buffer.putChar((char) value.length);
+		buffer.put(value);
+	}
+
+	private List<byte[]> readValues(final ByteBuffer buffer, final int count) {
+		final List<byte[]> values = new ArrayList<byte[]>(count);
+		for (int i = 0; i < count; i++) {
+			final byte[] value = new byte[valueLength > 0 ? valueLength : buffer.getChar()];
+			buffer.get(value);
+			values.add(value);
+		}
+		return values;
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License:
+ *
+ * http://creativecommons.org/licenses/by-nc/3.0/
+ *
+ * For alternative conditions contact the author.
+ *
+ * Copyright (c) 2011 "Robin Wenglewski <robin@wenglewski.de>"
+ */
+package de.rwhq.btree;
+
+import de.rwhq.io.rm.RawPage;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Slot directory and heap for the entries of nodes whose keys or values have a variable length, see {@link
+ * BTree#create(de.rwhq.io.rm.ResourceManager, de.rwhq.serializer.Serializer, de.rwhq.serializer.Serializer,
+ * java.util.Comparator)}. Behind the header of the node, the page has the following layout:
+ * <p/>
+ * HEAP_START(int) | SLOT | SLOT | ... free space ... | RECORD | RECORD ...
+ * <p/>
+ * The records grow from the end of the page towards the slots. A record is KEY_LENGTH(char) KEY PAYLOAD_LENGTH(char)
+ * PAYLOAD, a slot is the offset of its record (char), and the slots are sorted like the keys. Removing entries only
+ * removes their slots, the space of their records is reclaimed when the node is rewritten.
+ * <p/>
+ * The number of slots is stored in the header of the node.
+ */
+final class SlottedPage {
+
+	/** the offsets and lengths are chars */
+	static final int MAX_PAGE_SIZE = 1 << 16;
+
+	static final int HEADER_SIZE = Integer.SIZE / 8;
+	static final int SLOT_SIZE   = Character.SIZE / 8;
+
+	private final RawPage rawPage;
+	/** offset of HEAP_START */
+	private final int     start;
+
+	/**
+	 * @param rawPage
+	 * @param start
+	 * 		offset behind the header of the node
+	 */
+	SlottedPage(final RawPage rawPage, final int start) {
+		if (rawPage.bufferForReading(0).limit() > MAX_PAGE_SIZE)
+			throw new IllegalArgumentException("slotted pages must not be larger than " + MAX_PAGE_SIZE + " bytes");
+
+		this.rawPage = rawPage;
+		this.start = start;
+	}
+
+	/**
+	 * @param keyLength
+	 * @param payloadLength
+	 * @return bytes a record and its slot take
+	 */
+	static int getEntrySize(final int keyLength, final int payloadLength) {
+		return SLOT_SIZE + 2 * Character.SIZE / 8 + keyLength + payloadLength;
+	}
+
+	/**
+	 * @param pageSize
+	 * @param start
+	 * 		offset behind the header of the node
+	 * @return bytes that are available for slots and records
+	 */
+	static int getSpace(final int pageSize, final int start) {
+		return pageSize - start - HEADER_SIZE;
+	}
+
+	/** empties the heap, does not change the number of slots in the header of the node */
+	void initialize() {
+		setHeapStart(rawPage.bufferForReading(0).limit());
+	}
+
+	private int getHeapStart() {
+		return rawPage.bufferForReading(start).getInt();
+	}
+
+	private void setHeapStart(final int heapStart) {
+		rawPage.bufferForWriting(start).putInt(heapStart);
+	}
+
+	private int getSlotOffset(final int pos) {
+		return start + HEADER_SIZE + pos * SLOT_SIZE;
+	}
+
+	/**
+	 * @param pos
+	 * @return offset of the record in the given slot
+	 */
+	private int getRecordOffset(final int pos) {
+		return rawPage.bufferForReading(getSlotOffset(pos)).getChar();
+	}
+
+	/**
+	 * @param pos
+	 * @return offset of the key bytes of the record in the given slot
+	 */
+	int getKeyOffset(final int pos) {
+		return getRecordOffset(pos) + Character.SIZE / 8;
+	}
+
+	int getKeyLength(final int pos) {
+		return rawPage.bufferForReading(getRecordOffset(pos)).getChar();
+	}
+
+	/**
+	 * @param pos
+	 * @return offset of the payload bytes of the record in the given slot
+	 */
+	int getPayloadOffset(final int pos) {
+		return getKeyOffset(pos) + getKeyLength(pos) + Character.SIZE / 8;
+	}
+
+	byte[] getKey(final int pos) {
+		final ByteBuffer buffer = rawPage.bufferForReading(getRecordOffset(pos));
+		final byte[] key = new byte[buffer.getChar()];
+		buffer.get(key);
+		return key;
+	}
+
+	int getPayloadLength(final int pos) {
+		return rawPage.bufferForReading(getPayloadOffset(pos) - Character.SIZE / 8).getChar();
+	}
+
+	byte[] getPayload(final int pos) {
+		final byte[] payload = new byte[getPayloadLength(pos)];
+		rawPage.bufferForReading(getPayloadOffset(pos)).get(payload);
+		return payload;
+	}
+
+	/**
+	 * overwrites the payload of a record in place
+	 *
+	 * @param pos
+	 * @param payload
+	 * 		must have the length of the current payload
+	 */
+	void setPayload(final int pos, final byte[] payload) {
+		if (payload.length != getPayloadLength(pos))
+			throw new IllegalArgumentException("the payload of slot " + pos + " has " + getPayloadLength(pos) + " bytes");
+		rawPage.bufferForWriting(getPayloadOffset(pos)).put(payload);
+	}
+
+	/**
+	 * @param pos
+	 * @param key
+	 * @return true, if the record in the given slot has exactly the given key
+	 */
+	boolean hasKey(final int pos, final byte[] key) {
+		final ByteBuffer buffer = rawPage.bufferForReading(getRecordOffset(pos));
+		if (buffer.getChar() != key.length)
+			return false;
+
+		for (final byte b : key)
+			if (buffer.get() != b)
+				return false;
+		return true;
+	}
+
+	/**
+	 * inserts a record between the slots and the heap, does not change the number of slots in the header of the node
+	 *
+	 * @param pos
+	 * 		of the new slot
+	 * @param numberOfSlots
+	 * 		before the insert
+	 * @param key
+	 * @param payload
+	 * @return false, if there is not enough free space between the slots and the heap
+	 */
+	boolean insert(final int pos, final int numberOfSlots, final byte[] key, final byte[] payload) {
+		final int slotsEnd = getSlotOffset(numberOfSlots);
+		final int recordOffset = getHeapStart() - getEntrySize(key.length, payload.length) + SLOT_SIZE;
+		if (recordOffset < slotsEnd + SLOT_SIZE)
+			return false;
+
+		final ByteBuffer buffer = rawPage.bufferForWriting(recordOffset);
+		buffer.putChar((char) key.length);
+		buffer.put(key);
+		buffer.putChar((char) payload.length);
+		buffer.put(payload);
+		setHeapStart(recordOffset);
+
+		rawPage.move(getSlotOffset(pos), getSlotOffset(pos + 1), slotsEnd - getSlotOffset(pos));
+		rawPage.bufferForWriting(getSlotOffset(pos)).putChar((char) recordOffset);
+		return true;
+	}
+
+	/**
+	 * removes slots, their records stay in the heap until the node is rewritten
+	 *
+	 * @param pos
+	 * 		of the first slot to remove
+	 * @param count
+	 * 		number of slots to remove
+	 * @param numberOfSlots
+	 * 		before the removal
+	 */
+	void remove(final int pos, final int count, final int numberOfSlots) {
+		rawPage.move(getSlotOffset(pos + count), getSlotOffset(pos),
+				getSlotOffset(numberOfSlots) - getSlotOffset(pos + count));
+	}
+
+	/**
+	 * replaces all slots and records, so that the heap has no holes
+	 *
+	 * @param keys
+	 * @param payloads
+	 */
+	void write(final List<byte[]> keys, final List<byte[]> payloads) {
+		initialize();
+		for (int i = 0; i < keys.size(); i++)
+			if (!insert(i, i, keys.get(i), payloads.get(i)))
+				throw new IllegalArgumentException(keys.size() + " records do not fit into the page " + rawPage.id());
+	}
+
+	/**
+	 * @param numberOfSlots
+	 * @return bytes that are free, including the holes in the heap
+	 */
+	int getFreeSpace(final int numberOfSlots) {
+		int used = 0;
+		for (int i = 0; i < numberOfSlots; i++)
+			used += getEntrySize(getKeyLength(i), getPayloadLength(i));
+		return getSpace(rawPage.bufferForReading(0).limit(), start) - used;
+	}
+}
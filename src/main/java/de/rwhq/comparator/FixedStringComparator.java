@@ -0,0 +1,45 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License:
+ *
+ * http://creativecommons.org/licenses/by-nc/3.0/
+ *
+ * For alternative conditions contact the author.
+ *
+ * Copyright (c) 2011 "Robin Wenglewski <robin@wenglewski.de>"
+ */
+package de.rwhq.comparator;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Orders Strings by the unsigned bytes of their encoding with the platform charset, which is the order of their {@link
+ * de.rwhq.serializer.FixedStringSerializer} form. For UTF-8, this is the order of the unicode code points.
+ */
+public enum FixedStringComparator implements RawComparator<String> {
+	INSTANCE;
+
+	@Override
+	public int compare(final String o1, final String o2) {
+		final byte[] b1 = o1.getBytes();
+		final byte[] b2 = o2.getBytes();
+		return compare(ByteBuffer.wrap(b1), 0, b1.length, ByteBuffer.wrap(b2), 0, b2.length);
+	}
+
+	/** FixedStringSerializer stores the length of the bytes as short in front of them */
+	@Override
+	public int compare(final ByteBuffer b1, final int pos1, final ByteBuffer b2, final int pos2) {
+		return compare(b1, pos1 + 2, b1.getShort(pos1), b2, pos2 + 2, b2.getShort(pos2));
+	}
+
+	private int compare(final ByteBuffer b1, final int pos1, final int length1, final ByteBuffer b2, final int pos2,
+	                    final int length2) {
+		final int length = Math.min(length1, length2);
+		for (int i = 0; i < length; i++) {
+			final int diff = (b1.get(pos1 + i) & 0xFF) - (b2.get(pos2 + i) & 0xFF);
+			if (diff != 0)
+				return diff;
+		}
+
+		return length1 - length2;
+	}
+}
@@ -9,9 +9,10 @@
  */
 package de.rwhq.comparator;
 
-import java.util.Comparator;
+import java.nio.ByteBuffer;
 
-public enum IntegerComparator implements Comparator<Integer> {
+/** compares Integers, and their {@link de.rwhq.serializer.IntegerSerializer} form in place */
+public enum IntegerComparator implements RawComparator<Integer> {
 	INSTANCE;
 	
 	/* (non-Javadoc)
@@ -22,4 +23,11 @@ public enum IntegerComparator implements Comparator<Integer> {
 		return o1.compareTo(o2);
 	}
 
+	@Override
+	public int compare(final ByteBuffer b1, final int pos1, final ByteBuffer b2, final int pos2) {
+		final int i1 = b1.getInt(pos1);
+		final int i2 = b2.getInt(pos2);
+		return i1 < i2 ? -1 : (i1 == i2 ? 0 : 1);
+	}
+
 }
@@ -0,0 +1,21 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License:
+ *
+ * http://creativecommons.org/licenses/by-nc/3.0/
+ *
+ * For alternative conditions contact the author.
+ *
+ * Copyright (c) 2011 "Robin Wenglewski <robin@wenglewski.de>"
+ */
+
+package de.rwhq.comparator;
+
+/**
+ * A RawComparator for serialized forms that order like their unsigned bytes, compared one by one from the first byte.
+ * If two serialized objects share a prefix, the rest of their bytes alone decides their order, so the BTree can store
+ * the common prefix of the keys in a node only once.
+ *
+ * @param <T>
+ */
+public interface LexicographicComparator<T> extends RawComparator<T> {
+}
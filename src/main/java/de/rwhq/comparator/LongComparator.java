@@ -10,13 +10,21 @@
 
 package de.rwhq.comparator;
 
-import java.util.Comparator;
+import java.nio.ByteBuffer;
 
-public enum LongComparator implements Comparator<Long> {
+/** compares Longs, and their {@link de.rwhq.serializer.LongSerializer} form in place */
+public enum LongComparator implements RawComparator<Long> {
 	INSTANCE;
 	
 	@Override
 	public int compare(Long l1, Long l2) {
 		return l1.compareTo(l2);
 	}
+
+	@Override
+	public int compare(final ByteBuffer b1, final int pos1, final ByteBuffer b2, final int pos2) {
+		final long l1 = b1.getLong(pos1);
+		final long l2 = b2.getLong(pos2);
+		return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+	}
 }
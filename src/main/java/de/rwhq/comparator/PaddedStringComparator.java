@@ -0,0 +1,39 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License:
+ *
+ * http://creativecommons.org/licenses/by-nc/3.0/
+ *
+ * For alternative conditions contact the author.
+ *
+ * Copyright (c) 2011 "Robin Wenglewski <robin@wenglewski.de>"
+ */
+
+package de.rwhq.comparator;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Orders Strings like {@link FixedStringComparator}, and their {@link de.rwhq.serializer.PaddedStringSerializer} form
+ * by its unsigned bytes.
+ */
+public enum PaddedStringComparator implements LexicographicComparator<String> {
+	INSTANCE;
+
+	@Override
+	public int compare(final String o1, final String o2) {
+		return FixedStringComparator.INSTANCE.compare(o1, o2);
+	}
+
+	/** the serialized strings end with at least one zero byte, which does not occur in the strings themselves */
+	@Override
+	public int compare(final ByteBuffer b1, final int pos1, final ByteBuffer b2, final int pos2) {
+		for (int i = 0; ; i++) {
+			final int c1 = b1.get(pos1 + i) & 0xFF;
+			final int c2 = b2.get(pos2 + i) & 0xFF;
+			if (c1 != c2)
+				return c1 - c2;
+			if (c1 == 0)
+				return 0;
+		}
+	}
+}
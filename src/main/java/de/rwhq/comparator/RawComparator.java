@@ -0,0 +1,37 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License:
+ *
+ * http://creativecommons.org/licenses/by-nc/3.0/
+ *
+ * For alternative conditions contact the author.
+ *
+ * Copyright (c) 2011 "Robin Wenglewski <robin@wenglewski.de>"
+ */
+package de.rwhq.comparator;
+
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+
+/**
+ * A Comparator that can also compare objects in their serialized form, directly in the buffers they are stored in.
+ * Both comparisons must result in the same order.
+ *
+ * @param <T>
+ * @see de.rwhq.serializer.OrderPreservingSerializer
+ */
+public interface RawComparator<T> extends Comparator<T> {
+
+	/**
+	 * compares two serialized objects without deserializing them. The positions of the buffers are not changed.
+	 *
+	 * @param b1
+	 * @param pos1
+	 * 		absolute position of the first object in b1
+	 * @param b2
+	 * @param pos2
+	 * 		absolute position of the second object in b2
+	 * @return a negative integer, zero, or a positive integer as the first object is less than, equal to, or greater
+	 *         than the second
+	 */
+	public int compare(ByteBuffer b1, int pos1, ByteBuffer b2, int pos2);
+}
@@ -9,16 +9,29 @@
  */
 package de.rwhq.io.rm;
 
+import com.google.common.collect.MapMaker;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.io.IOException;
+import java.util.concurrent.ConcurrentMap;
 
+/**
+ * Creates ComplexPages from the RawPages of a PageManager.
+ * <p/>
+ * Loaded pages are cached by their id, so a RawPage is only decoded once and there is only one instance per page as
+ * long as it is in memory. The cache uses soft references, so the pages are dropped if memory gets low.
+ *
+ * @param <T>
+ */
 public abstract class AbstractPageManager<T extends ComplexPage> implements PageManager<T> {
 
 	private static final Log LOG = LogFactory.getLog(AbstractPageManager.class);
 	private final PageManager<RawPage> rpm;
 
+	/** decoded pages */
+	private final ConcurrentMap<Integer, T> cache = new MapMaker().softValues().makeMap();
+
 	protected AbstractPageManager(final PageManager<RawPage> rpm) {
 		this.rpm = rpm;
 	}
@@ -36,23 +49,55 @@ public abstract class AbstractPageManager<T extends ComplexPage> implements Page
 		 */
 	@Override
 	public T getPage(final int id) {
-		final T result;
+		final T cached = cache.get(id);
+		if (cached != null)
+			return cached;
 
+		return getPage(rpm.getPage(id));
+	}
 
-		final RawPage page = rpm.getPage(id);
-		result = createObjectPage(page);
+	/**
+	 * Decodes the given RawPage, unless the page with the same id is already cached. This way, callers that have to
+	 * look at the RawPage to find out which PageManager is responsible for it do not have to fetch it twice.
+	 *
+	 * @param page
+	 * @return the loaded page
+	 */
+	public T getPage(final RawPage page) {
+		final T cached = cache.get(page.id());
+		if (cached != null)
+			return cached;
+
+		final T result = createObjectPage(page);
 
 		try {
 			result.load();
 		} catch (IOException e) {
 			// if the page cannot be loaded, something is off.
 			// we should only be able to fetch initialized pages from the rpm.
-			throw new IllegalArgumentException("cant load InnerNodePage with id " + id);
+			throw new IllegalArgumentException("cant load " + result.getClass().getSimpleName() + " with id " + page.id());
 		}
 
+		cache.put(page.id(), result);
 		return result;
 	}
 
+	/**
+	 * @param id
+	 * @return true, if the decoded page with the given id is cached
+	 */
+	public boolean isCached(final int id) {
+		return cache.containsKey(id);
+	}
+
+	/**
+	 * forgets all decoded pages. Must be called if the pages were changed without this PageManager, for example if the
+	 * underlying PageManager has been cleared or reopened.
+	 */
+	public void clearCache() {
+		cache.clear();
+	}
+
 	/* (non-Javadoc)
 		 * @see PageManager#createPage()
 		 */
@@ -62,7 +107,25 @@ public abstract class AbstractPageManager<T extends ComplexPage> implements Page
 	}
 
 	public T createPage(final boolean initialize) {
-		final T l = createObjectPage(rpm.createPage());
+		return createPage(initialize, 0);
+	}
+
+	/* (non-Javadoc)
+		 * @see PageManager#createPage(int)
+		 */
+	@Override
+	public T createPage(final int nearPageId) {
+		return createPage(true, nearPageId);
+	}
+
+	/**
+	 * @param initialize
+	 * @param nearPageId
+	 * 		id of the page the new page should be close to, 0 for no preference
+	 * @return page
+	 */
+	public T createPage(final boolean initialize, final int nearPageId) {
+		final T l = createObjectPage(nearPageId > 0 ? rpm.createPage(nearPageId) : rpm.createPage());
 
 		if (initialize)
 			try {
@@ -71,6 +134,8 @@ public abstract class AbstractPageManager<T extends ComplexPage> implements Page
 				throw new RuntimeException(e);
 			}
 
+		cache.put(l.rawPage().id(), l);
+
 		if (LOG.isDebugEnabled())
 			LOG.debug("node created: type: \t" + l.getClass().getSimpleName().toString() + "\tid: " + l.rawPage().id());
 
@@ -83,6 +148,7 @@ public abstract class AbstractPageManager<T extends ComplexPage> implements Page
 		 */
 	@Override
 	public void removePage(final int id) {
+		cache.remove(id);
 		rpm.removePage(id);
 	}
 
@@ -101,6 +167,9 @@ public abstract class AbstractPageManager<T extends ComplexPage> implements Page
 	 */
 	@Override
 	public boolean hasPage(final int id) {
+		if (cache.containsKey(id))
+			return true;
+
 		if (!rpm.hasPage(id))
 			return false;
 
@@ -0,0 +1,99 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License:
+ *
+ * http://creativecommons.org/licenses/by-nc/3.0/
+ *
+ * For alternative conditions contact the author.
+ *
+ * Copyright (c) 2011 "Robin Wenglewski <robin@wenglewski.de>"
+ */
+
+package de.rwhq.io.rm;
+
+import com.google.common.base.Objects;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Asynchronous access to the pages of a ResourceManager. The reads and writes run on the given executor, so the number
+ * of threads blocked by I/O is bounded by the executor and not by the number of pending requests. Callers chain their
+ * work to the returned futures instead of waiting for them.
+ * <p/>
+ * Pages that are in memory of a {@link CachedResourceManager} are returned as completed futures without involving the
+ * executor. Misses are read without holding the lock of the CachedResourceManager, so that several pages can be read
+ * at the same time. A page that leaves the pool while it is read is read again, so an outdated copy from disk is never
+ * installed.
+ */
+public class AsyncResourceManager {
+
+	private final ResourceManager          rm;
+	private final ListeningExecutorService executor;
+
+	/**
+	 * @param rm
+	 * @param executor
+	 * 		runs the reads and writes, {@link MoreExecutors#sameThreadExecutor()} makes all calls synchronous
+	 */
+	public AsyncResourceManager(final ResourceManager rm, final ExecutorService executor) {
+		this.rm = rm;
+		this.executor = MoreExecutors.listeningDecorator(executor);
+	}
+
+	/**
+	 * @param id
+	 * @return future of the page with the given id, fails with a {@link PageNotFoundException} if there is no such page
+	 */
+	public ListenableFuture<RawPage> getPageAsync(final int id) {
+		if (rm instanceof CachedResourceManager) {
+			final CachedResourceManager crm = (CachedResourceManager) rm;
+			final RawPage cached = crm.getCachedPage(id);
+			if (cached != null)
+				return Futures.immediateFuture(cached);
+
+			return executor.submit(new Callable<RawPage>() {
+				@Override
+				public RawPage call() {
+					return crm.getPageConcurrently(id);
+				}
+			});
+		}
+
+		return executor.submit(new Callable<RawPage>() {
+			@Override
+			public RawPage call() {
+				return rm.getPage(id);
+			}
+		});
+	}
+
+	/**
+	 * @param page
+	 * @return future of the page, completed when the page has been written like {@link ResourceManager#writePage(Object)}
+	 */
+	public ListenableFuture<RawPage> writePageAsync(final RawPage page) {
+		return executor.submit(new Callable<RawPage>() {
+			@Override
+			public RawPage call() {
+				rm.writePage(page);
+				return page;
+			}
+		});
+	}
+
+	public ResourceManager getResourceManager() {
+		return rm;
+	}
+
+	@Override
+	public String toString() {
+		return Objects.toStringHelper(this)
+				.add("resourceManager", rm)
+				.add("executor", executor)
+				.toString();
+	}
+}
@@ -11,61 +11,195 @@
 package de.rwhq.io.rm;
 
 import com.google.common.base.Objects;
-import com.google.common.cache.*;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Sets;
 
 import java.io.IOException;
-import java.util.concurrent.ExecutionException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
- * This class caches RawPages coming from a ResourceManager. Through the caching, we can ensure that pages are written
+ * A buffer pool for RawPages coming from a ResourceManager. Through the caching, we can ensure that pages are written
  * back to the ResourceManager even if they are not explicitly persisted in the using class.
  * <p/>
- * Additionally, if a Page is requested which is not in cache but still in Memory (meaning that maybe it's still being
- * used), then the memory instance is added to the cache and returned.
+ * The pool has a fixed number of frames. If all frames are used, a CLOCK sweep over the frames picks the page to
+ * evict: pages that have been accessed since the last sweep get a second chance, pinned pages (see {@link
+ * RawPage#pin()}) are skipped. Evicted pages are written back if they have been modified.
+ * <p/>
+ * Pools with at least {@link #WINDOW_FRACTION} frames use an admission policy (W-TinyLFU), so that a burst of pages
+ * that are used only once cannot push out the pages that are used all the time: new pages go into a small LRU window.
+ * The page that drops out of the window only replaces the victim of the CLOCK sweep if it has been accessed at least as
+ * often recently, see {@link FrequencySketch}. Scans that do not want to compete for frames at all read through {@link
+ * #getPage(int, PageRing)}.
+ * <p/>
+ * Besides the frames, the pool has an optional quota of resident pages (see {@link #makeResident(RawPage)}). Resident
+ * pages are never evicted and do not take frames, so a user of the pool can keep a small set of pages that it needs all
+ * the time, like the inner nodes of a BTree, in memory however many other pages go through the frames.
+ * <p/>
+ * A page id never maps to more than one RawPage instance: if a page is requested which is not in a frame anymore but
+ * still in memory (meaning that maybe it's still being used), then the memory instance is put back into a frame and
+ * returned.
+ * <p/>
+ * The pool keeps track of the modified pages, so {@link #sync()} only writes pages that actually changed. With {@link
+ * Durability#WRITE_BACK}, {@link RawPage#sync()} does not write the page at all, modified pages are only written on
+ * eviction, {@link #sync()} and {@link #close()}.
+ * <p/>
+ * With {@link Durability#LOGGED}, removed pages stay allocated in the underlying ResourceManager until the next {@link
+ * #sync()}, so that the allocation state on disk only changes at checkpoints as well, and a copy of a removed page that
+ * {@link #writeCopies(Collection)} is still writing cannot hit a page that reused its id.
  * <p/>
  * CachedResourceManager works with all kinds of ResourceManagers, although usually used with a {@link
  * FileResourceManager}
  */
 public class CachedResourceManager implements ResourceManager {
 
-	private final ResourceManager         rm;
-	private final Cache<Integer, RawPage> cache;
-	private final int                     cacheSize;
+	private final ResourceManager rm;
+	private final int             cacheSize;
+	private final Durability      durability;
+
+	/** one in this many frames is used for the window of the admission policy */
+	public static final int WINDOW_FRACTION = 100;
+
+	/** pages in the pool, null if the frame is free */
+	private final RawPage[] frames;
+	/** CLOCK reference bits, set on every access of the page in the frame */
+	private final boolean[] referenced;
+	/** stack of free frames */
+	private final int[]     freeFrames;
+	private       int       numberOfFreeFrames;
+	private       int       hand = 0;
+
+	/** frames that belong to the window, the CLOCK sweep skips them */
+	private final boolean[]                       inWindow;
+	/** ids of the pages in the window, least recently used first */
+	private final LinkedHashMap<Integer, Boolean> window     = new LinkedHashMap<Integer, Boolean>(16, 0.75f, true);
+	/** maximum number of pages in the window, 0 if the pool is too small for the admission policy */
+	private final int                             windowSize;
+	/** recent accesses, null if windowSize is 0 */
+	private final FrequencySketch                 sketch;
+
+	/** maximum number of resident pages */
+	private final int                   residentQuota;
+	/** page id -> resident page */
+	private final Map<Integer, RawPage> resident = new HashMap<Integer, RawPage>();
+
+	/** page id -> page in a frame */
+	private final Map<Integer, RawPage>           pageTable = new HashMap<Integer, RawPage>();
+	/** evicted pages that are still referenced somewhere */
+	private final ConcurrentMap<Integer, RawPage> evicted   = new MapMaker().weakValues().makeMap();
+
+	/** modified pages, maintained through {@link RawPage.ModificationListener} */
+	private final Set<RawPage>                  dirtyPages   =
+			Collections.synchronizedSet(Sets.<RawPage>newIdentityHashSet());
+	private final RawPage.ModificationListener dirtyTracker = new RawPage.ModificationListener() {
+		@Override
+		public void modificationChanged(final RawPage page) {
+			if (page.isModified())
+				dirtyPages.add(page);
+			else
+				dirtyPages.remove(page);
+		}
+	};
+
+	/** ids of the pages that are being read without holding the lock */
+	private final Multiset<Integer> unlockedReads = HashMultiset.create();
+	/** ids in unlockedReads of pages that left the pool while they were read */
+	private final Set<Integer>      staleReads    = new HashSet<Integer>();
+
+	/** with LOGGED, ids of the pages that have been removed since the last sync() */
+	private final Set<Integer> removedPages = new HashSet<Integer>();
+
+	// statistics
+	private long hits       = 0;
+	private long misses     = 0;
+	private long evictions  = 0;
+	private long prefetches = 0;
+	private long rejections = 0;
+	private long scanReads  = 0;
 
 	CachedResourceManager(final ResourceManager _rm, final int cacheSize) {
+		this(_rm, cacheSize, Durability.WRITE_THROUGH);
+	}
+
+	CachedResourceManager(final ResourceManager _rm, final int cacheSize, final Durability durability) {
+		this(_rm, cacheSize, durability, 0);
+	}
+
+	/**
+	 * @param _rm
+	 * @param cacheSize
+	 * 		number of frames
+	 * @param durability
+	 * @param residentQuota
+	 * 		maximum number of resident pages, which come in addition to the frames
+	 */
+	CachedResourceManager(final ResourceManager _rm, final int cacheSize, final Durability durability,
+	                      final int residentQuota) {
 		checkNotNull(_rm);
+		checkNotNull(durability);
 		checkArgument(cacheSize > 0, "cacheSize must be > 0");
-		
+		checkArgument(residentQuota >= 0, "residentQuota must be >= 0");
+
 		this.rm = _rm;
 		this.cacheSize = cacheSize;
-		this.cache = CacheBuilder.newBuilder().maximumSize(cacheSize)
-				.removalListener(new RemovalListener<Integer, RawPage>() {
-					@Override
-					public void onRemoval(final RemovalNotification<Integer, RawPage> integerRawPageRemovalNotification) {
-						final RawPage rawPage = integerRawPageRemovalNotification.getValue();
-						rawPage.sync();
-					}
-				})
-				.build(new CacheLoader<Integer, RawPage>() {
-					@Override public RawPage load(final Integer key) throws Exception {
-						return rm.getPage(key);
-					}
-				});
+		this.durability = durability;
+		this.residentQuota = residentQuota;
+		this.frames = new RawPage[cacheSize];
+		this.referenced = new boolean[cacheSize];
+		this.freeFrames = new int[cacheSize];
+		this.inWindow = new boolean[cacheSize];
+		this.windowSize = cacheSize / WINDOW_FRACTION;
+		this.sketch = windowSize > 0 ? new FrequencySketch(cacheSize) : null;
+		resetFrames();
+	}
 
+	/**
+	 * registers the dirty tracker with the page
+	 *
+	 * @param page
+	 * @return page
+	 */
+	private RawPage track(final RawPage page) {
+		page.setModificationListener(dirtyTracker);
+		page.setDeferWrites(durability != Durability.WRITE_THROUGH);
+		if (page.isModified())
+			dirtyPages.add(page);
+		return page;
 	}
 
 	public int getCacheSize() {
 		return cacheSize;
 	}
 
-	@Override public void writePage(final RawPage page) {
-		cache.asMap().put(page.id(), page);
+	public Durability getDurability() {
+		return durability;
+	}
+
+	@Override public synchronized void writePage(final RawPage page) {
+		admit(page);
 		rm.writePage(page);
 	}
 
+	@Override public synchronized void writePages(final Collection<RawPage> pages) {
+		for (final RawPage page : pages)
+			admit(page);
+		rm.writePages(pages);
+	}
+
 	@Override public Integer getPageSize() {
 		return rm.getPageSize();
 	}
@@ -78,63 +212,739 @@ public class CachedResourceManager implements ResourceManager {
 		return rm.isOpen();
 	}
 
-	@Override public void close() throws IOException {
+	@Override public synchronized void close() throws IOException {
 		sync();
-		cache.invalidateAll();
+		dropAll();
 		rm.close();
 	}
 
-	@Override public int numberOfPages() {
-		return rm.numberOfPages();
+	@Override public synchronized int numberOfPages() {
+		return rm.numberOfPages() - removedPages.size();
 	}
 
-	@Override public void clear() {
-		cache.invalidateAll();
+	@Override public synchronized void clear() {
+		dropAll();
+		removedPages.clear();
 		rm.clear();
 	}
 
-	@Override public RawPage createPage() {
-		final RawPage page = rm.createPage();
-		cache.asMap().put(page.id(), page);
+	@Override public synchronized RawPage createPage() {
+		final RawPage page = track(rm.createPage());
+		recordAccess(page.id());
+		admit(page);
+		return page;
+	}
+
+	@Override public synchronized RawPage createPage(final int nearPageId) {
+		final RawPage page = track(rm.createPage(nearPageId));
+		recordAccess(page.id());
+		admit(page);
+		return page;
+	}
+
+	@Override public synchronized RawPage getPage(final int id) {
+		RawPage page = getResidentPage(id);
+		if (page != null)
+			return page;
+
+		page = pageTable.get(id);
+		if (page != null) {
+			hit(page);
+			return page;
+		}
+
+		misses++;
+		recordAccess(id);
+		page = evicted.remove(id);
+		if (page == null)
+			page = track(readPage(id));
+
+		admit(page);
+		return page;
+	}
+
+	/**
+	 * Like {@link #getPage(int)}, but never reads from the underlying ResourceManager.
+	 *
+	 * @param id
+	 * @return the page with the given id, null if it is not in memory
+	 */
+	public synchronized RawPage getCachedPage(final int id) {
+		RawPage page = getResidentPage(id);
+		if (page != null)
+			return page;
+
+		page = pageTable.get(id);
+		if (page != null) {
+			hit(page);
+			return page;
+		}
+
+		page = evicted.remove(id);
+		if (page != null) {
+			misses++;
+			recordAccess(id);
+			admit(page);
+		}
+
 		return page;
 	}
 
-	@Override public RawPage getPage(final int id) {
+	/**
+	 * Like {@link #getPage(int)}, but for scans: a page that is not in a frame does not get one, the given ring keeps it
+	 * in memory instead. Pages that are in a frame are returned as usual.
+	 *
+	 * @param id
+	 * @param ring
+	 * 		private to the scan
+	 * @return the page with the given id
+	 */
+	public synchronized RawPage getPage(final int id, final PageRing ring) {
+		final RawPage residentPage = getResidentPage(id);
+		if (residentPage != null)
+			return residentPage;
+
+		final RawPage cached = pageTable.get(id);
+		if (cached != null) {
+			hit(cached);
+			return cached;
+		}
+
+		scanReads++;
+		final RawPage page = getPageOutsideTheFrames(id);
+		ring.add(page);
+		return page;
+	}
+
+	/** @return the page that is in memory without a frame, read if necessary */
+	private RawPage getPageOutsideTheFrames(final int id) {
+		RawPage page = evicted.get(id);
+		if (page == null) {
+			page = track(readPage(id));
+			evicted.put(id, page);
+			// a new instance of the page, reads that are in progress have to see the changes made to it
+			markReadsStale(id);
+		}
+		return page;
+	}
+
+	/**
+	 * Like {@link #getPage(int)}, but a miss is read without holding the lock of the pool, so that several threads can
+	 * read pages at the same time.
+	 *
+	 * @param id
+	 * @return the page with the given id
+	 */
+	public RawPage getPageConcurrently(final int id) {
+		return load(id, 1, false, null).get(0);
+	}
+
+	/**
+	 * Reads the pages with the ids firstId, firstId + 1, ... into the pool, with a single read if the underlying
+	 * ResourceManager is a FileResourceManager. Pages that are in memory already are not read again. Like {@link
+	 * #getPageConcurrently(int)}, the pool is not locked while reading. The pages bypass the admission policy but are
+	 * not marked as referenced, so if nobody asks for them, they are the first ones to be evicted.
+	 *
+	 * @param firstId
+	 * @param count
+	 * 		maximum number of pages
+	 * @return the pages in the pool, ends before the first id that is not a page or that could not be read
+	 */
+	public List<RawPage> prefetch(final int firstId, final int count) {
+		return prefetch(firstId, count, null);
+	}
+
+	/**
+	 * Like {@link #prefetch(int, int)}, but if ring is not null, pages that are not in a frame are put into the ring
+	 * instead, see {@link #getPage(int, PageRing)}.
+	 *
+	 * @param firstId
+	 * @param count
+	 * @param ring
+	 * @return the pages, ends before the first id that is not a page or that could not be read
+	 */
+	public List<RawPage> prefetch(final int firstId, final int count, final PageRing ring) {
+		final List<RawPage> pages = load(firstId, count, true, ring);
+		final int end = pages.indexOf(null);
+		return end < 0 ? pages : pages.subList(0, end);
+	}
+
+	/**
+	 * @param firstId
+	 * @param count
+	 * @param prefetch
+	 * 		if true, the pages are not marked as referenced, and pages that might be outdated are skipped instead of
+	 * 		being read again
+	 * @param ring
+	 * 		if not null, prefetched pages do not get a frame
+	 * @return the pages with consecutive ids, null for pages that could not be read
+	 */
+	private List<RawPage> load(final int firstId, final int count, final boolean prefetch, final PageRing ring) {
+		final RawPage[] result = new RawPage[count];
+		int firstMissing = -1;
+		int lastMissing = -1;
+
+		synchronized (this) {
+			for (int i = 0; i < count; i++) {
+				result[i] = prefetch ? getPageInMemory(firstId + i, ring) : getCachedPage(firstId + i);
+				if (result[i] == null) {
+					// reading ahead stops at the end of the resource
+					if (prefetch && !hasPage(firstId + i))
+						break;
+					if (removedPages.contains(firstId + i))
+						throw new PageNotFoundException(this, firstId + i);
+
+					if (firstMissing < 0)
+						firstMissing = i;
+					lastMissing = i;
+				}
+			}
+
+			if (firstMissing < 0)
+				return Arrays.asList(result);
+
+			for (int i = firstMissing; i <= lastMissing; i++)
+				unlockedReads.add(firstId + i);
+		}
+
+		List<RawPage> read = null;
 		try {
-			return cache.get(id);
-		} catch (ExecutionException e) {
-			throw new RuntimeException(e);
+			read = read(firstId + firstMissing, lastMissing - firstMissing + 1);
+		} finally {
+			synchronized (this) {
+				for (int i = firstMissing; i <= lastMissing; i++) {
+					final int id = firstId + i;
+					unlockedReads.remove(id);
+					final boolean stale = staleReads.contains(id);
+					if (!unlockedReads.contains(id))
+						staleReads.remove(id);
+
+					if (result[i] != null || read == null)
+						continue;
+
+					final int index = i - firstMissing;
+					final RawPage page = !stale && index < read.size() ? read.get(index) : null;
+					result[i] = install(id, page, prefetch, ring);
+				}
+			}
+		}
+
+		return Arrays.asList(result);
+	}
+
+	/** @return the page from the underlying ResourceManager, unless it has been removed */
+	private RawPage readPage(final int id) {
+		if (removedPages.contains(id))
+			throw new PageNotFoundException(this, id);
+		return rm.getPage(id);
+	}
+
+	private List<RawPage> read(final int firstId, final int count) {
+		if (count == 1)
+			return Collections.singletonList(rm.getPage(firstId));
+
+		if (rm instanceof FileResourceManager)
+			return ((FileResourceManager) rm).getPages(firstId, count);
+
+		final List<RawPage> result = Lists.newArrayList();
+		for (int id = firstId; id < firstId + count && rm.hasPage(id); id++)
+			result.add(rm.getPage(id));
+		return result;
+	}
+
+	/**
+	 * @param id
+	 * @param ring
+	 * 		if not null, a page that is not in a frame is put into the ring
+	 * @return the page if it is in a frame or still referenced after its eviction, without touching it
+	 */
+	private RawPage getPageInMemory(final int id, final PageRing ring) {
+		RawPage page = resident.get(id);
+		if (page != null)
+			return page;
+
+		page = pageTable.get(id);
+		if (page != null)
+			return page;
+
+		if (ring != null) {
+			page = evicted.get(id);
+			if (page != null)
+				ring.add(page);
+			return page;
+		}
+
+		page = evicted.remove(id);
+		if (page != null) {
+			admit(page, true);
+			referenced[page.getFrame()] = false;
+		}
+		return page;
+	}
+
+	/**
+	 * puts a page that has been read without holding the lock into a frame, unless another thread was faster
+	 *
+	 * @param id
+	 * @param page
+	 * 		null, if the page has to be read again
+	 * @param prefetch
+	 * @param ring
+	 * @return the page in the pool, null if the page has not been read
+	 */
+	private RawPage install(final int id, final RawPage page, final boolean prefetch, final PageRing ring) {
+		final RawPage current = prefetch ? getPageInMemory(id, ring) : getCachedPage(id);
+		if (current != null)
+			return current;
+
+		if (page == null) {
+			if (prefetch)
+				return null;
+
+			misses++;
+			recordAccess(id);
+			final RawPage reread = track(readPage(id));
+			admit(reread);
+			return reread;
+		}
+
+		track(page);
+		if (ring != null) {
+			evicted.put(id, page);
+			ring.add(page);
+			prefetches++;
+			return page;
+		}
+
+		admit(page, prefetch);
+		if (prefetch) {
+			referenced[page.getFrame()] = false;
+			prefetches++;
+		} else {
+			misses++;
+			recordAccess(id);
+		}
+		return page;
+	}
+
+	/**
+	 * @param id
+	 * @return the resident page with the given id, null if the page is not resident
+	 */
+	private RawPage getResidentPage(final int id) {
+		final RawPage page = resident.get(id);
+		if (page != null)
+			hits++;
+		return page;
+	}
+
+	/**
+	 * Moves the page out of the frames into the resident pages, where it stays until it is removed or the pool is
+	 * cleared or closed. Modified resident pages are written like all other pages, by {@link #sync()} or {@link
+	 * RawPage#sync()}, depending on the durability.
+	 *
+	 * @param page
+	 * 		a page of this pool
+	 * @return false, if the quota of resident pages is used up
+	 */
+	public synchronized boolean makeResident(final RawPage page) {
+		final RawPage current = resident.get(page.id());
+		if (current == page)
+			return true;
+
+		if (current == null && resident.size() >= residentQuota)
+			return false;
+
+		if (pageTable.get(page.id()) == page) {
+			pageTable.remove(page.id());
+			freeFrame(page);
+		} else {
+			final RawPage other = pageTable.remove(page.id());
+			if (other != null)
+				freeFrame(other);
+			evicted.remove(page.id());
 		}
+
+		putResident(page);
+		return true;
 	}
 
-	@Override public void removePage(final int id) {
-		cache.invalidate(id);
-		rm.removePage(id);
+	private void putResident(final RawPage page) {
+		final RawPage previous = resident.put(page.id(), track(page));
+		if (previous != null && previous != page)
+			previous.setResident(false);
+		page.setResident(true);
 	}
 
-	@Override public boolean hasPage(final int id) {
-		return rm.hasPage(id);
+	/** a page leaves the pool, the reads that are in progress for it might be outdated */
+	private void markReadsStale(final int id) {
+		if (unlockedReads.contains(id))
+			staleReads.add(id);
 	}
 
-	public void sync() {
-		for (final RawPage p : cache.asMap().values()) {
-			p.sync();
+	@Override public synchronized void removePage(final int id) {
+		if (durability == Durability.LOGGED && (removedPages.contains(id) || !rm.hasPage(id)))
+			throw new PageNotFoundException(this, id);
+
+		markReadsStale(id);
+		final RawPage residentPage = resident.remove(id);
+		if (residentPage != null) {
+			residentPage.setResident(false);
+			residentPage.setModified(false);
 		}
+
+		final RawPage page = pageTable.remove(id);
+		if (page != null) {
+			freeFrame(page);
+			page.setModified(false);
+		}
+
+		final RawPage evictedPage = evicted.remove(id);
+		if (evictedPage != null)
+			evictedPage.setModified(false);
+
+		if (durability == Durability.LOGGED)
+			removedPages.add(id);
+		else
+			rm.removePage(id);
+	}
+
+	@Override public synchronized boolean hasPage(final int id) {
+		return !removedPages.contains(id) && rm.hasPage(id);
+	}
+
+	/**
+	 * writes all modified pages back to the underlying ResourceManager in one batch. With LOGGED, the pages removed
+	 * since the last sync become free in the underlying ResourceManager first.
+	 */
+	@Override public synchronized void sync() {
+		for (final int id : removedPages)
+			rm.removePage(id);
+		removedPages.clear();
+
+		final List<RawPage> pages;
+		synchronized (dirtyPages) {
+			pages = Lists.newArrayList(dirtyPages);
+		}
+
+		if (!pages.isEmpty())
+			rm.writePages(pages);
+		else
+			rm.sync();
+	}
+
+	/**
+	 * Writes copies of cached pages (see {@link RawPage#copy()}) to the underlying ResourceManager and forces it. The
+	 * cached pages stay modified and can be changed while the copies are written, the pool is only locked for one page
+	 * at a time. Afterwards, {@link RawPage#setWrittenIfUnmodifiedSince(long)} resets the pages that have not been
+	 * changed in the meantime.
+	 * <p/>
+	 * Copies of pages that have been removed in the meantime are skipped. Unlike {@link #sync()}, this does not
+	 * checkpoint the allocation state of a FileResourceManager, since it may contain changes made after the copies were
+	 * taken.
+	 *
+	 * @param copies
+	 */
+	public void writeCopies(final Collection<RawPage> copies) {
+		for (final RawPage copy : copies) {
+			synchronized (this) {
+				if (!removedPages.contains(copy.id()))
+					rm.writePage(copy);
+			}
+		}
+
+		synchronized (this) {
+			if (rm instanceof FileResourceManager)
+				((FileResourceManager) rm).force();
+			else
+				rm.sync();
+		}
+	}
+
+	/**
+	 * puts the page into a frame, replacing another instance with the same id
+	 *
+	 * @param page
+	 */
+	private void admit(final RawPage page) {
+		admit(page, false);
+	}
+
+	/**
+	 * @param page
+	 * @param prefetch
+	 * 		if true, the page goes directly into the main region
+	 */
+	private void admit(final RawPage page, final boolean prefetch) {
+		if (resident.containsKey(page.id())) {
+			putResident(page);
+			return;
+		}
+
+		final RawPage current = pageTable.get(page.id());
+		if (current == page) {
+			referenced[page.getFrame()] = true;
+			return;
+		}
+
+		final int frame;
+		if (current != null) {
+			frame = current.getFrame();
+			current.setFrame(-1);
+		} else if (prefetch || windowSize == 0) {
+			frame = nextFreeFrame();
+		} else {
+			frame = frameInWindow();
+			inWindow[frame] = true;
+			window.put(page.id(), Boolean.TRUE);
+		}
+
+		evicted.remove(page.id());
+		track(page);
+		frames[frame] = page;
+		referenced[frame] = true;
+		page.setFrame(frame);
+		pageTable.put(page.id(), page);
+	}
+
+	/** @return a free frame, evicts the victim of the CLOCK sweep if necessary */
+	private int nextFreeFrame() {
+		if (numberOfFreeFrames == 0)
+			evict(frames[selectVictim()]);
+
+		return freeFrames[--numberOfFreeFrames];
+	}
+
+	/**
+	 * Makes room for a new page in the window. If the window is full, its least recently used page moves to the main
+	 * region, but only if it has been used at least as often recently as the page it would replace there.
+	 *
+	 * @return a free frame
+	 */
+	private int frameInWindow() {
+		if (window.size() < windowSize)
+			return nextFreeFrame();
+
+		final int candidateId = window.keySet().iterator().next();
+		final RawPage candidate = pageTable.get(candidateId);
+		if (numberOfFreeFrames > 0) {
+			leaveWindow(candidate.getFrame(), candidateId);
+			return freeFrames[--numberOfFreeFrames];
+		}
+
+		final RawPage victim = frames[selectVictim()];
+		if (candidate.isPinned() || sketch.frequency(candidateId) >= sketch.frequency(victim.id())) {
+			leaveWindow(candidate.getFrame(), candidateId);
+			evict(victim);
+		} else {
+			rejections++;
+			evict(candidate);
+		}
+
+		return freeFrames[--numberOfFreeFrames];
+	}
+
+	private void leaveWindow(final int frame, final int id) {
+		inWindow[frame] = false;
+		window.remove(id);
+	}
+
+	/** @return frame of the page the CLOCK sweep over the main region picks */
+	private int selectVictim() {
+		// the first round might only clear the reference bits
+		for (int i = 0; i < 2 * cacheSize; i++) {
+			final int frame = hand;
+			hand = (hand + 1) % cacheSize;
+
+			final RawPage page = frames[frame];
+			if (inWindow[frame] || page.isPinned())
+				continue;
+
+			if (referenced[frame]) {
+				referenced[frame] = false;
+				continue;
+			}
+
+			return frame;
+		}
+
+		throw new IllegalStateException("all " + cacheSize + " pages in the cache are pinned");
+	}
+
+	/** marks the page as used, in a frame */
+	private void hit(final RawPage page) {
+		hits++;
+		referenced[page.getFrame()] = true;
+		if (inWindow[page.getFrame()])
+			window.get(page.id());
+		recordAccess(page.id());
+	}
+
+	private void recordAccess(final int id) {
+		if (sketch != null)
+			sketch.increment(id);
+	}
+
+	private void evict(final RawPage page) {
+		// with LOGGED, dirtyPages keeps the page in memory until the next sync()
+		if (page.isModified() && durability != Durability.LOGGED)
+			rm.writePage(page);
+		pageTable.remove(page.id());
+		freeFrame(page);
+		evicted.put(page.id(), page);
+		markReadsStale(page.id());
+		page.release();
+		evictions++;
+	}
+
+	private void freeFrame(final RawPage page) {
+		final int frame = page.getFrame();
+		if (inWindow[frame])
+			leaveWindow(frame, page.id());
+		frames[frame] = null;
+		referenced[frame] = false;
+		freeFrames[numberOfFreeFrames++] = frame;
+		page.setFrame(-1);
+	}
+
+	/** forgets all pages without writing them */
+	private void dropAll() {
+		for (final RawPage page : pageTable.values()) {
+			page.setModificationListener(null);
+			page.setDeferWrites(false);
+			page.setFrame(-1);
+			page.release();
+		}
+		for (final RawPage page : resident.values()) {
+			page.setResident(false);
+			page.setModificationListener(null);
+			page.setDeferWrites(false);
+			page.release();
+		}
+		for (final RawPage page : evicted.values()) {
+			page.setModificationListener(null);
+			page.setDeferWrites(false);
+		}
+
+		resident.clear();
+		pageTable.clear();
+		evicted.clear();
+		dirtyPages.clear();
+		staleReads.addAll(unlockedReads.elementSet());
+		resetFrames();
+	}
+
+	private void resetFrames() {
+		for (int i = 0; i < cacheSize; i++) {
+			frames[i] = null;
+			referenced[i] = false;
+			inWindow[i] = false;
+			freeFrames[i] = cacheSize - 1 - i;
+		}
+		window.clear();
+		numberOfFreeFrames = cacheSize;
+		hand = 0;
 	}
 
 	public ResourceManager getResourceManager() {
 		return rm;
 	}
 
-	public Cache<Integer, RawPage> getCache() {
-		return cache;
+	/**
+	 * @param id
+	 * @return true, if the page with the given id is in a frame of the pool or resident
+	 */
+	public synchronized boolean isCached(final int id) {
+		return pageTable.containsKey(id) || resident.containsKey(id);
+	}
+
+	/**
+	 * @param id
+	 * @return true, if the page with the given id is resident, see {@link #makeResident(RawPage)}
+	 */
+	public synchronized boolean isResident(final int id) {
+		return resident.containsKey(id);
+	}
+
+	/** @return number of resident pages */
+	public synchronized int getNumberOfResidentPages() {
+		return resident.size();
+	}
+
+	/** @return maximum number of resident pages */
+	public int getResidentQuota() {
+		return residentQuota;
+	}
+
+	/** @return number of pages currently held in frames */
+	public synchronized int getNumberOfCachedPages() {
+		return pageTable.size();
+	}
+
+	/** @return number of getPage() calls served from a frame or the resident pages */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	/** @return number of getPage() calls that had to put the page into a frame */
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+
+	/** @return number of pages that have been read by {@link #prefetch(int, int)} */
+	public synchronized long getPrefetchCount() {
+		return prefetches;
+	}
+
+	/** @return number of pages that left the window without being admitted to the main region */
+	public synchronized long getRejectionCount() {
+		return rejections;
+	}
+
+	/** @return number of pages that have been read for a scan without getting a frame */
+	public synchronized long getScanReadCount() {
+		return scanReads;
+	}
+
+	/** @return maximum number of pages in the window of the admission policy, 0 if there is no admission policy */
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	/** @return number of pages that have been modified but not written back yet */
+	public int getNumberOfDirtyPages() {
+		return dirtyPages.size();
+	}
+
+	/** @return the pages that have been modified but not written back yet */
+	public List<RawPage> getDirtyPages() {
+		synchronized (dirtyPages) {
+			return Lists.newArrayList(dirtyPages);
+		}
+	}
+
+	/** @return number of bytes that would be written by {@link #sync()} */
+	public long getDirtyBytes() {
+		return (long) getNumberOfDirtyPages() * getPageSize();
 	}
 
-	public String toString(){
+	public synchronized String toString() {
 		return Objects.toStringHelper(this)
 				.add("maxCacheSize", cacheSize)
-				.add("cacheSize", cache.asMap().size())
-				.add("cacheStats", cache.stats())
+				.add("durability", durability)
+				.add("cacheSize", pageTable.size())
+				.add("residentPages", resident.size())
+				.add("hits", hits)
+				.add("misses", misses)
+				.add("evictions", evictions)
+				.add("prefetches", prefetches)
+				.add("rejections", rejections)
+				.add("scanReads", scanReads)
+				.add("dirtyPages", dirtyPages.size())
 				.add("resourceManager", rm)
 				.toString();
 	}
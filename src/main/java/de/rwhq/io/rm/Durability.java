@@ -0,0 +1,36 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License:
+ *
+ * http://creativecommons.org/licenses/by-nc/3.0/
+ *
+ * For alternative conditions contact the author.
+ *
+ * Copyright (c) 2011 "Robin Wenglewski <robin@wenglewski.de>"
+ */
+
+package de.rwhq.io.rm;
+
+/**
+ * Decides when {@link RawPage#sync()} writes a page of a {@link CachedResourceManager}.
+ *
+ * @see ResourceManagerBuilder#durability(Durability)
+ */
+public enum Durability {
+	/** every {@link RawPage#sync()} writes the page immediately */
+	WRITE_THROUGH,
+
+	/**
+	 * {@link RawPage#sync()} only keeps the page marked as modified. The page is written when it is evicted, or on
+	 * {@link ResourceManager#sync()} or {@link ResourceManager#close()}. Changes since the last sync are lost on a
+	 * crash.
+	 */
+	WRITE_BACK,
+
+	/**
+	 * like {@link #WRITE_BACK}, but evicted pages are not written either, they stay in memory until {@link
+	 * ResourceManager#sync()}. Removed pages stay allocated until then, too. This way, the pages on the disk only change
+	 * at checkpoints, which is what a {@link WriteAheadLog} relies on. Not available for memory mapped files, since the
+	 * system writes those pages whenever it wants.
+	 */
+	LOGGED
+}
@@ -37,8 +37,23 @@ public class DynamicDataPage<T> implements DataPage<T>, ComplexPage {
 	
 	private boolean valid = false;
 
+	/** bytes of the header per entry: ID(int) OFFSET(int) */
+	private static final int HEADER_ENTRY_SIZE = 2 * Integer.SIZE / 8;
+
 	private int getHeaderSize(){
-		return Integer.SIZE + entries.size() * Integer.SIZE * 2;
+		return getHeaderSize(entries.size());
+	}
+
+	private static int getHeaderSize(final int numberOfEntries){
+		return Integer.SIZE / 8 + numberOfEntries * HEADER_ENTRY_SIZE;
+	}
+
+	/**
+	 * @param pageSize
+	 * @return number of bytes of the largest entry that fits into an empty page
+	 */
+	public static int getMaxEntrySize(final int pageSize){
+		return pageSize - getHeaderSize(1);
 	}
 	
 	DynamicDataPage(
@@ -69,7 +84,8 @@ public class DynamicDataPage<T> implements DataPage<T>, ComplexPage {
 		
 		final byte[] bytes = entrySerializer.serialize(entry);
 		
-		if(bytes.length > remaining())
+		// the header grows by the new entry as well
+		if(bytes.length + HEADER_ENTRY_SIZE > remaining())
 			return null;
 		
 		final int bodyOffset = getBodyOffset() - bytes.length;
@@ -110,7 +126,7 @@ public class DynamicDataPage<T> implements DataPage<T>, ComplexPage {
 		
 		// move all body elements
 		final int size = sizeOfEntryAt(offset);
-		System.arraycopy(rawPage.bufferForWriting(0).array(), getBodyOffset(), rawPage.bufferForWriting(0).array(), getBodyOffset() + size, offset - getBodyOffset() );
+		rawPage.move(getBodyOffset(), getBodyOffset() + size, offset - getBodyOffset());
 		
 		// adjust the entries in the entries array
 		for(final int key : entries.keySet()){
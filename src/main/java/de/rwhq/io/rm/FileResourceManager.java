@@ -10,6 +10,7 @@
 package de.rwhq.io.rm;
 
 import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -19,6 +20,10 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 
 import static com.google.common.base.Preconditions.checkState;
 
@@ -34,13 +39,24 @@ public class FileResourceManager implements ResourceManager {
 	private       FileChannel      ioChannel;
 	private ResourceHeader header;
 	private       boolean          doLock;
+	private final PageBufferPool   bufferPool;
 
 	private static Log LOG = LogFactory.getLog(FileResourceManager.class);
 
+	/** the offset of a page grows with its id */
+	private static final Comparator<RawPage> BY_ID = new Comparator<RawPage>() {
+		@Override
+		public int compare(final RawPage p1, final RawPage p2) {
+			return p1.id().compareTo(p2.id());
+		}
+	};
+
 	FileResourceManager(final ResourceManagerBuilder builder) {
 		this.file = builder.getFile();
 		this.doLock = builder.useLock();
 		this.header = new ResourceHeader(this, builder.getPageSize());
+		this.bufferPool = new PageBufferPool(builder.getPageSize(), builder.getBufferPoolSize(),
+				builder.useDirectBuffers());
 	}
 
 	/* (non-Javadoc)
@@ -85,6 +101,68 @@ public class FileResourceManager implements ResourceManager {
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
+
+		page.setModified(false);
+	}
+
+	/**
+	 * Sorts the pages by their offset in the file and writes each run of adjacent pages with a single gathering write.
+	 * The channel is forced once at the end.
+	 *
+	 * @see ResourceManager#writePages(Collection)
+	 */
+	@Override
+	public void writePages(final Collection<RawPage> pages) {
+		ensureOpen();
+
+		final List<RawPage> sorted = Lists.newArrayList(pages);
+		Collections.sort(sorted, BY_ID);
+
+		for (final RawPage page : sorted)
+			ensurePageExists(page.id());
+
+		try {
+			int start = 0;
+			while (start < sorted.size()) {
+				int end = start + 1;
+				while (end < sorted.size() && sorted.get(end).id() == sorted.get(end - 1).id() + 1)
+					end++;
+
+				writeRun(sorted.subList(start, end));
+				start = end;
+			}
+
+			if (!sorted.isEmpty()) {
+				checkpointHeader();
+				ioChannel.force(false);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		for (final RawPage page : sorted)
+			page.setModified(false);
+	}
+
+	/**
+	 * @param run
+	 * 		pages with consecutive ids
+	 * @throws IOException
+	 */
+	private void writeRun(final List<RawPage> run) throws IOException {
+		if (LOG.isDebugEnabled())
+			LOG.debug("writing " + run.size() + " pages to disk, starting with " + run.get(0).id());
+
+		final ByteBuffer[] buffers = new ByteBuffer[run.size()];
+		long remaining = 0;
+		for (int i = 0; i < buffers.length; i++) {
+			buffers[i] = run.get(i).bufferForReading(0);
+			remaining += buffers[i].remaining();
+		}
+
+		ioChannel.position(header.getPageOffset(run.get(0).id()));
+		while (remaining > 0)
+			remaining -= ioChannel.write(buffers);
 	}
 
 	/* (non-Javadoc)
@@ -98,7 +176,7 @@ public class FileResourceManager implements ResourceManager {
 
 		final RawPage result;
 
-		final ByteBuffer buf = ByteBuffer.allocate(header.getPageSize());
+		final ByteBuffer buf = bufferPool.acquire();
 
 		try {
 			ioChannel.read(buf, header.getPageOffset(pageId));
@@ -107,7 +185,48 @@ public class FileResourceManager implements ResourceManager {
 			System.exit(1);
 		}
 
-		result = new RawPage(buf, pageId, this);
+		result = new RawPage(buf, pageId, this, bufferPool);
+		return result;
+	}
+
+	/**
+	 * Reads the pages with the ids firstId, firstId + 1, ... with a single read. Stops before the first id that is not a
+	 * page of this resource.
+	 *
+	 * @param firstId
+	 * 		id of an existing page
+	 * @param count
+	 * 		maximum number of pages to read
+	 * @return the pages, at least the one with the id firstId
+	 */
+	public List<RawPage> getPages(final int firstId, final int count) {
+		ensureOpen();
+		ensurePageExists(firstId);
+
+		int numberOfPages = 1;
+		while (numberOfPages < count && header.contains(firstId + numberOfPages))
+			numberOfPages++;
+
+		final int pageSize = getPageSize();
+		final ByteBuffer run = ByteBuffer.allocate(numberOfPages * pageSize);
+		final long offset = header.getPageOffset(firstId);
+		try {
+			while (run.hasRemaining()) {
+				if (ioChannel.read(run, offset + run.position()) < 0)
+					break;
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		final List<RawPage> result = Lists.newArrayListWithCapacity(numberOfPages);
+		for (int i = 0; i < numberOfPages; i++) {
+			run.limit((i + 1) * pageSize).position(i * pageSize);
+			final ByteBuffer buf = bufferPool.acquire();
+			buf.put(run);
+			buf.clear();
+			result.add(new RawPage(buf, firstId + i, this, bufferPool));
+		}
 		return result;
 	}
 
@@ -115,7 +234,7 @@ public class FileResourceManager implements ResourceManager {
 	 * @param pageId
 	 * @throws PageNotFoundException
 	 */
-	private void ensurePageExists(final int pageId) {
+	void ensurePageExists(final int pageId) {
 		if (!header.contains(pageId))
 			throw new PageNotFoundException(this, pageId);
 	}
@@ -125,6 +244,8 @@ public class FileResourceManager implements ResourceManager {
 	 */
 	@Override
 	public void close() throws IOException {
+		checkpointHeader();
+
 		try {
 			if (fileLock != null && fileLock.isValid()) {
 				fileLock.release();
@@ -208,7 +329,8 @@ public class FileResourceManager implements ResourceManager {
 		Objects.ToStringHelper helper = Objects.toStringHelper(this)
 				.add("file", getFile().getAbsolutePath())
 				.add("isOpen", isOpen())
-				.add("pageSize", getPageSize());
+				.add("pageSize", getPageSize())
+				.add("bufferPool", bufferPool);
 
 		if (isOpen())
 			helper.add("numberOfPages", numberOfPages());
@@ -216,7 +338,7 @@ public class FileResourceManager implements ResourceManager {
 		return helper.toString();
 	}
 
-	private void ensureOpen() {
+	void ensureOpen() {
 		if (!isOpen())
 			throw new IllegalStateException("Resource is not open: " + toString());
 
@@ -235,14 +357,17 @@ public class FileResourceManager implements ResourceManager {
 	@Override public void clear() {
 		ensureOpen();
 		header = new ResourceHeader(this, header.getPageSize());
+		truncate();
+		header.initialize();
+	}
 
+	/** empties the file when the ResourceManager is cleared */
+	void truncate() {
 		try {
 			ioChannel.truncate(0);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
-
-		header.initialize();
 	}
 
 	/* (non-Javadoc)
@@ -250,14 +375,47 @@ public class FileResourceManager implements ResourceManager {
 	 */
 	@Override
 	public RawPage createPage() {
+		return createPage(0);
+	}
+
+	@Override
+	public RawPage createPage(final int nearPageId) {
 		ensureOpen();
 
-		final ByteBuffer buf = ByteBuffer.allocate(header.getPageSize());
-		final RawPage result = new RawPage(buf, header.generateId(), this);
+		final ByteBuffer buf = bufferPool.acquire();
+		final RawPage result = new RawPage(buf, header.generateId(nearPageId), this, bufferPool);
 
 		return result;
 	}
 
+	/**
+	 * pages are written immediately, so this only checkpoints the header and forces the file
+	 *
+	 * @see ResourceManager#sync()
+	 */
+	@Override
+	public void sync() {
+		ensureOpen();
+		checkpointHeader();
+		force();
+	}
+
+	/** forces the written pages to the disk, but unlike {@link #sync()} leaves the allocation state as it is on disk */
+	void force() {
+		ensureOpen();
+		try {
+			ioChannel.force(false);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** writes the exact allocation state of the header, see {@link ResourceHeader#checkpoint()} */
+	void checkpointHeader() {
+		if (isOpen() && header.isValid())
+			header.checkpoint();
+	}
+
 	/* (non-Javadoc)
 	 * @see ResourceManager#removePage(long)
 	 */
@@ -288,4 +446,17 @@ public class FileResourceManager implements ResourceManager {
 	public File getFile() {
 		return file;
 	}
+
+	/** @return the pool the page buffers are taken from */
+	public PageBufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	ResourceHeader getHeader() {
+		return header;
+	}
+
+	FileChannel getIoChannel() {
+		return ioChannel;
+	}
 }
@@ -0,0 +1,87 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License:
+ *
+ * http://creativecommons.org/licenses/by-nc/3.0/
+ *
+ * For alternative conditions contact the author.
+ *
+ * Copyright (c) 2011 "Robin Wenglewski <robin@wenglewski.de>"
+ */
+
+package de.rwhq.io.rm;
+
+/**
+ * Estimates how often the pages have been accessed recently (the TinyLFU sketch). A count-min sketch with four rows of
+ * 4 bit counters, sixteen counters packed into a long. After ten times as many increments as the pool has frames, all
+ * counters are halved, so that pages which have not been used for a while lose their old popularity.
+ * <p/>
+ * Not thread-safe, the CachedResourceManager only uses it while holding its lock.
+ */
+class FrequencySketch {
+
+	private static final int    ROWS       = 4;
+	private static final int    MAX_COUNT  = 15;
+	private static final long   RESET_MASK = 0x7777777777777777L;
+	private static final long[] SEEDS      =
+			{0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+	private final long[] table;
+	/** counters per row, a power of two */
+	private final int    width;
+	private final int    sampleSize;
+	private       int    additions = 0;
+
+	/** @param maximumSize number of pages whose frequencies should be told apart */
+	FrequencySketch(final int maximumSize) {
+		int w = 16;
+		while (w < maximumSize)
+			w <<= 1;
+
+		this.width = w;
+		this.table = new long[ROWS * width / 16];
+		this.sampleSize = 10 * Math.max(maximumSize, 1);
+	}
+
+	/** @return estimated number of recent accesses of the page, at most 15 */
+	int frequency(final int id) {
+		int result = MAX_COUNT;
+		for (int row = 0; row < ROWS; row++)
+			result = Math.min(result, get(position(id, row)));
+		return result;
+	}
+
+	void increment(final int id) {
+		boolean added = false;
+		for (int row = 0; row < ROWS; row++) {
+			final int position = position(id, row);
+			if (get(position) < MAX_COUNT) {
+				table[position >>> 4] += 1L << shift(position);
+				added = true;
+			}
+		}
+
+		if (added && ++additions >= sampleSize)
+			reset();
+	}
+
+	/** halves all counters */
+	private void reset() {
+		for (int i = 0; i < table.length; i++)
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		additions /= 2;
+	}
+
+	private int get(final int position) {
+		return (int) ((table[position >>> 4] >>> shift(position)) & MAX_COUNT);
+	}
+
+	private static int shift(final int position) {
+		return (position & 15) << 2;
+	}
+
+	private int position(final int id, final int row) {
+		long hash = (id + SEEDS[row]) * SEEDS[row];
+		hash += hash >>> 32;
+		return row * width + ((int) hash & (width - 1));
+	}
+}
@@ -0,0 +1,190 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License:
+ *
+ * http://creativecommons.org/licenses/by-nc/3.0/
+ *
+ * For alternative conditions contact the author.
+ *
+ * Copyright (c) 2011 "Robin Wenglewski <robin@wenglewski.de>"
+ */
+package de.rwhq.io.rm;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A FileResourceManager that maps the file into memory in segments instead of reading every page into a freshly
+ * allocated buffer. The RawPages returned by {@link #getPage(int)} and {@link #createPage()} are slices of the mapping,
+ * so a page that is not in memory is just a page fault and no copy is involved.
+ * <p/>
+ * Since the pages are views of the file, changes to them reach the file even without calling {@link #writePage(RawPage)}.
+ * writePage only has to copy pages that do not come from this ResourceManager.
+ * <p/>
+ * Segments are mapped on demand, so the file grows one segment at a time as pages are created. A mapping can not be
+ * released explicitly in Java, it stays valid until the buffers are garbage collected.
+ */
+public class MappedFileResourceManager extends FileResourceManager {
+
+	/** default size of a mapped segment in bytes, rounded down to a multiple of the page size */
+	public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	private static Log LOG = LogFactory.getLog(MappedFileResourceManager.class);
+
+	private final int                    segmentSize;
+	private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+
+	/** used to reset reused pages in createPage() */
+	private byte[] emptyPage;
+
+	MappedFileResourceManager(final ResourceManagerBuilder builder) {
+		super(builder);
+		this.segmentSize = builder.getSegmentSize();
+	}
+
+	@Override
+	public void open() throws IOException {
+		segments.clear();
+		super.open();
+	}
+
+	@Override
+	public void close() throws IOException {
+		checkpointHeader();
+		force();
+		segments.clear();
+		super.close();
+	}
+
+	@Override
+	public void sync() {
+		ensureOpen();
+		checkpointHeader();
+		force();
+	}
+
+	@Override
+	void force() {
+		for (final MappedByteBuffer segment : segments) {
+			if (segment != null)
+				segment.force();
+		}
+	}
+
+	@Override
+	public RawPage getPage(final int pageId) {
+		ensureOpen();
+		ensurePageExists(pageId);
+
+		return new RawPage(slice(pageId), pageId, this);
+	}
+
+	@Override
+	public RawPage createPage(final int nearPageId) {
+		ensureOpen();
+
+		final int id = getHeader().generateId(nearPageId);
+		final ByteBuffer buf = slice(id);
+
+		// the id could have been used before, so the mapped region is not necessarily empty
+		if (emptyPage == null || emptyPage.length != getPageSize())
+			emptyPage = new byte[getPageSize()];
+		buf.put(emptyPage);
+		buf.position(0);
+
+		return new RawPage(buf, id, this);
+	}
+
+	@Override
+	public void writePage(final RawPage page) {
+		if (LOG.isDebugEnabled())
+			LOG.debug("writing page to mapping: " + page.id());
+
+		ensureOpen();
+		ensurePageExists(page.id());
+
+		// our own pages are views of the mapping
+		if (page.getResourceManager() != this)
+			slice(page.id()).put(page.bufferForReading(0));
+
+		page.setModified(false);
+	}
+
+	/** copies foreign pages into the mapping and forces the mapped segments once */
+	@Override
+	public void writePages(final Collection<RawPage> pages) {
+		for (final RawPage page : pages)
+			writePage(page);
+
+		if (!pages.isEmpty()) {
+			checkpointHeader();
+			force();
+		}
+	}
+
+	/**
+	 * Keeps the file at its size when the ResourceManager is cleared. The pages handed out before are views of the
+	 * mapping, and touching a view of a truncated region crashes the JVM. Those pages must not be used anymore, but this
+	 * way a stale one is harmless. Their ids are handed out again, {@link #createPage(int)} empties the pages.
+	 */
+	@Override
+	void truncate() {
+	}
+
+	/** @return number of pages per mapped segment */
+	int getPagesPerSegment() {
+		return Math.max(1, segmentSize / getPageSize());
+	}
+
+	/**
+	 * @param pageId
+	 * @return a view on the part of the mapping that holds the page
+	 */
+	private ByteBuffer slice(final int pageId) {
+		final int pageSize = getPageSize();
+		final long bytesPerSegment = (long) getPagesPerSegment() * pageSize;
+		final long offset = (long) pageId * pageSize;
+
+		final int pos = (int) (offset % bytesPerSegment);
+		final ByteBuffer view = segment((int) (offset / bytesPerSegment)).duplicate();
+		view.limit(pos + pageSize);
+		view.position(pos);
+		return view.slice();
+	}
+
+	/**
+	 * maps the segment if it is not mapped yet. Mapping a region behind the end of the file grows the file.
+	 *
+	 * @param index
+	 * @return the mapped segment
+	 */
+	private MappedByteBuffer segment(final int index) {
+		while (segments.size() <= index)
+			segments.add(null);
+
+		MappedByteBuffer result = segments.get(index);
+		if (result != null)
+			return result;
+
+		final long bytesPerSegment = (long) getPagesPerSegment() * getPageSize();
+
+		if (LOG.isDebugEnabled())
+			LOG.debug("mapping segment " + index + " (" + bytesPerSegment + " bytes)");
+
+		try {
+			result = getIoChannel().map(FileChannel.MapMode.READ_WRITE, index * bytesPerSegment, bytesPerSegment);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		segments.set(index, result);
+		return result;
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License:
+ *
+ * http://creativecommons.org/licenses/by-nc/3.0/
+ *
+ * For alternative conditions contact the author.
+ *
+ * Copyright (c) 2011 "Robin Wenglewski <robin@wenglewski.de>"
+ */
+package de.rwhq.io.rm;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A bounded pool of page sized ByteBuffers, either on the heap or direct.
+ * <p/>
+ * Buffers are handed out zeroed by {@link #acquire()}. When a RawPage is released (e.g. because it is evicted from a
+ * cache), its buffer is not reused immediately since the RawPage could still be referenced, for example by a node that
+ * is in use. Instead, the buffer is put back into the pool as soon as the RawPage has been garbage collected.
+ */
+public class PageBufferPool {
+
+	private final int     pageSize;
+	private final int     capacity;
+	private final boolean direct;
+
+	private final ArrayDeque<ByteBuffer> free;
+
+	/** RawPages that have been released, but might still be referenced */
+	private final ReferenceQueue<RawPage> releasedPages = new ReferenceQueue<RawPage>();
+	private final Set<BufferReference>    pending       = new HashSet<BufferReference>();
+
+	// counters
+	private long allocations = 0;
+	private long reuses      = 0;
+	private long releases    = 0;
+
+	/** keeps the buffer of a released RawPage until the RawPage is collected */
+	private static class BufferReference extends WeakReference<RawPage> {
+		private final ByteBuffer buffer;
+
+		private BufferReference(final RawPage page, final ByteBuffer buffer, final ReferenceQueue<RawPage> queue) {
+			super(page, queue);
+			this.buffer = buffer;
+		}
+	}
+
+	/**
+	 * @param pageSize
+	 * 		size of the buffers
+	 * @param capacity
+	 * 		maximum number of unused buffers kept in the pool. If 0, buffers are never reused.
+	 * @param direct
+	 * 		whether to allocate direct buffers
+	 */
+	public PageBufferPool(final int pageSize, final int capacity, final boolean direct) {
+		checkArgument(pageSize > 0, "pageSize must be > 0");
+		checkArgument(capacity >= 0, "capacity must be >= 0");
+
+		this.pageSize = pageSize;
+		this.capacity = capacity;
+		this.direct = direct;
+		this.free = new ArrayDeque<ByteBuffer>();
+	}
+
+	/** @return a zeroed buffer of pageSize bytes, reused if possible */
+	public synchronized ByteBuffer acquire() {
+		reclaim();
+
+		final ByteBuffer result = free.poll();
+		if (result == null) {
+			allocations++;
+			return direct ? ByteBuffer.allocateDirect(pageSize) : ByteBuffer.allocate(pageSize);
+		}
+
+		reuses++;
+		result.clear();
+		if (result.hasArray()) {
+			Arrays.fill(result.array(), result.arrayOffset(), result.arrayOffset() + pageSize, (byte) 0);
+		} else {
+			// zeroed in place, without allocating a page sized array on every reuse
+			while (result.remaining() >= Long.SIZE / 8)
+				result.putLong(0L);
+			while (result.hasRemaining())
+				result.put((byte) 0);
+			result.clear();
+		}
+		return result;
+	}
+
+	/**
+	 * puts the buffer back into the pool. The buffer must not be used anymore by the caller.
+	 *
+	 * @param buffer
+	 */
+	public synchronized void release(final ByteBuffer buffer) {
+		if (buffer.capacity() != pageSize || buffer.isDirect() != direct)
+			return;
+
+		releases++;
+		if (free.size() < capacity)
+			free.add(buffer);
+	}
+
+	/**
+	 * releases the buffer of the given page as soon as the page is not referenced anymore
+	 *
+	 * @param page
+	 * @param buffer
+	 * 		the buffer backing the page
+	 */
+	synchronized void releaseWhenUnreachable(final RawPage page, final ByteBuffer buffer) {
+		if (capacity == 0)
+			return;
+
+		reclaim();
+		pending.add(new BufferReference(page, buffer, releasedPages));
+	}
+
+	/** enqueues the references of all released RawPages, as the garbage collector does once they are collected */
+	@VisibleForTesting
+	synchronized void enqueueReleasedPages() {
+		for (final BufferReference reference : pending)
+			reference.enqueue();
+	}
+
+	/** moves the buffers of collected RawPages to the pool */
+	private void reclaim() {
+		Reference<? extends RawPage> ref;
+		while ((ref = releasedPages.poll()) != null) {
+			final BufferReference bufferReference = (BufferReference) ref;
+			pending.remove(bufferReference);
+			release(bufferReference.buffer);
+		}
+	}
+
+	/** @return number of buffers that had to be allocated */
+	public synchronized long getNumberOfAllocations() {
+		return allocations;
+	}
+
+	/** @return number of times a buffer from the pool could be reused */
+	public synchronized long getNumberOfReuses() {
+		return reuses;
+	}
+
+	/** @return number of buffers that were given back to the pool */
+	public synchronized long getNumberOfReleases() {
+		return releases;
+	}
+
+	/** @return number of buffers currently available for reuse */
+	public synchronized int getNumberOfFreeBuffers() {
+		reclaim();
+		return free.size();
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public boolean isDirect() {
+		return direct;
+	}
+
+	public synchronized String toString() {
+		return Objects.toStringHelper(this)
+				.add("capacity", capacity)
+				.add("direct", direct)
+				.add("free", free.size())
+				.add("allocations", allocations)
+				.add("reuses", reuses)
+				.add("releases", releases)
+				.toString();
+	}
+}
@@ -34,6 +34,16 @@ public interface PageManager<T> {
 	 */
 	public T createPage();
 
+	/**
+	 * creates a page like {@link #createPage()}, preferably with an id close to the given one, so that pages used
+	 * together are close to each other in the resource.
+	 *
+	 * @param nearPageId
+	 * 		id of an existing page
+	 * @return page
+	 */
+	public T createPage(int nearPageId);
+
 	/**
 	 * @param id
 	 * 		of the page to be fetched
@@ -0,0 +1,70 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License:
+ *
+ * http://creativecommons.org/licenses/by-nc/3.0/
+ *
+ * For alternative conditions contact the author.
+ *
+ * Copyright (c) 2011 "Robin Wenglewski <robin@wenglewski.de>"
+ */
+
+package de.rwhq.io.rm;
+
+import com.google.common.base.Objects;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A small ring of pages private to one scan. Pages a scan reads through {@link CachedResourceManager#getPage(int,
+ * PageRing)} do not take frames of the shared pool, the ring keeps them in memory until the scan has moved on. When the
+ * ring is full, the oldest page is dropped.
+ */
+public class PageRing {
+
+	/** enough for the current leaf and the leaves read ahead of it */
+	public static final int DEFAULT_CAPACITY = 64;
+
+	private final RawPage[] pages;
+	private       int       next = 0;
+	private       int       size = 0;
+
+	public PageRing() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public PageRing(final int capacity) {
+		checkArgument(capacity > 0, "capacity must be > 0");
+		this.pages = new RawPage[capacity];
+	}
+
+	/** @param page keep in memory until capacity more pages have been added */
+	public synchronized void add(final RawPage page) {
+		pages[next] = page;
+		next = (next + 1) % pages.length;
+		size = Math.min(size + 1, pages.length);
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public int getCapacity() {
+		return pages.length;
+	}
+
+	/** drops all pages */
+	public synchronized void clear() {
+		for (int i = 0; i < pages.length; i++)
+			pages[i] = null;
+		next = 0;
+		size = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return Objects.toStringHelper(this)
+				.add("capacity", pages.length)
+				.add("size", size)
+				.toString();
+	}
+}
@@ -13,6 +13,8 @@ package de.rwhq.io.rm;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
 
+import static com.google.common.base.Preconditions.checkState;
+
 /**
  * A byte array, usually with an id and a ResourceManager it comes from.
  */
@@ -21,11 +23,33 @@ public class RawPage implements Serializable {
     private ByteBuffer buffer;
     private int id;
     private ResourceManager resourceManager;
+
+    /** pool the buffer comes from, if any */
+    private transient PageBufferPool pool;
+    private boolean released = false;
+
+    /** notified when the page becomes modified or is written back */
+    private transient ModificationListener listener;
+
+    /** number of holders that keep this page from being evicted */
+    private transient int pinCount = 0;
+
+    /** frame of the CachedResourceManager holding this page, -1 if it is not cached */
+    private transient int frame = -1;
+
+    /** true while the page is resident in a CachedResourceManager, see {@link CachedResourceManager#makeResident(RawPage)} */
+    private transient volatile boolean resident = false;
+
+    /** if true, {@link #sync()} leaves writing the page to the cache, see {@link Durability#WRITE_BACK} */
+    private transient boolean deferWrites = false;
+
+    /** increased on every modification, works like a page lsn for copies of the page that are written elsewhere */
+    private transient volatile long modificationCount = 0;
     
     // private static Log LOG = LogFactory.getLog(RawPage.class);
 
     /**
-     * buffer has been modified since RawPage was created?
+     * buffer has been modified since RawPage was created or last written?
      */
     private boolean modified = false;
 
@@ -37,19 +61,37 @@ public class RawPage implements Serializable {
         this.resourceManager = rm;
     }
 
+    RawPage(final ByteBuffer buffer, final int pageId, final ResourceManager rm, final PageBufferPool pool){
+        this(buffer, pageId, rm);
+        this.pool = pool;
+    }
+
     /**
      * @param pos
      * @return ByteBuffer backing this RawPage
      */
-    public ByteBuffer bufferForWriting(final int pos){setModified(true); buffer.position(pos); return buffer;}
+    public ByteBuffer bufferForWriting(final int pos){modified(); buffer.position(pos); return buffer;}
     public ByteBuffer bufferForReading(final int pos){buffer.position(pos); return buffer.asReadOnlyBuffer();}
     public Integer id(){return id;}
+
+    /**
+     * Unlike {@link #bufferForReading(int)}, this does not move the position of the shared buffer, so threads that only
+     * look at a few fields of the page can use it while another thread works with the page. Use absolute gets only.
+     *
+     * @return read only view of the whole page
+     */
+    public ByteBuffer bufferForConcurrentReading(){return buffer.asReadOnlyBuffer();}
     
     	/**
 	 * @param modified the modified to set
 	 */
 	public void setModified(final boolean modified) {
+		if (this.modified == modified)
+			return;
+
 		this.modified = modified;
+		if (listener != null)
+			listener.modificationChanged(this);
 	}
 
 	/**
@@ -59,6 +101,41 @@ public class RawPage implements Serializable {
 		return modified;
 	}
 
+	private synchronized void modified() {
+		modificationCount++;
+		setModified(true);
+	}
+
+	/** @return number of modifications of this page since it has been loaded */
+	public long getModificationCount() {
+		return modificationCount;
+	}
+
+	/**
+	 * Resets the modified flag if the page has not been modified since {@link #getModificationCount()} returned the given
+	 * count, meaning that a copy taken at that time has been written.
+	 *
+	 * @param modificationCount
+	 * @return true, if the page is not modified anymore
+	 */
+	public synchronized boolean setWrittenIfUnmodifiedSince(final long modificationCount) {
+		if (this.modificationCount == modificationCount)
+			setModified(false);
+
+		return !modified;
+	}
+
+	/** @return a copy of this page with its own buffer, which is not connected to a cache */
+	public synchronized RawPage copy() {
+		final ByteBuffer copy = ByteBuffer.allocate(buffer.capacity());
+		final ByteBuffer src = buffer.duplicate();
+		src.clear();
+		copy.put(src);
+		copy.clear();
+
+		return new RawPage(copy, id, resourceManager);
+	}
+
 	/**
 	 * @return the resourceManager
 	 */
@@ -67,10 +144,134 @@ public class RawPage implements Serializable {
 	}
 	
 	/**
-	 * if this RawPage was modified, this method syncs the RawPage to the ResourceManager it is from.
+	 * Copies bytes from this page to the given page. Unlike <tt>System.arraycopy</tt> on the backing arrays, this also
+	 * works for direct or mapped buffers that do not have an accessible array. The regions may overlap if
+	 * <tt>dest</tt> is this page.
+	 *
+	 * @param srcPos
+	 * 		offset in this page
+	 * @param dest
+	 * 		page to copy to, may be this page. dest is marked as modified.
+	 * @param destPos
+	 * 		offset in dest
+	 * @param length
+	 * 		number of bytes to copy
+	 */
+	public void copyTo(final int srcPos, final RawPage dest, final int destPos, final int length) {
+		if (length <= 0)
+			return;
+
+		dest.modified();
+		final ByteBuffer target = dest.buffer;
+
+		if (buffer.hasArray() && target.hasArray()) {
+			System.arraycopy(buffer.array(), buffer.arrayOffset() + srcPos, target.array(),
+					target.arrayOffset() + destPos, length);
+			return;
+		}
+
+		final ByteBuffer src = buffer.duplicate();
+		src.limit(srcPos + length).position(srcPos);
+
+		// bulk puts between views of the same memory are not guaranteed to handle overlaps
+		final ByteBuffer dst = target.duplicate();
+		dst.position(destPos);
+		if (dest == this) {
+			final byte[] tmp = new byte[length];
+			src.get(tmp);
+			dst.put(tmp);
+		} else {
+			dst.put(src);
+		}
+	}
+
+	/**
+	 * moves bytes within this page, the regions may overlap
+	 *
+	 * @see #copyTo(int, RawPage, int, int)
+	 */
+	public void move(final int srcPos, final int destPos, final int length) {
+		copyTo(srcPos, this, destPos, length);
+	}
+
+	/** used by caches to keep track of the modified pages */
+	interface ModificationListener {
+		/**
+		 * called when the page changes from unmodified to modified or vice versa
+		 *
+		 * @param page
+		 */
+		void modificationChanged(RawPage page);
+	}
+
+	void setModificationListener(final ModificationListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Prevents a {@link CachedResourceManager} from evicting this page until {@link #unpin()} was called as many times as
+	 * pin().
+	 */
+	public synchronized void pin() {
+		pinCount++;
+	}
+
+	/** @see #pin() */
+	public synchronized void unpin() {
+		checkState(pinCount > 0, "page %s is not pinned", id);
+		pinCount--;
+	}
+
+	public synchronized boolean isPinned() {
+		return pinCount > 0;
+	}
+
+	int getFrame() {
+		return frame;
+	}
+
+	void setFrame(final int frame) {
+		this.frame = frame;
+	}
+
+	/**
+	 * @return true, if this page is resident in a CachedResourceManager and therefore stays the instance for its id as
+	 *         long as the CachedResourceManager is open
+	 */
+	public boolean isResident() {
+		return resident;
+	}
+
+	void setResident(final boolean resident) {
+		this.resident = resident;
+	}
+
+	void setDeferWrites(final boolean deferWrites) {
+		this.deferWrites = deferWrites;
+	}
+
+	/**
+	 * Signals that this RawPage is not cached anymore. If its buffer comes from a {@link PageBufferPool}, the buffer is
+	 * reused as soon as this RawPage is not referenced anymore, so it is safe to keep using the page after calling this
+	 * method.
+	 */
+	public void release() {
+		if (pool == null || released)
+			return;
+
+		released = true;
+		pool.releaseWhenUnreachable(this, buffer);
+	}
+
+	/**
+	 * if this RawPage was modified, this method syncs the RawPage to the ResourceManager it is from. ResourceManagers
+	 * that write the page to disk reset the modified flag.
+	 * <p/>
+	 * If the page is held by a {@link CachedResourceManager} in {@link Durability#WRITE_BACK} mode, the page just stays
+	 * modified and is written by the cache later.
 	 */
 	public void sync() {
-		if (isModified() && resourceManager != null)
+		if (isModified() && resourceManager != null && !deferWrites)
 			getResourceManager().writePage(this);
 	}
 }
@@ -14,6 +14,7 @@ import com.google.common.base.Objects;
 import com.google.common.collect.MapMaker;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.concurrent.ConcurrentMap;
 
 /**
@@ -60,12 +61,26 @@ public class ReferenceCachedResourceManager implements ResourceManager {
 		rm.writePage(page);
 	}
 
+	@Override public void writePages(Collection<RawPage> pages) {
+		rm.writePages(pages);
+	}
+
+	@Override public void sync() {
+		rm.sync();
+	}
+
 	@Override public RawPage createPage() {
 		RawPage page = rm.createPage();
 		map.put(page.id(), page);
 		return page;
 	}
 
+	@Override public RawPage createPage(int nearPageId) {
+		RawPage page = rm.createPage(nearPageId);
+		map.put(page.id(), page);
+		return page;
+	}
+
 	@Override public RawPage getPage(int id) {
 		RawPage page = map.get(id);
 		if(page != null)
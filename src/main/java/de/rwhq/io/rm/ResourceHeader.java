@@ -14,6 +14,9 @@ import de.rwhq.io.AbstractMustInitializeOrLoad;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
@@ -24,25 +27,52 @@ import static com.google.common.base.Preconditions.checkState;
  * <p/>
  * It organizes the underlying byte[] like this:
  * <p/>
- * HEADER: NEXT_PAGE | NUM_OF_FREE_PAGES | PAGE_SIZE | LAST_ID | TOTAL_NUM_OF_FREE_PAGES | FREE_PAGE_1 | FREE_PAGE_X
+ * HEADER: VERSION | NEXT_PAGE | PAGE_SIZE | BITMAP
  * <p/>
- * Page 0 is reserved for the header.
+ * Page 0 is reserved for the header. The bitmap has one bit per page id which is set if the page is inUse. It is
+ * loaded once into memory, so looking up or allocating an id does not require reading the header.
  * <p/>
- * Whenever the ResourceHeader needs extra space for storing free page ids, it can create a page and set this as
- * nextPage. It is not possible to swap the next header page behind this page since the offset for a page is calculated
- * though the PageId.
+ * Whenever the bitmap needs more space, the ResourceHeader takes a free page and sets it as nextPage. It is not
+ * possible to swap the next header page behind this page since the offset for a page is calculated though the PageId.
  * <p/>
- * The additional Header Pages are structured like this:
+ * The additional bitmap pages are structured like this:
  * <p/>
- * NUM_OF_FREE_PAGES | FREE_PAGE_1 | FREE_PAGE_X
+ * NEXT_PAGE | BITMAP
+ * <p/>
+ * Ids are reserved in extents of {@link #EXTENT_SIZE} ids. Reserving an extent sets the bits of all its free ids
+ * on disk, handing out or removing an id afterwards only changes the in-memory state. The exact state is written by
+ * {@link #checkpoint()}. Thus, a crash can only leak pages, but an id in use is never marked as free on disk.
+ * <p/>
+ * Files written before the bitmap was introduced (VERSION is 0 there) are converted when they are loaded.
  */
 public class ResourceHeader extends AbstractMustInitializeOrLoad {
+
+	/** value of the VERSION field of headers with an allocation bitmap */
+	static final int BITMAP_VERSION = 1;
+
+	/** number of ids reserved at once */
+	static final int EXTENT_SIZE = 64;
+
+	/** size of the NEXT_PAGE field of the additional bitmap pages */
+	private static final int BITMAP_PAGE_HEADER_SIZE = Integer.SIZE / 8;
+
 	private boolean valid = false;
 	private RawPage         firstPage;
 	private ResourceManager resourceManager;
 	private Integer         pageSize;
-	private int             lastId;
-	private RawPage         pageForFreeIds;
+
+	/** page 0 and the additional bitmap pages */
+	private final List<RawPage> bitmapPages = new ArrayList<RawPage>();
+	/** mirrors the bitmap pages: allocated or reserved ids */
+	private final BitSet        inUse       = new BitSet();
+	/** ids that are set in the bitmap, but not handed out */
+	private final BitSet        reserved    = new BitSet();
+	/** number of allocated ids, including the header pages */
+	private       int           numberOfAllocatedIds;
+	/** all ids below are in use */
+	private       int           firstFreeCandidate;
+	/** while converting a legacy header, page 0 must be written last */
+	private       boolean       converting = false;
 
 
 	public int getPageSize() {
@@ -51,6 +81,24 @@ public class ResourceHeader extends AbstractMustInitializeOrLoad {
 
 	@VisibleForTesting
 	static enum Header {
+		VERSION(0),
+		NEXT_PAGE(Integer.SIZE / 8),
+		PAGE_SIZE(2 * Integer.SIZE / 8);
+
+		int offset;
+
+		Header(int offset) {
+			this.offset = offset;
+		}
+
+		static int size() {
+			return 3 * Integer.SIZE / 8;
+		}
+	}
+
+	/** header of files without bitmap. NEXT_PAGE was always 0 since overflow pages were never written. */
+	@VisibleForTesting
+	static enum LegacyHeader {
 		NEXT_PAGE(0),
 		FREE_PAGES_NUM(1 * Integer.SIZE / 8),
 		PAGE_SIZE(2 * Integer.SIZE / 8),
@@ -59,7 +107,7 @@ public class ResourceHeader extends AbstractMustInitializeOrLoad {
 
 		int offset;
 
-		Header(int offset) {
+		LegacyHeader(int offset) {
 			this.offset = offset;
 		}
 
@@ -79,35 +127,109 @@ public class ResourceHeader extends AbstractMustInitializeOrLoad {
 
 	/** @return 0 if the ResourceHeader is not valid, otherwise a number > 0 */
 	public int generateId() {
+		return generateId(0);
+	}
+
+	/**
+	 * @param hint
+	 * 		id of a page the new page should be close to, 0 for no hint
+	 * @return 0 if the ResourceHeader is not valid, otherwise a number > 0
+	 */
+	public int generateId(final int hint) {
 		if (valid == false)
 			return 0;
 
-		if (getFreePagesNum() == 0) {
-			setLastId(getLastId() + 1);
-			firstPage.sync();
-			return getLastId();
+		int id = -1;
+		if (hint > 0) {
+			id = reservedInExtentOf(hint);
+			if (id < 0 && reserveExtent(hint / EXTENT_SIZE))
+				id = reservedInExtentOf(hint);
 		}
 
-		int result = firstPage.bufferForReading(Header.size() + (getFreePagesNum()-1) * Integer.SIZE / 8).getInt();
-		setFreePagesNum(getFreePagesNum() - 1);
-		setTotalNumberOfFreePages(getTotalNumberOfFreePages() - 1);
-		firstPage.sync();
-		
-		return result;
+		if (id < 0)
+			id = reserved.nextSetBit(Math.max(hint, 0));
+		if (id < 0)
+			id = reserved.nextSetBit(0);
+		while (id < 0) {
+			reserveExtent(inUse.nextClearBit(firstFreeCandidate) / EXTENT_SIZE);
+			id = reserved.nextSetBit(0);
+		}
+
+		reserved.clear(id);
+		numberOfAllocatedIds++;
+		return id;
 	}
 
-	private int getLastId() {
-		return firstPage.bufferForReading(Header.LAST_ID.offset).getInt();
+	/**
+	 * @param id
+	 * @return a reserved id of the extent of the given id, preferably behind the id. -1 if there is none.
+	 */
+	private int reservedInExtentOf(final int id) {
+		final int start = id / EXTENT_SIZE * EXTENT_SIZE;
+		final int end = start + EXTENT_SIZE;
+
+		int result = reserved.nextSetBit(id);
+		if (result >= 0 && result < end)
+			return result;
+
+		result = reserved.nextSetBit(start);
+		return result >= 0 && result < id ? result : -1;
 	}
 
-	private void setLastId(int id) {
-		firstPage.bufferForWriting(Header.LAST_ID.offset).putInt(id);
+	/**
+	 * marks all free ids of the extent as in use and writes the modified bitmap pages
+	 *
+	 * @param extent
+	 * @return true, if the extent had free ids
+	 */
+	private boolean reserveExtent(final int extent) {
+		final int start = Math.max(1, extent * EXTENT_SIZE);
+		final int end = (extent + 1) * EXTENT_SIZE;
+
+		while (end - 1 >= capacity())
+			appendBitmapPage();
+
+		final List<RawPage> modified = new ArrayList<RawPage>(2);
+		for (int id = inUse.nextClearBit(start); id < end; id = inUse.nextClearBit(id + 1)) {
+			inUse.set(id);
+			reserved.set(id);
+
+			final RawPage page = setBit(id, true);
+			if (!modified.contains(page))
+				modified.add(page);
+		}
+
+		for (final RawPage page : modified)
+			page.sync();
+
+		firstFreeCandidate = inUse.nextClearBit(firstFreeCandidate);
+		return !modified.isEmpty();
+	}
+
+	/**
+	 * writes the exact allocation state: reserved ids that have not been handed out become free on disk
+	 */
+	public void checkpoint() {
+		if (!valid)
+			return;
+
+		final int firstReserved = reserved.nextSetBit(0);
+		if (firstReserved >= 0)
+			firstFreeCandidate = Math.min(firstFreeCandidate, firstReserved);
+
+		for (int id = firstReserved; id >= 0; id = reserved.nextSetBit(id + 1)) {
+			inUse.clear(id);
+			setBit(id, false);
+		}
+		reserved.clear();
+
+		for (final RawPage page : bitmapPages)
+			page.sync();
 	}
 
 	@Override
 	public void load() throws IOException {
 		firstPage = resourceManager.getPage(0);
-		pageForFreeIds = firstPage;
 
 		final int ps = firstPage.bufferForReading(Header.PAGE_SIZE.offset).getInt();
 
@@ -116,69 +238,186 @@ public class ResourceHeader extends AbstractMustInitializeOrLoad {
 		else if (!pageSize.equals(ps))
 			throw new RuntimeException("Resource has a different page size");
 
+		resetBitmap();
+
+		final int version = firstPage.bufferForReading(Header.VERSION.offset).getInt();
+		if (version == 0)
+			loadLegacyHeader();
+		else if (version == BITMAP_VERSION)
+			loadBitmap();
+		else
+			throw new RuntimeException("Resource has an unknown header version: " + version);
+
+		numberOfAllocatedIds = inUse.cardinality();
+		reserved.clear();
+		firstFreeCandidate = inUse.nextClearBit(1);
 		valid = true;
 	}
 
-	boolean contains(final int id) {
-		if (id == 0)
-			return true;
-
-		if (id > getLastId())
-			return false;
+	private void loadBitmap() {
+		bitmapPages.add(firstPage);
+		readBits(firstPage, Header.size(), 0);
 
-		if (containsFreePageId(id))
-			return false;
+		int next = firstPage.bufferForReading(Header.NEXT_PAGE.offset).getInt();
+		while (next != 0) {
+			// mark it first, the ResourceManager only returns allocated pages
+			inUse.set(next);
 
-		int nextId = getNextPageId();
+			final RawPage page = resourceManager.getPage(next);
+			readBits(page, BITMAP_PAGE_HEADER_SIZE, capacity());
+			bitmapPages.add(page);
 
-		while (nextId != 0) {
-			ResourceHeaderOverflowPage next = new ResourceHeaderOverflowPage(resourceManager.getPage(nextId));
+			next = page.bufferForReading(0).getInt();
+		}
+	}
 
-			if (next.containsFreePageId(id))
-				return false;
+	/** builds the bitmap from the free page list and rewrites the header in the current format */
+	private void loadLegacyHeader() {
+		final int lastId = firstPage.bufferForReading(LegacyHeader.LAST_ID.offset).getInt();
+		final int freePages = firstPage.bufferForReading(LegacyHeader.FREE_PAGES_NUM.offset).getInt();
+
+		inUse.set(0, lastId + 1);
+		final ByteBuffer buffer = firstPage.bufferForReading(LegacyHeader.size());
+		for (int i = 0; i < freePages; i++)
+			inUse.clear(buffer.getInt());
+
+		final ByteBuffer header = firstPage.bufferForWriting(0);
+		header.putInt(BITMAP_VERSION);
+		header.putInt(0);
+		header.putInt(pageSize);
+		while (header.hasRemaining())
+			header.put((byte) 0);
+
+		bitmapPages.add(firstPage);
+		converting = true;
+		while (lastId >= capacity())
+			appendBitmapPage();
+		converting = false;
+
+		for (int id = inUse.nextSetBit(0); id >= 0; id = inUse.nextSetBit(id + 1))
+			setBit(id, true);
+
+		// page 0 last, only then the file is in the new format
+		for (int i = bitmapPages.size() - 1; i >= 0; i--)
+			bitmapPages.get(i).sync();
+	}
 
-			nextId = next.getNextPageId();
+	/**
+	 * reads the bits of a bitmap page into {@link #inUse}
+	 *
+	 * @param page
+	 * @param offset
+	 * 		of the bitmap in the page
+	 * @param firstId
+	 * 		id of the first bit
+	 */
+	private void readBits(final RawPage page, final int offset, final int firstId) {
+		final ByteBuffer buffer = page.bufferForReading(offset);
+		for (int i = 0; buffer.hasRemaining(); i++) {
+			final byte b = buffer.get();
+			if (b == 0)
+				continue;
+
+			for (int bit = 0; bit < 8; bit++) {
+				if ((b & (1 << bit)) != 0)
+					inUse.set(firstId + i * 8 + bit);
+			}
 		}
+	}
+
+	/**
+	 * takes the next free id after the bitmap as additional bitmap page and links it with the last bitmap page
+	 */
+	private void appendBitmapPage() {
+		final int id = inUse.nextClearBit(capacity());
+		markAllocated(id);
+
+		final RawPage last = bitmapPages.get(bitmapPages.size() - 1);
+		// a page of the ResourceManager, so that it is written like the others (a mapped file writes only its views),
+		// emptied since the id might have been used by a removed page
+		final RawPage page = resourceManager.getPage(id);
+		final ByteBuffer buffer = page.bufferForWriting(0);
+		while (buffer.hasRemaining())
+			buffer.put((byte) 0);
+		bitmapPages.add(page);
+
+		// the bit of the new page might not be covered by the new page
+		while (id >= capacity())
+			appendBitmapPage();
+
+		setBit(id, true);
+		page.sync();
+
+		last.bufferForWriting(last == firstPage ? Header.NEXT_PAGE.offset : 0).putInt(id);
+		if (!(converting && last == firstPage))
+			last.sync();
+	}
 
-		return true;
+	/** @return number of ids that can be stored in the current bitmap pages */
+	private int capacity() {
+		return bitsInFirstPage() + (bitmapPages.size() - 1) * bitsPerBitmapPage();
 	}
 
-	private boolean containsFreePageId(int id) {
-		int free = getTotalNumberOfFreePages();
-		if (free == 0)
-			return false;
+	private int bitsInFirstPage() {
+		return (pageSize - Header.size()) * 8;
+	}
 
+	private int bitsPerBitmapPage() {
+		return (pageSize - BITMAP_PAGE_HEADER_SIZE) * 8;
+	}
 
-		ByteBuffer buffer = firstPage.bufferForReading(Header.size());
-		for (int i = 0; i < free; i++) {
-			if (buffer.getInt() == id)
-				return true;
+	/**
+	 * sets the bit of the id in the bitmap page
+	 *
+	 * @param id
+	 * @param value
+	 * @return the modified bitmap page
+	 */
+	private RawPage setBit(final int id, final boolean value) {
+		final int pageIndex;
+		final int bit;
+		if (id < bitsInFirstPage()) {
+			pageIndex = 0;
+			bit = id;
+		} else {
+			pageIndex = 1 + (id - bitsInFirstPage()) / bitsPerBitmapPage();
+			bit = (id - bitsInFirstPage()) % bitsPerBitmapPage();
 		}
 
-		return false;
+		final RawPage page = bitmapPages.get(pageIndex);
+		final int offset = (pageIndex == 0 ? Header.size() : BITMAP_PAGE_HEADER_SIZE) + bit / 8;
+		final byte b = page.bufferForReading(offset).get();
+		final int mask = 1 << (bit % 8);
+		page.bufferForWriting(offset).put((byte) (value ? b | mask : b & ~mask));
+
+		return page;
 	}
 
-	/** @return number of pages without page or overflow pages */
-	int getNumberOfPages() {
-		return getLastId() - getTotalNumberOfFreePages() - getNumberOfOverflowPages();
+	private void markAllocated(final int id) {
+		inUse.set(id);
+		numberOfAllocatedIds++;
+		if (id == firstFreeCandidate)
+			firstFreeCandidate++;
 	}
 
-	private int getNumberOfOverflowPages() {
-		int next = getNextPageId();
-		if (next == 0)
-			return 0;
+	private void resetBitmap() {
+		bitmapPages.clear();
+		inUse.clear();
+		reserved.clear();
+		numberOfAllocatedIds = 0;
+		firstFreeCandidate = 1;
+	}
 
-		int num = 0;
-		while (next != 0) {
-			num++;
-			next = new ResourceHeaderOverflowPage(resourceManager.getPage(next)).getNextPageId();
-		}
+	boolean contains(final int id) {
+		if (id == 0)
+			return true;
 
-		return num;
+		return id > 0 && inUse.get(id) && !reserved.get(id);
 	}
 
-	private int getNextPageId() {
-		return firstPage.bufferForReading(Header.NEXT_PAGE.offset).getInt();
+	/** @return number of pages without header pages */
+	int getNumberOfPages() {
+		return numberOfAllocatedIds - bitmapPages.size();
 	}
 
 	/* (non-Javadoc)
@@ -188,16 +427,18 @@ public class ResourceHeader extends AbstractMustInitializeOrLoad {
 	public void initialize() {
 		checkState(valid == false, "FileResourceHeader already valid.");
 		checkNotNull(pageSize, "pageSize must not be null when initializing the FileResourceManager");
-		checkState(pageSize >= Header.size(), "pageSize must be larger than %s byte. It is %s byte", Header.size(), pageSize);
+		checkState(pageSize > Header.size(), "pageSize must be larger than %s byte. It is %s byte", Header.size(), pageSize);
 
 		firstPage = resourceManager.createPage();
-		pageForFreeIds = firstPage;
 
+		firstPage.bufferForWriting(Header.VERSION.offset).putInt(BITMAP_VERSION);
 		firstPage.bufferForWriting(Header.PAGE_SIZE.offset).putInt(pageSize);
-		firstPage.bufferForWriting(Header.FREE_PAGES_NUM.offset).putInt(0);
-		firstPage.bufferForWriting(Header.FREE_PAGES_TOTAL.offset).putInt(0);
 		firstPage.bufferForWriting(Header.NEXT_PAGE.offset).putInt(0);
-		firstPage.bufferForWriting(Header.LAST_ID.offset).putInt(0);
+
+		resetBitmap();
+		bitmapPages.add(firstPage);
+		markAllocated(0);
+		setBit(0, true);
 		firstPage.sync();
 
 		valid = true;
@@ -220,50 +461,31 @@ public class ResourceHeader extends AbstractMustInitializeOrLoad {
 		if (!contains(id))
 			return null;
 
-		// first page reserved for header
-		return new Long((id) * pageSize);
+		// first page reserved for header, long arithmetic so files can grow beyond 2 GB
+		return (long) id * pageSize;
 	}
 
+	/**
+	 * The id stays reserved until the next {@link #checkpoint()}, so the bitmap is not written now.
+	 *
+	 * @param pageId
+	 * @throws PageNotFoundException
+	 * 		if the page is not allocated or a header page
+	 */
 	public void removePage(int pageId) {
-		addFreePage(pageId);
-
-		setTotalNumberOfFreePages(getTotalNumberOfFreePages() + 1);
-		firstPage.sync();
-	}
+		if (!contains(pageId) || isBitmapPage(pageId))
+			throw new PageNotFoundException(resourceManager, pageId);
 
-	private int getFreePagesNum() {
-		return firstPage.bufferForReading(Header.FREE_PAGES_NUM.offset).getInt();
+		reserved.set(pageId);
+		numberOfAllocatedIds--;
 	}
 
-	private void setFreePagesNum(int num) {
-		firstPage.bufferForWriting(Header.FREE_PAGES_NUM.offset).putInt(num);
-	}
-
-	private void addFreePage(int pageId) {
-		if (getOffsetForFreePageId() + Integer.SIZE / 8 <= pageSize) {
-			firstPage.bufferForWriting(getOffsetForFreePageId()).putInt(pageId);
-			incrFreePagesNum();
-			return;
+	private boolean isBitmapPage(final int id) {
+		for (final RawPage page : bitmapPages) {
+			if (page.id() == id)
+				return true;
 		}
 
-		throw new UnsupportedOperationException("ResourceHeaderOverflowPages are not supported yet");
-	}
-
-	private void incrFreePagesNum() {
-		firstPage.bufferForWriting(Header.FREE_PAGES_NUM.offset).putInt(getFreePagesNum() + 1);
-	}
-
-	private int getOffsetForFreePageId() {
-		int offset = Header.size();
-		offset += firstPage.bufferForReading(Header.FREE_PAGES_NUM.offset).getInt() * Integer.SIZE / 8;
-		return offset;
-	}
-
-	private void setTotalNumberOfFreePages(int i) {
-		firstPage.bufferForWriting(Header.FREE_PAGES_TOTAL.offset).putInt(i);
-	}
-
-	private int getTotalNumberOfFreePages() {
-		return firstPage.bufferForReading(Header.FREE_PAGES_TOTAL.offset).getInt();
+		return false;
 	}
 }
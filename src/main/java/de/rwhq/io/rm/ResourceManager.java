@@ -11,6 +11,7 @@
 package de.rwhq.io.rm;
 
 import java.io.IOException;
+import java.util.Collection;
 
 /**
  * Provides RawPages from a Resource.
@@ -39,4 +40,19 @@ public interface ResourceManager extends PageManager<RawPage> {
 	 * removes all pages from the ResourceManager
 	 */
 	public void clear();
+
+	/**
+	 * Writes all given pages like {@link #writePage(Object)}, but as one batch. The writes may be reordered and merged,
+	 * and the pages are forced to the disk before the method returns.
+	 *
+	 * @param pages
+	 */
+	public void writePages(Collection<RawPage> pages);
+
+	/**
+	 * Writes all pages that are held back by this ResourceManager and forces the resource to the disk.
+	 *
+	 * @see Durability#WRITE_BACK
+	 */
+	public void sync();
 }
@@ -23,6 +23,12 @@ public class ResourceManagerBuilder {
 	private int     pageSize  = PageSize.DEFAULT_PAGE_SIZE;
 	private boolean open = false;
 	private boolean useReferenceCache = false;
+	private boolean useMapping = false;
+	private int     segmentSize = MappedFileResourceManager.DEFAULT_SEGMENT_SIZE;
+	private int     bufferPoolSize = 0;
+	private boolean useDirectBuffers = false;
+	private Durability durability = Durability.WRITE_THROUGH;
+	private int     residentQuota = 0;
 
 	private File file = null;
 
@@ -31,6 +37,75 @@ public class ResourceManagerBuilder {
 		return this;
 	}
 
+	/**
+	 * @param useMapping
+	 * 		if true, the file is memory mapped, see {@link MappedFileResourceManager}
+	 * @return this
+	 */
+	public ResourceManagerBuilder useMapping(final boolean useMapping) {
+		this.useMapping = useMapping;
+		return this;
+	}
+
+	/**
+	 * @param segmentSize
+	 * 		size of the segments in which the file is mapped if {@link #useMapping(boolean)} is set
+	 * @return this
+	 */
+	public ResourceManagerBuilder segmentSize(final int segmentSize) {
+		checkArgument(segmentSize > 0, "segmentSize must be > 0");
+		this.segmentSize = segmentSize;
+		return this;
+	}
+
+	/**
+	 * @param bufferPoolSize
+	 * 		maximum number of page buffers kept for reuse after their pages have been evicted from the cache. 0 disables
+	 * 		reuse.
+	 * @return this
+	 * @see PageBufferPool
+	 */
+	public ResourceManagerBuilder bufferPoolSize(final int bufferPoolSize) {
+		checkArgument(bufferPoolSize >= 0, "bufferPoolSize must be >= 0");
+		this.bufferPoolSize = bufferPoolSize;
+		return this;
+	}
+
+	/**
+	 * @param useDirectBuffers
+	 * 		if true, page buffers are allocated off-heap. Has no effect if {@link #useMapping(boolean)} is set.
+	 * @return this
+	 */
+	public ResourceManagerBuilder useDirectBuffers(final boolean useDirectBuffers) {
+		this.useDirectBuffers = useDirectBuffers;
+		return this;
+	}
+
+	/**
+	 * @param durability
+	 * 		when the pages of the cache are written, see {@link Durability}. {@link Durability#WRITE_BACK} requires a
+	 * 		cacheSize > 0.
+	 * @return this
+	 */
+	public ResourceManagerBuilder durability(final Durability durability) {
+		checkNotNull(durability, "durability must not be null");
+		this.durability = durability;
+		return this;
+	}
+
+	/**
+	 * @param residentQuota
+	 * 		maximum number of pages the cache keeps resident in addition to its cacheSize frames, see {@link
+	 * 		CachedResourceManager#makeResident(RawPage)}. A BTree keeps its inner nodes resident, so cacheSize becomes the
+	 * 		quota for the leaves. Requires a cacheSize > 0.
+	 * @return this
+	 */
+	public ResourceManagerBuilder residentQuota(final int residentQuota) {
+		checkArgument(residentQuota >= 0, "residentQuota must be >= 0");
+		this.residentQuota = residentQuota;
+		return this;
+	}
+
 	public ResourceManagerBuilder useLock(final boolean useLock) {
 		this.useLock = useLock;
 		return this;
@@ -62,14 +137,17 @@ public class ResourceManagerBuilder {
 
 	public ResourceManager build() {
 		checkNotNull(file, "file must be set");
+		checkArgument(durability == Durability.WRITE_THROUGH || cacheSize > 0, "%s requires a cacheSize > 0", durability);
+		checkArgument(durability != Durability.LOGGED || !useMapping, "%s is not possible with useMapping", durability);
+		checkArgument(residentQuota == 0 || cacheSize > 0, "a residentQuota requires a cacheSize > 0");
 
-		ResourceManager rm = new FileResourceManager(this);
+		ResourceManager rm = useMapping ? new MappedFileResourceManager(this) : new FileResourceManager(this);
 		if(useReferenceCache){
 			rm = new ReferenceCachedResourceManager(rm);
 		}
 
 		if (cacheSize > 0) {
-			rm = new CachedResourceManager(rm, cacheSize);
+			rm = new CachedResourceManager(rm, cacheSize, durability, residentQuota);
 		}
 
 		if(open){
@@ -103,4 +181,16 @@ public class ResourceManagerBuilder {
 	boolean useLock() {
 		return useLock;
 	}
+
+	int getSegmentSize() {
+		return segmentSize;
+	}
+
+	int getBufferPoolSize() {
+		return bufferPoolSize;
+	}
+
+	boolean useDirectBuffers() {
+		return useDirectBuffers;
+	}
 }
@@ -0,0 +1,459 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License:
+ *
+ * http://creativecommons.org/licenses/by-nc/3.0/
+ *
+ * For alternative conditions contact the author.
+ *
+ * Copyright (c) 2011 "Robin Wenglewski <robin@wenglewski.de>"
+ */
+
+package de.rwhq.io.rm;
+
+import com.google.common.base.Objects;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * An append-only log of records, usually in a file next to the file of a {@link FileResourceManager}.
+ * <p/>
+ * Record: LENGTH | TYPE | PAYLOAD | CHECKSUM
+ * <p/>
+ * LENGTH is the length of the payload, CHECKSUM a CRC32 over TYPE and PAYLOAD. A record that was only partially
+ * written before a crash is detected and cut off when the log is opened.
+ * <p/>
+ * Appended records are buffered in memory. {@link #commit(long)} writes everything appended so far with one write and
+ * forces the log, so threads committing at the same time share a single force (group commit).
+ * <p/>
+ * A checkpoint logs the images of all modified pages followed by a checkpoint record ({@link
+ * #logPageImages(Collection, long)}) and then writes the pages in place. The checkpoint record contains the lsn the
+ * images belong to. Other records may be appended while the images are logged, so {@link #replay(RecordHandler)} only
+ * returns the records after this lsn. If a checkpoint is interrupted after its record has been logged, {@link
+ * #restorePages(ResourceManager)} puts the images into the pages again. Once all changes are in the pages, the log can
+ * be truncated.
+ *
+ * @see Durability#LOGGED
+ */
+public class WriteAheadLog {
+
+	private static final Log LOG = LogFactory.getLog(WriteAheadLog.class);
+
+	/** types < 0 are used by the log itself */
+	private static final byte PAGE_IMAGE = -1;
+	private static final byte CHECKPOINT = -2;
+
+	/** LENGTH, TYPE and CHECKSUM */
+	private static final int RECORD_OVERHEAD = Integer.SIZE / 8 + 1 + Integer.SIZE / 8;
+
+	/** called for every record that has to be redone */
+	public interface RecordHandler {
+		/**
+		 * @param type
+		 * 		of the record, as given to {@link WriteAheadLog#append(byte, byte[]...)}
+		 * @param payload
+		 * 		of the record
+		 */
+		void redo(byte type, ByteBuffer payload);
+	}
+
+	private final File file;
+	private RandomAccessFile handle;
+	private FileChannel      channel;
+
+	/** records that have been appended, but not written to the file */
+	private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+	/**
+	 * the lsn of a record is the position after the record, counted from the creation of this instance. Lsns stay valid
+	 * until the log is truncated or reopened.
+	 */
+	private long appendedLsn = 0;
+	private volatile long durableLsn = 0;
+	/** lsn of the first byte in the file */
+	private long firstLsn = 0;
+
+	private final Object forceLock = new Object();
+	private long forces = 0;
+
+	public WriteAheadLog(final File file) {
+		checkNotNull(file, "file must not be null");
+		this.file = file;
+	}
+
+	/**
+	 * opens the log and cuts off a partially written record at its end
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void open() throws IOException {
+		checkState(!isOpen(), "%s is already open", this);
+
+		handle = new RandomAccessFile(file, "rw");
+		channel = handle.getChannel();
+
+		final long end = validLength();
+		if (end < channel.size()) {
+			LOG.warn("cutting off " + (channel.size() - end) + " bytes of an incomplete record in " + file);
+			channel.truncate(end);
+			channel.force(false);
+		}
+
+		firstLsn = appendedLsn;
+		appendedLsn += end;
+		durableLsn = appendedLsn;
+	}
+
+	public boolean isOpen() {
+		return channel != null;
+	}
+
+	/**
+	 * commits all appended records and closes the log
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if (!isOpen())
+			return;
+
+		commit();
+		synchronized (this) {
+			channel.close();
+			handle.close();
+			channel = null;
+			handle = null;
+		}
+	}
+
+	/**
+	 * Appends a record. The record is not durable before {@link #commit(long)} was called with the returned lsn.
+	 *
+	 * @param type
+	 * 		must be >= 0
+	 * @param parts
+	 * 		of the payload
+	 * @return lsn of the record
+	 */
+	public long append(final byte type, final byte[]... parts) {
+		checkArgument(type >= 0, "type must be >= 0");
+		return appendRecord(type, parts);
+	}
+
+	private synchronized long appendRecord(final byte type, final byte[]... parts) {
+		ensureOpen();
+
+		int length = 0;
+		for (final byte[] part : parts)
+			length += part.length;
+
+		final CRC32 crc = new CRC32();
+		crc.update(type);
+		for (final byte[] part : parts)
+			crc.update(part);
+
+		final ByteBuffer head = ByteBuffer.allocate(Integer.SIZE / 8 + 1);
+		head.putInt(length).put(type);
+		buffer.write(head.array(), 0, head.capacity());
+		for (final byte[] part : parts)
+			buffer.write(part, 0, part.length);
+		buffer.write(ByteBuffer.allocate(Integer.SIZE / 8).putInt((int) crc.getValue()).array(), 0, Integer.SIZE / 8);
+
+		appendedLsn += length + RECORD_OVERHEAD;
+		return appendedLsn;
+	}
+
+	/**
+	 * Makes sure that the record with the given lsn and all records before it are on the disk. If another thread is
+	 * already forcing the log, this thread waits and forces the records appended in the meantime in one go.
+	 *
+	 * @param lsn
+	 */
+	public void commit(final long lsn) {
+		if (durableLsn >= lsn)
+			return;
+
+		synchronized (forceLock) {
+			if (durableLsn >= lsn)
+				return;
+
+			final long lsnToForce = writeBuffer();
+			try {
+				channel.force(false);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+
+			durableLsn = lsnToForce;
+			forces++;
+		}
+	}
+
+	/** commits all appended records */
+	public void commit() {
+		final long lsn;
+		synchronized (this) {
+			lsn = appendedLsn;
+		}
+		commit(lsn);
+	}
+
+	/** @return lsn of the last appended record */
+	private synchronized long writeBuffer() {
+		ensureOpen();
+
+		try {
+			final ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+			long position = appendedLsn - firstLsn - bytes.remaining();
+			while (bytes.hasRemaining())
+				position += channel.write(bytes, position);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		buffer.reset();
+		return appendedLsn;
+	}
+
+	/** @return lsn of the last appended record */
+	public synchronized long getLsn() {
+		return appendedLsn;
+	}
+
+	/** @return number of bytes in the log, including the records that have not been written yet */
+	public synchronized long size() {
+		return appendedLsn - firstLsn;
+	}
+
+	/**
+	 * logs the images of the given pages and commits them
+	 *
+	 * @param pages
+	 */
+	public void logPageImages(final Collection<RawPage> pages) {
+		logPageImages(pages, getLsn());
+	}
+
+	/**
+	 * logs the images of the given pages and a checkpoint record and commits them. Other records may be appended at the
+	 * same time.
+	 *
+	 * @param pages
+	 * @param lsn
+	 * 		the pages contain the changes of all records up to this lsn, but none after it
+	 */
+	public void logPageImages(final Collection<RawPage> pages, final long lsn) {
+		for (final RawPage page : pages) {
+			final ByteBuffer image = page.bufferForReading(0);
+			final byte[] bytes = new byte[image.remaining()];
+			image.get(bytes);
+			appendRecord(PAGE_IMAGE, ByteBuffer.allocate(Integer.SIZE / 8).putInt(page.id()).array(), bytes);
+		}
+
+		final long position;
+		synchronized (this) {
+			checkArgument(lsn >= firstLsn && lsn <= appendedLsn, "lsn %s is not in the log", lsn);
+			position = lsn - firstLsn;
+		}
+
+		appendRecord(CHECKPOINT, ByteBuffer.allocate(Long.SIZE / 8).putLong(position).array());
+		commit();
+	}
+
+	/** empties the log, must only be called when all logged changes have been written to their pages */
+	public void truncate() {
+		synchronized (forceLock) {
+			synchronized (this) {
+				ensureOpen();
+				buffer.reset();
+
+				try {
+					channel.truncate(0);
+					channel.force(false);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+
+				firstLsn = appendedLsn;
+				durableLsn = appendedLsn;
+			}
+		}
+	}
+
+	/**
+	 * puts the page images of the last complete checkpoint into the pages of the ResourceManager. The pages are only
+	 * modified, not written.
+	 *
+	 * @param rm
+	 * @return number of restored pages
+	 */
+	public synchronized int restorePages(final ResourceManager rm) {
+		final List<Record> records = readRecords();
+		final int checkpoint = lastCheckpoint(records);
+
+		// the images are between the previous and the last checkpoint record
+		int restored = 0;
+		for (int i = checkpoint - 1; i >= 0 && records.get(i).type != CHECKPOINT; i--) {
+			if (records.get(i).type != PAGE_IMAGE)
+				continue;
+
+			final ByteBuffer payload = records.get(i).payload;
+			final int id = payload.getInt();
+			rm.getPage(id).bufferForWriting(0).put(payload);
+			restored++;
+		}
+
+		return restored;
+	}
+
+	/**
+	 * calls the handler for all records after the lsn of the last checkpoint
+	 *
+	 * @param handler
+	 * @return number of redone records
+	 */
+	public int replay(final RecordHandler handler) {
+		final List<Record> records;
+		synchronized (this) {
+			records = readRecords();
+		}
+
+		final int checkpoint = lastCheckpoint(records);
+		final long position = checkpoint < 0 ? 0 : records.get(checkpoint).payload.getLong(0);
+
+		int redone = 0;
+		for (final Record record : records) {
+			// page images and checkpoints
+			if (record.type < 0 || record.end <= position)
+				continue;
+
+			handler.redo(record.type, record.payload);
+			redone++;
+		}
+
+		return redone;
+	}
+
+	/** @return position of the last checkpoint record, -1 if there is none */
+	private static int lastCheckpoint(final List<Record> records) {
+		for (int i = records.size() - 1; i >= 0; i--) {
+			if (records.get(i).type == CHECKPOINT)
+				return i;
+		}
+
+		return -1;
+	}
+
+	/** @return the records in the file and the buffer */
+	private List<Record> readRecords() {
+		writeBuffer();
+
+		final List<Record> result = new ArrayList<Record>();
+		try {
+			final ByteBuffer log = ByteBuffer.allocate((int) channel.size());
+			channel.read(log, 0);
+			log.flip();
+
+			Record record;
+			while ((record = readRecord(log)) != null)
+				result.add(record);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		return result;
+	}
+
+	/** @return length of the part of the file that consists of complete records */
+	private long validLength() throws IOException {
+		final ByteBuffer log = ByteBuffer.allocate((int) channel.size());
+		channel.read(log, 0);
+		log.flip();
+
+		while (readRecord(log) != null) ;
+
+		return log.position();
+	}
+
+	/**
+	 * @param log
+	 * @return the record at the position of the buffer, or null if there is no complete record. The position is only
+	 *         moved behind the record if it is complete.
+	 */
+	private static Record readRecord(final ByteBuffer log) {
+		final int start = log.position();
+		if (log.remaining() < RECORD_OVERHEAD)
+			return null;
+
+		final int length = log.getInt();
+		if (length < 0 || log.remaining() < length + 1 + Integer.SIZE / 8) {
+			log.position(start);
+			return null;
+		}
+
+		final byte type = log.get();
+		final byte[] payload = new byte[length];
+		log.get(payload);
+
+		final CRC32 crc = new CRC32();
+		crc.update(type);
+		crc.update(payload);
+		if (log.getInt() != (int) crc.getValue()) {
+			log.position(start);
+			return null;
+		}
+
+		return new Record(type, ByteBuffer.wrap(payload), log.position());
+	}
+
+	private void ensureOpen() {
+		checkState(isOpen(), "%s is not open", this);
+	}
+
+	/** @return number of times the log has been forced */
+	public long getNumberOfForces() {
+		synchronized (forceLock) {
+			return forces;
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public String toString() {
+		return Objects.toStringHelper(this)
+				.add("file", file)
+				.add("appendedLsn", appendedLsn)
+				.add("durableLsn", durableLsn)
+				.add("forces", forces)
+				.toString();
+	}
+
+	private static class Record {
+		private final byte       type;
+		private final ByteBuffer payload;
+		/** position after the record */
+		private final long       end;
+
+		private Record(final byte type, final ByteBuffer payload, final long end) {
+			this.type = type;
+			this.payload = payload;
+			this.end = end;
+		}
+	}
+}
@@ -9,12 +9,15 @@
  */
 package de.rwhq.serializer;
 
+import de.rwhq.comparator.FixedStringComparator;
+import de.rwhq.comparator.RawComparator;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.nio.ByteBuffer;
+import java.util.Comparator;
 
-public enum FixedStringSerializer implements FixLengthSerializer<String, byte[]> {
+public enum FixedStringSerializer implements OrderPreservingSerializer<String> {
 	INSTANCE(100),
 	INSTANCE_10(10),
 	INSTANCE_100(100),
@@ -68,4 +71,15 @@ public enum FixedStringSerializer implements FixLengthSerializer<String, byte[]>
 		return length;
 	}
 
+	/**
+	 * The serialized form only preserves the order of {@link FixedStringComparator}, which for ASCII strings is the same
+	 * as the natural order.
+	 *
+	 * @see OrderPreservingSerializer#getRawComparator(java.util.Comparator)
+	 */
+	@Override
+	public RawComparator<String> getRawComparator(final Comparator<? super String> comparator) {
+		return comparator == FixedStringComparator.INSTANCE ? FixedStringComparator.INSTANCE : null;
+	}
+
 }
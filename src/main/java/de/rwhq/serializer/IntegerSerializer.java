@@ -9,9 +9,13 @@
  */
 package de.rwhq.serializer;
 
+import de.rwhq.comparator.IntegerComparator;
+import de.rwhq.comparator.RawComparator;
+
 import java.nio.ByteBuffer;
+import java.util.Comparator;
 
-public enum IntegerSerializer implements FixLengthSerializer<Integer, byte[]> {
+public enum IntegerSerializer implements OrderPreservingSerializer<Integer> {
 	INSTANCE;
 	
 	/* (non-Javadoc)
@@ -39,4 +43,12 @@ public enum IntegerSerializer implements FixLengthSerializer<Integer, byte[]> {
 		return 4;
 	}
 
+	/* (non-Javadoc)
+	 * @see OrderPreservingSerializer#getRawComparator(java.util.Comparator)
+	 */
+	@Override
+	public RawComparator<Integer> getRawComparator(final Comparator<? super Integer> comparator) {
+		return comparator == IntegerComparator.INSTANCE ? IntegerComparator.INSTANCE : null;
+	}
+
 }
@@ -10,9 +10,13 @@
 
 package de.rwhq.serializer;
 
+import de.rwhq.comparator.LongComparator;
+import de.rwhq.comparator.RawComparator;
+
 import java.nio.ByteBuffer;
+import java.util.Comparator;
 
-public enum LongSerializer implements FixLengthSerializer<Long, byte[]> {
+public enum LongSerializer implements OrderPreservingSerializer<Long> {
 	INSTANCE;
 
 	@Override
@@ -32,4 +36,9 @@ public enum LongSerializer implements FixLengthSerializer<Long, byte[]> {
 	public int getSerializedLength() {
 		return Long.SIZE / 8;
 	}
+
+	@Override
+	public RawComparator<Long> getRawComparator(final Comparator<? super Long> comparator) {
+		return comparator == LongComparator.INSTANCE ? LongComparator.INSTANCE : null;
+	}
 }
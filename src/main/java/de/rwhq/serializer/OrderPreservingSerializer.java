@@ -0,0 +1,30 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License:
+ *
+ * http://creativecommons.org/licenses/by-nc/3.0/
+ *
+ * For alternative conditions contact the author.
+ *
+ * Copyright (c) 2011 "Robin Wenglewski <robin@wenglewski.de>"
+ */
+package de.rwhq.serializer;
+
+import de.rwhq.comparator.RawComparator;
+
+import java.util.Comparator;
+
+/**
+ * A FixLengthSerializer whose serialized form can be compared without deserializing it. The BTree uses the
+ * RawComparator of its key serializer automatically, if it orders the keys like the BTree's comparator.
+ *
+ * @param <T>
+ */
+public interface OrderPreservingSerializer<T> extends FixLengthSerializer<T, byte[]> {
+
+	/**
+	 * @param comparator
+	 * @return a RawComparator for the serialized form that orders like the given comparator, or null if the serialized
+	 *         form does not preserve the order of the comparator
+	 */
+	public RawComparator<T> getRawComparator(Comparator<? super T> comparator);
+}
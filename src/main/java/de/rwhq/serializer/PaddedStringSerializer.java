@@ -0,0 +1,77 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License:
+ *
+ * http://creativecommons.org/licenses/by-nc/3.0/
+ *
+ * For alternative conditions contact the author.
+ *
+ * Copyright (c) 2011 "Robin Wenglewski <robin@wenglewski.de>"
+ */
+
+package de.rwhq.serializer;
+
+import de.rwhq.comparator.FixedStringComparator;
+import de.rwhq.comparator.PaddedStringComparator;
+import de.rwhq.comparator.RawComparator;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Serializes Strings to their bytes, padded with zeros. Unlike {@link FixedStringSerializer}, the serialized form
+ * orders like its unsigned bytes, so keys that share a prefix share the prefix of their serialized form as well, see
+ * {@link de.rwhq.comparator.LexicographicComparator}. The Strings must not contain the character 0.
+ */
+public enum PaddedStringSerializer implements OrderPreservingSerializer<String> {
+	INSTANCE(100),
+	INSTANCE_10(10),
+	INSTANCE_100(100),
+	INSTANCE_1000(1000);
+
+	private final int length;
+
+	private PaddedStringSerializer(final int length) {
+		this.length = length;
+	}
+
+	@Override
+	public byte[] serialize(final String o) {
+		final byte[] bytes = o.getBytes();
+
+		// at least one zero byte has to remain
+		if (bytes.length > length - 1)
+			throw new IllegalArgumentException("String is too long to be serialized");
+
+		for (final byte b : bytes) {
+			if (b == 0)
+				throw new IllegalArgumentException("String must not contain the character 0");
+		}
+
+		return Arrays.copyOf(bytes, length);
+	}
+
+	@Override
+	public String deserialize(final byte[] o) {
+		int end = 0;
+		while (end < o.length && o[end] != 0)
+			end++;
+
+		return new String(o, 0, end);
+	}
+
+	@Override
+	public int getSerializedLength() {
+		return length;
+	}
+
+	/**
+	 * The serialized form preserves the order of {@link PaddedStringComparator} and {@link FixedStringComparator}.
+	 *
+	 * @see OrderPreservingSerializer#getRawComparator(java.util.Comparator)
+	 */
+	@Override
+	public RawComparator<String> getRawComparator(final Comparator<? super String> comparator) {
+		return comparator == PaddedStringComparator.INSTANCE || comparator == FixedStringComparator.INSTANCE ?
+				PaddedStringComparator.INSTANCE : null;
+	}
+}
@@ -10,12 +10,25 @@
 
 package de.rwhq.btree;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import de.rwhq.comparator.FixedStringComparator;
 import de.rwhq.comparator.IntegerComparator;
+import de.rwhq.comparator.PaddedStringComparator;
+import de.rwhq.comparator.RawComparator;
 import de.rwhq.comparator.StringComparator;
+import de.rwhq.io.rm.CachedResourceManager;
+import de.rwhq.io.rm.Durability;
+import de.rwhq.io.rm.RawPage;
 import de.rwhq.io.rm.ResourceManager;
 import de.rwhq.io.rm.ResourceManagerBuilder;
+import de.rwhq.io.rm.WriteAheadLog;
 import de.rwhq.serializer.FixedStringSerializer;
 import de.rwhq.serializer.IntegerSerializer;
+import de.rwhq.serializer.OrderPreservingSerializer;
+import de.rwhq.serializer.PaddedStringSerializer;
+import de.rwhq.serializer.Serializer;
+import de.rwhq.serializer.StringSerializer;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.junit.Before;
@@ -29,6 +42,10 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.fest.assertions.Assertions.assertThat;
 import static org.junit.Assert.fail;
@@ -38,6 +55,7 @@ import static org.junit.Assert.fail;
 public class BTreeTest {
 	private static final Log  LOG  = LogFactory.getLog(BTreeTest.class);
 	private static final File file = new File("/tmp/btree-small-test");
+	private static final File logFile = new File(file.getPath() + ".wal");
 
 
 	private static final Integer key1 = 1;
@@ -67,7 +85,7 @@ public class BTreeTest {
 	}
 
 	private static void simpleTests(BTree tree, final Integer keyToAdd) {
-		final int numOfEntries = tree.getNumberOfEntries();
+		final long numOfEntries = tree.getNumberOfEntries();
 
 		tree.add(keyToAdd, value2);
 		assertThat(tree.containsKey(keyToAdd)).isTrue();
@@ -225,6 +243,451 @@ public class BTreeTest {
 			assertThat(iterator.hasNext()).isFalse();
 		}
 
+		@Test
+		public void prefixCompressionShouldRaiseFanoutForKeysWithCommonPrefixes() throws IOException {
+			final int count = 5000;
+			final int uncompressedPages = fillPathTree(false, count);
+			final int compressedPages = fillPathTree(true, count);
+			assertThat(compressedPages).isLessThan(uncompressedPages);
+
+			// the page format is taken from the header
+			final ResourceManager rm = new ResourceManagerBuilder().file(file).build();
+			final BTree<String, Integer> loaded = BTree.create(rm, PaddedStringSerializer.INSTANCE_100,
+					IntegerSerializer.INSTANCE, PaddedStringComparator.INSTANCE);
+			loaded.load();
+			assertThat(loaded.isPrefixCompression()).isTrue();
+			for (int i = 0; i < count; i++)
+				assertThat(loaded.get(path(i))).containsOnly(i);
+			assertThat(loaded.get("/a")).isEmpty();
+			assertThat(loaded.get("/usr/share/doc/z")).isEmpty();
+			loaded.close();
+		}
+
+		@Test(expected = IllegalArgumentException.class)
+		public void prefixCompressionShouldRequireALexicographicComparator() throws IOException {
+			final BTree<String, String> stringTree = BTree.create(createResourceManager(true),
+					FixedStringSerializer.INSTANCE, FixedStringSerializer.INSTANCE, FixedStringComparator.INSTANCE);
+			stringTree.setPrefixCompression(true);
+		}
+
+		@Test
+		public void suffixTruncationShouldReduceTheDepthForLongKeys() throws IOException {
+			final int count = 5000;
+			final Random random = new Random(42);
+			final List<String> keys = new ArrayList<String>();
+			for (int i = 0; i < count; i++)
+				keys.add("/srv/objects/" + Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong()));
+
+			final int depth = fillTreeWithSuffixTruncation(false, keys);
+			assertThat(fillTreeWithSuffixTruncation(true, keys)).isLessThan(depth);
+
+			final ResourceManager rm = new ResourceManagerBuilder().file(file).pageSize(1024).build();
+			final BTree<String, Integer> loaded = BTree.create(rm, PaddedStringSerializer.INSTANCE_100,
+					IntegerSerializer.INSTANCE, PaddedStringComparator.INSTANCE);
+			loaded.load();
+			assertThat(loaded.isSuffixTruncation()).isTrue();
+			loaded.checkStructure();
+
+			// keys that are equal to the truncated separators are found as well
+			final Set<String> prefixes = new HashSet<String>();
+			for (int i = 0; i < count; i += 10) {
+				final String prefix = keys.get(i).substring(0, 15);
+				if (!prefixes.add(prefix))
+					continue;
+
+				loaded.add(prefix, -i);
+				assertThat(loaded.get(prefix)).containsOnly(-i);
+			}
+			for (int i = 0; i < count; i++)
+				assertThat(loaded.get(keys.get(i))).containsOnly(i);
+			loaded.close();
+		}
+
+		@Test(expected = IllegalStateException.class)
+		public void suffixTruncationShouldRequirePrefixCompression() throws IOException {
+			final BTree<String, Integer> stringTree = BTree.create(createResourceManager(true),
+					PaddedStringSerializer.INSTANCE_100, IntegerSerializer.INSTANCE, PaddedStringComparator.INSTANCE);
+			stringTree.setSuffixTruncation(true);
+		}
+
+		/** @return depth of the tree */
+		private int fillTreeWithSuffixTruncation(final boolean suffixTruncation, final List<String> keys)
+				throws IOException {
+			file.delete();
+			final ResourceManager rm = new ResourceManagerBuilder().file(file).pageSize(1024).open().build();
+			final BTree<String, Integer> stringTree = BTree.create(rm, PaddedStringSerializer.INSTANCE_100,
+					IntegerSerializer.INSTANCE, PaddedStringComparator.INSTANCE);
+			stringTree.setPrefixCompression(true);
+			stringTree.setSuffixTruncation(suffixTruncation);
+			stringTree.initialize();
+
+			for (int i = 0; i < keys.size(); i++)
+				stringTree.add(keys.get(i), i);
+
+			stringTree.checkStructure();
+			for (int i = 0; i < keys.size(); i++)
+				assertThat(stringTree.get(keys.get(i))).containsOnly(i);
+
+			final int depth = stringTree.getDepth();
+			stringTree.close();
+			return depth;
+		}
+
+		@Test
+		public void variableLengthSerializersShouldUseSlottedNodes() throws IOException {
+			final int count = 5000;
+			final int fixedPages = fillWordTree(FixedStringSerializer.INSTANCE_100, count);
+			assertThat(fillWordTree(StringSerializer.INSTANCE, count)).isLessThan(fixedPages);
+
+			final ResourceManager rm = new ResourceManagerBuilder().file(file).pageSize(1024).build();
+			final BTree<String, String> loaded = BTree.create(rm, StringSerializer.INSTANCE, StringSerializer.INSTANCE,
+					StringComparator.INSTANCE);
+			loaded.load();
+			assertWords(loaded, count);
+
+			// the layout of the nodes depends on the serializers
+			loaded.close();
+			final BTree<String, String> fixed = BTree.create(rm, FixedStringSerializer.INSTANCE_100,
+					FixedStringSerializer.INSTANCE_100, StringComparator.INSTANCE);
+			try {
+				fixed.load();
+				fail("a slotted tree should not be loaded with fixed-length serializers");
+			} catch (IOException expected) {
+			}
+		}
+
+		@Test
+		public void variableLengthSerializersShouldBulkInitialize() throws IOException {
+			final int count = 5000;
+			final AbstractMap.SimpleEntry<String, String>[] kvs = new AbstractMap.SimpleEntry[count];
+			for (int i = 0; i < count; i++)
+				kvs[i] = new AbstractMap.SimpleEntry<String, String>(word(i), "value-" + i);
+
+			final BTree<String, String> wordTree = BTree.create(createResourceManager(true), StringSerializer.INSTANCE,
+					StringSerializer.INSTANCE, StringComparator.INSTANCE);
+			wordTree.bulkInitialize(kvs, false);
+			wordTree.checkStructure();
+			assertThat(wordTree.getDepth()).isGreaterThan(1);
+
+			wordTree.add(word(count), "value-" + count);
+			for (int i = 0; i <= count; i++)
+				assertThat(wordTree.get(word(i))).containsOnly("value-" + i);
+		}
+
+		@Test(expected = IllegalArgumentException.class)
+		public void variableLengthEntriesShouldFitIntoHalfALeaf() throws IOException {
+			final ResourceManager rm = createResourceManager(true);
+			final BTree<String, String> wordTree = BTree.create(rm, StringSerializer.INSTANCE, StringSerializer.INSTANCE,
+					StringComparator.INSTANCE);
+			wordTree.initialize();
+
+			final char[] value = new char[rm.getPageSize() / 2];
+			Arrays.fill(value, 'v');
+			wordTree.add("key", new String(value));
+		}
+
+		@Test
+		public void postingListsShouldStoreEachKeyOnce() throws IOException {
+			final int fixedPages = fillPostingTree(false);
+			assertThat(fillPostingTree(true)).isLessThan(fixedPages);
+
+			final ResourceManager rm = new ResourceManagerBuilder().file(file).pageSize(1024).build();
+			final BTree<Integer, Integer> loaded = BTree.create(rm, IntegerSerializer.INSTANCE,
+					IntegerSerializer.INSTANCE, IntegerComparator.INSTANCE);
+			loaded.load();
+			assertThat(loaded.isPostingLists()).isTrue();
+
+			// key 7 has an inline list, key 99 a spilled one
+			final long entries = loaded.getNumberOfEntries();
+			loaded.remove(7, 0);
+			assertThat(loaded.get(7)).hasSize(6).excludes(0);
+			loaded.remove(99, 3);
+			assertThat(loaded.get(99)).hasSize(98).excludes(3);
+			loaded.remove(99);
+			assertThat(loaded.get(99)).isEmpty();
+			assertThat(loaded.getNumberOfEntries()).isEqualTo(entries - 100);
+
+			loaded.add(99, 1);
+			assertThat(loaded.get(99)).containsOnly(1);
+			loaded.checkStructure();
+			loaded.close();
+		}
+
+		@Test
+		public void postingListsShouldBulkInitialize() throws IOException {
+			final List<AbstractMap.SimpleEntry<Integer, Integer>> entries =
+					new ArrayList<AbstractMap.SimpleEntry<Integer, Integer>>();
+			for (int key = 0; key < 100; key++)
+				for (int value = 0; value <= key * 3; value++)
+					entries.add(new AbstractMap.SimpleEntry<Integer, Integer>(key, value));
+			Collections.shuffle(entries, new Random(42));
+
+			final BTree<Integer, Integer> postingTree = BTree.create(createResourceManager(true),
+					IntegerSerializer.INSTANCE, IntegerSerializer.INSTANCE, IntegerComparator.INSTANCE);
+			postingTree.setPostingLists(true);
+			postingTree.bulkInitialize(entries.toArray(new AbstractMap.SimpleEntry[entries.size()]), false);
+			postingTree.checkStructure();
+
+			for (int key = 0; key < 100; key++)
+				assertThat(postingTree.get(key)).hasSize(key * 3 + 1);
+
+			int iterated = 0;
+			for (final Iterator<Integer> it = postingTree.getIterator(); it.hasNext(); it.next())
+				iterated++;
+			assertThat(iterated).isEqualTo(entries.size());
+		}
+
+		@Test
+		public void largeValuesShouldBeStoredOutOfLine() throws IOException {
+			final int count = 2500;
+			final int inlineDepth = fillLargeValueTree(0, count);
+			assertThat(fillLargeValueTree(100, count)).isLessThan(inlineDepth);
+
+			final ResourceManager rm = new ResourceManagerBuilder().file(file).pageSize(4096).build();
+			final BTree<Integer, String> loaded = BTree.create(rm, IntegerSerializer.INSTANCE,
+					FixedStringSerializer.INSTANCE_1000, IntegerComparator.INSTANCE);
+			loaded.load();
+			assertThat(loaded.getLargeValueThreshold()).isEqualTo(100);
+			for (int i = 0; i < count; i++)
+				assertThat(loaded.get(i)).containsOnly(largeValue(i));
+
+			loaded.remove(5);
+			assertThat(loaded.get(5)).isEmpty();
+			loaded.add(5, largeValue(-5));
+			assertThat(loaded.get(5)).containsOnly(largeValue(-5));
+
+			int iterated = 0;
+			for (final Iterator<String> it = loaded.getIterator(); it.hasNext(); it.next())
+				iterated++;
+			assertThat(iterated).isEqualTo(count);
+			loaded.close();
+		}
+
+		@Test
+		public void largeVariableLengthValuesShouldBeStoredOutOfLine() throws IOException {
+			final ResourceManager rm = createResourceManager(true);
+			final BTree<String, String> wordTree = BTree.create(rm, StringSerializer.INSTANCE, StringSerializer.INSTANCE,
+					StringComparator.INSTANCE);
+			wordTree.setPostingLists(true);
+			wordTree.setLargeValueThreshold(64);
+			wordTree.initialize();
+
+			// the large values would not fit into half a leaf
+			final int count = 500;
+			for (int i = 0; i < count; i++) {
+				wordTree.add(word(i % 100), "value-" + i);
+				if (i % 3 == 0)
+					wordTree.add(word(i % 100), largeValue(i));
+			}
+			wordTree.checkStructure();
+
+			for (int i = 0; i < count; i++) {
+				assertThat(wordTree.get(word(i % 100))).contains("value-" + i);
+				if (i % 3 == 0)
+					assertThat(wordTree.get(word(i % 100))).contains(largeValue(i));
+			}
+
+			wordTree.remove(word(0), largeValue(0));
+			assertThat(wordTree.get(word(0))).excludes(largeValue(0)).contains(largeValue(300));
+		}
+
+		@Test(expected = IllegalArgumentException.class)
+		public void largeValuesShouldFitIntoADataPage() throws IOException {
+			final ResourceManager rm = createResourceManager(true);
+			final BTree<String, String> wordTree = BTree.create(rm, StringSerializer.INSTANCE, StringSerializer.INSTANCE,
+					StringComparator.INSTANCE);
+			wordTree.setLargeValueThreshold(64);
+			wordTree.initialize();
+
+			final char[] value = new char[rm.getPageSize()];
+			Arrays.fill(value, 'v');
+			wordTree.add("key", new String(value));
+		}
+
+		@Test
+		public void byteArrayValuesShouldBeSerialized() throws IOException {
+			// stores the bytes reversed, so that values that skip the serializer are read back wrongly
+			final Serializer<byte[], byte[]> reversing = new Serializer<byte[], byte[]>() {
+				@Override
+				public byte[] serialize(final byte[] o) {
+					final byte[] result = new byte[o.length];
+					for (int i = 0; i < o.length; i++)
+						result[i] = o[o.length - 1 - i];
+					return result;
+				}
+
+				@Override
+				public byte[] deserialize(final byte[] o) {
+					return serialize(o);
+				}
+			};
+
+			final BTree<Integer, byte[]> bytesTree = BTree.create(createResourceManager(true),
+					IntegerSerializer.INSTANCE, reversing, IntegerComparator.INSTANCE);
+			bytesTree.setLargeValueThreshold(64);
+			bytesTree.initialize();
+
+			final int count = 300;
+			for (int i = 0; i < count; i++)
+				bytesTree.add(i, bytes(i));
+			bytesTree.checkStructure();
+
+			for (int i = 0; i < count; i++) {
+				assertThat(bytesTree.get(i)).hasSize(1);
+				assertThat(Arrays.equals(bytesTree.get(i).get(0), bytes(i))).isTrue();
+			}
+		}
+
+		/** @return an asymmetric value, every third one larger than the large value threshold */
+		private static byte[] bytes(final int i) {
+			final byte[] value = new byte[i % 3 == 0 ? 100 : 10];
+			for (int j = 0; j < value.length; j++)
+				value[j] = (byte) (i + j);
+			return value;
+		}
+
+		/** @return a value with 600 characters */
+		private static String largeValue(final int i) {
+			final char[] value = new char[600];
+			Arrays.fill(value, (char) ('a' + Math.abs(i) % 26));
+			return i + new String(value, 0, value.length - Integer.toString(i).length());
+		}
+
+		/** @return depth of the tree */
+		private int fillLargeValueTree(final int largeValueThreshold, final int count) throws IOException {
+			file.delete();
+			final ResourceManager rm = new ResourceManagerBuilder().file(file).pageSize(4096).open().build();
+			final BTree<Integer, String> valueTree = BTree.create(rm, IntegerSerializer.INSTANCE,
+					FixedStringSerializer.INSTANCE_1000, IntegerComparator.INSTANCE);
+			valueTree.setLargeValueThreshold(largeValueThreshold);
+			valueTree.initialize();
+
+			final List<Integer> order = new ArrayList<Integer>();
+			for (int i = 0; i < count; i++)
+				order.add(i);
+			Collections.shuffle(order, new Random(42));
+			for (final int i : order)
+				valueTree.add(i, largeValue(i));
+			valueTree.checkStructure();
+
+			for (int i = 0; i < count; i++)
+				assertThat(valueTree.get(i)).containsOnly(largeValue(i));
+
+			final int depth = valueTree.getDepth();
+			valueTree.close();
+			return depth;
+		}
+
+		/**
+		 * adds key values to every key below 200, in random order
+		 *
+		 * @return number of pages of the tree
+		 */
+		private int fillPostingTree(final boolean postingLists) throws IOException {
+			file.delete();
+			final ResourceManager rm = new ResourceManagerBuilder().file(file).pageSize(1024).open().build();
+			final BTree<Integer, Integer> postingTree = BTree.create(rm, IntegerSerializer.INSTANCE,
+					IntegerSerializer.INSTANCE, IntegerComparator.INSTANCE);
+			postingTree.setPostingLists(postingLists);
+			postingTree.initialize();
+
+			final List<AbstractMap.SimpleEntry<Integer, Integer>> entries =
+					new ArrayList<AbstractMap.SimpleEntry<Integer, Integer>>();
+			for (int key = 0; key < 200; key++)
+				for (int value = 0; value < key; value++)
+					entries.add(new AbstractMap.SimpleEntry<Integer, Integer>(key, value));
+			Collections.shuffle(entries, new Random(42));
+			for (final AbstractMap.SimpleEntry<Integer, Integer> entry : entries)
+				postingTree.add(entry.getKey(), entry.getValue());
+			postingTree.checkStructure();
+
+			// without posting lists, the values of a key that spans several leaves are not all found
+			if (postingLists)
+				for (int key = 0; key < 200; key++)
+					assertThat(postingTree.get(key)).hasSize(key).excludes(key);
+			assertThat(postingTree.getNumberOfEntries()).isEqualTo(entries.size());
+
+			final int pages = rm.numberOfPages();
+			postingTree.close();
+			return pages;
+		}
+
+		/** @return a unique key with 1 to 15 characters */
+		private static String word(final int i) {
+			final StringBuilder word = new StringBuilder(Integer.toString(i, 36));
+			for (int j = 0; j < i % 5 * 3; j++)
+				word.append('.');
+			return word.toString();
+		}
+
+		/**
+		 * adds a value for every word, then removes some of the words again
+		 *
+		 * @return number of pages of the tree
+		 */
+		private int fillWordTree(final Serializer<String, byte[]> serializer, final int count) throws IOException {
+			file.delete();
+			final ResourceManager rm = new ResourceManagerBuilder().file(file).pageSize(1024).open().build();
+			final BTree<String, String> wordTree = BTree.create(rm, serializer, serializer, StringComparator.INSTANCE);
+			wordTree.initialize();
+
+			final List<Integer> order = new ArrayList<Integer>();
+			for (int i = 0; i < count; i++)
+				order.add(i);
+			Collections.shuffle(order, new Random(42));
+			for (final int i : order)
+				wordTree.add(word(i), "value-" + i);
+			wordTree.checkStructure();
+
+			for (final int i : order) {
+				if (i % 10 == 5)
+					wordTree.remove(word(i));
+			}
+			assertWords(wordTree, count);
+
+			final int pages = rm.numberOfPages();
+			wordTree.close();
+			return pages;
+		}
+
+		private static void assertWords(final BTree<String, String> wordTree, final int count) {
+			for (int i = 0; i < count; i++) {
+				if (i % 10 == 5)
+					assertThat(wordTree.get(word(i))).isEmpty();
+				else
+					assertThat(wordTree.get(word(i))).containsOnly("value-" + i);
+			}
+		}
+
+		private static String path(final int i) {
+			return "/usr/share/doc/package-" + (i % 7) + "/changelog-" + i;
+		}
+
+		/** @return number of pages of the tree */
+		private int fillPathTree(final boolean prefixCompression, final int count) throws IOException {
+			file.delete();
+			final ResourceManager rm = new ResourceManagerBuilder().file(file).pageSize(4096).open().build();
+			final BTree<String, Integer> pathTree = BTree.create(rm, PaddedStringSerializer.INSTANCE_100,
+					IntegerSerializer.INSTANCE, PaddedStringComparator.INSTANCE);
+			pathTree.setPrefixCompression(prefixCompression);
+			pathTree.initialize();
+
+			final List<Integer> order = new ArrayList<Integer>();
+			for (int i = 0; i < count; i++)
+				order.add(i);
+			Collections.shuffle(order, new Random(42));
+			for (final int i : order)
+				pathTree.add(path(i), i);
+
+			pathTree.checkStructure();
+			for (int i = 0; i < count; i++)
+				assertThat(pathTree.get(path(i))).containsOnly(i);
+
+			final int pages = rm.numberOfPages();
+			pathTree.close();
+			return pages;
+		}
+
 		@Test
 		public void manualConstructor() throws IOException {
 			final String filePath = "/tmp/manualConstructorTestBtree";
@@ -539,6 +1002,384 @@ public class BTreeTest {
 			assertThat(tree.getResourceManager().isOpen()).isFalse();
 		}
 
+		@Test
+		public void mappedResourceManager() throws IOException, InterruptedException {
+			tree.close();
+			file.delete();
+			rm = new ResourceManagerBuilder().pageSize(PAGE_SIZE).file(file).useMapping(true).cacheSize(0).open()
+					.build();
+			tree = createNewTree(rm);
+
+			fillTreeWithStructureCheck(tree, 100);
+			simpleTests(tree, 1000);
+
+			tree.close();
+			tree.load();
+			for (int i = 0; i < 100; i++)
+				assertThat(tree.get(i)).hasSize(1).contains(i);
+		}
+
+		@Test
+		public void smallCache() throws IOException, InterruptedException {
+			tree.close();
+			file.delete();
+			rm = new ResourceManagerBuilder().pageSize(PAGE_SIZE).file(file).cacheSize(4).open().build();
+			tree = createNewTree(rm);
+
+			fillTreeWithStructureCheck(tree, 100);
+			simpleTests(tree, 1000);
+			assertThat(((CachedResourceManager) rm).getEvictionCount()).isGreaterThan(0);
+
+			tree.close();
+			tree.load();
+			for (int i = 0; i < 100; i++)
+				assertThat(tree.get(i)).hasSize(1).contains(i);
+		}
+
+		@Test
+		public void splitsShouldUnpinTheirNodes() throws IOException, InterruptedException {
+			tree.close();
+			file.delete();
+			rm = new ResourceManagerBuilder().pageSize(PAGE_SIZE).file(file).cacheSize(4).open().build();
+			tree = createNewTree(rm);
+
+			fillTreeWithStructureCheck(tree, 1000);
+			int pinned = 0;
+			for (int id = 1; id <= rm.numberOfPages(); id++)
+				if (rm.hasPage(id) && rm.getPage(id).isPinned())
+					pinned++;
+
+			// the header page and the root
+			assertThat(pinned).isEqualTo(2);
+		}
+
+		@Test
+		public void writeBack() throws IOException, InterruptedException {
+			tree.close();
+			file.delete();
+			rm = new ResourceManagerBuilder().pageSize(PAGE_SIZE).file(file).cacheSize(4)
+					.durability(Durability.WRITE_BACK).open().build();
+			tree = createNewTree(rm);
+
+			fillTreeWithStructureCheck(tree, 100);
+			assertThat(((CachedResourceManager) rm).getNumberOfDirtyPages()).isGreaterThan(0);
+
+			tree.sync();
+			assertThat(((CachedResourceManager) rm).getNumberOfDirtyPages()).isEqualTo(0);
+
+			simpleTests(tree, 1000);
+			tree.close();
+			tree.load();
+			for (int i = 0; i < 100; i++)
+				assertThat(tree.get(i)).hasSize(1).contains(i);
+		}
+
+		@Test
+		public void loggedOperationsShouldBeRedoneAfterACrash() throws IOException, InterruptedException {
+			final ResourceManagerBuilder builder = newLoggedFile(PAGE_SIZE, 8);
+			tree = openLogged(builder, IntegerSerializer.INSTANCE);
+			// a fuzzy checkpoint that is still running would let the next operations trigger a sharp checkpoint, which
+			// empties the log
+			tree.getCheckpointer().setExecutor(MoreExecutors.sameThreadExecutor());
+			tree.initialize();
+
+			fillTreeWithStructureCheck(tree, 100);
+			for (int i = 0; i < 100; i += 10)
+				tree.remove(i);
+			assertThat(logFile.length()).isGreaterThan(0);
+
+			crash();
+			reopenLogged(builder);
+
+			assertThat(tree.getNumberOfEntries()).isEqualTo(90);
+			assertThat(logFile.length()).isEqualTo(0);
+			for (int i = 0; i < 100; i++)
+				assertThat(tree.containsKey(i)).isEqualTo(i % 10 != 0);
+		}
+
+		@Test
+		public void failedOperationsShouldNotBeRedoneAfterACrash() throws IOException, InterruptedException {
+			final ResourceManagerBuilder builder = newLoggedFile(PAGE_SIZE, 8);
+			tree = openLogged(builder, IntegerSerializer.INSTANCE);
+			tree.initialize();
+
+			fillTreeWithStructureCheck(tree, 100);
+			assertThat(tree.getDepth()).isGreaterThan(1);
+
+			// without posting lists, single values can only be removed from a tree without inner nodes
+			try {
+				tree.remove(5, 5);
+				fail("removing a single value from a tree with inner nodes should not be supported");
+			} catch (UnsupportedOperationException expected) {
+			}
+			tree.add(100, 100);
+
+			crash();
+			reopenLogged(builder);
+
+			assertThat(tree.getNumberOfEntries()).isEqualTo(101);
+			for (int i = 0; i <= 100; i++)
+				assertThat(tree.containsKey(i)).isTrue();
+		}
+
+		@Test
+		public void fuzzyCheckpointsShouldNotBreakTheRecovery() throws IOException {
+			final ResourceManagerBuilder builder = newLoggedFile(PAGE_SIZE, 16);
+			tree = openLogged(builder, IntegerSerializer.INSTANCE);
+			tree.initialize();
+
+			for (int i = 0; i < 1000; i++)
+				tree.add(i, i);
+			for (int i = 0; i < 1000; i += 10)
+				tree.remove(i);
+			assertThat(tree.getCheckpointer().getNumberOfFuzzyCheckpoints()).isGreaterThan(0);
+
+			crash();
+			reopenLogged(builder);
+
+			assertThat(tree.getNumberOfEntries()).isEqualTo(900);
+			for (int i = 0; i < 1000; i++)
+				assertThat(tree.containsKey(i)).isEqualTo(i % 10 != 0);
+		}
+
+		@Test
+		public void spilledPostingListsRemovedDuringAFuzzyCheckpointShouldBeRecovered() throws IOException {
+			final ResourceManagerBuilder builder = newLoggedFile(1024, 64);
+			tree = openLogged(builder, IntegerSerializer.INSTANCE);
+			tree.setPostingLists(true);
+			tree.initialize();
+
+			// both lists spill to two overflow pages
+			for (int value = 0; value < 300; value++) {
+				tree.add(1, value);
+				tree.add(2, value);
+			}
+
+			final CountDownLatch copiesWritten = startHeldFuzzyCheckpoint(tree.getCheckpointer());
+			tree.remove(1);
+			copiesWritten.countDown();
+
+			crash();
+			reopenLogged(builder);
+
+			assertThat(tree.getNumberOfEntries()).isEqualTo(300);
+			assertThat(tree.get(1)).isEmpty();
+			assertThat(tree.get(2)).hasSize(300);
+			tree.close();
+		}
+
+		@Test
+		public void largeValuesRemovedDuringAFuzzyCheckpointShouldNotBreakClose() throws IOException {
+			final ResourceManagerBuilder builder = newLoggedFile(4096, 64);
+			BTree<Integer, String> valueTree = openLogged(builder, FixedStringSerializer.INSTANCE_1000);
+			valueTree.setLargeValueThreshold(100);
+			valueTree.initialize();
+			for (int i = 0; i < 20; i++)
+				valueTree.add(i, largeValue(i));
+
+			// the first DataPages become empty and are removed
+			final CountDownLatch copiesWritten = startHeldFuzzyCheckpoint(valueTree.getCheckpointer());
+			for (int i = 0; i < 12; i++)
+				valueTree.remove(i);
+			copiesWritten.countDown();
+			valueTree.close();
+
+			valueTree = openLogged(builder, FixedStringSerializer.INSTANCE_1000);
+			valueTree.load();
+
+			assertThat(valueTree.getNumberOfEntries()).isEqualTo(8);
+			for (int i = 0; i < 20; i++)
+				assertThat(valueTree.get(i).size()).isEqualTo(i < 12 ? 0 : 1);
+			assertThat(valueTree.get(15)).containsOnly(largeValue(15));
+			valueTree.close();
+		}
+
+		/**
+		 * replaces the tree with an empty file and removes the log
+		 *
+		 * @param pageSize
+		 * @param cacheSize
+		 * @return builder for the ResourceManager of a tree whose operations are logged to {@link #logFile}
+		 */
+		private static ResourceManagerBuilder newLoggedFile(final int pageSize, final int cacheSize) throws IOException {
+			tree.close();
+			file.delete();
+			logFile.delete();
+			return new ResourceManagerBuilder().pageSize(pageSize).file(file).cacheSize(cacheSize)
+					.durability(Durability.LOGGED).open();
+		}
+
+		/** @return a tree on a new ResourceManager of the builder, not yet initialized or loaded */
+		private static <V> BTree<Integer, V> openLogged(final ResourceManagerBuilder builder,
+		                                                final Serializer<V, byte[]> valueSerializer)
+				throws IOException {
+			rm = builder.build();
+			final BTree<Integer, V> result = BTree.create(rm, IntegerSerializer.INSTANCE, valueSerializer,
+					IntegerComparator.INSTANCE);
+			result.setWriteAheadLog(new WriteAheadLog(logFile));
+			return result;
+		}
+
+		/** loads the tree again after a {@link #crash()}, which redoes the logged operations */
+		private static void reopenLogged(final ResourceManagerBuilder builder) throws IOException {
+			tree = openLogged(builder, IntegerSerializer.INSTANCE);
+			tree.load();
+		}
+
+		/** drops the cache without writing the modified pages, once the running fuzzy checkpoint wrote its copies */
+		private static void crash() throws IOException {
+			tree.getCheckpointer().awaitFuzzyCheckpoint();
+			tree.getWriteAheadLog().close();
+			((CachedResourceManager) rm).getResourceManager().close();
+		}
+
+		/**
+		 * starts a fuzzy checkpoint that takes its copies now, but only writes them once the returned latch is counted
+		 * down
+		 */
+		private static CountDownLatch startHeldFuzzyCheckpoint(final Checkpointer checkpointer) {
+			final CountDownLatch latch = new CountDownLatch(1);
+			final ExecutorService executor = Executors.newSingleThreadExecutor();
+			executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws InterruptedException {
+					latch.await();
+					return null;
+				}
+			});
+
+			checkpointer.setExecutor(executor);
+			checkpointer.startFuzzyCheckpoint();
+			return latch;
+		}
+
+		/**
+		 * replaces the tree with a new one in a new file
+		 *
+		 * @param builder
+		 * 		for the ResourceManager of the new file
+		 * @param count
+		 * 		the keys 0 to count - 1 are added
+		 */
+		private void fillNewTree(final ResourceManagerBuilder builder, final int count)
+				throws IOException, InterruptedException {
+			tree.close();
+			file.delete();
+			rm = builder.open().build();
+			tree = createNewTree(rm);
+			fillTree(tree, count);
+		}
+
+		/** like {@link #fillNewTree(ResourceManagerBuilder, int)}, but loads the tree again, so nothing is in memory */
+		private void reloadFilledTree(final ResourceManagerBuilder builder, final int count)
+				throws IOException, InterruptedException {
+			fillNewTree(builder, count);
+			tree.close();
+
+			rm = builder.build();
+			tree = BTree.create(rm, IntegerSerializer.INSTANCE, IntegerSerializer.INSTANCE, IntegerComparator.INSTANCE);
+			tree.load();
+		}
+
+		@Test
+		public void asyncLookupsShouldFindTheSameValuesAsGet() throws Exception {
+			reloadFilledTree(new ResourceManagerBuilder().pageSize(PAGE_SIZE).file(file).cacheSize(16), 1000);
+
+			final ExecutorService executor = Executors.newFixedThreadPool(4);
+			try {
+				tree.setIoExecutor(executor);
+				final List<ListenableFuture<List<Integer>>> values = new ArrayList<ListenableFuture<List<Integer>>>();
+				final List<ListenableFuture<Boolean>> contained = new ArrayList<ListenableFuture<Boolean>>();
+				for (int i = 0; i < 1010; i++) {
+					values.add(tree.getAsync(i));
+					contained.add(tree.containsKeyAsync(i));
+				}
+
+				for (int i = 0; i < 1010; i++) {
+					assertThat(values.get(i).get()).isEqualTo(tree.get(i));
+					assertThat(contained.get(i).get()).isEqualTo(i < 1000);
+				}
+			} finally {
+				executor.shutdown();
+			}
+		}
+
+		@Test
+		public void longRangeScansShouldReadLeavesAhead() throws Exception {
+			reloadFilledTree(new ResourceManagerBuilder().pageSize(PAGE_SIZE).file(file).cacheSize(256), 2000);
+			// each read-ahead is done when the scan requests it, so the scan cannot outrun it
+			tree.getReadAhead().setExecutor(MoreExecutors.sameThreadExecutor());
+
+			final CachedResourceManager crm = (CachedResourceManager) rm;
+			final Iterator<Integer> iterator = tree.getIterator();
+			for (int i = 0; i < 2000; i++) {
+				assertThat(iterator.hasNext()).isTrue();
+				assertThat(iterator.next()).isEqualTo(i);
+			}
+			assertThat(iterator.hasNext()).isFalse();
+			assertThat(crm.getPrefetchCount()).isGreaterThan(0);
+		}
+
+		@Test
+		public void scanIteratorsShouldNotFillTheCache() throws Exception {
+			reloadFilledTree(new ResourceManagerBuilder().pageSize(PAGE_SIZE).file(file).cacheSize(256), 2000);
+
+			final Iterator<Integer> iterator = tree.getScanIterator();
+			for (int i = 0; i < 2000; i++)
+				assertThat(iterator.next()).isEqualTo(i);
+			assertThat(iterator.hasNext()).isFalse();
+
+			final CachedResourceManager crm = (CachedResourceManager) rm;
+			assertThat(crm.getScanReadCount() + crm.getPrefetchCount()).isGreaterThan(100);
+			assertThat(crm.getNumberOfCachedPages()).isLessThan(50);
+		}
+
+		@Test
+		public void lookupsShouldOnlyReadTheLeafIfInnerNodesAreResident() throws Exception {
+			reloadFilledTree(new ResourceManagerBuilder().pageSize(PAGE_SIZE).file(file).cacheSize(8)
+					.residentQuota(1000), 2000);
+			final CachedResourceManager crm = (CachedResourceManager) rm;
+
+			for (int i = 0; i < 2000; i++)
+				tree.get(i);
+			assertThat(crm.getNumberOfResidentPages()).isGreaterThan(100);
+
+			final Random random = new Random(42);
+			for (int i = 0; i < 500; i++) {
+				final int key = random.nextInt(2000);
+				final long misses = crm.getMissCount();
+				assertThat(tree.get(key)).containsOnly(key);
+				assertThat(crm.getMissCount() - misses).isLessThanOrEqualTo(1);
+			}
+		}
+
+		@Test
+		public void residentInnerNodesShouldReferenceTheirChildrenDirectly() throws Exception {
+			fillNewTree(new ResourceManagerBuilder().pageSize(PAGE_SIZE).file(file).cacheSize(8).residentQuota(1000),
+					2000);
+
+			final InnerNodeManager<Integer, Integer> inm = tree.getInnerNodeManager();
+			final InnerNode<Integer, Integer> root = inm.getPage(rm.getPage(1).bufferForReading(4).getInt());
+			final int childId = root.getPageIdForKey(1000);
+			for (int i = 0; i < 2000; i++)
+				tree.get(i);
+
+			// the hops below the root do not need the decoded nodes of the manager anymore
+			inm.clearCache();
+			for (int i = 0; i < 2000; i++)
+				assertThat(tree.get(i)).containsOnly(i);
+			assertThat(inm.isCached(childId)).isFalse();
+		}
+
+		@Test(expected = IllegalArgumentException.class)
+		public void writeAheadLogShouldRequireLoggedDurability() throws IOException {
+			tree.close();
+			file.delete();
+			rm = new ResourceManagerBuilder().pageSize(PAGE_SIZE).file(file).cacheSize(8).open().build();
+			BTree.create(rm, IntegerSerializer.INSTANCE, IntegerSerializer.INSTANCE, IntegerComparator.INSTANCE)
+					.setWriteAheadLog(new WriteAheadLog(new File(file.getPath() + ".wal")));
+		}
+
 		@Test
 		public void bulkInsert1Layer() throws IOException {
 			tree.close();
@@ -555,6 +1396,112 @@ public class BTreeTest {
 			simpleTests(tree, size + 1);
 		}
 
+		@Test
+		public void lookupsShouldNeedOnlyALogarithmicNumberOfComparisons() throws IOException {
+			file.delete();
+			rm = new ResourceManagerBuilder().pageSize(4096).file(file).cacheSize(0).open().build();
+			final long[] comparisons = new long[1];
+			tree = BTree.create(rm, IntegerSerializer.INSTANCE, IntegerSerializer.INSTANCE, new Comparator<Integer>() {
+				@Override public int compare(final Integer o1, final Integer o2) {
+					comparisons[0]++;
+					return IntegerComparator.INSTANCE.compare(o1, o2);
+				}
+			});
+			tree.initialize();
+
+			final int count = 20 * 1000;
+			for (int i = 0; i < count; i++)
+				tree.add(i, i);
+			assertThat(tree.getDepth()).isEqualTo(2);
+
+			comparisons[0] = 0;
+			for (int i = 0; i < count; i++)
+				assertThat(tree.get(i)).containsOnly(i);
+
+			// a binary search per level plus one comparison for equality
+			final int log = 32 - Integer.numberOfLeadingZeros(Math.max(tree.getMaxLeafKeys(), tree.getMaxInnerKeys()));
+			assertThat(comparisons[0]).isLessThanOrEqualTo((long) count * tree.getDepth() * (log + 1));
+		}
+
+		@Test
+		public void lookupsShouldNotDeserializeKeysIfTheyCanBeComparedInPlace() throws IOException {
+			final int[] deserializations = new int[1];
+			final OrderPreservingSerializer<Integer> keySerializer = new OrderPreservingSerializer<Integer>() {
+				@Override public RawComparator<Integer> getRawComparator(final Comparator<? super Integer> comparator) {
+					return IntegerSerializer.INSTANCE.getRawComparator(comparator);
+				}
+
+				@Override public int getSerializedLength() {
+					return IntegerSerializer.INSTANCE.getSerializedLength();
+				}
+
+				@Override public byte[] serialize(final Integer o) {
+					return IntegerSerializer.INSTANCE.serialize(o);
+				}
+
+				@Override public Integer deserialize(final byte[] o) {
+					deserializations[0]++;
+					return IntegerSerializer.INSTANCE.deserialize(o);
+				}
+			};
+
+			tree = BTree.create(rm, keySerializer, IntegerSerializer.INSTANCE, IntegerComparator.INSTANCE);
+			tree.initialize();
+			final int count = 100;
+			for (int i = 0; i < count; i++)
+				tree.add(i, i);
+			assertThat(tree.getDepth()).isGreaterThan(1);
+
+			deserializations[0] = 0;
+			for (int i = 0; i < count; i++) {
+				assertThat(tree.get(i)).containsOnly(i);
+				assertThat(tree.containsKey(i)).isTrue();
+			}
+			final Iterator<Integer> iterator = tree.getIterator(10, 20);
+			while (iterator.hasNext())
+				iterator.next();
+
+			assertThat(deserializations[0]).isEqualTo(0);
+		}
+
+		@Test
+		public void shouldConvertLegacyHeaders() throws IOException, InterruptedException {
+			fillTree(tree, 10);
+			tree.close();
+
+			// legacy layout: NUM_OF_ENTRIES(int) ROOT_ID
+			rm.open();
+			final RawPage header = rm.getPage(1);
+			header.bufferForWriting(0).putInt(10);
+			header.bufferForWriting(8).putLong(0);
+			header.sync();
+			rm.close();
+
+			tree = BTree.create(rm, IntegerSerializer.INSTANCE, IntegerSerializer.INSTANCE, IntegerComparator.INSTANCE);
+			tree.load();
+			assertThat(tree.getNumberOfEntries()).isEqualTo(10);
+			assertThat(tree.get(5)).containsOnly(5);
+
+			final ByteBuffer converted = rm.getPage(1).bufferForReading(0);
+			assertThat(converted.getInt()).isEqualTo(-BTree.VERSION);
+			converted.getInt();
+			assertThat(converted.getLong()).isEqualTo(10L);
+		}
+
+		@Test(expected = IOException.class)
+		public void loadShouldFailOnUnknownHeaderVersions() throws IOException {
+			tree.close();
+
+			rm.open();
+			final RawPage header = rm.getPage(1);
+			header.bufferForWriting(0).putInt(-BTree.VERSION - 1);
+			header.sync();
+			rm.close();
+
+			tree = BTree.create(rm, IntegerSerializer.INSTANCE, IntegerSerializer.INSTANCE, IntegerComparator.INSTANCE);
+			tree.load();
+		}
+
 		@Test
 		public void bulkInsert2Layers() throws IOException {
 			bulkInsert((tree.getMaxInnerKeys() + 1) * tree.getMaxLeafKeys());
@@ -822,6 +1769,38 @@ public class BTreeTest {
 					entries + " entries took " + diff + " milliseconds");
 		}
 
+		@Ignore
+		@Test
+		public void randomLeafLookups() throws IOException {
+			final long[] comparisons = new long[1];
+			final LeafPageManager<Integer, Integer> lpm = BTree.create(rm, IntegerSerializer.INSTANCE,
+					IntegerSerializer.INSTANCE, new Comparator<Integer>() {
+				@Override public int compare(final Integer o1, final Integer o2) {
+					comparisons[0]++;
+					return IntegerComparator.INSTANCE.compare(o1, o2);
+				}
+			}).getLeafPageManager();
+
+			final LeafNode<Integer, Integer> leaf = lpm.createPage();
+			final int entries = leaf.getMaximalNumberOfEntries();
+			for (int i = 0; i < entries; i++)
+				leaf.insert(i, i);
+
+			final int numOfReads = 1000 * 1000;
+			final Random rand = new Random();
+			comparisons[0] = 0;
+
+			final long start = System.nanoTime();
+			for (int i = 0; i < numOfReads; i++)
+				leaf.get(rand.nextInt(entries));
+			final long diff = System.nanoTime() - start;
+
+			// a linear scan needs entries / 2 comparisons on average
+			LOG.info("looking up " + numOfReads + " random keys in a leaf with " + entries + " entries took " +
+					(diff / numOfReads) + " ns per lookup, " + ((double) comparisons[0] / numOfReads) +
+					" comparisons per lookup (linear scan: " + (entries / 2) + ")");
+		}
+
 		@Ignore
 		@Test
 		public void randomReadsWithCache() throws IOException, InterruptedException {
@@ -21,6 +21,7 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Comparator;
 import java.util.Iterator;
 
 import static org.fest.assertions.Assertions.assertThat;
@@ -209,6 +210,36 @@ public class LeafNodeTest {
 	}
 
 
+	@Test
+	public void lookupsShouldNeedOnlyALogarithmicNumberOfComparisons() throws IOException {
+		final int[] comparisons = new int[1];
+		lpm = BTree.create(rm, IntegerSerializer.INSTANCE, IntegerSerializer.INSTANCE, new Comparator<Integer>() {
+			@Override public int compare(final Integer o1, final Integer o2) {
+				comparisons[0]++;
+				return IntegerComparator.INSTANCE.compare(o1, o2);
+			}
+		}).getLeafPageManager();
+		leaf = lpm.createPage();
+
+		// every key twice
+		final int entries = leaf.getMaximalNumberOfEntries() / 2 * 2;
+		for (int i = 0; i < entries; i++)
+			assertThat(leaf.insert(i / 2, i)).isNull();
+
+		comparisons[0] = 0;
+		for (int key = 0; key < entries / 2; key++) {
+			assertThat(leaf.get(key)).containsOnly(2 * key, 2 * key + 1);
+			assertThat(leaf.getIterator(key, null).next()).isEqualTo(2 * key + 1);
+		}
+		assertThat(leaf.containsKey(entries)).isFalse();
+		assertThat(leaf.containsKey(-1)).isFalse();
+
+		// each lookup is a binary search plus one comparison for equality
+		final int lookups = entries + 2;
+		final int log = 32 - Integer.numberOfLeadingZeros(entries);
+		assertThat(comparisons[0]).isLessThanOrEqualTo(lookups * (log + 1));
+	}
+
 	@Test
 	public void prependEntriesShouldWork() {
 		final int leaf2Id = lpm.createPage().getId();
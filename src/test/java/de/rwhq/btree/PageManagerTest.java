@@ -69,4 +69,62 @@ public class PageManagerTest {
 			assertThat(inm.getPage(id)).isNotNull();
 		}
 	}
+
+	@Test
+	public void getPageShouldReturnTheCachedNode() {
+		final LeafNode<String, String> leaf = lpm.createPage();
+		final InnerNode<String, String> inner = inm.createPage();
+
+		assertThat(lpm.getPage(leaf.getId())).isSameAs(leaf);
+		assertThat(inm.getPage(inner.getId())).isSameAs(inner);
+		assertThat(lpm.hasPage(inner.getId())).isFalse();
+		assertThat(inm.hasPage(leaf.getId())).isFalse();
+	}
+
+	@Test
+	public void getNodeShouldDecodeAPageOnlyOnce() {
+		final int leafId = lpm.createPage().getId();
+		final int innerId = inm.createPage().getId();
+		lpm.clearCache();
+		inm.clearCache();
+
+		final Node<String, String> leaf = inm.getNode(leafId);
+		assertThat(leaf).isInstanceOf(LeafNode.class);
+		assertThat(lpm.isCached(leafId)).isTrue();
+		assertThat(inm.isCached(leafId)).isFalse();
+		assertThat(inm.getNode(leafId)).isSameAs(leaf);
+
+		final Node<String, String> inner = inm.getNode(innerId);
+		assertThat(inner).isInstanceOf(InnerNode.class);
+		assertThat(inm.getPage(innerId)).isSameAs(inner);
+		assertThat(lpm.isCached(innerId)).isFalse();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void getNodeShouldFailForPagesThatAreNoNodes() {
+		inm.getNode(rm.createPage().id());
+	}
+
+	@Test
+	public void removePageShouldInvalidateTheCache() {
+		final int id = lpm.createPage().getId();
+		lpm.removePage(id);
+
+		assertThat(lpm.isCached(id)).isFalse();
+		assertThat(lpm.hasPage(id)).isFalse();
+	}
+
+	@Test
+	public void clearingTheTreeShouldInvalidateTheCache() throws IOException {
+		tree.initialize();
+		for (int i = 0; i < 10; i++)
+			tree.add("" + i, "" + i);
+		final int id = lpm.createPage().getId();
+		assertThat(lpm.isCached(id)).isTrue();
+
+		tree.clear();
+		assertThat(lpm.isCached(id)).isFalse();
+		assertThat(tree.getNumberOfEntries()).isEqualTo(0);
+		assertThat(tree.get("1")).isEmpty();
+	}
 }
@@ -0,0 +1,133 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License:
+ *
+ * http://creativecommons.org/licenses/by-nc/3.0/
+ *
+ * For alternative conditions contact the author.
+ *
+ * Copyright (c) 2011 "Robin Wenglewski <robin@wenglewski.de>"
+ */
+
+package de.rwhq.io.rm;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class AsyncResourceManagerTest {
+
+	private static final File file = new File("/tmp/AsyncResourceManagerTest");
+
+	private CachedResourceManager rm;
+	private ExecutorService       executor;
+	private AsyncResourceManager  asyncRm;
+
+	@Before
+	public void setUp() {
+		file.delete();
+		rm = (CachedResourceManager) new ResourceManagerBuilder().file(file).cacheSize(10).open().build();
+		executor = Executors.newFixedThreadPool(4);
+		asyncRm = new AsyncResourceManager(rm, executor);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		executor.shutdown();
+		rm.close();
+	}
+
+	@Test
+	public void pagesShouldBeReadInParallelAndEndUpInTheCache() throws Exception {
+		final int count = 50;
+		for (int i = 0; i < count; i++) {
+			final RawPage page = rm.createPage();
+			page.bufferForWriting(0).putInt(page.id());
+			page.sync();
+		}
+
+		final List<ListenableFuture<RawPage>> futures = new ArrayList<ListenableFuture<RawPage>>();
+		for (int id = 1; id <= count; id++)
+			futures.add(asyncRm.getPageAsync(id));
+
+		for (final RawPage page : Futures.allAsList(futures).get())
+			assertThat(page.bufferForReading(0).getInt()).isEqualTo(page.id());
+
+		final RawPage page = rm.getPage(count);
+		assertThat(asyncRm.getPageAsync(count).isDone()).isTrue();
+		assertThat(asyncRm.getPageAsync(count).get()).isSameAs(page);
+	}
+
+	@Test
+	public void writtenPagesShouldBeReadable() throws Exception {
+		final RawPage page = rm.createPage();
+		page.bufferForWriting(0).putInt(1234);
+		asyncRm.writePageAsync(page).get();
+
+		assertThat(page.isModified()).isFalse();
+		assertThat(rm.getResourceManager().getPage(page.id()).bufferForReading(0).getInt()).isEqualTo(1234);
+	}
+
+	@Test
+	public void missingPagesShouldFailTheFuture() throws InterruptedException {
+		try {
+			asyncRm.getPageAsync(4711).get();
+			fail("reading a page that does not exist should fail");
+		} catch (ExecutionException e) {
+			assertThat(e.getCause()).isInstanceOf(PageNotFoundException.class);
+		}
+	}
+
+	@Test
+	public void pagesThatLeaveThePoolWhileTheyAreReadShouldBeReadAgain() throws IOException {
+		final RawPage page = rm.createPage();
+		page.bufferForWriting(0).putInt(1);
+		page.sync();
+		final int id = page.id();
+		final int other = rm.createPage().id();
+		rm.close();
+
+		final AtomicBoolean interfere = new AtomicBoolean(false);
+		final CachedResourceManager[] crm = new CachedResourceManager[1];
+		final FileResourceManager frm = new FileResourceManager(new ResourceManagerBuilder().file(file)) {
+			@Override
+			public RawPage getPage(final int pageId) {
+				final RawPage read = super.getPage(pageId);
+				if (interfere.getAndSet(false)) {
+					final WeakReference<RawPage> changed = changeAndEvict(crm[0], pageId, other);
+					for (int i = 0; i < 10 && changed.get() != null; i++)
+						System.gc();
+				}
+				return read;
+			}
+		};
+		frm.open();
+		crm[0] = rm = new CachedResourceManager(frm, 1);
+
+		interfere.set(true);
+		assertThat(rm.getPageConcurrently(id).bufferForReading(0).getInt()).isEqualTo(2);
+	}
+
+	/** another thread writes the page and it is evicted before the concurrent read of the old copy is installed */
+	private static WeakReference<RawPage> changeAndEvict(final CachedResourceManager crm, final int id, final int other) {
+		final RawPage page = crm.getPage(id);
+		page.bufferForWriting(0).putInt(2);
+		page.sync();
+		crm.getPage(other);
+		return new WeakReference<RawPage>(page);
+	}
+}
@@ -10,16 +10,19 @@
 
 package de.rwhq.io.rm;
 
-import com.google.common.cache.Cache;
 import org.apache.log4j.Logger;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 
 import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.*;
 
 
 public class CachedResourceManagerTest {
@@ -65,14 +68,13 @@ public class CachedResourceManagerTest {
 		}
 
 		final CachedResourceManager crm = (CachedResourceManager) rm;
-		final Cache<Integer, RawPage> cache = crm.getCache();
 
 		final Random random = new Random();
 		for (int i = 0; i < count * 10; i++) {
 			rm.getPage(pages[random.nextInt(10)].id());
 		}
 
-		assertThat(cache.stats().hitCount()).isEqualTo(count * 10);
+		assertThat(crm.getHitCount()).isEqualTo(count * 10);
 	}
 
 
@@ -87,7 +89,8 @@ public class CachedResourceManagerTest {
 			rm.createPage();
 		}
 
-		assertThat(crm.getCache().asMap().containsKey(p)).isFalse();
+		assertThat(crm.isCached(p.id())).isFalse();
+		assertThat(p.isModified()).isFalse();
 		assertThat(rm.getPage(p.id()).bufferForReading(0).getInt()).isEqualTo(testInt);
 	}
 
@@ -98,4 +101,287 @@ public class CachedResourceManagerTest {
 		rm.open();
 		assertThat(rm.getPage(page.id())).isNotSameAs(page);
 	}
+
+	@Test
+	public void shouldTrackDirtyPages() {
+		final CachedResourceManager crm = (CachedResourceManager) rm;
+		final RawPage p1 = rm.createPage();
+		final RawPage p2 = rm.createPage();
+		rm.createPage();
+		assertThat(crm.getNumberOfDirtyPages()).isEqualTo(0);
+
+		p1.bufferForWriting(0).putInt(1);
+		p1.bufferForWriting(4).putInt(2);
+		p2.bufferForWriting(0).putInt(3);
+		assertThat(crm.getNumberOfDirtyPages()).isEqualTo(2);
+		assertThat(crm.getDirtyBytes()).isEqualTo(2L * rm.getPageSize());
+
+		p1.sync();
+		assertThat(p1.isModified()).isFalse();
+		assertThat(crm.getNumberOfDirtyPages()).isEqualTo(1);
+
+		crm.sync();
+		assertThat(crm.getNumberOfDirtyPages()).isEqualTo(0);
+		assertThat(crm.getDirtyBytes()).isEqualTo(0L);
+	}
+
+	@Test
+	public void syncShouldOnlyWriteModifiedPages() throws IOException {
+		final ResourceManager inner = mock(ResourceManager.class);
+		final CachedResourceManager crm = new CachedResourceManager(inner, 10);
+		final RawPage clean = new RawPage(ByteBuffer.allocate(PageSize.DEFAULT_PAGE_SIZE), 1, inner);
+		final RawPage dirty = new RawPage(ByteBuffer.allocate(PageSize.DEFAULT_PAGE_SIZE), 2, inner);
+		when(inner.getPage(1)).thenReturn(clean);
+		when(inner.getPage(2)).thenReturn(dirty);
+
+		crm.getPage(1);
+		crm.getPage(2).bufferForWriting(0).putInt(1);
+		crm.sync();
+
+		verify(inner).writePages(Arrays.asList(dirty));
+		verify(inner, never()).writePage(clean);
+	}
+
+	@Test
+	public void writeBackShouldDeferWritesUntilSyncOrEviction() {
+		final ResourceManager inner = mock(ResourceManager.class);
+		final CachedResourceManager crm = new CachedResourceManager(inner, 1, Durability.WRITE_BACK);
+		final RawPage p1 = new RawPage(ByteBuffer.allocate(PageSize.DEFAULT_PAGE_SIZE), 1, inner);
+		final RawPage p2 = new RawPage(ByteBuffer.allocate(PageSize.DEFAULT_PAGE_SIZE), 2, inner);
+		when(inner.getPage(1)).thenReturn(p1);
+		when(inner.getPage(2)).thenReturn(p2);
+
+		crm.getPage(1).bufferForWriting(0).putInt(1);
+		p1.sync();
+		verify(inner, never()).writePage(p1);
+		assertThat(p1.isModified()).isTrue();
+
+		// evicts p1
+		crm.getPage(2).bufferForWriting(0).putInt(2);
+		verify(inner).writePage(p1);
+		// the mock does not reset the flag like a real ResourceManager
+		p1.setModified(false);
+
+		p2.sync();
+		verify(inner, never()).writePage(p2);
+		crm.sync();
+		verify(inner).writePages(Arrays.asList(p2));
+	}
+
+	@Test
+	public void loggedShouldNotWriteEvictedPages() {
+		final ResourceManager inner = mock(ResourceManager.class);
+		final CachedResourceManager crm = new CachedResourceManager(inner, 1, Durability.LOGGED);
+		final RawPage p1 = new RawPage(ByteBuffer.allocate(PageSize.DEFAULT_PAGE_SIZE), 1, inner);
+		final RawPage p2 = new RawPage(ByteBuffer.allocate(PageSize.DEFAULT_PAGE_SIZE), 2, inner);
+		when(inner.getPage(1)).thenReturn(p1);
+		when(inner.getPage(2)).thenReturn(p2);
+
+		crm.getPage(1).bufferForWriting(0).putInt(1);
+		crm.getPage(2);
+		assertThat(crm.isCached(1)).isFalse();
+		verify(inner, never()).writePage(p1);
+		assertThat(crm.getDirtyPages()).containsOnly(p1);
+		assertThat(crm.getPage(1)).isSameAs(p1);
+
+		crm.sync();
+		verify(inner).writePages(Arrays.asList(p1));
+	}
+
+	@Test
+	public void loggedShouldFreeRemovedPagesOnSync() {
+		final ResourceManager inner = mock(ResourceManager.class);
+		final CachedResourceManager crm = new CachedResourceManager(inner, 4, Durability.LOGGED);
+		final RawPage p1 = new RawPage(ByteBuffer.allocate(PageSize.DEFAULT_PAGE_SIZE), 1, inner);
+		when(inner.getPage(1)).thenReturn(p1);
+		when(inner.hasPage(1)).thenReturn(true);
+
+		crm.getPage(1);
+		final RawPage copy = p1.copy();
+		crm.removePage(1);
+		assertThat(crm.hasPage(1)).isFalse();
+		verify(inner, never()).removePage(1);
+
+		// copies of removed pages are not written anymore
+		crm.writeCopies(Arrays.asList(copy));
+		verify(inner, never()).writePage(copy);
+
+		crm.sync();
+		verify(inner).removePage(1);
+	}
+
+	@Test
+	public void evictedPagesShouldNotBeLoadedTwice() {
+		final CachedResourceManager crm = (CachedResourceManager) rm;
+		final RawPage p = rm.createPage();
+
+		for (int i = 0; i < crm.getCacheSize() * 2; i++) {
+			rm.createPage();
+		}
+
+		assertThat(crm.isCached(p.id())).isFalse();
+		assertThat(rm.getPage(p.id())).isSameAs(p);
+		assertThat(crm.isCached(p.id())).isTrue();
+	}
+
+	@Test
+	public void pinnedPagesShouldNotBeEvicted() throws IOException {
+		rm.close();
+		rm = new ResourceManagerBuilder().file(file).cacheSize(3).open().build();
+		final CachedResourceManager crm = (CachedResourceManager) rm;
+
+		final RawPage pinned = rm.createPage();
+		pinned.pin();
+		for (int i = 0; i < 10; i++) {
+			rm.createPage();
+		}
+
+		assertThat(crm.isCached(pinned.id())).isTrue();
+		assertThat(crm.getNumberOfCachedPages()).isEqualTo(3);
+		assertThat(crm.getEvictionCount()).isEqualTo(8);
+
+		pinned.unpin();
+		for (int i = 0; i < 10; i++) {
+			rm.createPage();
+		}
+		assertThat(crm.isCached(pinned.id())).isFalse();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void shouldThrowIfAllPagesArePinned() throws IOException {
+		rm.close();
+		rm = new ResourceManagerBuilder().file(file).cacheSize(2).open().build();
+
+		rm.createPage().pin();
+		rm.createPage().pin();
+		rm.createPage();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void unpinShouldFailIfPageIsNotPinned() {
+		rm.createPage().unpin();
+	}
+
+	@Test
+	public void removePageShouldFreeTheFrame() {
+		final CachedResourceManager crm = (CachedResourceManager) rm;
+		final RawPage p = rm.createPage();
+		p.bufferForWriting(0).putInt(1);
+
+		rm.removePage(p.id());
+		assertThat(crm.isCached(p.id())).isFalse();
+		assertThat(crm.getNumberOfCachedPages()).isEqualTo(0);
+		assertThat(crm.getNumberOfDirtyPages()).isEqualTo(0);
+	}
+
+	@Test
+	public void prefetchedPagesShouldBeEvictedBeforeReferencedOnes() throws IOException {
+		final int[] ids = new int[8];
+		for (int i = 0; i < ids.length; i++) {
+			final RawPage page = rm.createPage();
+			page.bufferForWriting(0).putInt(i);
+			ids[i] = page.id();
+		}
+		rm.close();
+		rm = new ResourceManagerBuilder().file(file).cacheSize(4).open().build();
+		final CachedResourceManager crm = (CachedResourceManager) rm;
+
+		final RawPage used = rm.getPage(ids[0]);
+		final List<RawPage> prefetched = crm.prefetch(ids[1], 3);
+		assertThat(prefetched).hasSize(3);
+		for (int i = 0; i < 3; i++)
+			assertThat(prefetched.get(i).bufferForReading(0).getInt()).isEqualTo(i + 1);
+		assertThat(crm.getPrefetchCount()).isEqualTo(3);
+		assertThat(crm.getMissCount()).isEqualTo(1);
+
+		// the pool is full, the new pages replace the old ones that have not been used
+		crm.prefetch(ids[4], 3);
+		assertThat(crm.isCached(used.id())).isTrue();
+		assertThat(rm.getPage(ids[6])).isSameAs(crm.prefetch(ids[6], 1).get(0));
+		assertThat(crm.getHitCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void prefetchShouldStopAtTheLastPage() {
+		final CachedResourceManager crm = (CachedResourceManager) rm;
+		final RawPage page = rm.createPage();
+		page.sync();
+
+		assertThat(crm.prefetch(page.id(), 10)).containsOnly(page);
+		assertThat(crm.getPageConcurrently(page.id())).isSameAs(page);
+	}
+
+	@Test
+	public void frequentlyUsedPagesShouldSurviveAScan() throws IOException {
+		final int[] ids = new int[1000];
+		for (int i = 0; i < ids.length; i++)
+			ids[i] = rm.createPage().id();
+		rm.close();
+		rm = new ResourceManagerBuilder().file(file).cacheSize(200).open().build();
+		final CachedResourceManager crm = (CachedResourceManager) rm;
+		assertThat(crm.getWindowSize()).isEqualTo(2);
+
+		for (int round = 0; round < 5; round++) {
+			for (int i = 0; i < 50; i++)
+				rm.getPage(ids[i]);
+		}
+
+		for (int i = 100; i < ids.length; i++)
+			rm.getPage(ids[i]);
+
+		for (int i = 0; i < 50; i++)
+			assertThat(crm.isCached(ids[i])).isTrue();
+		assertThat(crm.getRejectionCount()).isGreaterThan(0);
+	}
+
+	@Test
+	public void scanReadsShouldNotTakeFrames() throws IOException {
+		final int[] ids = new int[20];
+		for (int i = 0; i < ids.length; i++)
+			ids[i] = rm.createPage().id();
+		rm.close();
+		rm = new ResourceManagerBuilder().file(file).cacheSize(10).open().build();
+		final CachedResourceManager crm = (CachedResourceManager) rm;
+
+		final PageRing ring = new PageRing(4);
+		final RawPage first = crm.getPage(ids[0], ring);
+		for (int i = 1; i < ids.length; i++)
+			crm.getPage(ids[i], ring);
+
+		assertThat(crm.getNumberOfCachedPages()).isEqualTo(0);
+		assertThat(crm.getScanReadCount()).isEqualTo(ids.length);
+		assertThat(ring.size()).isEqualTo(4);
+
+		// the page is still referenced, so it is the same instance
+		assertThat(rm.getPage(ids[0])).isSameAs(first);
+		assertThat(crm.isCached(ids[0])).isTrue();
+	}
+
+	@Test
+	public void residentPagesShouldNotTakeFrames() throws IOException {
+		rm.close();
+		rm = new ResourceManagerBuilder().file(file).cacheSize(3).residentQuota(2).open().build();
+		final CachedResourceManager crm = (CachedResourceManager) rm;
+
+		final RawPage first = rm.createPage();
+		final RawPage second = rm.createPage();
+		assertThat(crm.makeResident(first)).isTrue();
+		assertThat(crm.makeResident(second)).isTrue();
+		assertThat(crm.makeResident(rm.createPage())).isFalse();
+		assertThat(crm.getNumberOfResidentPages()).isEqualTo(2);
+		assertThat(crm.getNumberOfCachedPages()).isEqualTo(1);
+
+		first.bufferForWriting(0).putInt(1);
+		for (int i = 0; i < 10; i++)
+			rm.createPage();
+
+		assertThat(crm.isResident(first.id())).isTrue();
+		assertThat(rm.getPage(first.id())).isSameAs(first);
+		assertThat(crm.getNumberOfCachedPages()).isEqualTo(3);
+		assertThat(crm.getNumberOfDirtyPages()).isEqualTo(1);
+
+		rm.removePage(second.id());
+		assertThat(crm.isCached(second.id())).isFalse();
+		assertThat(crm.getNumberOfResidentPages()).isEqualTo(1);
+	}
 }
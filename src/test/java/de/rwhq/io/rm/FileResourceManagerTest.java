@@ -18,6 +18,8 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
 
 import static org.fest.assertions.Assertions.assertThat;
 import static org.junit.Assert.fail;
@@ -168,6 +170,86 @@ public class FileResourceManagerTest {
 		assertThat(rm.getFile().length()).isEqualTo(rm.getPageSize());
 	}
 
+	@Test
+	public void writePagesShouldNotWriteAnythingIfAPageDoesNotExist() {
+		final RawPage page = rm.createPage();
+		page.bufferForWriting(0).putInt(1);
+		final RawPage unknown = new RawPage(ByteBuffer.allocate(rm.getPageSize()), page.id() + 1, rm);
+
+		try {
+			rm.writePages(Arrays.asList(page, unknown));
+			fail("writing a page that does not exist should throw an exception");
+		} catch (PageNotFoundException expected) {
+		}
+
+		assertThat(page.isModified()).isTrue();
+		assertThat(rm.getFile().length()).isEqualTo(rm.getPageSize());
+	}
+
+	@Test
+	public void shouldGrowTheBitmapOverMultiplePages() throws IOException {
+		rm.close();
+		file.delete();
+		rm = (FileResourceManager) new ResourceManagerBuilder().file(file).pageSize(64).cacheSize(0).open().build();
+
+		// page 0 holds (64 - 12) * 8 = 416 bits, additional bitmap pages 480 bits
+		final int count = 2000;
+		final int[] ids = new int[count];
+		for (int i = 0; i < count; i++)
+			ids[i] = rm.createPage().id();
+		for (int i = 0; i < count; i += 3)
+			rm.removePage(ids[i]);
+
+		final int numberOfPages = rm.numberOfPages();
+		assertThat(numberOfPages).isEqualTo(count - (count + 2) / 3);
+
+		rm.close();
+		rm = (FileResourceManager) new ResourceManagerBuilder().file(file).pageSize(64).cacheSize(0).open().build();
+
+		assertThat(rm.numberOfPages()).isEqualTo(numberOfPages);
+		int found = 0;
+		for (int i = 1; i <= count + 5; i++) {
+			if (rm.hasPage(i))
+				found++;
+		}
+
+		// the bitmap pages are allocated too
+		assertThat(found).isGreaterThan(numberOfPages);
+		assertThat(found).isLessThan(numberOfPages + 6);
+	}
+
+	@Test
+	public void shouldAddressPagesBeyondTwoGigabytes() throws IOException {
+		// the hint makes the header reserve an extent far out in the file, so the file stays sparse
+		final int id = (int) (3L * 1024 * 1024 * 1024 / rm.getPageSize());
+		final RawPage page = rm.createPage(id);
+		assertThat(page.id()).isEqualTo(id);
+
+		page.bufferForWriting(0).putLong(Long.MAX_VALUE);
+		page.sync();
+		assertThat(rm.getFile().length()).isEqualTo((long) (id + 1) * rm.getPageSize());
+
+		rm.close();
+		rm = createOpenResourceManager();
+		assertThat(rm.getPage(id).bufferForReading(0).getLong()).isEqualTo(Long.MAX_VALUE);
+	}
+
+	@Test
+	public void getPagesShouldReadConsecutivePagesAtOnce() {
+		for (int i = 0; i < 5; i++) {
+			final RawPage page = rm.createPage();
+			page.bufferForWriting(0).putInt(page.id());
+			page.sync();
+		}
+
+		final List<RawPage> pages = rm.getPages(2, 10);
+		assertThat(pages).hasSize(4);
+		for (int i = 0; i < pages.size(); i++) {
+			assertThat(pages.get(i).id()).isEqualTo(i + 2);
+			assertThat(pages.get(i).bufferForReading(0).getInt()).isEqualTo(i + 2);
+		}
+	}
+
 	public static class ResourceManagerTestImpl extends ResourceManagerTest {
 
 		@Override
@@ -0,0 +1,135 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License:
+ *
+ * http://creativecommons.org/licenses/by-nc/3.0/
+ *
+ * For alternative conditions contact the author.
+ *
+ * Copyright (c) 2011 "Robin Wenglewski <robin@wenglewski.de>"
+ */
+
+package de.rwhq.io.rm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class MappedFileResourceManagerTest {
+
+	private final static File file = new File("/tmp/mapped_frm_test");
+
+	// two pages per segment to make sure that we map more than one segment
+	private final static int SEGMENT_SIZE = 2 * PageSize.DEFAULT_PAGE_SIZE;
+
+	private MappedFileResourceManager rm;
+
+	static MappedFileResourceManager createOpenResourceManager() {
+		return (MappedFileResourceManager) new ResourceManagerBuilder().file(file).useMapping(true)
+				.segmentSize(SEGMENT_SIZE).cacheSize(0).open().build();
+	}
+
+	static MappedFileResourceManager createNewOpenResourceManager() {
+		file.delete();
+		return createOpenResourceManager();
+	}
+
+	@Before
+	public void setUp() {
+		rm = createNewOpenResourceManager();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		rm.close();
+	}
+
+	@Test
+	public void builderShouldCreateMappedResourceManager() {
+		assertThat(rm).isInstanceOf(MappedFileResourceManager.class);
+		assertThat(rm.getPagesPerSegment()).isEqualTo(2);
+	}
+
+	@Test
+	public void pagesShouldBeViewsOfTheMapping() {
+		final RawPage page = rm.createPage();
+		page.bufferForWriting(0).putInt(1234);
+
+		// no writePage necessary
+		assertThat(rm.getPage(page.id()).bufferForReading(0).getInt()).isEqualTo(1234);
+	}
+
+	@Test
+	public void shouldGrowOverMultipleSegments() throws IOException {
+		final int count = 10;
+		final int[] ids = new int[count];
+		for (int i = 0; i < count; i++) {
+			final RawPage page = rm.createPage();
+			page.bufferForWriting(0).putInt(i);
+			page.sync();
+			ids[i] = page.id();
+		}
+
+		assertThat(rm.getFile().length() >= (count + 1) * PageSize.DEFAULT_PAGE_SIZE).isTrue();
+
+		rm.close();
+		rm = createOpenResourceManager();
+
+		assertThat(rm.numberOfPages()).isEqualTo(count);
+		for (int i = 0; i < count; i++) {
+			assertThat(rm.getPage(ids[i]).bufferForReading(0).getInt()).isEqualTo(i);
+		}
+	}
+
+	@Test
+	public void shouldCopyForeignPagesOnWrite() {
+		final int id = rm.createPage().id();
+		final RawPage foreign = new RawPage(ByteBuffer.allocate(PageSize.DEFAULT_PAGE_SIZE), id);
+		foreign.bufferForWriting(0).putInt(4321);
+
+		rm.writePage(foreign);
+		assertThat(rm.getPage(id).bufferForReading(0).getInt()).isEqualTo(4321);
+	}
+
+	@Test
+	public void reusedPagesShouldBeEmpty() {
+		final RawPage page = rm.createPage();
+		page.bufferForWriting(0).putInt(1234);
+		rm.removePage(page.id());
+
+		final RawPage reused = rm.createPage();
+		assertThat(reused.id()).isEqualTo(page.id());
+		assertThat(reused.bufferForReading(0).getInt()).isEqualTo(0);
+	}
+
+	@Test
+	public void pagesFromBeforeAClearShouldNotCrash() {
+		RawPage stale = null;
+		for (int i = 0; i < 10; i++)
+			stale = rm.createPage();
+		stale.bufferForWriting(0).putInt(1234);
+
+		rm.clear();
+		assertThat(rm.numberOfPages()).isEqualTo(0);
+
+		// the region of the stale page is still backed by the file
+		stale.bufferForWriting(0).putInt(4321);
+		assertThat(stale.bufferForReading(0).getInt()).isEqualTo(4321);
+
+		for (int i = 0; i < 10; i++)
+			assertThat(rm.createPage().bufferForReading(0).getInt()).isEqualTo(0);
+	}
+
+	public static class ResourceManagerTestImpl extends ResourceManagerTest {
+
+		@Override
+		protected ResourceManager resetResourceManager() {
+			return createNewOpenResourceManager();
+		}
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License:
+ *
+ * http://creativecommons.org/licenses/by-nc/3.0/
+ *
+ * For alternative conditions contact the author.
+ *
+ * Copyright (c) 2011 "Robin Wenglewski <robin@wenglewski.de>"
+ */
+
+package de.rwhq.io.rm;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class PageBufferPoolTest {
+
+	private static final int  PAGE_SIZE = 64;
+	private static final File file      = new File("/tmp/page_buffer_pool_test");
+
+	private PageBufferPool pool;
+
+	@Before
+	public void setUp() {
+		pool = new PageBufferPool(PAGE_SIZE, 2, false);
+	}
+
+	@Test
+	public void shouldAllocateIfEmpty() {
+		final ByteBuffer buf = pool.acquire();
+
+		assertThat(buf.capacity()).isEqualTo(PAGE_SIZE);
+		assertThat(buf.position()).isEqualTo(0);
+		assertThat(pool.getNumberOfAllocations()).isEqualTo(1);
+		assertThat(pool.getNumberOfReuses()).isEqualTo(0);
+	}
+
+	@Test
+	public void releasedBuffersShouldBeReusedAndEmpty() {
+		final ByteBuffer buf = pool.acquire();
+		buf.putInt(0, 1234);
+		buf.position(10);
+		pool.release(buf);
+
+		final ByteBuffer reused = pool.acquire();
+		assertThat(reused).isSameAs(buf);
+		assertThat(reused.position()).isEqualTo(0);
+		assertThat(reused.getInt(0)).isEqualTo(0);
+		assertThat(pool.getNumberOfAllocations()).isEqualTo(1);
+		assertThat(pool.getNumberOfReuses()).isEqualTo(1);
+	}
+
+	@Test
+	public void shouldBeBounded() {
+		for (int i = 0; i < 5; i++)
+			pool.release(ByteBuffer.allocate(PAGE_SIZE));
+
+		assertThat(pool.getNumberOfReleases()).isEqualTo(5);
+		assertThat(pool.getNumberOfFreeBuffers()).isEqualTo(2);
+	}
+
+	@Test
+	public void shouldIgnoreForeignBuffers() {
+		pool.release(ByteBuffer.allocate(PAGE_SIZE + 1));
+		pool.release(ByteBuffer.allocateDirect(PAGE_SIZE));
+
+		assertThat(pool.getNumberOfFreeBuffers()).isEqualTo(0);
+	}
+
+	@Test
+	public void directPoolShouldZeroReusedBuffers() {
+		pool = new PageBufferPool(PAGE_SIZE, 2, true);
+		final ByteBuffer buf = pool.acquire();
+		assertThat(buf.isDirect()).isTrue();
+
+		buf.putLong(PAGE_SIZE - 8, -1L);
+		pool.release(buf);
+
+		final ByteBuffer reused = pool.acquire();
+		assertThat(reused).isSameAs(buf);
+		assertThat(reused.getLong(PAGE_SIZE - 8)).isEqualTo(0L);
+	}
+
+	@Test
+	public void directPoolShouldZeroTheTailOfOddSizedBuffers() {
+		pool = new PageBufferPool(PAGE_SIZE + 3, 2, true);
+		final ByteBuffer buf = pool.acquire();
+		buf.put(PAGE_SIZE + 2, (byte) 1);
+		pool.release(buf);
+
+		final ByteBuffer reused = pool.acquire();
+		assertThat(reused).isSameAs(buf);
+		assertThat(reused.get(PAGE_SIZE + 2)).isEqualTo((byte) 0);
+		assertThat(reused.position()).isEqualTo(0);
+	}
+
+	@Test
+	public void releasedPagesShouldKeepTheirBufferWhileReferenced() {
+		final RawPage page = new RawPage(pool.acquire(), 1, null, pool);
+		page.release();
+		page.release();
+
+		collectGarbage();
+		assertThat(pool.getNumberOfFreeBuffers()).isEqualTo(0);
+		assertThat(page.bufferForReading(0).capacity()).isEqualTo(PAGE_SIZE);
+	}
+
+	@Test
+	public void releasedPagesShouldReturnTheirBufferWhenCollected() {
+		final RawPage page = new RawPage(pool.acquire(), 1, null, pool);
+		page.release();
+		assertThat(pool.getNumberOfFreeBuffers()).isEqualTo(0);
+
+		// the page is treated as collected, without depending on System.gc()
+		pool.enqueueReleasedPages();
+		assertThat(pool.getNumberOfFreeBuffers()).isEqualTo(1);
+		assertThat(pool.getNumberOfReleases()).isEqualTo(1);
+	}
+
+	@Test
+	public void cachedResourceManagerShouldWorkWithPooledDirectBuffers() throws IOException {
+		file.delete();
+		final CachedResourceManager rm = (CachedResourceManager) new ResourceManagerBuilder().file(file)
+				.cacheSize(2).bufferPoolSize(4).useDirectBuffers(true).open().build();
+		final PageBufferPool pool = ((FileResourceManager) rm.getResourceManager()).getBufferPool();
+		assertThat(pool.isDirect()).isTrue();
+
+		final int count = 50;
+		final int[] ids = new int[count];
+		for (int i = 0; i < count; i++) {
+			final RawPage page = rm.createPage();
+			page.bufferForWriting(0).putInt(i);
+			ids[i] = page.id();
+		}
+
+		for (int i = 0; i < count; i++)
+			assertThat(rm.getPage(ids[i]).bufferForReading(0).getInt()).isEqualTo(i);
+
+		rm.close();
+	}
+
+	private static void collectGarbage() {
+		System.gc();
+		try {
+			Thread.sleep(10);
+		} catch (InterruptedException ignored) {
+		}
+	}
+}
@@ -53,12 +53,14 @@ public class ResourceHeaderTest {
 		verifyNoMoreInteractions(rm);
 
 		RawPage firstPage = pages.get(0);
-		assertThat(firstPage.bufferForReading(ResourceHeader.Header.FREE_PAGES_NUM.offset).getInt()).isEqualTo(0);
-		assertThat(firstPage.bufferForReading(ResourceHeader.Header.FREE_PAGES_TOTAL.offset).getInt()).isEqualTo(0);
-				assertThat(firstPage.bufferForReading(ResourceHeader.Header.LAST_ID.offset).getInt()).isEqualTo(0);
+		assertThat(firstPage.bufferForReading(ResourceHeader.Header.VERSION.offset).getInt())
+				.isEqualTo(ResourceHeader.BITMAP_VERSION);
 		assertThat(firstPage.bufferForReading(ResourceHeader.Header.PAGE_SIZE.offset).getInt()).isEqualTo(pageSize);
 		assertThat(firstPage.bufferForReading(ResourceHeader.Header.NEXT_PAGE.offset).getInt()).isEqualTo(0);
 
+		// only the header page is allocated
+		assertThat(firstPage.bufferForReading(ResourceHeader.Header.size()).get()).isEqualTo((byte) 1);
+
 		// for other tests depending on this one
 		reset(rm);
 	}
@@ -81,9 +83,14 @@ public class ResourceHeaderTest {
 	public void generateId(){
 		initialize();
 		
-		header.generateId();
-		assertThat(pages.get(0).bufferForReading(ResourceHeader.Header.LAST_ID.offset).getInt()).isEqualTo(1);
+		assertThat(header.generateId()).isEqualTo(1);
 		assertThat(header.getNumberOfPages()).isEqualTo(1);
+
+		// the whole first extent is reserved on disk
+		final ByteBuffer bitmap = pages.get(0).bufferForReading(ResourceHeader.Header.size());
+		for (int i = 0; i < ResourceHeader.EXTENT_SIZE / 8; i++)
+			assertThat(bitmap.get()).isEqualTo((byte) 0xFF);
+		assertThat(bitmap.get()).isEqualTo((byte) 0);
 		
 		verify(rm).writePage(pages.get(0));
 		verifyNoMoreInteractions(rm);
@@ -106,4 +113,93 @@ public class ResourceHeaderTest {
 		assertThat(header.getNumberOfPages()).isEqualTo(3);
 		assertThat(header.contains(ids[1])).isTrue();
 	}
+
+	@Test(expected = PageNotFoundException.class)
+	public void removingAPageTwiceShouldFail() {
+		initialize();
+
+		final int id = header.generateId();
+		header.removePage(id);
+		header.removePage(id);
+	}
+
+	@Test
+	public void shouldConvertLegacyHeader() throws IOException {
+		final RawPage firstPage = newPage();
+		final ByteBuffer buffer = firstPage.bufferForWriting(0);
+		buffer.putInt(0); // NEXT_PAGE
+		buffer.putInt(2); // FREE_PAGES_NUM
+		buffer.putInt(pageSize);
+		buffer.putInt(5); // LAST_ID
+		buffer.putInt(2); // FREE_PAGES_TOTAL
+		buffer.putInt(2);
+		buffer.putInt(4);
+		when(rm.getPage(0)).thenReturn(firstPage);
+
+		header.load();
+		assertThat(header.getNumberOfPages()).isEqualTo(3);
+		assertThat(header.contains(1)).isTrue();
+		assertThat(header.contains(2)).isFalse();
+		assertThat(header.contains(3)).isTrue();
+		assertThat(header.contains(4)).isFalse();
+		assertThat(header.contains(5)).isTrue();
+		assertThat(header.contains(6)).isFalse();
+		assertThat(firstPage.bufferForReading(ResourceHeader.Header.VERSION.offset).getInt())
+				.isEqualTo(ResourceHeader.BITMAP_VERSION);
+		verify(rm).writePage(firstPage);
+
+		// reload in the new format
+		final ResourceHeader header2 = new ResourceHeader(rm, pageSize);
+		header2.load();
+		assertThat(header2.getNumberOfPages()).isEqualTo(3);
+		assertThat(header2.contains(4)).isFalse();
+		assertThat(header2.generateId()).isEqualTo(2);
+	}
+
+	@Test
+	public void shouldWriteTheBitmapOncePerExtent() {
+		initialize();
+
+		// page 0 is part of the first extent
+		for (int i = 0; i < ResourceHeader.EXTENT_SIZE; i++)
+			assertThat(header.generateId()).isEqualTo(i + 1);
+
+		verify(rm, times(2)).writePage(pages.get(0));
+		verifyNoMoreInteractions(rm);
+	}
+
+	@Test
+	public void shouldPreferIdsNearTheHint() {
+		initialize();
+
+		for (int i = 0; i < 100; i++)
+			header.generateId();
+
+		// extents 0 and 1 are reserved, 200 is in extent 3
+		assertThat(header.generateId(200)).isEqualTo(200);
+		assertThat(header.generateId(200)).isEqualTo(201);
+		assertThat(header.generateId(50)).isEqualTo(101);
+		assertThat(header.generateId()).isEqualTo(102);
+	}
+
+	@Test
+	public void removedIdsShouldOnlyBeFreedOnDiskAtCheckpoint() throws IOException {
+		initialize();
+		when(rm.getPage(0)).thenReturn(pages.get(0));
+
+		final int id = header.generateId();
+		header.removePage(id);
+		assertThat(header.contains(id)).isFalse();
+
+		// without checkpoint, the id is leaked
+		ResourceHeader header2 = new ResourceHeader(rm, pageSize);
+		header2.load();
+		assertThat(header2.contains(id)).isTrue();
+
+		header.checkpoint();
+		header2 = new ResourceHeader(rm, pageSize);
+		header2.load();
+		assertThat(header2.contains(id)).isFalse();
+		assertThat(header2.getNumberOfPages()).isEqualTo(0);
+	}
 }
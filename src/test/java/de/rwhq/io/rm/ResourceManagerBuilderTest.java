@@ -41,6 +41,11 @@ public class ResourceManagerBuilderTest {
 		assertThat(setFile().cacheSize(0).build() instanceof FileResourceManager).isTrue();
 	}
 
+	@Test(expected = IllegalArgumentException.class)
+	public void writeBackShouldRequireACache(){
+		setFile().cacheSize(0).durability(Durability.WRITE_BACK).build();
+	}
+
 	private ResourceManagerBuilder setFile(){
 		return builder.file(new File("/tmp/ResourceManagerBuilderTest"));
 	}
@@ -16,6 +16,7 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 
@@ -100,6 +101,25 @@ public abstract class ResourceManagerTest {
 		}
 	}
 
+	@Test
+	public void pagesBeyondTheFirstBitmapPageShouldSurviveReopening() throws IOException {
+		// page 0 holds the bits of less than pageSize * 8 ids
+		final int count = rm.getPageSize() * 8 + 100;
+		int lastId = 0;
+		for (int i = 0; i < count; i++)
+			lastId = rm.createPage().id();
+
+		final RawPage last = rm.getPage(lastId);
+		last.bufferForWriting(0).putInt(1234);
+		last.sync();
+
+		rm.close();
+		rm.open();
+
+		assertThat(rm.numberOfPages()).isEqualTo(count);
+		assertThat(rm.getPage(lastId).bufferForReading(0).getInt()).isEqualTo(1234);
+	}
+
 	@Test
 	public void toStringShouldAlwaysWork() throws IOException {
 		if (!rm.isOpen())
@@ -139,4 +159,28 @@ public abstract class ResourceManagerTest {
 		rm.removePage(p3.id());
 		assertThat(rm.numberOfPages()).isEqualTo(i - 1);
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void shouldWritePagesInOneBatch() throws IOException {
+		final List<RawPage> pages = new ArrayList<RawPage>();
+		for (int i = 0; i < 20; i++) {
+			final RawPage page = rm.createPage();
+			page.bufferForWriting(0).putInt(i);
+
+			// leave a gap to get more than one run
+			if (i != 10)
+				pages.add(page);
+		}
+		Collections.shuffle(pages);
+
+		rm.writePages(pages);
+		for (final RawPage page : pages)
+			assertThat(page.isModified()).isFalse();
+
+		rm.close();
+		rm.open();
+
+		for (final RawPage page : pages)
+			assertThat(rm.getPage(page.id()).bufferForReading(0).getInt()).isEqualTo(page.bufferForReading(0).getInt());
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License:
+ *
+ * http://creativecommons.org/licenses/by-nc/3.0/
+ *
+ * For alternative conditions contact the author.
+ *
+ * Copyright (c) 2011 "Robin Wenglewski <robin@wenglewski.de>"
+ */
+
+package de.rwhq.io.rm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class WriteAheadLogTest {
+
+	private static final File file = new File("/tmp/WriteAheadLogTest");
+	private WriteAheadLog log;
+
+	@Before
+	public void setUp() throws IOException {
+		file.delete();
+		log = new WriteAheadLog(file);
+		log.open();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		log.close();
+	}
+
+	private List<Integer> replay() {
+		final List<Integer> result = new ArrayList<Integer>();
+		log.replay(new WriteAheadLog.RecordHandler() {
+			@Override
+			public void redo(final byte type, final ByteBuffer payload) {
+				result.add((int) type);
+				result.add(payload.getInt());
+			}
+		});
+		return result;
+	}
+
+	private static byte[] bytes(final int i) {
+		return ByteBuffer.allocate(4).putInt(i).array();
+	}
+
+	@Test
+	public void recordsAppendedBeforeACommitShouldShareOneForce() {
+		final long lsn1 = log.append((byte) 1, bytes(1));
+		log.append((byte) 2, bytes(2));
+		final long lsn3 = log.append((byte) 3, bytes(3));
+		assertThat(file.length()).isEqualTo(0);
+
+		log.commit(lsn1);
+		assertThat(log.getNumberOfForces()).isEqualTo(1);
+		assertThat(file.length()).isGreaterThan(0);
+
+		log.commit(lsn3);
+		assertThat(log.getNumberOfForces()).isEqualTo(1);
+	}
+
+	@Test
+	public void committedRecordsShouldBeReplayedAfterReopen() throws IOException {
+		log.append((byte) 1, bytes(10));
+		log.append((byte) 2, bytes(20));
+		log.commit();
+		log.close();
+
+		log = new WriteAheadLog(file);
+		log.open();
+		assertThat(replay()).isEqualTo(Arrays.asList(1, 10, 2, 20));
+	}
+
+	@Test
+	public void incompleteRecordsShouldBeCutOff() throws IOException {
+		log.append((byte) 1, bytes(10));
+		log.commit();
+		final long length = file.length();
+		log.append((byte) 2, bytes(20));
+		log.close();
+
+		// only half of the second record made it to the disk
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(length + 6);
+		raf.close();
+
+		log = new WriteAheadLog(file);
+		log.open();
+		assertThat(file.length()).isEqualTo(length);
+		assertThat(replay()).isEqualTo(Arrays.asList(1, 10));
+
+		log.append((byte) 3, bytes(30));
+		log.commit();
+		assertThat(replay()).isEqualTo(Arrays.asList(1, 10, 3, 30));
+	}
+
+	@Test
+	public void checkpointsShouldRestorePagesAndLimitTheReplay() throws IOException {
+		final File rmFile = new File("/tmp/WriteAheadLogTest.rm");
+		rmFile.delete();
+		final ResourceManager rm = new ResourceManagerBuilder().file(rmFile).cacheSize(10).open().build();
+
+		log.append((byte) 1, bytes(10));
+		final RawPage page = rm.createPage();
+		page.bufferForWriting(0).putInt(1234);
+		log.logPageImages(Arrays.asList(page));
+		log.append((byte) 2, bytes(20));
+		log.commit();
+
+		// the checkpoint did not write the page in place
+		page.bufferForWriting(0).putInt(0);
+		assertThat(log.restorePages(rm)).isEqualTo(1);
+		assertThat(rm.getPage(page.id()).bufferForReading(0).getInt()).isEqualTo(1234);
+		assertThat(replay()).isEqualTo(Arrays.asList(2, 20));
+
+		log.truncate();
+		assertThat(file.length()).isEqualTo(0);
+		assertThat(replay()).isEmpty();
+		rm.close();
+	}
+
+	@Test
+	public void fuzzyCheckpointsShouldReplayFromTheLsnOfTheirSnapshot() throws IOException {
+		final File rmFile = new File("/tmp/WriteAheadLogTest.rm");
+		rmFile.delete();
+		final ResourceManager rm = new ResourceManagerBuilder().file(rmFile).cacheSize(10).open().build();
+
+		log.append((byte) 1, bytes(10));
+		final RawPage page = rm.createPage();
+		page.bufferForWriting(0).putInt(1234);
+		final RawPage copy = page.copy();
+		final long lsn = log.getLsn();
+
+		// appended while the images of the snapshot are logged
+		log.append((byte) 2, bytes(20));
+		page.bufferForWriting(0).putInt(5678);
+		log.logPageImages(Arrays.asList(copy), lsn);
+		log.append((byte) 3, bytes(30));
+		log.commit();
+
+		page.bufferForWriting(0).putInt(0);
+		assertThat(log.restorePages(rm)).isEqualTo(1);
+		assertThat(rm.getPage(page.id()).bufferForReading(0).getInt()).isEqualTo(1234);
+		assertThat(replay()).isEqualTo(Arrays.asList(2, 20, 3, 30));
+		rm.close();
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License:
+ *
+ * http://creativecommons.org/licenses/by-nc/3.0/
+ *
+ * For alternative conditions contact the author.
+ *
+ * Copyright (c) 2011 "Robin Wenglewski <robin@wenglewski.de>"
+ */
+package de.rwhq.serializer;
+
+import de.rwhq.comparator.FixedStringComparator;
+import de.rwhq.comparator.IntegerComparator;
+import de.rwhq.comparator.LexicographicComparator;
+import de.rwhq.comparator.LongComparator;
+import de.rwhq.comparator.PaddedStringComparator;
+import de.rwhq.comparator.RawComparator;
+import de.rwhq.comparator.StringComparator;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+import java.util.Random;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class OrderPreservingSerializerTest {
+
+	private final Random random = new Random(42);
+
+	@Test
+	public void integers() {
+		final RawComparator<Integer> raw = IntegerSerializer.INSTANCE.getRawComparator(IntegerComparator.INSTANCE);
+		assertThat(raw).isNotNull();
+
+		shouldPreserveOrder(IntegerSerializer.INSTANCE, raw, 0, -1);
+		shouldPreserveOrder(IntegerSerializer.INSTANCE, raw, Integer.MIN_VALUE, Integer.MAX_VALUE);
+		for (int i = 0; i < 1000; i++)
+			shouldPreserveOrder(IntegerSerializer.INSTANCE, raw, random.nextInt(), random.nextInt());
+	}
+
+	@Test
+	public void longs() {
+		final RawComparator<Long> raw = LongSerializer.INSTANCE.getRawComparator(LongComparator.INSTANCE);
+		assertThat(raw).isNotNull();
+
+		shouldPreserveOrder(LongSerializer.INSTANCE, raw, 0L, -1L);
+		shouldPreserveOrder(LongSerializer.INSTANCE, raw, Long.MIN_VALUE, Long.MAX_VALUE);
+		for (int i = 0; i < 1000; i++)
+			shouldPreserveOrder(LongSerializer.INSTANCE, raw, random.nextLong(), random.nextLong());
+	}
+
+	@Test
+	public void strings() {
+		final RawComparator<String> raw =
+				FixedStringSerializer.INSTANCE_10.getRawComparator(FixedStringComparator.INSTANCE);
+		assertThat(raw).isNotNull();
+
+		final String[] strings = {"", "a", "ab", "b", "B", "aa", "\u00e4", "z"};
+		for (final String s1 : strings) {
+			for (final String s2 : strings) {
+				shouldPreserveOrder(FixedStringSerializer.INSTANCE_10, raw, s1, s2);
+
+				// for ASCII strings, this is the natural order
+				if (s1.matches("\\p{ASCII}*") && s2.matches("\\p{ASCII}*"))
+					assertThat(Integer.signum(raw.compare(s1, s2)))
+							.isEqualTo(Integer.signum(StringComparator.INSTANCE.compare(s1, s2)));
+			}
+		}
+	}
+
+	@Test
+	public void paddedStrings() {
+		final RawComparator<String> raw =
+				PaddedStringSerializer.INSTANCE_10.getRawComparator(PaddedStringComparator.INSTANCE);
+		assertThat(raw).isInstanceOf(LexicographicComparator.class);
+
+		final String[] strings = {"", "a", "ab", "b", "B", "aa", "\u00e4", "z"};
+		for (final String s1 : strings) {
+			for (final String s2 : strings) {
+				shouldPreserveOrder(PaddedStringSerializer.INSTANCE_10, raw, s1, s2);
+				assertThat(Integer.signum(raw.compare(s1, s2)))
+						.isEqualTo(Integer.signum(FixedStringComparator.INSTANCE.compare(s1, s2)));
+			}
+		}
+
+		assertThat(PaddedStringSerializer.INSTANCE_10.deserialize(PaddedStringSerializer.INSTANCE_10.serialize("abc")))
+				.isEqualTo("abc");
+	}
+
+	@Test
+	public void shouldNotProvideARawComparatorForOtherOrders() {
+		final Comparator<Integer> reverse = new Comparator<Integer>() {
+			@Override public int compare(final Integer o1, final Integer o2) {
+				return o2.compareTo(o1);
+			}
+		};
+
+		assertThat(IntegerSerializer.INSTANCE.getRawComparator(reverse)).isNull();
+		assertThat(FixedStringSerializer.INSTANCE.getRawComparator(StringComparator.INSTANCE)).isNull();
+	}
+
+	private <T> void shouldPreserveOrder(final FixLengthSerializer<T, byte[]> serializer, final RawComparator<T> raw,
+	                                     final T o1, final T o2) {
+		// store the objects at an offset, like in a page
+		final ByteBuffer b1 = ByteBuffer.allocate(serializer.getSerializedLength() + 3);
+		b1.position(3);
+		b1.put(serializer.serialize(o1));
+		final ByteBuffer b2 = ByteBuffer.wrap(serializer.serialize(o2));
+
+		final int expected = Integer.signum(raw.compare(o1, o2));
+		assertThat(Integer.signum(raw.compare(b1, 3, b2, 0))).isEqualTo(expected);
+		assertThat(Integer.signum(raw.compare(b2, 0, b1, 3))).isEqualTo(-expected);
+	}
+}